@@ -8,6 +8,11 @@ FIXADS="-Duser.language=en -Duser.country=US"
 #DEBUG_SSL="-Djavax.net.debug=ssl"
 DEBUG_SSL=
 
+# Java Flight Recorder, continuous recording including the Crowd LDAP events;
+# add settings=etc/crowd-ldap-server.jfc to record all of them
+#JFR="-XX:StartFlightRecording:disk=true,maxage=6h,settings=default"
+JFR=
+
 # Run Server
-java $FIXADS $DEBUG_SSL -cp etc -jar $JAR $*
+java $FIXADS $DEBUG_SSL $JFR -cp etc -jar $JAR $*
 
@@ -0,0 +1,376 @@
+package net.wimpi.crowd.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes one structured record per LDAP operation to a dedicated access log.
+ * <p/>
+ * Request threads fill preallocated records in a ring buffer, without locking
+ * or formatting; a background thread formats the records and writes them to
+ * a size-rotated file. If the writer falls behind and the ring is full,
+ * records are dropped and counted, so logging never blocks a request.
+ * <p/>
+ * Per-operation statistics (cache hits, Crowd calls, entries returned) are
+ * collected in a thread local {@link Stats} by the partition and the backend.
+ */
+public class AccessLog implements Runnable, AccessLogMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+  private static final ThreadLocal<Stats> c_Stats = new ThreadLocal<Stats>() {
+    protected Stats initialValue() {
+      return new Stats();
+    }
+  };
+
+  private final Record[] m_Ring;
+  private final int m_Mask;
+  private final AtomicLong m_Claimed = new AtomicLong(0);
+  private final AtomicLong m_Consumed = new AtomicLong(0);
+  private final AtomicLong m_Dropped = new AtomicLong(0);
+  //written by the writer thread, read through JMX
+  private final AtomicLong m_Written = new AtomicLong(0);
+
+  private final File m_File;
+  private final long m_MaxSize;
+  private final int m_MaxBackups;
+  private Writer m_Writer;
+  private long m_Size;
+  private volatile boolean m_Running;
+
+  /**
+   * Creates a new <tt>AccessLog</tt>.
+   *
+   * @param file       the log file.
+   * @param capacity   the number of records in the ring buffer, rounded up to a power of two.
+   * @param maxSize    the size in bytes at which the file is rotated.
+   * @param maxBackups the number of rotated files kept.
+   */
+  public AccessLog(File file, int capacity, long maxSize, int maxBackups) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    m_Ring = new Record[size];
+    for (int i = 0; i < size; i++) {
+      m_Ring[i] = new Record();
+    }
+    m_Mask = size - 1;
+    m_File = file;
+    m_MaxSize = maxSize;
+    m_MaxBackups = maxBackups;
+  }//constructor
+
+  /**
+   * Starts the background writer.
+   *
+   * @throws IOException if the log file cannot be opened.
+   */
+  public void start() throws IOException {
+    open();
+    m_Running = true;
+    Thread t = new Thread(this, "crowd-access-log");
+    t.setDaemon(true);
+    t.start();
+  }//start
+
+  /**
+   * Stops the background writer, after writing the pending records.
+   */
+  public void stop() {
+    m_Running = false;
+  }//stop
+
+  /**
+   * Returns the statistics of the operation processed by the calling thread.
+   *
+   * @return the thread local {@link Stats}.
+   */
+  public static Stats stats() {
+    return c_Stats.get();
+  }//stats
+
+  /**
+   * Appends a record to the ring buffer. The given objects are only
+   * converted to strings by the writer thread.
+   *
+   * @return true if appended, false if dropped because the ring is full.
+   */
+  boolean append(String op, Object client, Object dn, Object scope, Object filter,
+                 int result, long startNanos, Stats stats) {
+    long seq;
+    do {
+      seq = m_Claimed.get();
+      if (seq - m_Consumed.get() >= m_Ring.length) {
+        m_Dropped.incrementAndGet();
+        return false;
+      }
+    } while (!m_Claimed.compareAndSet(seq, seq + 1));
+
+    Record r = m_Ring[(int) (seq & m_Mask)];
+    r.m_Time = System.currentTimeMillis();
+    r.m_Duration = System.nanoTime() - startNanos;
+    r.m_Op = op;
+    r.m_Client = client;
+    r.m_Dn = dn;
+    r.m_Scope = scope;
+    r.m_Filter = filter;
+    r.m_Result = result;
+    r.m_Entries = stats.m_Entries;
+    r.m_CacheHits = stats.m_CacheHits;
+    r.m_CacheMisses = stats.m_CacheMisses;
+    r.m_CrowdCalls = stats.m_CrowdCalls;
+    r.m_Published = seq;
+    return true;
+  }//append
+
+  public void run() {
+    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    StringBuilder sb = new StringBuilder(512);
+    long seq = m_Consumed.get();
+    while (m_Running || seq < m_Claimed.get()) {
+      Record r = m_Ring[(int) (seq & m_Mask)];
+      if (r.m_Published != seq) {
+        //nothing published yet
+        flush();
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        continue;
+      }
+      sb.setLength(0);
+      r.format(sb, df);
+      r.clear();
+      m_Consumed.lazySet(++seq);
+      write(sb);
+    }
+    close();
+  }//run
+
+  private void write(StringBuilder sb) {
+    try {
+      if (m_Writer == null) {
+        return;
+      }
+      m_Writer.append(sb);
+      m_Size += sb.length();
+      m_Written.incrementAndGet();
+      if (m_Size >= m_MaxSize) {
+        rotate();
+      }
+    } catch (IOException ex) {
+      log.error("write()", ex);
+    }
+  }//write
+
+  private void flush() {
+    try {
+      if (m_Writer != null) {
+        m_Writer.flush();
+      }
+    } catch (IOException ex) {
+      log.error("flush()", ex);
+    }
+  }//flush
+
+  private void open() throws IOException {
+    File dir = m_File.getAbsoluteFile().getParentFile();
+    if (dir != null && !dir.exists()) {
+      dir.mkdirs();
+    }
+    m_Size = m_File.length();
+    m_Writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(m_File, true), "utf-8"), 64 * 1024);
+  }//open
+
+  private void close() {
+    try {
+      if (m_Writer != null) {
+        m_Writer.close();
+      }
+    } catch (IOException ex) {
+      log.error("close()", ex);
+    }
+    m_Writer = null;
+  }//close
+
+  private void rotate() throws IOException {
+    close();
+    for (int i = m_MaxBackups - 1; i > 0; i--) {
+      File from = new File(m_File.getPath() + "." + i);
+      if (from.exists()) {
+        File to = new File(m_File.getPath() + "." + (i + 1));
+        to.delete();
+        from.renameTo(to);
+      }
+    }
+    if (m_MaxBackups > 0) {
+      File to = new File(m_File.getPath() + ".1");
+      to.delete();
+      m_File.renameTo(to);
+    } else {
+      m_File.delete();
+    }
+    open();
+  }//rotate
+
+  public int getCapacity() {
+    return m_Ring.length;
+  }//getCapacity
+
+  public long getRecorded() {
+    return m_Claimed.get();
+  }//getRecorded
+
+  public long getDropped() {
+    return m_Dropped.get();
+  }//getDropped
+
+  public int getPending() {
+    return (int) (m_Claimed.get() - m_Consumed.get());
+  }//getPending
+
+  public long getWritten() {
+    return m_Written.get();
+  }//getWritten
+
+  /**
+   * Statistics of the operation processed by a thread.
+   * Nested operations are accounted to the outermost one.
+   */
+  public static class Stats {
+
+    private int m_Depth;
+    private int m_Entries;
+    private int m_CacheHits;
+    private int m_CacheMisses;
+    private int m_CrowdCalls;
+
+    /**
+     * Marks the begin of an operation.
+     *
+     * @return true if this is the outermost operation.
+     */
+    boolean begin() {
+      if (m_Depth++ == 0) {
+        m_Entries = -1;
+        m_CacheHits = 0;
+        m_CacheMisses = 0;
+        m_CrowdCalls = 0;
+        return true;
+      }
+      return false;
+    }//begin
+
+    void end() {
+      m_Depth--;
+    }//end
+
+    public void entries(int n) {
+      m_Entries = n;
+    }//entries
+
+    public void cacheHit() {
+      m_CacheHits++;
+    }//cacheHit
+
+    public void cacheMiss() {
+      m_CacheMisses++;
+    }//cacheMiss
+
+    public void crowdCall() {
+      m_CrowdCalls++;
+    }//crowdCall
+
+    int getEntries() {
+      return m_Entries;
+    }//getEntries
+
+    int getCacheHits() {
+      return m_CacheHits;
+    }//getCacheHits
+
+    int getCacheMisses() {
+      return m_CacheMisses;
+    }//getCacheMisses
+
+    int getCrowdCalls() {
+      return m_CrowdCalls;
+    }//getCrowdCalls
+
+  }//inner class Stats
+
+  /**
+   * A preallocated record of the ring buffer.
+   */
+  private static class Record {
+
+    private volatile long m_Published = -1;
+    private long m_Time;
+    private long m_Duration;
+    private String m_Op;
+    private Object m_Client;
+    private Object m_Dn;
+    private Object m_Scope;
+    private Object m_Filter;
+    private int m_Result;
+    private int m_Entries;
+    private int m_CacheHits;
+    private int m_CacheMisses;
+    private int m_CrowdCalls;
+
+    void format(StringBuilder sb, SimpleDateFormat df) {
+      sb.append(df.format(new Date(m_Time)));
+      sb.append(" op=").append(m_Op);
+      if (m_Client != null) {
+        sb.append(" client=").append(m_Client);
+      }
+      appendQuoted(sb, " dn=", m_Dn);
+      if (m_Scope != null) {
+        sb.append(" scope=").append(m_Scope);
+      }
+      if (m_Filter != null) {
+        appendQuoted(sb, " filter=", m_Filter);
+      }
+      sb.append(" result=").append(m_Result);
+      if (m_Entries >= 0) {
+        sb.append(" entries=").append(m_Entries);
+      }
+      sb.append(" cache.hits=").append(m_CacheHits);
+      sb.append(" cache.misses=").append(m_CacheMisses);
+      sb.append(" crowd.calls=").append(m_CrowdCalls);
+      sb.append(" duration.us=").append(TimeUnit.NANOSECONDS.toMicros(m_Duration));
+      sb.append('\n');
+    }//format
+
+    void clear() {
+      m_Client = null;
+      m_Dn = null;
+      m_Scope = null;
+      m_Filter = null;
+    }//clear
+
+    private static void appendQuoted(StringBuilder sb, String key, Object value) {
+      sb.append(key).append('"');
+      String str = String.valueOf(value);
+      for (int i = 0; i < str.length(); i++) {
+        char c = str.charAt(i);
+        if (c == '"' || c == '\\') {
+          sb.append('\\');
+        } else if (c == '\n' || c == '\r') {
+          c = ' ';
+        }
+        sb.append(c);
+      }
+      sb.append('"');
+    }//appendQuoted
+
+  }//inner class Record
+
+}//class AccessLog
@@ -0,0 +1,177 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.interceptor.NextInterceptor;
+import org.apache.directory.server.core.interceptor.context.BindOperationContext;
+import org.apache.directory.server.core.interceptor.context.CompareOperationContext;
+import org.apache.directory.server.core.interceptor.context.OperationContext;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.schema.AttributeTypeOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records bind, search and compare operations in the {@link AccessLog},
+ * and captures those of clients with the {@link TraceRecorder}.
+ * <p/>
+ * Placed first in the interceptor chain, so the recorded duration
+ * covers the complete processing of the operation.
+ */
+public class AccessLogInterceptor extends BaseInterceptor {
+
+  private final AccessLog m_AccessLog;
+  private final TraceRecorder m_TraceRecorder;
+
+  /**
+   * Creates a new <tt>AccessLogInterceptor</tt>.
+   *
+   * @param accessLog     the access log, may be null.
+   * @param traceRecorder the trace recorder, may be null.
+   */
+  public AccessLogInterceptor(AccessLog accessLog, TraceRecorder traceRecorder) {
+    m_AccessLog = accessLog;
+    m_TraceRecorder = traceRecorder;
+  }//constructor
+
+  public void bind(NextInterceptor next, BindOperationContext ctx) throws Exception {
+    AccessLog.Stats stats = AccessLog.stats();
+    boolean outer = stats.begin();
+    long start = System.nanoTime();
+    int result = RESULT_SUCCESS;
+    try {
+      next.bind(ctx);
+    } catch (Exception ex) {
+      result = getResultCode(ex);
+      throw ex;
+    } finally {
+      stats.end();
+      if (outer) {
+        append("bind", ctx, null, null, result, start, stats);
+        if (isCapturing(ctx)) {
+          //never the credentials
+          capture(new Trace.Op(), Trace.BIND, ctx, result, start, stats);
+        }
+      }
+    }
+  }//bind
+
+  public EntryFilteringCursor search(NextInterceptor next, SearchOperationContext ctx) throws Exception {
+    AccessLog.Stats stats = AccessLog.stats();
+    boolean outer = stats.begin();
+    long start = System.nanoTime();
+    int result = RESULT_SUCCESS;
+    //the filter is normalized further down the chain
+    Trace.Op op = (outer && isCapturing(ctx)) ? createSearch(ctx) : null;
+    try {
+      return next.search(ctx);
+    } catch (Exception ex) {
+      result = getResultCode(ex);
+      throw ex;
+    } finally {
+      stats.end();
+      if (outer) {
+        append("search", ctx, ctx.getScope(), ctx.getFilter(), result, start, stats);
+        if (op != null) {
+          capture(op, Trace.SEARCH, ctx, result, start, stats);
+        }
+      }
+    }
+  }//search
+
+  public boolean compare(NextInterceptor next, CompareOperationContext ctx) throws Exception {
+    AccessLog.Stats stats = AccessLog.stats();
+    boolean outer = stats.begin();
+    long start = System.nanoTime();
+    int result = RESULT_SUCCESS;
+    try {
+      boolean b = next.compare(ctx);
+      result = (b) ? ResultCodeEnum.COMPARE_TRUE.getResultCode() : ResultCodeEnum.COMPARE_FALSE.getResultCode();
+      return b;
+    } catch (Exception ex) {
+      result = getResultCode(ex);
+      throw ex;
+    } finally {
+      stats.end();
+      if (outer) {
+        //the compared attribute is recorded as filter
+        append("compare", ctx, null, ctx.getOid(), result, start, stats);
+        if (isCapturing(ctx)) {
+          capture(createCompare(ctx), Trace.COMPARE, ctx, result, start, stats);
+        }
+      }
+    }
+  }//compare
+
+  private void append(String op, OperationContext ctx, Object scope, Object filter,
+                      int result, long start, AccessLog.Stats stats) {
+    if (m_AccessLog != null) {
+      m_AccessLog.append(op, getClient(ctx), ctx.getDn(), scope, filter, result, start, stats);
+    }
+  }//append
+
+  /**
+   * Tests if the operation is captured, i.e. requested by a client while capturing.
+   */
+  private boolean isCapturing(OperationContext ctx) {
+    return m_TraceRecorder != null && m_TraceRecorder.isEnabled() && getClient(ctx) != null;
+  }//isCapturing
+
+  private void capture(Trace.Op op, byte type, OperationContext ctx, int result, long start, AccessLog.Stats stats) {
+    op.m_Type = type;
+    op.m_Dn = ctx.getDn().getName();
+    op.m_Result = result;
+    op.m_Entries = stats.getEntries();
+    op.m_CacheHits = stats.getCacheHits();
+    op.m_CacheMisses = stats.getCacheMisses();
+    op.m_CrowdCalls = stats.getCrowdCalls();
+    op.m_Duration = (System.nanoTime() - start) / 1000L;
+    m_TraceRecorder.record(op, getClient(ctx), start);
+  }//capture
+
+  private static Trace.Op createSearch(SearchOperationContext ctx) {
+    Trace.Op op = new Trace.Op();
+    op.m_Scope = ctx.getScope().getScope();
+    op.m_Filter = Trace.sanitize(ctx.getFilter().toString());
+    op.m_SizeLimit = ctx.getSizeLimit();
+    List<String> attributes = new ArrayList<String>();
+    if (ctx.isNoAttributes()) {
+      attributes.add("1.1");
+    }
+    if (ctx.isAllUserAttributes()) {
+      attributes.add("*");
+    }
+    if (ctx.isAllOperationalAttributes()) {
+      attributes.add("+");
+    }
+    if (ctx.getReturningAttributes() != null) {
+      for (AttributeTypeOptions ato : ctx.getReturningAttributes()) {
+        attributes.add(ato.getAttributeType().getName());
+      }
+    }
+    op.m_Attributes = attributes.toArray(new String[attributes.size()]);
+    return op;
+  }//createSearch
+
+  private static Trace.Op createCompare(CompareOperationContext ctx) {
+    Trace.Op op = new Trace.Op();
+    op.m_Attribute = ctx.getOid();
+    if (ctx.getValue() != null) {
+      op.m_Value = Trace.isPassword(op.m_Attribute) ? Trace.REDACTED : ctx.getValue().getString();
+    }
+    return op;
+  }//createCompare
+
+  private static Object getClient(OperationContext ctx) {
+    return (ctx.getSession() != null) ? ctx.getSession().getClientAddress() : null;
+  }//getClient
+
+  private static int getResultCode(Exception ex) {
+    return ResultCodeEnum.getResultCode(ex).getResultCode();
+  }//getResultCode
+
+  private static final int RESULT_SUCCESS = ResultCodeEnum.SUCCESS.getResultCode();
+
+}//class AccessLogInterceptor
@@ -0,0 +1,28 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link AccessLog}.
+ */
+public interface AccessLogMBean {
+
+  /**
+   * Returns the number of records the ring buffer can hold.
+   *
+   * @return the capacity.
+   */
+  public int getCapacity();
+
+  public long getRecorded();
+
+  /**
+   * Returns the number of records dropped because the ring buffer was full.
+   *
+   * @return the number of dropped records.
+   */
+  public long getDropped();
+
+  public int getPending();
+
+  public long getWritten();
+
+}//interface AccessLogMBean
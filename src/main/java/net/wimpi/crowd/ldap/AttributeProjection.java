@@ -0,0 +1,234 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.server.core.interceptor.context.LookupOperationContext;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.filter.BranchNode;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.LeafNode;
+import org.apache.directory.shared.ldap.schema.AttributeTypeOptions;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Describes which attributes of an entry an operation actually needs,
+ * i.e. the attributes to be returned plus those used in the filter.
+ * <p/>
+ * Attributes are identified by their OID. This allows the partition to skip
+ * the expensive attributes (<tt>memberOf</tt>, <tt>member</tt>), or even the
+ * Crowd lookup of an entry, when the client does not ask for them.
+ * <p/>
+ * Attributes requested with an AD style range option
+ * (e.g. <tt>member;range=0-1499</tt>) also carry the requested range.
+ */
+class AttributeProjection {
+
+  /**
+   * Projection including all user attributes.
+   */
+  static final AttributeProjection ALL =
+      new AttributeProjection(true, Collections.<String>emptySet(), Collections.<String>emptySet(),
+          Collections.<String, int[]>emptyMap());
+
+  /**
+   * Projection including no attributes, e.g. to test if an entry exists.
+   */
+  static final AttributeProjection NONE =
+      new AttributeProjection(false, Collections.<String>emptySet(), Collections.<String>emptySet(),
+          Collections.<String, int[]>emptyMap());
+
+  private final boolean m_All;
+  private final Set<String> m_Returned;
+  private final Set<String> m_Filtered;
+  private final Map<String, int[]> m_Ranges;
+
+  private AttributeProjection(boolean all, Set<String> returned, Set<String> filtered, Map<String, int[]> ranges) {
+    m_All = all;
+    m_Returned = returned;
+    m_Filtered = filtered;
+    m_Ranges = ranges;
+  }//constructor
+
+  /**
+   * Tests if the given attribute is needed.
+   *
+   * @param oid the OID of the attribute.
+   * @return true if needed, false otherwise.
+   */
+  boolean includes(String oid) {
+    return m_All || m_Returned.contains(oid) || m_Filtered.contains(oid);
+  }//includes
+
+  /**
+   * Tests if all needed attributes are contained in the given set.
+   *
+   * @param oids a set of attribute OIDs.
+   * @return true if the given attributes suffice, false otherwise.
+   */
+  boolean isCoveredBy(Set<String> oids) {
+    return !m_All && oids.containsAll(m_Returned) && oids.containsAll(m_Filtered);
+  }//isCoveredBy
+
+  /**
+   * Tests if the given attribute is used in the filter.
+   *
+   * @param oid the OID of the attribute.
+   * @return true if the filter references the attribute, false otherwise.
+   */
+  boolean isFiltered(String oid) {
+    return m_Filtered.contains(oid);
+  }//isFiltered
+
+  /**
+   * Tests if the given attribute is to be returned to the client.
+   *
+   * @param oid the OID of the attribute.
+   * @return true if the attribute is returned, false otherwise.
+   */
+  boolean isReturned(String oid) {
+    return m_All || m_Returned.contains(oid);
+  }//isReturned
+
+  /**
+   * Returns this projection without the given filter attribute, for
+   * operations where an assertion on it is evaluated without the entry.
+   *
+   * @param oid the OID of the attribute.
+   * @return the projection of the returned attributes and the remaining filter attributes.
+   */
+  AttributeProjection withoutFilter(String oid) {
+    Set<String> filtered = new HashSet<String>(m_Filtered);
+    filtered.remove(oid);
+    return new AttributeProjection(m_All, m_Returned, filtered, m_Ranges);
+  }//withoutFilter
+
+  /**
+   * Returns the range requested for the given attribute.
+   *
+   * @param oid the OID of the attribute.
+   * @return the first and last index of the range, where the last index is
+   *         {@link Integer#MAX_VALUE} for an open range; or null if no range was requested.
+   */
+  int[] getRange(String oid) {
+    return m_Ranges.get(oid);
+  }//getRange
+
+  /**
+   * Returns the projection of a search.
+   *
+   * @param ctx the search operation context.
+   * @return the projection.
+   */
+  static AttributeProjection forSearch(SearchOperationContext ctx) {
+    Set<String> filtered = new HashSet<String>();
+    collectAttributes(ctx.getFilter(), filtered);
+
+    Set<AttributeTypeOptions> returning = ctx.getReturningAttributes();
+    boolean all = ctx.isAllUserAttributes()
+        || ((returning == null || returning.isEmpty()) && !ctx.isNoAttributes() && !ctx.isAllOperationalAttributes());
+    Set<String> returned = new HashSet<String>();
+    Map<String, int[]> ranges = new HashMap<String, int[]>();
+    if (returning != null) {
+      for (AttributeTypeOptions ato : returning) {
+        String oid = ato.getAttributeType().getOid();
+        if (!all) {
+          returned.add(oid);
+        }
+        if (ato.hasOption()) {
+          for (String option : ato.getOptions()) {
+            int[] range = parseRange(option);
+            if (range != null) {
+              ranges.put(oid, range);
+            }
+          }
+        }
+      }
+    }
+    return new AttributeProjection(all, returned, filtered, ranges);
+  }//forSearch
+
+  /**
+   * Returns the projection of a lookup.
+   *
+   * @param ctx           the lookup operation context.
+   * @param schemaManager the schema manager used to resolve attribute names.
+   * @return the projection.
+   */
+  static AttributeProjection forLookup(LookupOperationContext ctx, SchemaManager schemaManager) {
+    List<String> ids = ctx.getAttrsId();
+    if (ids == null || ids.isEmpty() || Boolean.TRUE.equals(ctx.getAllUser())) {
+      return ALL;
+    }
+    Set<String> returned = new HashSet<String>();
+    Map<String, int[]> ranges = new HashMap<String, int[]>();
+    for (String id : ids) {
+      if (SchemaConstants.ALL_USER_ATTRIBUTES.equals(id)) {
+        return ALL;
+      }
+      String[] parts = id.split(";");
+      try {
+        String oid = schemaManager.lookupAttributeTypeRegistry(parts[0]).getOid();
+        returned.add(oid);
+        for (int i = 1; i < parts.length; i++) {
+          int[] range = parseRange(parts[i]);
+          if (range != null) {
+            ranges.put(oid, range);
+          }
+        }
+      } catch (Exception ex) {
+        //not an attribute type, e.g. "+" or "1.1"
+      }
+    }
+    return new AttributeProjection(false, returned, Collections.<String>emptySet(), ranges);
+  }//forLookup
+
+  /**
+   * Parses an AD style range option, i.e. <tt>range=low-high</tt> or <tt>range=low-*</tt>.
+   *
+   * @param option the attribute option.
+   * @return the first and last index of the range, or null if the option is not a valid range.
+   */
+  static int[] parseRange(String option) {
+    String opt = option.trim().toLowerCase();
+    if (!opt.startsWith(RANGE_OPTION)) {
+      return null;
+    }
+    int idx = opt.indexOf('-', RANGE_OPTION.length());
+    if (idx < 0) {
+      return null;
+    }
+    try {
+      int low = Integer.parseInt(opt.substring(RANGE_OPTION.length(), idx));
+      String h = opt.substring(idx + 1);
+      int high = "*".equals(h) ? Integer.MAX_VALUE : Integer.parseInt(h);
+      if (low < 0 || high < low) {
+        return null;
+      }
+      return new int[]{low, high};
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }//parseRange
+
+  private static void collectAttributes(ExprNode node, Set<String> oids) {
+    if (node == null) {
+      return;
+    }
+    if (node instanceof LeafNode) {
+      oids.add(((LeafNode) node).getAttribute().toLowerCase());
+    } else if (node instanceof BranchNode) {
+      for (ExprNode child : ((BranchNode) node).getChildren()) {
+        collectAttributes(child, oids);
+      }
+    }
+  }//collectAttributes
+
+  static final String RANGE_OPTION = "range=";
+
+}//class AttributeProjection
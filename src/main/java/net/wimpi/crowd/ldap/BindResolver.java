@@ -0,0 +1,178 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
+import net.wimpi.crowd.ldap.util.LRUCacheMap;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.name.RDN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the DN of a bind to the Crowd username.
+ * <p/>
+ * Only DNs directly below the users container of the tenant
+ * (<tt>ou=users,&lt;suffix&gt;</tt>) are resolved; the username is taken from
+ * the RDN of the bind DN (e.g. <tt>uid=jdoe</tt>), regardless of its type.
+ * If the RDN uses a login attribute (e.g. <tt>mail=jdoe@example.com</tt>),
+ * the username is looked up in Crowd once, and then served from a cached mapping.
+ * Configured aliases map directly to usernames; an alias is either an RDN value
+ * below the users container, or a complete DN within the suffix of the tenant.
+ * All other DNs, e.g. <tt>uid=admin,ou=system</tt>, are not resolved.
+ */
+public class BindResolver {
+
+  private static final Logger log = LoggerFactory.getLogger(BindResolver.class);
+
+  private final CrowdBackend m_Backend;
+  private final SchemaManager m_SchemaManager;
+  private final DN m_UsersDn;
+  private final Map<String, String> m_Aliases = new HashMap<String, String>();
+  //aliases given as DN, by normalized DN
+  private final Map<String, String> m_AliasDns = new HashMap<String, String>();
+  private final LRUCacheMap<String, String> m_MailCache;
+  private boolean m_MailLogin = false;
+
+  /**
+   * Creates a new <tt>BindResolver</tt>.
+   *
+   * @param backend       the backend used to look up login attributes.
+   * @param schemaManager the schema manager used to resolve attribute types.
+   * @param usersDn       the normalized DN of the users container of the tenant.
+   * @param cacheSize     the maximum number of cached mappings.
+   */
+  public BindResolver(CrowdBackend backend, SchemaManager schemaManager, DN usersDn, int cacheSize) {
+    m_Backend = backend;
+    m_SchemaManager = schemaManager;
+    m_UsersDn = usersDn;
+    m_MailCache = new LRUCacheMap<String, String>(cacheSize);
+  }//constructor
+
+  /**
+   * Enables or disables binding with the <tt>mail</tt> attribute.
+   *
+   * @param b true if enabled, false otherwise.
+   */
+  public void setMailLogin(boolean b) {
+    m_MailLogin = b;
+  }//setMailLogin
+
+  /**
+   * Adds an alias that is mapped to the given username.
+   *
+   * @param alias the alias, i.e. the RDN value used in a bind DN below the
+   *              users container, or a complete bind DN.
+   * @param user  the Crowd username.
+   * @throws Exception if the alias is a DN that is invalid or outside of the users' suffix.
+   */
+  public void addAlias(String alias, String user) throws Exception {
+    if (alias.indexOf('=') < 0) {
+      m_Aliases.put(alias.toLowerCase(), user);
+      return;
+    }
+    DN dn = DN.normalize(alias, m_SchemaManager.getNormalizerMapping());
+    DN suffix = m_UsersDn.getPrefix(m_UsersDn.size() - 1);
+    suffix.normalize(m_SchemaManager.getNormalizerMapping());
+    if (!dn.isChildOf(suffix)) {
+      throw new IllegalArgumentException("Alias outside of the suffix: " + alias);
+    }
+    m_AliasDns.put(dn.getNormName(), user);
+  }//addAlias
+
+  /**
+   * Remembers the username of a mail address, e.g. when a user entry is loaded.
+   *
+   * @param mail the mail address.
+   * @param user the Crowd username.
+   */
+  public void addMailMapping(String mail, String user) {
+    if (m_MailLogin && mail != null && mail.length() > 0) {
+      synchronized (m_MailCache) {
+        m_MailCache.put(mail.toLowerCase(), user);
+      }
+    }
+  }//addMailMapping
+
+  /**
+   * Forgets the mapping used for a bind DN, e.g. after a failed authentication.
+   *
+   * @param dn the bind DN.
+   */
+  public void forget(DN dn) {
+    if (dn.size() > 0) {
+      synchronized (m_MailCache) {
+        m_MailCache.remove(dn.getRdn(dn.size() - 1).getNormValue().toLowerCase());
+      }
+    }
+  }//forget
+
+  /**
+   * Resolves the given bind DN to the Crowd username.
+   *
+   * @param dn the bind DN.
+   * @return the username, or null if the DN cannot be resolved.
+   * @throws Exception if a lookup in Crowd fails.
+   */
+  public String resolve(DN dn) throws Exception {
+    if (!dn.isNormalized()) {
+      dn = DN.normalize(dn.getName(), m_SchemaManager.getNormalizerMapping());
+    }
+    String alias = m_AliasDns.get(dn.getNormName());
+    if (alias != null) {
+      return alias;
+    }
+    if (dn.size() != m_UsersDn.size() + 1 || !dn.isChildOf(m_UsersDn)) {
+      return null;
+    }
+    RDN rdn = dn.getRdn(dn.size() - 1);
+    String value = rdn.getNormValue();
+
+    String user = m_Aliases.get(value.toLowerCase());
+    if (user != null) {
+      return user;
+    }
+    if (m_MailLogin && MAIL_OID.equals(getOid(rdn.getNormType()))) {
+      return resolveMail(value);
+    }
+    return value;
+  }//resolve
+
+  private String resolveMail(String mail) throws Exception {
+    String key = mail.toLowerCase();
+    String user;
+    synchronized (m_MailCache) {
+      user = m_MailCache.get(key);
+    }
+    if (user == null) {
+      List<String> users = m_Backend.searchUserNames(
+          new TermRestriction<String>(UserTermKeys.EMAIL, MatchMode.EXACTLY_MATCHES, mail), 0, 2);
+      if (users.size() != 1) {
+        //Note: Mail addresses are not guaranteed to be unique in Crowd
+        log.debug("resolveMail()::" + users.size() + " users found for " + mail);
+        return null;
+      }
+      user = users.get(0);
+      synchronized (m_MailCache) {
+        m_MailCache.put(key, user);
+      }
+    }
+    return user;
+  }//resolveMail
+
+  private String getOid(String type) {
+    try {
+      return m_SchemaManager.lookupAttributeTypeRegistry(type).getOid();
+    } catch (Exception ex) {
+      return type;
+    }
+  }//getOid
+
+  private static final String MAIL_OID = "0.9.2342.19200300.100.1.3";
+
+}//class BindResolver
@@ -0,0 +1,211 @@
+package net.wimpi.crowd.ldap;
+
+import net.wimpi.crowd.ldap.util.LRUCacheMap;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks failed binds per user and client address, to protect Crowd
+ * from clients retrying a wrong password in a tight loop.
+ * <p/>
+ * Each failure puts the user and address into a backoff, doubling with
+ * every consecutive failure up to a maximum. While in backoff, a repeat of
+ * a recently failed credential is rejected locally, without asking Crowd.
+ * Other credentials are always passed to Crowd, so that a changed password
+ * works immediately. A successful bind, or a quiet period of the maximum
+ * backoff, resets the tracking.
+ * <p/>
+ * Failed credentials are only kept as salted hashes.
+ */
+public class BindThrottle implements BindThrottleMBean {
+
+  private final LRUCacheMap<String, Failures> m_Failures;
+  private final SecureRandom m_Random = new SecureRandom();
+  private final long m_Backoff;
+  private final long m_MaxBackoff;
+
+  private final AtomicLong m_Rejected = new AtomicLong(0);
+  private final AtomicLong m_Recorded = new AtomicLong(0);
+  private final AtomicLong m_Passed = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>BindThrottle</tt>.
+   *
+   * @param size       the maximum number of tracked users and addresses.
+   * @param backoff    the backoff after the first failure in milliseconds.
+   * @param maxBackoff the maximum backoff in milliseconds.
+   */
+  public BindThrottle(int size, long backoff, long maxBackoff) {
+    m_Failures = new LRUCacheMap<String, Failures>(size);
+    m_Backoff = Math.max(1L, backoff);
+    m_MaxBackoff = Math.max(m_Backoff, maxBackoff);
+  }//constructor
+
+  /**
+   * Tests if a bind should be rejected locally.
+   *
+   * @param user   the username.
+   * @param client the client address, may be null.
+   * @param pass   the credentials.
+   * @return true if the credentials failed recently and the user and client are in backoff,
+   *         false if the bind should be passed to Crowd.
+   */
+  public boolean isRejected(String user, SocketAddress client, byte[] pass) {
+    long now = System.currentTimeMillis();
+    Failures failures;
+    synchronized (m_Failures) {
+      failures = m_Failures.get(key(user, client));
+    }
+    if (failures == null) {
+      return false;
+    }
+    synchronized (failures) {
+      if (now >= failures.m_Until) {
+        return false;
+      }
+      if (failures.contains(hash(failures.m_Salt, pass))) {
+        m_Rejected.incrementAndGet();
+        return true;
+      }
+    }
+    m_Passed.incrementAndGet();
+    return false;
+  }//isRejected
+
+  /**
+   * Records a failed bind, extending the backoff.
+   *
+   * @param user   the username.
+   * @param client the client address, may be null.
+   * @param pass   the failed credentials.
+   */
+  public void failed(String user, SocketAddress client, byte[] pass) {
+    long now = System.currentTimeMillis();
+    String key = key(user, client);
+    Failures failures;
+    synchronized (m_Failures) {
+      failures = m_Failures.get(key);
+      if (failures == null) {
+        byte[] salt = new byte[16];
+        m_Random.nextBytes(salt);
+        failures = new Failures(salt);
+        m_Failures.put(key, failures);
+      }
+    }
+    synchronized (failures) {
+      if (now - failures.m_Until > m_MaxBackoff) {
+        //quiet for long enough, start over
+        failures.m_Count = 0;
+      }
+      failures.m_Count++;
+      long backoff = m_Backoff;
+      for (int i = 1; i < failures.m_Count && backoff < m_MaxBackoff; i++) {
+        backoff *= 2;
+      }
+      failures.m_Until = now + Math.min(backoff, m_MaxBackoff);
+      failures.add(hash(failures.m_Salt, pass));
+    }
+    m_Recorded.incrementAndGet();
+  }//failed
+
+  /**
+   * Records a successful bind, resetting the tracking.
+   *
+   * @param user   the username.
+   * @param client the client address, may be null.
+   */
+  public void succeeded(String user, SocketAddress client) {
+    synchronized (m_Failures) {
+      m_Failures.remove(key(user, client));
+    }
+  }//succeeded
+
+  public int getTracked() {
+    synchronized (m_Failures) {
+      return m_Failures.size();
+    }
+  }//getTracked
+
+  public long getRejected() {
+    return m_Rejected.get();
+  }//getRejected
+
+  public long getFailures() {
+    return m_Recorded.get();
+  }//getFailures
+
+  public long getPassed() {
+    return m_Passed.get();
+  }//getPassed
+
+  public long getBackoff() {
+    return m_Backoff;
+  }//getBackoff
+
+  public long getMaxBackoff() {
+    return m_MaxBackoff;
+  }//getMaxBackoff
+
+  private static String key(String user, SocketAddress client) {
+    String source;
+    if (client instanceof InetSocketAddress && ((InetSocketAddress) client).getAddress() != null) {
+      //Note: Without the port, which differs per connection
+      source = ((InetSocketAddress) client).getAddress().getHostAddress();
+    } else {
+      source = String.valueOf(client);
+    }
+    return user.toLowerCase() + '|' + source;
+  }//key
+
+  private static byte[] hash(byte[] salt, byte[] pass) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(salt);
+      return digest.digest(pass);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }//hash
+
+  /**
+   * The failures of a user and client address.
+   */
+  private static class Failures {
+
+    private final byte[] m_Salt;
+    //Most recent failed credentials, as salted hashes
+    private final byte[][] m_Hashes = new byte[MAX_HASHES][];
+    private int m_Next;
+    private int m_Count;
+    private long m_Until;
+
+    Failures(byte[] salt) {
+      m_Salt = salt;
+    }//constructor
+
+    boolean contains(byte[] hash) {
+      for (byte[] h : m_Hashes) {
+        if (h != null && MessageDigest.isEqual(h, hash)) {
+          return true;
+        }
+      }
+      return false;
+    }//contains
+
+    void add(byte[] hash) {
+      if (!contains(hash)) {
+        m_Hashes[m_Next] = hash;
+        m_Next = (m_Next + 1) % MAX_HASHES;
+      }
+    }//add
+
+  }//inner class Failures
+
+  private static final int MAX_HASHES = 4;
+
+}//class BindThrottle
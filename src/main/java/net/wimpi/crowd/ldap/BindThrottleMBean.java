@@ -0,0 +1,36 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link BindThrottle}.
+ */
+public interface BindThrottleMBean {
+
+  /**
+   * Returns the number of users and client addresses with recent failed binds.
+   *
+   * @return the number of tracked users and addresses.
+   */
+  public int getTracked();
+
+  /**
+   * Returns the number of binds rejected locally, without asking Crowd.
+   *
+   * @return the number of rejected binds.
+   */
+  public long getRejected();
+
+  public long getFailures();
+
+  /**
+   * Returns the number of binds passed to Crowd while in backoff,
+   * because the credentials differed from the failed ones.
+   *
+   * @return the number of passed binds.
+   */
+  public long getPassed();
+
+  public long getBackoff();
+
+  public long getMaxBackoff();
+
+}//interface BindThrottleMBean
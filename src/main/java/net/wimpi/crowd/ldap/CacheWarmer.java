@@ -0,0 +1,278 @@
+package net.wimpi.crowd.ldap;
+
+import net.wimpi.crowd.ldap.util.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Preloads the entry cache of a {@link CrowdPartition} in the background.
+ * <p/>
+ * Loads either all groups, or the configured subset of groups, with their
+ * members, followed by all users, respectively the members of the configured
+ * groups. Users are loaded in pages of one search each, all users in order,
+ * respectively the members of the configured groups by name; their memberships
+ * are loaded when read.
+ * Entries are loaded by a bounded number of threads, at a limited rate
+ * of calls towards Crowd, while the server is already serving requests.
+ * <p/>
+ * Without a cold tier, expelled entries are lost, so only as many users are
+ * loaded as fit into the free capacity of the entry cache; the cache size
+ * has to be raised to hold all users.
+ */
+public class CacheWarmer implements Runnable, CacheWarmerMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+
+  private final CrowdPartition m_Partition;
+  private final List<String> m_Groups;
+  private final int m_Parallelism;
+  private final RateLimiter m_RateLimiter;
+
+  private volatile String m_State = STATE_PENDING;
+  private final AtomicInteger m_GroupsTotal = new AtomicInteger(0);
+  private final AtomicInteger m_GroupsLoaded = new AtomicInteger(0);
+  private final AtomicInteger m_UsersTotal = new AtomicInteger(0);
+  private final AtomicInteger m_UsersLoaded = new AtomicInteger(0);
+  private final AtomicInteger m_Failures = new AtomicInteger(0);
+  private volatile long m_Started;
+  private volatile long m_Finished;
+
+  /**
+   * Creates a new <tt>CacheWarmer</tt>.
+   *
+   * @param partition   the partition to be warmed up.
+   * @param groups      the names of the groups to be loaded with their members,
+   *                    or null to load all groups and users.
+   * @param parallelism the number of entries loaded concurrently.
+   * @param rate        the maximum number of calls towards Crowd per second.
+   */
+  public CacheWarmer(CrowdPartition partition, List<String> groups, int parallelism, double rate) {
+    m_Partition = partition;
+    m_Groups = groups;
+    m_Parallelism = Math.max(1, parallelism);
+    m_RateLimiter = new RateLimiter(rate);
+  }//constructor
+
+  /**
+   * Starts the warm-up in a background thread.
+   */
+  public void start() {
+    Thread t = new Thread(this, "crowd-cache-warmup");
+    t.setDaemon(true);
+    t.start();
+  }//start
+
+  public void run() {
+    m_Started = System.currentTimeMillis();
+    try {
+      //1. Groups
+      m_State = STATE_GROUPS;
+      List<String> groups = (m_Groups != null) ? m_Groups : m_Partition.getGroupNames();
+      m_GroupsTotal.set(groups.size());
+      final Set<String> members = (m_Groups != null)
+          ? Collections.synchronizedSet(new LinkedHashSet<String>())
+          : null;
+      load(groups, m_GroupsLoaded, m_GroupsTotal, new Loader<String>() {
+        public int load(String name) throws Exception {
+          m_Partition.createGroupEntry(m_Partition.getGroupDn(name), AttributeProjection.NONE);
+          List<String> names = m_Partition.getGroupMemberNames(name);
+          if (members != null) {
+            members.addAll(names);
+          }
+          return 1;
+        }
+      });
+
+      //2. Users
+      m_State = STATE_USERS;
+      //with a cold tier, expelled entries are demoted instead of lost
+      int room = m_Partition.hasColdCache()
+          ? Integer.MAX_VALUE
+          : Math.max(0, m_Partition.getCacheSize() - m_Partition.getCachedEntries());
+      if (members != null) {
+        List<String> users = new ArrayList<String>(members);
+        if (users.size() > room) {
+          warnRoom(users.size(), room);
+          users = users.subList(0, room);
+        }
+        m_UsersTotal.set(users.size());
+        List<List<String>> pages = new ArrayList<List<String>>();
+        for (int i = 0; i < users.size(); i += NAMES_PER_SEARCH) {
+          pages.add(users.subList(i, Math.min(users.size(), i + NAMES_PER_SEARCH)));
+        }
+        load(pages, m_UsersLoaded, m_UsersTotal, new Loader<List<String>>() {
+          public int load(List<String> names) throws Exception {
+            return m_Partition.cacheUserEntries(names);
+          }
+        });
+      } else {
+        loadAllUsers(room);
+      }
+      m_State = STATE_DONE;
+    } catch (Exception ex) {
+      m_State = STATE_FAILED;
+      log.error("run()", ex);
+    } finally {
+      m_Finished = System.currentTimeMillis();
+    }
+    log.info(String.format("Cache warm-up %s: %d/%d groups, %d/%d users, %d failures in %d ms",
+        m_State, m_GroupsLoaded.get(), m_GroupsTotal.get(), m_UsersLoaded.get(), m_UsersTotal.get(),
+        m_Failures.get(), getDuration()));
+  }//run
+
+  /**
+   * Pages through all users in the warm-up thread, as the number
+   * of users is not known in advance.
+   *
+   * @param room the number of users that fit into the cache.
+   * @throws Exception if a page cannot be loaded.
+   */
+  private void loadAllUsers(int room) throws Exception {
+    CrowdBackend.setThrottle(m_RateLimiter);
+    try {
+      int start = 0;
+      int max;
+      int count;
+      do {
+        max = Math.min(PAGE_SIZE, room - start);
+        if (max <= 0) {
+          warnRoom(start + 1, room);
+          break;
+        }
+        count = m_Partition.cacheUserEntries(start, max);
+        start += count;
+        m_UsersTotal.set(start);
+        progress(m_UsersLoaded.addAndGet(count), count, m_UsersTotal);
+      } while (count == max);
+    } finally {
+      CrowdBackend.setThrottle(null);
+    }
+  }//loadAllUsers
+
+  private void warnRoom(int users, int room) {
+    log.warn(String.format("Cache warm-up: %s%d users exceed the free cache capacity of %d entries; loading %d"
+        + " (raise cache.size or enable cache.cold.size to load all)",
+        (m_Groups == null) ? "at least " : "", users, room, room));
+  }//warnRoom
+
+  private void progress(int count, int added, AtomicInteger total) {
+    if (count / PROGRESS_INTERVAL != (count - added) / PROGRESS_INTERVAL) {
+      log.info(String.format("Cache warm-up %s: %d/%d", m_State, count, total.get()));
+    }
+  }//progress
+
+  private <T> void load(List<T> items, final AtomicInteger loaded, final AtomicInteger total, final Loader<T> loader)
+      throws InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(m_Parallelism, new ThreadFactory() {
+      private final AtomicInteger m_Count = new AtomicInteger(0);
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "crowd-cache-warmup-" + m_Count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    try {
+      for (final T item : items) {
+        pool.execute(new Runnable() {
+          public void run() {
+            //Note: the rate applies to each call towards Crowd, not to the entry
+            CrowdBackend.setThrottle(m_RateLimiter);
+            int added;
+            try {
+              added = loader.load(item);
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              return;
+            } catch (Exception ex) {
+              m_Failures.incrementAndGet();
+              log.debug("load()::" + item, ex);
+              added = 0;
+            } finally {
+              CrowdBackend.setThrottle(null);
+            }
+            progress(loaded.addAndGet(added), added, total);
+          }
+        });
+      }
+      pool.shutdown();
+      while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.debug("load()::Waiting for warm-up threads");
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }//load
+
+  public boolean isReady() {
+    return STATE_DONE.equals(m_State);
+  }//isReady
+
+  public String getState() {
+    return m_State;
+  }//getState
+
+  public int getGroupsTotal() {
+    return m_GroupsTotal.get();
+  }//getGroupsTotal
+
+  public int getGroupsLoaded() {
+    return m_GroupsLoaded.get();
+  }//getGroupsLoaded
+
+  public int getUsersTotal() {
+    return m_UsersTotal.get();
+  }//getUsersTotal
+
+  public int getUsersLoaded() {
+    return m_UsersLoaded.get();
+  }//getUsersLoaded
+
+  public int getFailures() {
+    return m_Failures.get();
+  }//getFailures
+
+  public long getDuration() {
+    if (m_Started == 0) {
+      return 0;
+    }
+    return ((m_Finished == 0) ? System.currentTimeMillis() : m_Finished) - m_Started;
+  }//getDuration
+
+  private static interface Loader<T> {
+
+    /**
+     * Loads an item.
+     *
+     * @param item the item, e.g. a group name or a page of user names.
+     * @return the number of entries loaded.
+     * @throws Exception if the item cannot be loaded.
+     */
+    int load(T item) throws Exception;
+
+  }//interface Loader
+
+  private static final int PROGRESS_INTERVAL = 500;
+  //Users per page when searching all users
+  private static final int PAGE_SIZE = 1000;
+  //Users per search by name; names are matched by one term each
+  private static final int NAMES_PER_SEARCH = 50;
+
+  private static final String STATE_PENDING = "PENDING";
+  private static final String STATE_GROUPS = "GROUPS";
+  private static final String STATE_USERS = "USERS";
+  private static final String STATE_DONE = "DONE";
+  private static final String STATE_FAILED = "FAILED";
+
+}//class CacheWarmer
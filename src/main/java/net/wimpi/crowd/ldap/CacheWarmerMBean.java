@@ -0,0 +1,40 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link CacheWarmer}.
+ */
+public interface CacheWarmerMBean {
+
+  /**
+   * Tests if the warm-up has completed successfully.
+   *
+   * @return true if the cache is warm, false while loading or if the warm-up failed.
+   */
+  public boolean isReady();
+
+  /**
+   * Returns the state of the warm-up
+   * (PENDING, GROUPS, USERS, DONE or FAILED).
+   *
+   * @return the state as string.
+   */
+  public String getState();
+
+  public int getGroupsTotal();
+
+  public int getGroupsLoaded();
+
+  public int getUsersTotal();
+
+  public int getUsersLoaded();
+
+  public int getFailures();
+
+  /**
+   * Returns the time the warm-up has taken so far, respectively in total.
+   *
+   * @return the duration in milliseconds.
+   */
+  public long getDuration();
+
+}//interface CacheWarmerMBean
@@ -0,0 +1,67 @@
+package net.wimpi.crowd.ldap;
+
+import net.wimpi.crowd.ldap.util.Weigher;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.entry.Value;
+
+import java.util.List;
+
+/**
+ * Provides the {@link Weigher}s of the partition caches.
+ * <p/>
+ * The weights are rough estimates of the retained heap in bytes,
+ * assuming a 64 bit JVM with compressed references. Strings are counted
+ * with two bytes per character; string values are counted twice,
+ * because the entries hold their normalized form as well.
+ */
+final class CacheWeighers {
+
+  /**
+   * Weighs the cached entries.
+   */
+  static final Weigher<String, ServerEntry> ENTRIES = new Weigher<String, ServerEntry>() {
+    public long weigh(String key, ServerEntry entry) {
+      long weight = ENTRY_OVERHEAD + sizeOf(key) + 2 * sizeOf(entry.getDn().getName());
+      for (EntryAttribute attribute : entry) {
+        weight += ATTRIBUTE_OVERHEAD + sizeOf(attribute.getId());
+        for (Value<?> value : attribute) {
+          weight += VALUE_OVERHEAD + (value.isBinary() ? value.length() : 2 * sizeOf(value.length()));
+        }
+      }
+      return weight;
+    }
+  };
+
+  /**
+   * Weighs the cached lists of names (members, respectively memberships).
+   */
+  static final Weigher<String, List<String>> NAMES = new Weigher<String, List<String>>() {
+    public long weigh(String key, List<String> names) {
+      long weight = LIST_OVERHEAD + sizeOf(key);
+      for (String name : names) {
+        weight += REFERENCE + sizeOf(name);
+      }
+      return weight;
+    }
+  };
+
+  private CacheWeighers() {
+  }//constructor
+
+  private static long sizeOf(String str) {
+    return (str == null) ? 0 : sizeOf(str.length());
+  }//sizeOf
+
+  private static long sizeOf(int length) {
+    return STRING_OVERHEAD + 2L * length;
+  }//sizeOf
+
+  private static final int REFERENCE = 4;
+  private static final int STRING_OVERHEAD = 40;
+  private static final int LIST_OVERHEAD = 64;
+  private static final int ENTRY_OVERHEAD = 256;
+  private static final int ATTRIBUTE_OVERHEAD = 120;
+  private static final int VALUE_OVERHEAD = 48;
+
+}//class CacheWeighers
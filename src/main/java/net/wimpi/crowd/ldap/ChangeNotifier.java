@@ -0,0 +1,406 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.model.event.GroupEvent;
+import com.atlassian.crowd.model.event.GroupMembershipEvent;
+import com.atlassian.crowd.model.event.Operation;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.event.UserMembershipEvent;
+import org.apache.directory.server.core.CoreSession;
+import org.apache.directory.server.core.DirectoryService;
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.server.core.event.EventInterceptor;
+import org.apache.directory.server.core.event.EventService;
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.interceptor.Interceptor;
+import org.apache.directory.server.core.interceptor.NextInterceptor;
+import org.apache.directory.server.core.interceptor.context.*;
+import org.apache.directory.shared.ldap.entry.Modification;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.name.DN;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns the Crowd events seen by the {@link EventPoller} of a partition
+ * into directory change notifications, so that clients can keep a
+ * long-lived search instead of polling.
+ * <p/>
+ * Each change is passed to the event interceptor of ApacheDS, which
+ * notifies the persistent searches (draft-ietf-ldapext-psearch) whose base,
+ * scope and filter select the changed entry. Content synchronization
+ * sessions (RFC 4533) registered as {@link Listener} receive all changes,
+ * together with the Crowd event token following them.
+ * <p/>
+ * When Crowd's event token expires, changes are lost; listeners
+ * are told to refresh.
+ */
+public class ChangeNotifier implements ChangeNotifierMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(ChangeNotifier.class);
+
+  private final CrowdPartition m_Partition;
+  private final CoreSession m_AdminSession;
+  private final EventInterceptor m_EventInterceptor;
+  private final EventService m_EventService;
+  private final List<Listener> m_Listeners = new CopyOnWriteArrayList<Listener>();
+  private volatile String m_Token;
+
+  private final AtomicLong m_Changes = new AtomicLong(0);
+  private final AtomicLong m_Failures = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>ChangeNotifier</tt>.
+   *
+   * @param partition the partition whose changes are notified.
+   * @param service   the directory service holding the partition.
+   * @throws Exception if the admin session cannot be obtained.
+   */
+  public ChangeNotifier(CrowdPartition partition, DirectoryService service) throws Exception {
+    m_Partition = partition;
+    m_AdminSession = service.getAdminSession();
+    EventInterceptor interceptor = null;
+    for (Interceptor i : service.getInterceptors()) {
+      if (i instanceof EventInterceptor) {
+        interceptor = (EventInterceptor) i;
+      }
+    }
+    if (interceptor == null) {
+      log.warn("Event interceptor not configured, persistent searches will not be notified");
+    }
+    m_EventInterceptor = interceptor;
+    m_EventService = service.getEventService();
+  }//constructor
+
+  public CrowdPartition getPartition() {
+    return m_Partition;
+  }//getPartition
+
+  /**
+   * Returns the Crowd event token following the last notified changes.
+   *
+   * @return the token, or null if not known yet.
+   */
+  public String getToken() {
+    return m_Token;
+  }//getToken
+
+  /**
+   * Registers a listener, which is notified of all changes after
+   * the current token.
+   *
+   * @param listener the listener.
+   */
+  public void addListener(Listener listener) {
+    m_Listeners.add(listener);
+  }//addListener
+
+  public void removeListener(Listener listener) {
+    m_Listeners.remove(listener);
+  }//removeListener
+
+  /**
+   * Notifies the changes of the given Crowd events.
+   * <p/>
+   * Must be called after the caches were invalidated,
+   * so that the changed entries are obtained fresh.
+   *
+   * @param events the events.
+   * @param token  the event token following the events.
+   */
+  public synchronized void changed(Iterable<OperationEvent> events, String token) {
+    List<Change> changes = collect(events);
+    m_Token = token;
+    if (changes.isEmpty()) {
+      return;
+    }
+    m_Changes.addAndGet(changes.size());
+    //Note: Changed entries are only looked up if there are persistent searches
+    if (m_EventInterceptor != null && hasRegistrations()) {
+      for (Change change : changes) {
+        try {
+          notify(change);
+        } catch (Exception ex) {
+          m_Failures.incrementAndGet();
+          log.debug("changed()", ex);
+        }
+      }
+    }
+    for (Listener l : m_Listeners) {
+      l.changed(changes, token);
+    }
+  }//changed
+
+  private boolean hasRegistrations() {
+    return m_EventService == null || !m_EventService.getRegistrationEntries().isEmpty();
+  }//hasRegistrations
+
+  /**
+   * Signals that changes up to the given token were lost.
+   *
+   * @param token the new event token.
+   */
+  public synchronized void resynced(String token) {
+    m_Token = token;
+    for (Listener l : m_Listeners) {
+      l.refreshRequired();
+    }
+    m_Listeners.clear();
+  }//resynced
+
+  /**
+   * Returns the entries changed by the given Crowd events, at most once per entry.
+   *
+   * @param events the events.
+   * @return the changes in order of their first occurrence.
+   */
+  List<Change> collect(Iterable<OperationEvent> events) {
+    Map<String, Change> changes = new LinkedHashMap<String, Change>();
+    for (OperationEvent event : events) {
+      try {
+        if (event instanceof UserEvent) {
+          add(changes, true, ((UserEvent) event).getUser().getName(), typeOf(event.getOperation()));
+        } else if (event instanceof GroupEvent) {
+          add(changes, false, ((GroupEvent) event).getGroup().getName(), typeOf(event.getOperation()));
+        } else if (event instanceof UserMembershipEvent) {
+          UserMembershipEvent ume = (UserMembershipEvent) event;
+          add(changes, true, ume.getChildUsername(), Change.Type.MODIFY);
+          addGroups(changes, ume.getParentGroupNames());
+        } else if (event instanceof GroupMembershipEvent) {
+          GroupMembershipEvent gme = (GroupMembershipEvent) event;
+          add(changes, false, gme.getGroupName(), Change.Type.MODIFY);
+          addGroups(changes, gme.getParentGroupNames());
+          addGroups(changes, gme.getChildGroupNames());
+        }
+      } catch (Exception ex) {
+        m_Failures.incrementAndGet();
+        log.debug("collect()", ex);
+      }
+    }
+    return new ArrayList<Change>(changes.values());
+  }//collect
+
+  /**
+   * Returns a stub of the changed entry, holding only the attributes
+   * known from its name, e.g. for a removed entry.
+   *
+   * @param change the change.
+   * @return the entry.
+   * @throws Exception if the entry cannot be created.
+   */
+  ServerEntry createStub(Change change) throws Exception {
+    return m_Partition.createStub(change.getDn(), change.getName(), change.isUser());
+  }//createStub
+
+  private void addGroups(Map<String, Change> changes, Set<String> groups) throws Exception {
+    if (groups == null) {
+      return;
+    }
+    for (String group : groups) {
+      add(changes, false, group, Change.Type.MODIFY);
+    }
+  }//addGroups
+
+  private void add(Map<String, Change> changes, boolean user, String name, Change.Type type)
+      throws Exception {
+    DN dn = user ? m_Partition.getUserDn(name) : m_Partition.getGroupDn(name);
+    dn.normalize(m_Partition.getSchemaManager().getNormalizerMapping());
+    Change previous = changes.get(dn.getNormName());
+    if (previous != null && previous.getType() == Change.Type.ADD && type == Change.Type.MODIFY) {
+      //still new to the listeners
+      return;
+    }
+    changes.put(dn.getNormName(), new Change(dn, name, user, type));
+  }//add
+
+  private static Change.Type typeOf(Operation operation) {
+    switch (operation) {
+      case CREATED:
+        return Change.Type.ADD;
+      case DELETED:
+        return Change.Type.DELETE;
+      default:
+        return Change.Type.MODIFY;
+    }
+  }//typeOf
+
+  /**
+   * Passes a change to the event interceptor, which notifies the
+   * persistent searches selecting the entry.
+   */
+  private void notify(Change change) throws Exception {
+    NextInterceptor done = new Done();
+    switch (change.getType()) {
+      case ADD:
+        ClonedServerEntry added = m_AdminSession.lookup(change.getDn());
+        m_EventInterceptor.add(done, new AddOperationContext(m_AdminSession, added));
+        break;
+      case MODIFY:
+        ClonedServerEntry modified = m_AdminSession.lookup(change.getDn());
+        ModifyOperationContext modify = new ModifyOperationContext(
+            m_AdminSession, change.getDn(), Collections.<Modification>emptyList());
+        modify.setAlteredEntry(modified);
+        m_EventInterceptor.modify(done, modify);
+        break;
+      case DELETE:
+        DeleteOperationContext delete = new DeleteOperationContext(m_AdminSession, change.getDn());
+        delete.setEntry(new ClonedServerEntry(createStub(change)));
+        m_EventInterceptor.delete(done, delete);
+        break;
+    }
+  }//notify
+
+  public int getListeners() {
+    return m_Listeners.size();
+  }//getListeners
+
+  public long getChanges() {
+    return m_Changes.get();
+  }//getChanges
+
+  public long getFailures() {
+    return m_Failures.get();
+  }//getFailures
+
+  /**
+   * A changed user or group entry.
+   */
+  static class Change {
+
+    private final DN m_Dn;
+    private final String m_Name;
+    private final boolean m_User;
+    private final Type m_Type;
+
+    Change(DN dn, String name, boolean user, Type type) {
+      m_Dn = dn;
+      m_Name = name;
+      m_User = user;
+      m_Type = type;
+    }//constructor
+
+    public DN getDn() {
+      return m_Dn;
+    }//getDn
+
+    public String getName() {
+      return m_Name;
+    }//getName
+
+    public boolean isUser() {
+      return m_User;
+    }//isUser
+
+    public Type getType() {
+      return m_Type;
+    }//getType
+
+    static enum Type {
+      ADD, MODIFY, DELETE
+    }//enum Type
+
+  }//inner class Change
+
+  /**
+   * Receives all changes of the partition.
+   */
+  static interface Listener {
+
+    /**
+     * Called with the changes of a poll.
+     *
+     * @param changes the changes.
+     * @param token   the event token following the changes.
+     */
+    void changed(List<Change> changes, String token);
+
+    /**
+     * Called when changes were lost. The listener is removed.
+     */
+    void refreshRequired();
+
+  }//interface Listener
+
+  /**
+   * Ends the interceptor chain; the changes already happened in Crowd.
+   */
+  private static class Done implements NextInterceptor {
+
+    public boolean compare(CompareOperationContext ctx) throws Exception {
+      return false;
+    }//compare
+
+    public ClonedServerEntry getRootDSE(GetRootDSEOperationContext ctx) throws Exception {
+      return null;
+    }//getRootDSE
+
+    public DN getMatchedName(GetMatchedNameOperationContext ctx) throws Exception {
+      return null;
+    }//getMatchedName
+
+    public DN getSuffix(GetSuffixOperationContext ctx) throws Exception {
+      return null;
+    }//getSuffix
+
+    public Set<String> listSuffixes(ListSuffixOperationContext ctx) throws Exception {
+      return Collections.emptySet();
+    }//listSuffixes
+
+    public void addContextPartition(AddContextPartitionOperationContext ctx) throws Exception {
+    }//addContextPartition
+
+    public void removeContextPartition(RemoveContextPartitionOperationContext ctx) throws Exception {
+    }//removeContextPartition
+
+    public void delete(DeleteOperationContext ctx) throws Exception {
+    }//delete
+
+    public void add(AddOperationContext ctx) throws Exception {
+    }//add
+
+    public void modify(ModifyOperationContext ctx) throws Exception {
+    }//modify
+
+    public EntryFilteringCursor list(ListOperationContext ctx) throws Exception {
+      return null;
+    }//list
+
+    public EntryFilteringCursor search(SearchOperationContext ctx) throws Exception {
+      return null;
+    }//search
+
+    public ClonedServerEntry lookup(LookupOperationContext ctx) throws Exception {
+      return null;
+    }//lookup
+
+    public boolean hasEntry(EntryOperationContext ctx) throws Exception {
+      return false;
+    }//hasEntry
+
+    public void rename(RenameOperationContext ctx) throws Exception {
+    }//rename
+
+    public void move(MoveOperationContext ctx) throws Exception {
+    }//move
+
+    public void moveAndRename(MoveAndRenameOperationContext ctx) throws Exception {
+    }//moveAndRename
+
+    public void bind(BindOperationContext ctx) throws Exception {
+    }//bind
+
+    public void unbind(UnbindOperationContext ctx) throws Exception {
+    }//unbind
+
+  }//inner class Done
+
+}//class ChangeNotifier
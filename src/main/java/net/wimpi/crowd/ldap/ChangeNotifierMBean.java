@@ -0,0 +1,24 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link ChangeNotifier}.
+ */
+public interface ChangeNotifierMBean {
+
+  /**
+   * Returns the number of content synchronization sessions in the persist phase.
+   *
+   * @return the number of listeners.
+   */
+  public int getListeners();
+
+  /**
+   * Returns the number of changed entries notified.
+   *
+   * @return the number of changes.
+   */
+  public long getChanges();
+
+  public long getFailures();
+
+}//interface ChangeNotifierMBean
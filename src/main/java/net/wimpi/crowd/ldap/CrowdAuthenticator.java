@@ -1,19 +1,31 @@
 package net.wimpi.crowd.ldap;
 
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.UserNotFoundException;
 import com.atlassian.crowd.model.user.User;
-import com.atlassian.crowd.service.client.CrowdClient;
 import org.apache.directory.server.core.LdapPrincipal;
 import org.apache.directory.server.core.authn.AbstractAuthenticator;
 import org.apache.directory.server.core.interceptor.context.BindOperationContext;
 import org.apache.directory.shared.ldap.constants.AuthenticationLevel;
+import org.apache.directory.shared.ldap.exception.LdapServiceUnavailableException;
+import org.apache.directory.shared.ldap.name.DN;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.SocketAddress;
 import java.text.MessageFormat;import java.util.ResourceBundle;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Implements {@class AbstractAuthenticator} to authenticate against using
- * a CrowdClient.
+ * a CrowdClient, accessed through a {@link CrowdBackend}.
+ * The username is obtained from the bind DN by a {@link BindResolver}.
+ * The bind DN is authenticated by the tenant whose suffix it belongs to;
+ * binds outside of all tenant suffixes are rejected.
+ * Failed binds are tracked by an optional {@link BindThrottle}, which
+ * rejects repeated failing credentials without asking Crowd.
+ * Successful binds are passed to the tenant's {@link Prefetcher}, if any.
  *
  * @author Dieter Wimberger (dieter at wimpi dot net)
  */
@@ -23,30 +35,99 @@ public class CrowdAuthenticator extends AbstractAuthenticator {
   private static final ResourceBundle c_ResourceBundle =
       ResourceBundle.getBundle("net.wimpi.crowd.ldap.strings");
 
-  private CrowdClient m_CrowdClient;
+  private List<Tenant> m_Tenants;
+  private BindThrottle m_Throttle;
 
-  public CrowdAuthenticator(CrowdClient client) {
+  public CrowdAuthenticator(List<Tenant> tenants) {
     super("simple");
-    m_CrowdClient = client;
+    m_Tenants = new ArrayList<Tenant>(tenants);
   }//constructor
 
+  /**
+   * Sets the {@link BindThrottle} tracking failed binds.
+   *
+   * @param throttle the throttle, or null to pass all binds to Crowd.
+   */
+  public void setThrottle(BindThrottle throttle) {
+    m_Throttle = throttle;
+  }//setThrottle
+
   public LdapPrincipal authenticate(BindOperationContext ctx) throws Exception {
-    String user = ctx.getDn().getRdn(2).getNormValue();
     String pass = new String(ctx.getCredentials(),"utf-8");
+    SocketAddress client = (ctx.getSession() != null) ? ctx.getSession().getClientAddress() : null;
 
+    Tenant tenant = getTenant(ctx.getDn());
+    if (tenant == null) {
+      log.debug(c_ResourceBundle.getString("crowdauthenticator.authentication.failed") + "()::Bind DN outside of all suffixes " + ctx.getDn());
+      throw new javax.naming.AuthenticationException("Invalid credentials for: " + ctx.getDn());
+    }
+    BindResolver resolver = tenant.getBindResolver();
+    String user = null;
+    Object event = LdapEvents.BIND.begin();
+    String outcome = "error";
     try {
-      User u = m_CrowdClient.authenticateUser(user, pass);
+      user = resolver.resolve(ctx.getDn());
+      if (user == null) {
+        outcome = "unknown";
+        log.debug(c_ResourceBundle.getString("crowdauthenticator.authentication.failed") + "()::Unknown bind DN " + ctx.getDn());
+        throw new javax.naming.AuthenticationException("Invalid credentials for: " + ctx.getDn());
+      }
+      if (m_Throttle != null && m_Throttle.isRejected(tenant.getId() + '/' + user, client, ctx.getCredentials())) {
+        outcome = "throttled";
+        log.debug(c_ResourceBundle.getString("crowdauthenticator.authentication.failed") + "()::Throttled " + user);
+        throw new javax.naming.AuthenticationException("Invalid credentials for user: " + user);
+      }
+      //an entry built from the user must not outlive an invalidation during the bind
+      long generation = (tenant.getPrefetcher() != null) ? tenant.getPrefetcher().getGeneration() : 0;
+      User u;
+      try {
+        u = tenant.getBackend().authenticateUser(user, pass);
+      } catch (InvalidAuthenticationException ex) {
+        u = null;
+      } catch (UserNotFoundException ex) {
+        u = null;
+      }
       if(u == null) {
+        resolver.forget(ctx.getDn());
+        if (m_Throttle != null) {
+          m_Throttle.failed(tenant.getId() + '/' + user, client, ctx.getCredentials());
+        }
+        outcome = "invalid";
         log.debug(c_ResourceBundle.getString("crowdauthenticator.authentication.failed") + "()::Authentication failed");
         throw new javax.naming.AuthenticationException("Invalid credentials for user: " + user);
       } else {
         log.debug(MessageFormat.format(c_ResourceBundle.getString("crowdauthenticator.user"), u.toString()));
+        if (m_Throttle != null) {
+          m_Throttle.succeeded(tenant.getId() + '/' + user, client);
+        }
+        if (tenant.getPrefetcher() != null) {
+          tenant.getPrefetcher().authenticated(ctx.getDn(), u, generation);
+        }
+        outcome = "success";
         return new LdapPrincipal(ctx.getDn(), AuthenticationLevel.SIMPLE);
       }
+    } catch (LdapServiceUnavailableException ex) {
+      outcome = "busy";
+      log.debug(c_ResourceBundle.getString("crowdauthenticator.authentication.failed") + "()::Crowd busy: " + ex.getMessage());
+      throw ex;
     } catch (Exception ex) {
+      resolver.forget(ctx.getDn());
       log.debug(c_ResourceBundle.getString("crowdauthenticator.authentication.failed") + "()::Authentication failed: " + ex );
       throw new javax.naming.NamingException("Unable to perform authentication: " + ex);
+    } finally {
+      if (event != null) {
+        LdapEvents.BIND.commit(event, tenant.getId(), ctx.getDn().getName(), user, outcome);
+      }
     }
   }//authenticate
 
+  private Tenant getTenant(DN dn) {
+    for (Tenant tenant : m_Tenants) {
+      if (dn.isChildOf(tenant.getSuffixDn())) {
+        return tenant;
+      }
+    }
+    return null;
+  }//getTenant
+
 }//class CrowdAuthenticator
@@ -0,0 +1,424 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.exception.GroupNotFoundException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestrictionImpl;
+import com.atlassian.crowd.search.query.entity.restriction.MatchMode;
+import com.atlassian.crowd.search.query.entity.restriction.Property;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.constants.GroupTermKeys;
+import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
+import com.atlassian.crowd.service.client.CrowdClient;
+import net.wimpi.crowd.ldap.util.AdmissionController;
+import net.wimpi.crowd.ldap.util.BackendExecutor;
+import net.wimpi.crowd.ldap.util.RateLimiter;
+import org.apache.directory.shared.ldap.exception.LdapServiceUnavailableException;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps the {@link CrowdClient} calls used by the LDAP side, so that
+ * the blocking HTTP requests are executed on a {@link BackendExecutor}
+ * instead of the threads ApacheDS uses to process LDAP requests.
+ * <p/>
+ * Each call waits at most for the timeout configured for its
+ * {@link Operation} type.
+ * <p/>
+ * Calls are admitted through an {@link AdmissionController}, with separate
+ * quotas for binds and searches, and remain admitted until the call towards
+ * Crowd returns, also after a timeout. Calls that are not admitted, cannot be
+ * handed to the executor, or time out, fail with a {@link LdapServiceUnavailableException}
+ * (<tt>BUSY</tt> respectively <tt>UNAVAILABLE</tt>).
+ * <p/>
+ * With batching enabled, concurrent lookups of single users respectively groups
+ * are collected by a {@link LookupBatcher} and resolved with one search.
+ * <p/>
+ * Background work, like the cache warm-up, may throttle the calls issued
+ * by its threads with a {@link RateLimiter} (see {@link #setThrottle(RateLimiter)}).
+ */
+public class CrowdBackend implements CrowdBackendMBean {
+
+  private final CrowdClient m_CrowdClient;
+  private final BackendExecutor m_Executor;
+  private final AdmissionController m_Admission;
+  private final AdmissionController.Lane m_BindLane;
+  private final AdmissionController.Lane m_SearchLane;
+  private final AtomicLong m_ExecutorRejections = new AtomicLong(0);
+  private long m_BindTimeout = 10000L;
+  private long m_SearchTimeout = 30000L;
+  private volatile LookupBatcher<User> m_UserBatcher;
+  private volatile LookupBatcher<Group> m_GroupBatcher;
+
+  private static final ThreadLocal<RateLimiter> c_Throttle = new ThreadLocal<RateLimiter>();
+
+  public CrowdBackend(CrowdClient client, BackendExecutor executor,
+                      AdmissionController admission, int bindQuota, int searchQuota) {
+    m_CrowdClient = client;
+    m_Executor = executor;
+    m_Admission = admission;
+    m_BindLane = admission.createLane("bind", bindQuota);
+    m_SearchLane = admission.createLane("search", searchQuota);
+  }//constructor
+
+  public CrowdClient getCrowdClient() {
+    return m_CrowdClient;
+  }//getCrowdClient
+
+  public BackendExecutor getExecutor() {
+    return m_Executor;
+  }//getExecutor
+
+  public long getBindTimeout() {
+    return m_BindTimeout;
+  }//getBindTimeout
+
+  public void setBindTimeout(long millis) {
+    m_BindTimeout = millis;
+  }//setBindTimeout
+
+  public long getSearchTimeout() {
+    return m_SearchTimeout;
+  }//getSearchTimeout
+
+  public void setSearchTimeout(long millis) {
+    m_SearchTimeout = millis;
+  }//setSearchTimeout
+
+  /**
+   * Enables or disables the batching of single user and group lookups.
+   *
+   * @param window   the time a lookup waits for concurrent lookups, in milliseconds;
+   *                 0 disables batching.
+   * @param maxBatch the maximum number of lookups resolved with one search.
+   */
+  public void setBatching(long window, int maxBatch) {
+    if (window <= 0) {
+      m_UserBatcher = null;
+      m_GroupBatcher = null;
+      return;
+    }
+    m_UserBatcher = new LookupBatcher<User>(window, maxBatch, new LookupBatcher.Resolver<User>() {
+      public User get(String name) throws Exception {
+        return fetchUser(name);
+      }
+
+      public List<User> search(List<String> names) throws Exception {
+        return getUsers(names);
+      }
+
+      public String getName(User user) {
+        return user.getName();
+      }
+
+      public Exception notFound(String name) {
+        return new UserNotFoundException(name);
+      }
+    });
+    m_GroupBatcher = new LookupBatcher<Group>(window, maxBatch, new LookupBatcher.Resolver<Group>() {
+      public Group get(String name) throws Exception {
+        return fetchGroup(name);
+      }
+
+      public List<Group> search(List<String> names) throws Exception {
+        return searchGroups(
+            createNameRestriction(GroupTermKeys.NAME, names), 0, names.size());
+      }
+
+      public String getName(Group group) {
+        return group.getName();
+      }
+
+      public Exception notFound(String name) {
+        return new GroupNotFoundException(name);
+      }
+    });
+  }//setBatching
+
+  public User authenticateUser(final String user, final String pass) throws Exception {
+    return execute(Operation.BIND, "authenticateUser", new Callable<User>() {
+      public User call() throws Exception {
+        return m_CrowdClient.authenticateUser(user, pass);
+      }
+    });
+  }//authenticateUser
+
+  public User getUser(String user) throws Exception {
+    LookupBatcher<User> batcher = m_UserBatcher;
+    return (batcher == null) ? fetchUser(user) : batcher.get(user);
+  }//getUser
+
+  private User fetchUser(final String user) throws Exception {
+    return execute(Operation.SEARCH, "getUser", new Callable<User>() {
+      public User call() throws Exception {
+        return m_CrowdClient.getUser(user);
+      }
+    });
+  }//fetchUser
+
+  /**
+   * Returns the users with the given names, obtained with one search.
+   *
+   * @param names the user names.
+   * @return the users found.
+   * @throws Exception if the search fails.
+   */
+  public List<User> getUsers(List<String> names) throws Exception {
+    return searchUsers(createNameRestriction(UserTermKeys.USERNAME, names), 0, names.size());
+  }//getUsers
+
+  public Group getGroup(String group) throws Exception {
+    LookupBatcher<Group> batcher = m_GroupBatcher;
+    return (batcher == null) ? fetchGroup(group) : batcher.get(group);
+  }//getGroup
+
+  private Group fetchGroup(final String group) throws Exception {
+    return execute(Operation.SEARCH, "getGroup", new Callable<Group>() {
+      public Group call() throws Exception {
+        return m_CrowdClient.getGroup(group);
+      }
+    });
+  }//fetchGroup
+
+  public List<String> getNamesOfUsersOfGroup(final String group, final int start, final int max)
+      throws Exception {
+    return execute(Operation.SEARCH, "getNamesOfUsersOfGroup", new Callable<List<String>>() {
+      public List<String> call() throws Exception {
+        return m_CrowdClient.getNamesOfUsersOfGroup(group, start, max);
+      }
+    });
+  }//getNamesOfUsersOfGroup
+
+  public List<String> getNamesOfGroupsForUser(final String user, final int start, final int max)
+      throws Exception {
+    return execute(Operation.SEARCH, "getNamesOfGroupsForUser", new Callable<List<String>>() {
+      public List<String> call() throws Exception {
+        return m_CrowdClient.getNamesOfGroupsForUser(user, start, max);
+      }
+    });
+  }//getNamesOfGroupsForUser
+
+  public List<String> getNamesOfGroupsForNestedUser(final String user, final int start, final int max)
+      throws Exception {
+    return execute(Operation.SEARCH, "getNamesOfGroupsForNestedUser", new Callable<List<String>>() {
+      public List<String> call() throws Exception {
+        return m_CrowdClient.getNamesOfGroupsForNestedUser(user, start, max);
+      }
+    });
+  }//getNamesOfGroupsForNestedUser
+
+  public boolean isUserDirectGroupMember(final String user, final String group) throws Exception {
+    return execute(Operation.SEARCH, "isUserDirectGroupMember", new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return m_CrowdClient.isUserDirectGroupMember(user, group);
+      }
+    });
+  }//isUserDirectGroupMember
+
+  public boolean isUserNestedGroupMember(final String user, final String group) throws Exception {
+    return execute(Operation.SEARCH, "isUserNestedGroupMember", new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return m_CrowdClient.isUserNestedGroupMember(user, group);
+      }
+    });
+  }//isUserNestedGroupMember
+
+  public List<String> searchGroupNames(final SearchRestriction restriction, final int start, final int max)
+      throws Exception {
+    return execute(Operation.SEARCH, "searchGroupNames", new Callable<List<String>>() {
+      public List<String> call() throws Exception {
+        return m_CrowdClient.searchGroupNames(restriction, start, max);
+      }
+    });
+  }//searchGroupNames
+
+  public List<String> searchUserNames(final SearchRestriction restriction, final int start, final int max)
+      throws Exception {
+    return execute(Operation.SEARCH, "searchUserNames", new Callable<List<String>>() {
+      public List<String> call() throws Exception {
+        return m_CrowdClient.searchUserNames(restriction, start, max);
+      }
+    });
+  }//searchUserNames
+
+  public List<User> searchUsers(final SearchRestriction restriction, final int start, final int max)
+      throws Exception {
+    return execute(Operation.SEARCH, "searchUsers", new Callable<List<User>>() {
+      public List<User> call() throws Exception {
+        return m_CrowdClient.searchUsers(restriction, start, max);
+      }
+    });
+  }//searchUsers
+
+  public List<Group> searchGroups(final SearchRestriction restriction, final int start, final int max)
+      throws Exception {
+    return execute(Operation.SEARCH, "searchGroups", new Callable<List<Group>>() {
+      public List<Group> call() throws Exception {
+        return m_CrowdClient.searchGroups(restriction, start, max);
+      }
+    });
+  }//searchGroups
+
+  public String getCurrentEventToken() throws Exception {
+    return execute(Operation.SEARCH, "getCurrentEventToken", new Callable<String>() {
+      public String call() throws Exception {
+        return m_CrowdClient.getCurrentEventToken();
+      }
+    });
+  }//getCurrentEventToken
+
+  public Events getNewEvents(final String eventToken) throws Exception {
+    return execute(Operation.SEARCH, "getNewEvents", new Callable<Events>() {
+      public Events call() throws Exception {
+        return m_CrowdClient.getNewEvents(eventToken);
+      }
+    });
+  }//getNewEvents
+
+  public void shutdown() throws Exception {
+    m_CrowdClient.shutdown();
+  }//shutdown
+
+  public int getInFlight() {
+    return m_Admission.getInFlight();
+  }//getInFlight
+
+  public int getQueueDepth() {
+    return m_Admission.getQueueDepth();
+  }//getQueueDepth
+
+  public int getBindInFlight() {
+    return m_BindLane.getInFlight();
+  }//getBindInFlight
+
+  public int getSearchInFlight() {
+    return m_SearchLane.getInFlight();
+  }//getSearchInFlight
+
+  public long getBindRejections() {
+    return m_BindLane.getRejected();
+  }//getBindRejections
+
+  public long getSearchRejections() {
+    return m_SearchLane.getRejected();
+  }//getSearchRejections
+
+  public int getExecutorPending() {
+    return m_Executor.getPending();
+  }//getExecutorPending
+
+  public long getExecutorRejections() {
+    return m_ExecutorRejections.get();
+  }//getExecutorRejections
+
+  public long getBatchedLookups() {
+    return getLookups(m_UserBatcher) + getLookups(m_GroupBatcher);
+  }//getBatchedLookups
+
+  public long getBatchSearches() {
+    return getSearches(m_UserBatcher) + getSearches(m_GroupBatcher);
+  }//getBatchSearches
+
+  private static long getLookups(LookupBatcher<?> batcher) {
+    return (batcher == null) ? 0 : batcher.getLookups();
+  }//getLookups
+
+  private static long getSearches(LookupBatcher<?> batcher) {
+    return (batcher == null) ? 0 : batcher.getSearches();
+  }//getSearches
+
+  /**
+   * Throttles the calls towards Crowd issued by the current thread.
+   *
+   * @param throttle the {@link RateLimiter} acquired once per call, or null to remove the throttle.
+   */
+  static void setThrottle(RateLimiter throttle) {
+    if (throttle == null) {
+      c_Throttle.remove();
+    } else {
+      c_Throttle.set(throttle);
+    }
+  }//setThrottle
+
+  private <T> T execute(Operation op, String call, Callable<T> task) throws Exception {
+    RateLimiter throttle = c_Throttle.get();
+    if (throttle != null) {
+      throttle.acquire();
+    }
+    final AdmissionController.Lane lane = (op == Operation.BIND) ? m_BindLane : m_SearchLane;
+    long timeout = (op == Operation.BIND) ? m_BindTimeout : m_SearchTimeout;
+    AccessLog.stats().crowdCall();
+    Object event = LdapEvents.CROWD_CALL.begin();
+    T result = null;
+    boolean success = false;
+    try {
+      try {
+        m_Admission.acquire(lane);
+      } catch (RejectedExecutionException ex) {
+        throw new LdapServiceUnavailableException(ResultCodeEnum.BUSY, ex.getMessage());
+      }
+      try {
+        //the call stays admitted until it returns, also after a timeout
+        result = m_Executor.execute(task, timeout, new Runnable() {
+          public void run() {
+            m_Admission.release(lane);
+          }
+        });
+        success = true;
+        return result;
+      } catch (RejectedExecutionException ex) {
+        m_ExecutorRejections.incrementAndGet();
+        throw new LdapServiceUnavailableException(ResultCodeEnum.UNAVAILABLE, ex.getMessage());
+      } catch (TimeoutException ex) {
+        throw new LdapServiceUnavailableException(ResultCodeEnum.UNAVAILABLE, ex.getMessage());
+      }
+    } finally {
+      if (event != null) {
+        LdapEvents.CROWD_CALL.commit(event, call, op.name().toLowerCase(), getSize(result), success);
+      }
+    }
+  }//execute
+
+  /**
+   * Creates a restriction matching any of the given names exactly.
+   */
+  private static SearchRestriction createNameRestriction(Property<String> key, List<String> names) {
+    List<SearchRestriction> terms = new ArrayList<SearchRestriction>(names.size());
+    for (String name : names) {
+      terms.add(new TermRestriction<String>(key, MatchMode.EXACTLY_MATCHES, name));
+    }
+    return new BooleanRestrictionImpl(BooleanRestriction.BooleanLogic.OR, terms);
+  }//createNameRestriction
+
+  /**
+   * Returns the number of items in the result of a call.
+   */
+  private static int getSize(Object result) {
+    if (result == null) {
+      return 0;
+    } else if (result instanceof Collection) {
+      return ((Collection<?>) result).size();
+    }
+    return 1;
+  }//getSize
+
+  /**
+   * Defines the types of backend operations.
+   */
+  public static enum Operation {
+    BIND,
+    SEARCH
+  }//enum Operation
+
+}//class CrowdBackend
@@ -0,0 +1,63 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link CrowdBackend}.
+ */
+public interface CrowdBackendMBean {
+
+  /**
+   * Returns the number of Crowd calls in flight.
+   *
+   * @return the number of admitted calls.
+   */
+  public int getInFlight();
+
+  /**
+   * Returns the number of Crowd calls waiting for admission.
+   *
+   * @return the admission queue depth.
+   */
+  public int getQueueDepth();
+
+  public int getBindInFlight();
+
+  public int getSearchInFlight();
+
+  /**
+   * Returns the number of bind calls rejected by admission control.
+   *
+   * @return the number of rejected binds.
+   */
+  public long getBindRejections();
+
+  /**
+   * Returns the number of search calls rejected by admission control.
+   *
+   * @return the number of rejected searches.
+   */
+  public long getSearchRejections();
+
+  /**
+   * Returns the number of calls running or queued in the backend executor.
+   *
+   * @return the number of pending calls.
+   */
+  public int getExecutorPending();
+
+  public long getExecutorRejections();
+
+  /**
+   * Returns the number of single user and group lookups passed through batching.
+   *
+   * @return the number of batched lookups.
+   */
+  public long getBatchedLookups();
+
+  /**
+   * Returns the number of searches resolving more than one lookup.
+   *
+   * @return the number of batch searches.
+   */
+  public long getBatchSearches();
+
+}//interface CrowdBackendMBean
@@ -21,39 +21,66 @@ package net.wimpi.crowd.ldap;
 import com.atlassian.crowd.integration.rest.service.factory.RestCrowdClientFactory;
 import com.atlassian.crowd.service.client.ClientPropertiesImpl;
 import com.atlassian.crowd.service.client.CrowdClient;
+import net.wimpi.crowd.ldap.util.AdmissionController;
+import net.wimpi.crowd.ldap.util.BackendExecutor;
+import net.wimpi.crowd.ldap.util.OffHeapStore;
+import net.wimpi.crowd.ldap.util.WeightBudget;
 import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.CoreSession;
 import org.apache.directory.server.core.DefaultDirectoryService;
 import org.apache.directory.server.core.DirectoryService;
 import org.apache.directory.server.core.authn.AuthenticationInterceptor;
+import org.apache.directory.server.core.interceptor.Interceptor;
 import org.apache.directory.server.core.authn.Authenticator;
 import org.apache.directory.server.core.partition.Partition;
+import org.apache.directory.server.core.partition.avl.AvlPartition;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
 import org.apache.directory.server.core.partition.ldif.LdifPartition;
 import org.apache.directory.server.core.schema.SchemaPartition;
 import org.apache.directory.server.ldap.LdapServer;
+import org.apache.directory.server.ldap.handlers.SearchHandler;
 import org.apache.directory.server.ldap.handlers.extended.StartTlsHandler;
 import org.apache.directory.server.protocol.shared.transport.TcpTransport;
 import org.apache.directory.server.protocol.shared.transport.Transport;
 import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
 import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.ldif.LdifEntry;
+import org.apache.directory.shared.ldap.ldif.LdifReader;
+import org.apache.directory.shared.ldap.name.DN;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
 import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
 import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.loader.ldif.JarLdifSchemaLoader;
 import org.apache.directory.shared.ldap.schema.loader.ldif.LdifSchemaLoader;
 import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.schema.registries.Schema;
 import org.apache.directory.shared.ldap.schema.registries.SchemaLoader;
 import org.apache.log4j.PropertyConfigurator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * Main application taking care for setup and starting the embedded Apache Directory Server
@@ -78,7 +105,14 @@ public class CrowdLDAPServer {
   private LdapServer server;
   //Crowd Configuration
   private Properties m_CrowdConfig;
-  private CrowdClient m_CrowdClient;
+  //Shared by all tenants
+  private BackendExecutor m_Executor;
+  private AdmissionController m_Admission;
+  private WeightBudget m_CacheBudget;
+  private List<Tenant> m_Tenants = new ArrayList<Tenant>();
+  private int m_TenantCount = 1;
+  private boolean m_MultiTenant = false;
+  private TraceRecorder m_TraceRecorder;
   //AD memberOf Emulation
   private boolean m_emulateADmemberOf = false;
   private boolean m_includeNested = false;
@@ -93,6 +127,8 @@ public class CrowdLDAPServer {
    * @throws Exception if configuration loading or crowd client setup did not work.
    */
   public CrowdLDAPServer(File workDir, File confDir, Properties serverConfig) throws Exception {
+    long start = System.currentTimeMillis();
+    List<Future<Object>> connectionTests = new ArrayList<Future<Object>>();
     try {
       m_ServerConfig = serverConfig;
       m_emulateADmemberOf = Boolean.parseBoolean(m_ServerConfig.getProperty(CONFIG_KEY_EMULATE_MEMBEROF, "false"));
@@ -102,27 +138,294 @@ public class CrowdLDAPServer {
       m_CrowdConfig = new Properties();
       File f = new File(confDir, "crowd.properties");
       m_CrowdConfig.load(new FileReader(f));
-      initCrowdClient();
+      initBackend();
+      initTenants(confDir);
+      //Test the connections while the directory service is initialized
+      for (Tenant tenant : m_Tenants) {
+        connectionTests.add(testCrowdConnection(tenant));
+      }
     } catch (Exception ex) {
       log.error("CrowdLDAPServer(File,File)", ex);
     }
 
     initDirectoryService(workDir);
+    for (Future<Object> connectionTest : connectionTests) {
+      awaitCrowdConnection(connectionTest);
+    }
+    logStartupPhase("initialization", start);
   }//CrowdLDAPServer
 
 
   /**
-   * Initializes the Crowd client side.
+   * Initializes the tenants, i.e. the Crowd applications served at their
+   * own suffix. Without configured tenants, the Crowd application of
+   * <tt>crowd.properties</tt> is served at <tt>dc=crowd</tt>.
+   *
+   * @param confDir the configuration directory.
+   * @throws Exception if initialization fails.
+   */
+  private void initTenants(File confDir) throws Exception {
+    String ids = m_ServerConfig.getProperty(CONFIG_KEY_TENANTS, "").trim();
+    if (ids.length() == 0) {
+      m_Tenants.add(initTenant(DEFAULT_TENANT, DEFAULT_SUFFIX, m_CrowdConfig));
+      return;
+    }
+    m_MultiTenant = true;
+    List<String> tenantIds = new ArrayList<String>();
+    for (String id : ids.split(",")) {
+      id = id.trim();
+      if (id.length() > 0) {
+        tenantIds.add(id);
+      }
+    }
+    //Note: the shared limits are split fairly among the tenants by default
+    m_TenantCount = tenantIds.size();
+    for (String id : tenantIds) {
+      String suffix = m_ServerConfig.getProperty(getTenantKey(id, CONFIG_KEY_TENANT_SUFFIX), "dc=" + id).trim();
+      m_Tenants.add(initTenant(id, suffix, getTenantCrowdConfig(confDir, id)));
+    }
+  }//initTenants
+
+  /**
+   * Initializes the Crowd client side of a tenant.
    *
+   * @param id          the tenant id.
+   * @param suffix      the suffix of the tenant.
+   * @param crowdConfig the Crowd client configuration of the tenant.
+   * @return the new {@link Tenant}.
    * @throws Exception if initialization fails.
    */
-  private void initCrowdClient() throws Exception {
+  private Tenant initTenant(String id, String suffix, Properties crowdConfig) throws Exception {
     //Prepare Crowd access
-    ClientPropertiesImpl crowdClientProperties = ClientPropertiesImpl.newInstanceFromProperties(m_CrowdConfig);
+    ClientPropertiesImpl crowdClientProperties = ClientPropertiesImpl.newInstanceFromProperties(crowdConfig);
     // Create Crowd Client
-    m_CrowdClient = new RestCrowdClientFactory().newInstance(crowdClientProperties);
-    m_CrowdClient.testConnection();
-  }//initCrowdClient
+    CrowdClient client = createCrowdClient(id, crowdClientProperties);
+    initCrowdTransport(id, client, crowdConfig);
+
+    //Per tenant quotas, defaulting to a fair share of the server wide ones
+    int maxInFlight = m_Admission.getMaxInFlight();
+    int bind = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_ADMISSION_BIND, Integer.toString(maxInFlight)));
+    int search = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_ADMISSION_SEARCH, Integer.toString(bind * 3 / 4)));
+    String tenantBind = m_ServerConfig.getProperty(getTenantKey(id, CONFIG_KEY_ADMISSION_BIND));
+    String tenantSearch = m_ServerConfig.getProperty(getTenantKey(id, CONFIG_KEY_ADMISSION_SEARCH));
+    int bindQuota = (tenantBind != null)
+        ? Integer.parseInt(tenantBind.trim())
+        : Math.max(1, bind / m_TenantCount);
+    int searchQuota;
+    if (tenantSearch != null) {
+      searchQuota = Integer.parseInt(tenantSearch.trim());
+    } else {
+      //a share of searches stays below the share of binds, reserving capacity for binds if possible
+      searchQuota = search / m_TenantCount;
+      if (m_TenantCount > 1 && searchQuota >= bindQuota) {
+        searchQuota = bindQuota - 1;
+      }
+      if (searchQuota < 1) {
+        searchQuota = bindQuota;
+        log.warn("Tenant " + id + ": bind quota " + bindQuota + " leaves no capacity reserved for binds");
+      }
+    }
+    CrowdBackend backend = new CrowdBackend(client, m_Executor, m_Admission, bindQuota, searchQuota);
+    backend.setBindTimeout(Long.parseLong(getTenantProperty(id, CONFIG_KEY_BACKEND_TIMEOUT_BIND, "10000")));
+    backend.setSearchTimeout(Long.parseLong(getTenantProperty(id, CONFIG_KEY_BACKEND_TIMEOUT_SEARCH, "30000")));
+    backend.setBatching(Long.parseLong(getTenantProperty(id, CONFIG_KEY_BATCH_WINDOW, "0")),
+        Integer.parseInt(getTenantProperty(id, CONFIG_KEY_BATCH_MAX, "50")));
+    registerMBean("CrowdBackend", id, backend);
+    return new Tenant(id, suffix, backend);
+  }//initTenant
+
+  /**
+   * Creates the Crowd client of a tenant.
+   * <p/>
+   * Called during construction; overridden by {@link TraceReplay}
+   * to serve a stand-in Crowd.
+   *
+   * @param id         the tenant id.
+   * @param properties the Crowd client properties.
+   * @return the {@link CrowdClient}.
+   * @throws Exception if the client cannot be created.
+   */
+  protected CrowdClient createCrowdClient(String id, ClientPropertiesImpl properties) throws Exception {
+    return new RestCrowdClientFactory().newInstance(properties);
+  }//createCrowdClient
+
+  /**
+   * Returns the Crowd client configuration of a tenant: the file given with
+   * <tt>tenant.&lt;id&gt;.crowd.properties</tt>, respectively <tt>crowd.properties</tt>,
+   * overridden by all <tt>tenant.&lt;id&gt;.&lt;key&gt;</tt> entries of the server configuration.
+   *
+   * @param confDir the configuration directory.
+   * @param id      the tenant id.
+   * @return the Crowd client configuration.
+   * @throws IOException if the configuration file cannot be read.
+   */
+  private Properties getTenantCrowdConfig(File confDir, String id) throws IOException {
+    Properties config = new Properties();
+    String file = m_ServerConfig.getProperty(getTenantKey(id, CONFIG_KEY_TENANT_CROWD_CONFIG));
+    if (file != null) {
+      FileReader reader = new FileReader(new File(confDir, file.trim()));
+      try {
+        config.load(reader);
+      } finally {
+        reader.close();
+      }
+    } else {
+      config.putAll(m_CrowdConfig);
+    }
+    String prefix = getTenantKey(id, "");
+    for (String key : m_ServerConfig.stringPropertyNames()) {
+      if (key.startsWith(prefix)) {
+        config.setProperty(key.substring(prefix.length()), m_ServerConfig.getProperty(key).trim());
+      }
+    }
+    return config;
+  }//getTenantCrowdConfig
+
+  /**
+   * Returns a setting of a tenant, i.e. <tt>tenant.&lt;id&gt;.&lt;key&gt;</tt>
+   * if configured, otherwise the server wide setting.
+   *
+   * @param id           the tenant id.
+   * @param key          the key of the setting.
+   * @param defaultValue the default value.
+   * @return the value of the setting.
+   */
+  private String getTenantProperty(String id, String key, String defaultValue) {
+    return m_ServerConfig.getProperty(getTenantKey(id, key), m_ServerConfig.getProperty(key, defaultValue));
+  }//getTenantProperty
+
+  private static String getTenantKey(String id, String key) {
+    return CONFIG_KEY_TENANT_PREFIX + id + "." + key;
+  }//getTenantKey
+
+  /**
+   * Tunes the HTTP transport of a Crowd client, with the connection pool,
+   * keep-alive, compression and timeout settings from <tt>crowd.properties</tt>.
+   *
+   * @param id          the tenant id.
+   * @param client      the Crowd client.
+   * @param crowdConfig the Crowd client configuration.
+   */
+  private void initCrowdTransport(String id, CrowdClient client, Properties crowdConfig) {
+    CrowdTransport transport = new CrowdTransport(client);
+    if (!transport.isAvailable()) {
+      return;
+    }
+    int maxConnections = Integer.parseInt(crowdConfig.getProperty(CROWD_KEY_HTTP_MAX_CONNECTIONS, "20").trim());
+    transport.setMaxConnections(maxConnections);
+    transport.setMaxPerRoute(Integer.parseInt(
+        crowdConfig.getProperty(CROWD_KEY_HTTP_MAX_ROUTE, Integer.toString(maxConnections)).trim()));
+    transport.setConnectTimeout(Integer.parseInt(crowdConfig.getProperty(CROWD_KEY_HTTP_TIMEOUT, "5000").trim()));
+    transport.setReadTimeout(Integer.parseInt(crowdConfig.getProperty(CROWD_KEY_SOCKET_TIMEOUT, "30000").trim()));
+    transport.setKeepAlive(Long.parseLong(crowdConfig.getProperty(CROWD_KEY_HTTP_KEEPALIVE, "60000").trim()));
+    transport.setIdleTimeout(Long.parseLong(crowdConfig.getProperty(CROWD_KEY_HTTP_IDLE_TIMEOUT, "30000").trim()));
+    transport.setCompression(Boolean.parseBoolean(crowdConfig.getProperty(CROWD_KEY_HTTP_COMPRESSION, "true").trim()));
+    transport.start();
+    registerMBean("CrowdTransport", id, transport);
+  }//initCrowdTransport
+
+  /**
+   * Starts testing the connection of a tenant to Crowd in the background.
+   *
+   * @param tenant the tenant.
+   * @return the {@link Future} representing the pending test.
+   */
+  private Future<Object> testCrowdConnection(final Tenant tenant) {
+    final long start = System.currentTimeMillis();
+    return m_Executor.submit(new Callable<Object>() {
+      public Object call() throws Exception {
+        tenant.getBackend().getCrowdClient().testConnection();
+        logStartupPhase("crowd connection test", start);
+        return null;
+      }
+    });
+  }//testCrowdConnection
+
+  /**
+   * Waits for the background connection test to complete.
+   *
+   * @param connectionTest the pending connection test, may be null.
+   */
+  private void awaitCrowdConnection(Future<Object> connectionTest) {
+    if (connectionTest == null) {
+      return;
+    }
+    try {
+      connectionTest.get(
+          Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_BACKEND_TIMEOUT_SEARCH, "30000")), TimeUnit.MILLISECONDS);
+    } catch (ExecutionException ex) {
+      log.error("CrowdLDAPServer(File,File)", ex.getCause());
+    } catch (Exception ex) {
+      log.error("CrowdLDAPServer(File,File)", ex);
+    }
+  }//awaitCrowdConnection
+
+  /**
+   * Logs the time taken by a startup phase.
+   *
+   * @param phase the name of the phase.
+   * @param start the start time of the phase in milliseconds.
+   */
+  private static void logStartupPhase(String phase, long start) {
+    log.info(MessageFormat.format(c_ResourceBundle.getString("startup.phase"),
+        phase, Long.toString(System.currentTimeMillis() - start)));
+  }//logStartupPhase
+
+  /**
+   * Initializes the executor for the blocking calls to Crowd, so that
+   * these never run on the threads processing LDAP requests, and the
+   * admission control limiting the calls in flight towards Crowd.
+   * Both are shared by all tenants, as is the cache memory budget.
+   */
+  private void initBackend() {
+    int threads = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_BACKEND_THREADS, "16"));
+    int queueSize = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_BACKEND_QUEUE, "256"));
+    boolean virtual = Boolean.parseBoolean(m_ServerConfig.getProperty(CONFIG_KEY_BACKEND_VIRTUAL, "true"));
+
+    int maxInFlight = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_ADMISSION_MAX, Integer.toString(threads)));
+    int maxQueued = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_ADMISSION_QUEUE, "128"));
+    long maxWait = Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_ADMISSION_WAIT, "5000"));
+
+    m_Executor = new BackendExecutor("crowd-backend", threads, queueSize, virtual);
+    m_Admission = new AdmissionController(maxInFlight, maxQueued, maxWait);
+
+    long cacheWeight = Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_CACHE_WEIGHT_MAX, "0"));
+    if (cacheWeight > 0) {
+      m_CacheBudget = new WeightBudget(cacheWeight,
+          Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_CACHE_WEIGHT_ENTRY_MAX, "1048576")));
+    }
+  }//initBackend
+
+  /**
+   * Registers the given object with the platform MBean server.
+   *
+   * @param type  the type key of the object name.
+   * @param mbean the MBean to be registered.
+   */
+  private void registerMBean(String type, Object mbean) {
+    registerMBean(type, null, mbean);
+  }//registerMBean
+
+  /**
+   * Registers the given object of a tenant with the platform MBean server.
+   * The tenant is only part of the object name if multiple tenants are configured.
+   *
+   * @param type   the type key of the object name.
+   * @param tenant the tenant id, may be null.
+   * @param mbean  the MBean to be registered.
+   */
+  private void registerMBean(String type, String tenant, Object mbean) {
+    try {
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=" + type
+          + ((m_MultiTenant && tenant != null) ? ",tenant=" + tenant : ""));
+      if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+      ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+    } catch (Exception ex) {
+      log.warn("registerMBean()::" + type, ex);
+    }
+  }//registerMBean
 
   /**
    * Add a new partition to the server.
@@ -144,26 +447,295 @@ public class CrowdLDAPServer {
 
 
   /**
-   * Add a new partition to the server.
+   * Add a new in-memory partition to the server.
+   * The partition does not use the working directory and
+   * its content is lost when the server is stopped.
    *
    * @param partitionId The partition Id
    * @param partitionDn The partition DN
    * @return The newly added partition
    * @throws Exception If the partition can't be added
    */
-  private Partition addCrowdPartition(String partitionId, String partitionDn) throws Exception {
-    // Create a new partition named 'foo'.
-    CrowdPartition partition = new CrowdPartition(m_CrowdClient, m_emulateADmemberOf, m_includeNested);
+  private Partition addMemoryPartition(String partitionId, String partitionDn) throws Exception {
+    AvlPartition partition = new AvlPartition();
     partition.setId(partitionId);
     partition.setSuffix(partitionDn);
     partition.setSchemaManager(service.getSchemaManager());
+    service.addPartition(partition);
+    return partition;
+  }//addMemoryPartition
+
+  /**
+   * Seeds the system partition with the entries from an LDIF file.
+   * Entries that already exist are skipped, change records of type
+   * modify are applied.
+   *
+   * @throws Exception if the LDIF cannot be read.
+   */
+  private void seedSystemPartition() throws Exception {
+    String ldif = m_ServerConfig.getProperty(CONFIG_KEY_SYSTEM_PARTITION_LDIF);
+    InputStream in = (ldif != null)
+        ? new FileInputStream(ldif)
+        : getClass().getClassLoader().getResourceAsStream("net/wimpi/crowd/ldap/system.ldif");
+    if (in == null) {
+      return;
+    }
+    LdifReader reader = new LdifReader(in);
+    try {
+      CoreSession session = service.getAdminSession();
+      int count = 0;
+      for (LdifEntry entry : reader) {
+        if (entry.isChangeModify()) {
+          session.modify(entry.getDn(), entry.getModificationItems());
+          count++;
+        } else if (!session.exists(entry.getDn())) {
+          session.add(new DefaultServerEntry(service.getSchemaManager(), entry.getEntry()));
+          count++;
+        }
+      }
+      log.debug("seedSystemPartition()::Applied " + count + " entries");
+    } finally {
+      reader.close();
+      in.close();
+    }
+  }//seedSystemPartition
+
+  /**
+   * Add a new partition to the server.
+   *
+   * @param tenant the tenant served by the partition.
+   * @return The newly added partition
+   * @throws Exception If the partition can't be added
+   */
+  private CrowdPartition addCrowdPartition(Tenant tenant) throws Exception {
+    String id = tenant.getId();
+    CrowdPartition partition = new CrowdPartition(tenant.getBackend(), m_emulateADmemberOf, m_includeNested);
+    partition.setId(id);
+    partition.setSuffix(tenant.getSuffix());
+    partition.setSchemaManager(service.getSchemaManager());
+    partition.setCacheSize(Integer.parseInt(getTenantProperty(id, CONFIG_KEY_CACHE_SIZE, "300")));
+    //Per tenant budget, nested into the shared one
+    long cacheWeight = Long.parseLong(m_ServerConfig.getProperty(getTenantKey(id, CONFIG_KEY_CACHE_WEIGHT_MAX), "0"));
+    long entryWeight = Long.parseLong(getTenantProperty(id, CONFIG_KEY_CACHE_WEIGHT_ENTRY_MAX, "1048576"));
+    if (m_CacheBudget != null) {
+      partition.setCacheWeight(new WeightBudget(m_CacheBudget,
+          (cacheWeight > 0) ? cacheWeight : m_CacheBudget.getMaxWeight() / m_TenantCount, entryWeight));
+    } else if (cacheWeight > 0) {
+      partition.setCacheWeight(cacheWeight, entryWeight);
+    }
+    long coldCacheSize = Long.parseLong(getTenantProperty(id, CONFIG_KEY_COLD_CACHE_SIZE, "0"));
+    if (coldCacheSize > 0) {
+      String coldCacheFile = getTenantProperty(id, CONFIG_KEY_COLD_CACHE_FILE, "").trim();
+      if (m_MultiTenant && coldCacheFile.length() > 0
+          && m_ServerConfig.getProperty(getTenantKey(id, CONFIG_KEY_COLD_CACHE_FILE)) == null) {
+        coldCacheFile = coldCacheFile + "." + id;
+      }
+      partition.setColdCache(new OffHeapStore(
+          coldCacheSize,
+          Integer.parseInt(getTenantProperty(id, CONFIG_KEY_COLD_CACHE_SEGMENT, "1048576")),
+          (coldCacheFile.length() > 0) ? new File(coldCacheFile) : null
+      ));
+    }
+    partition.setQueryCache(
+        Integer.parseInt(getTenantProperty(id, CONFIG_KEY_QUERY_CACHE_SIZE, "100")),
+        Long.parseLong(getTenantProperty(id, CONFIG_KEY_QUERY_CACHE_TTL, "60000"))
+    );
+    partition.setSortIndexTTL(Long.parseLong(getTenantProperty(id, CONFIG_KEY_SORT_INDEX_TTL, "3600000")));
+    partition.setFilterCacheSize(Integer.parseInt(getTenantProperty(id, CONFIG_KEY_FILTER_CACHE_SIZE, "100")));
+    partition.setMaxMemberValues(Integer.parseInt(getTenantProperty(id, CONFIG_KEY_MEMBER_RANGE_MAX, "1500")));
+    partition.setMemberPageSize(Integer.parseInt(getTenantProperty(id, CONFIG_KEY_MEMBER_PAGE_SIZE, "1000")));
     partition.initialize();
 
     service.addPartition(partition);
+    registerMBean("CrowdPartition", id, partition);
 
     return partition;
   }//addCrowdPartition
 
+  /**
+   * Starts the background warm-up of the entry cache of the given partition,
+   * if enabled. The server does not wait for the warm-up to complete;
+   * its progress and readiness are exposed through the CacheWarmer MBean.
+   *
+   * @param tenant the tenant whose partition is to be warmed up.
+   */
+  private void startCacheWarmUp(Tenant tenant) {
+    String id = tenant.getId();
+    if (!Boolean.parseBoolean(getTenantProperty(id, CONFIG_KEY_WARMUP_ENABLED, "false"))) {
+      return;
+    }
+    List<String> groups = null;
+    String groupList = getTenantProperty(id, CONFIG_KEY_WARMUP_GROUPS, "").trim();
+    if (groupList.length() > 0) {
+      groups = new ArrayList<String>();
+      for (String g : groupList.split(",")) {
+        if (g.trim().length() > 0) {
+          groups.add(g.trim());
+        }
+      }
+    }
+    int parallelism = Integer.parseInt(getTenantProperty(id, CONFIG_KEY_WARMUP_PARALLELISM, "4"));
+    double rate = Double.parseDouble(getTenantProperty(id, CONFIG_KEY_WARMUP_RATE, "50"));
+
+    CacheWarmer warmer = new CacheWarmer(tenant.getPartition(), groups, parallelism, rate);
+    registerMBean("CacheWarmer", id, warmer);
+    warmer.start();
+  }//startCacheWarmUp
+
+  /**
+   * Creates the prefetcher of the given tenant, if enabled.
+   *
+   * @param tenant the tenant whose partition is to be filled ahead of the clients.
+   */
+  private void startPrefetcher(Tenant tenant) {
+    String id = tenant.getId();
+    if (!Boolean.parseBoolean(getTenantProperty(id, CONFIG_KEY_PREFETCH_ENABLED, "false"))) {
+      return;
+    }
+    Prefetcher prefetcher = new Prefetcher(
+        tenant.getPartition(),
+        Integer.parseInt(getTenantProperty(id, CONFIG_KEY_PREFETCH_THREADS, "2")),
+        Integer.parseInt(getTenantProperty(id, CONFIG_KEY_PREFETCH_QUEUE_SIZE, "1000")),
+        Double.parseDouble(getTenantProperty(id, CONFIG_KEY_PREFETCH_RATE, "20")),
+        Boolean.parseBoolean(getTenantProperty(id, CONFIG_KEY_PREFETCH_USERS, "true")),
+        Boolean.parseBoolean(getTenantProperty(id, CONFIG_KEY_PREFETCH_GROUPS, "true"))
+    );
+    tenant.getPartition().setPrefetcher(prefetcher);
+    tenant.setPrefetcher(prefetcher);
+    registerMBean("Prefetcher", id, prefetcher);
+  }//startPrefetcher
+
+  /**
+   * Creates and starts the access log, if enabled.
+   *
+   * @return the {@link AccessLog}, or null if disabled.
+   * @throws IOException if the access log file cannot be opened.
+   */
+  private AccessLog createAccessLog() throws IOException {
+    if (!Boolean.parseBoolean(m_ServerConfig.getProperty(CONFIG_KEY_ACCESSLOG_ENABLED, "false"))) {
+      return null;
+    }
+    AccessLog accessLog = new AccessLog(
+        new File(m_ServerConfig.getProperty(CONFIG_KEY_ACCESSLOG_FILE, "log/access.log")),
+        Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_ACCESSLOG_BUFFER, "8192")),
+        Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_ACCESSLOG_MAX_SIZE, "10485760")),
+        Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_ACCESSLOG_MAX_BACKUPS, "5"))
+    );
+    accessLog.start();
+    registerMBean("AccessLog", accessLog);
+    return accessLog;
+  }//createAccessLog
+
+  /**
+   * Creates the recorder capturing operations for {@link TraceReplay},
+   * if a trace file is configured. Capturing is started if enabled,
+   * otherwise through JMX.
+   *
+   * @return the {@link TraceRecorder}, or null if not configured.
+   */
+  private TraceRecorder createTraceRecorder() {
+    String file = m_ServerConfig.getProperty(CONFIG_KEY_TRACE_FILE, "").trim();
+    if (file.length() == 0) {
+      return null;
+    }
+    TraceRecorder recorder = new TraceRecorder(
+        new File(file),
+        Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_TRACE_BUFFER, "8192")),
+        Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_TRACE_MAX_OPS, "1000000"))
+    );
+    if (Boolean.parseBoolean(m_ServerConfig.getProperty(CONFIG_KEY_TRACE_ENABLED, "false"))) {
+      recorder.start();
+    }
+    registerMBean("TraceRecorder", recorder);
+    return recorder;
+  }//createTraceRecorder
+
+  /**
+   * Returns the recorder capturing operations.
+   *
+   * @return the {@link TraceRecorder}, or null if not configured.
+   */
+  TraceRecorder getTraceRecorder() {
+    return m_TraceRecorder;
+  }//getTraceRecorder
+
+  /**
+   * Creates the resolver mapping bind DNs to Crowd usernames,
+   * including the configured aliases (<tt>bind.alias.&lt;alias&gt;=&lt;username&gt;</tt>),
+   * respectively those of the tenant (<tt>tenant.&lt;id&gt;.bind.alias.&lt;alias&gt;</tt>).
+   *
+   * @param tenant the tenant.
+   * @return the new {@link BindResolver}.
+   * @throws Exception if the users container or an alias is not a valid DN.
+   */
+  private BindResolver createBindResolver(Tenant tenant) throws Exception {
+    String id = tenant.getId();
+    DN usersDn = DN.normalize(CrowdPartition.USERS_RDN + "," + tenant.getSuffix(),
+        service.getSchemaManager().getNormalizerMapping());
+    BindResolver resolver = new BindResolver(tenant.getBackend(), service.getSchemaManager(), usersDn,
+        Integer.parseInt(getTenantProperty(id, CONFIG_KEY_BIND_CACHE_SIZE, "1000")));
+    resolver.setMailLogin(Boolean.parseBoolean(getTenantProperty(id, CONFIG_KEY_BIND_MAIL, "false")));
+    String tenantPrefix = getTenantKey(id, CONFIG_KEY_BIND_ALIAS_PREFIX);
+    for (String key : m_ServerConfig.stringPropertyNames()) {
+      if (key.startsWith(CONFIG_KEY_BIND_ALIAS_PREFIX)) {
+        resolver.addAlias(key.substring(CONFIG_KEY_BIND_ALIAS_PREFIX.length()),
+            m_ServerConfig.getProperty(key).trim());
+      }
+    }
+    for (String key : m_ServerConfig.stringPropertyNames()) {
+      if (key.startsWith(tenantPrefix)) {
+        resolver.addAlias(key.substring(tenantPrefix.length()), m_ServerConfig.getProperty(key).trim());
+      }
+    }
+    return resolver;
+  }//createBindResolver
+
+  /**
+   * Creates the tracker of failed binds, if enabled.
+   *
+   * @return the new {@link BindThrottle}, or null if disabled.
+   */
+  private BindThrottle createBindThrottle() {
+    if (!Boolean.parseBoolean(m_ServerConfig.getProperty(CONFIG_KEY_BIND_THROTTLE_ENABLED, "true"))) {
+      return null;
+    }
+    BindThrottle throttle = new BindThrottle(
+        Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_BIND_THROTTLE_SIZE, "10000")),
+        Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_BIND_THROTTLE_BACKOFF, "1000")),
+        Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_BIND_THROTTLE_BACKOFF_MAX, "300000"))
+    );
+    registerMBean("BindThrottle", throttle);
+    return throttle;
+  }//createBindThrottle
+
+  /**
+   * Starts polling Crowd events to invalidate the changed cache entries, if enabled.
+   * The changes are also notified to persistent searches and content synchronization
+   * sessions, unless disabled.
+   *
+   * @param tenant the tenant whose caches should be kept fresh.
+   */
+  private void startEventPoller(Tenant tenant) {
+    String id = tenant.getId();
+    if (!Boolean.parseBoolean(getTenantProperty(id, CONFIG_KEY_EVENTS_ENABLED, "true"))) {
+      return;
+    }
+    long interval = Long.parseLong(getTenantProperty(id, CONFIG_KEY_EVENTS_INTERVAL, "5000"));
+    EventPoller poller = new EventPoller(tenant.getPartition(), tenant.getBackend(), interval);
+    if (Boolean.parseBoolean(getTenantProperty(id, CONFIG_KEY_SYNC_ENABLED, "true"))) {
+      try {
+        ChangeNotifier notifier = new ChangeNotifier(tenant.getPartition(), service);
+        tenant.setNotifier(notifier);
+        poller.setNotifier(notifier);
+        registerMBean("ChangeNotifier", id, notifier);
+      } catch (Exception ex) {
+        log.error("Change notification for tenant " + id + " not available", ex);
+      }
+    }
+    registerMBean("EventPoller", id, poller);
+    poller.start();
+  }//startEventPoller
+
   /**
    * Add a new set of index on the given attributes
    *
@@ -194,10 +766,21 @@ public class CrowdLDAPServer {
     String workingDirectory = service.getWorkingDirectory().getPath();
     ldifPartition.setWorkingDirectory(workingDirectory + "/schema");
 
-    // Extract the schema on disk (a brand new one) and load the registries
+    // Extract the schema on disk, unless the extracted schema matches the current one
     File schemaRepository = new File(workingDirectory, "schema");
-    SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(new File(workingDirectory));
-    extractor.extractOrCopy(true);
+    File checksumFile = new File(workingDirectory, SCHEMA_CHECKSUM_FILE);
+    String checksum = computeSchemaChecksum();
+    boolean extracted = checksum != null && schemaRepository.exists() && checksum.equals(readChecksum(checksumFile));
+    if (extracted) {
+      log.debug("Reusing extracted schema (checksum " + checksum + ")");
+    } else {
+      long start = System.currentTimeMillis();
+      deleteRecursively(schemaRepository);
+      checksumFile.delete();
+      SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(new File(workingDirectory));
+      extractor.extractOrCopy(true);
+      logStartupPhase("schema extraction", start);
+    }
 
     // memberOf Support
     if(m_emulateADmemberOf) {
@@ -232,8 +815,57 @@ public class CrowdLDAPServer {
     }
         
     schemaPartition.setWrappedPartition(ldifPartition);
+    loadSchema(schemaPartition, new LdifSchemaLoader(schemaRepository));
+    if (!extracted && checksum != null) {
+      writeChecksum(checksumFile, checksum);
+    }
+  }//initSchemaPartition
+
+  /**
+   * Initialize the schema manager from the schema in the ApacheDS archive, and
+   * add an in-memory schema partition to the directory service.
+   * Nothing is written to the working directory.
+   *
+   * @throws Exception if the schema LDIF files are not found on the classpath
+   */
+  private void initMemorySchemaPartition() throws Exception {
+    SchemaPartition schemaPartition = service.getSchemaService().getSchemaPartition();
+    List<Entry> additional = new ArrayList<Entry>();
+    SchemaLoader loader;
+    if (m_emulateADmemberOf) {
+      final Entry memberOf = readMemberOfEntry();
+      additional.add(memberOf);
+      loader = new JarLdifSchemaLoader() {
+        public List<Entry> loadAttributeTypes(Schema... schemas) throws Exception {
+          List<Entry> attributeTypes = super.loadAttributeTypes(schemas);
+          for (Schema schema : schemas) {
+            if (MEMBEROF_SCHEMA.equalsIgnoreCase(schema.getSchemaName())) {
+              attributeTypes.add(memberOf);
+            }
+          }
+          return attributeTypes;
+        }
+      };
+    } else {
+      loader = new JarLdifSchemaLoader();
+    }
+    schemaPartition.setWrappedPartition(new MemorySchemaPartition(additional));
+    loadSchema(schemaPartition, loader);
+  }//initMemorySchemaPartition
 
-    SchemaLoader loader = new LdifSchemaLoader(schemaRepository);
+  private Entry readMemberOfEntry() throws Exception {
+    InputStream in = getClass().getClassLoader().getResourceAsStream("net/wimpi/crowd/ldap/memberof.ldif");
+    try {
+      LdifReader reader = new LdifReader(in);
+      Entry entry = reader.next().getEntry();
+      reader.close();
+      return entry;
+    } finally {
+      in.close();
+    }
+  }//readMemberOfEntry
+
+  private void loadSchema(SchemaPartition schemaPartition, SchemaLoader loader) throws Exception {
     SchemaManager schemaManager = new DefaultSchemaManager(loader);
     service.setSchemaManager(schemaManager);
 
@@ -249,7 +881,84 @@ public class CrowdLDAPServer {
     if (errors.size() != 0) {
       throw new Exception(MessageFormat.format(c_ResourceBundle.getString("schema.load.failed"), errors));
     }
-  }//initSchemaPartition
+  }//loadSchema
+
+  /**
+   * Computes a checksum identifying the schema that would be extracted,
+   * from the ApacheDS schema archive and the memberOf configuration.
+   *
+   * @return the checksum as hex string, or null if the archive cannot be identified,
+   *         in which case the schema is extracted again.
+   */
+  private String computeSchemaChecksum() {
+    CRC32 crc = new CRC32();
+    try {
+      URL source = DefaultSchemaLdifExtractor.class.getProtectionDomain().getCodeSource().getLocation();
+      crc.update(source.toString().getBytes("utf-8"));
+      File archive = new File(source.toURI());
+      if (!archive.exists()) {
+        log.debug("computeSchemaChecksum()::Archive not found " + archive);
+        return null;
+      }
+      crc.update(Long.toString(archive.length()).getBytes("utf-8"));
+      crc.update(Long.toString(archive.lastModified()).getBytes("utf-8"));
+    } catch (Exception ex) {
+      log.debug("computeSchemaChecksum()", ex);
+      return null;
+    }
+    crc.update((m_emulateADmemberOf) ? 1 : 0);
+    return Long.toHexString(crc.getValue());
+  }//computeSchemaChecksum
+
+  private static String readChecksum(File f) {
+    if (!f.exists()) {
+      return null;
+    }
+    BufferedReader in = null;
+    try {
+      in = new BufferedReader(new FileReader(f));
+      return in.readLine();
+    } catch (IOException ex) {
+      log.debug("readChecksum()", ex);
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException ex) {
+          //ignore
+        }
+      }
+    }
+  }//readChecksum
+
+  private static void writeChecksum(File f, String checksum) {
+    FileWriter out = null;
+    try {
+      out = new FileWriter(f);
+      out.write(checksum);
+    } catch (IOException ex) {
+      log.warn("writeChecksum()", ex);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException ex) {
+          //ignore
+        }
+      }
+    }
+  }//writeChecksum
+
+  private static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    f.delete();
+  }//deleteRecursively
 
 
   /**
@@ -265,11 +974,20 @@ public class CrowdLDAPServer {
     service.setWorkingDirectory(workDir);
 
     // first load the schema
-    initSchemaPartition();
+    boolean memorySystemPartition = isMemoryPartition(m_ServerConfig);
+    long start = System.currentTimeMillis();
+    if (memorySystemPartition) {
+      initMemorySchemaPartition();
+    } else {
+      initSchemaPartition();
+    }
+    logStartupPhase("schema", start);
 
     // then the system partition
     // this is a MANDATORY partition
-    Partition systemPartition = addPartition("system", ServerDNConstants.SYSTEM_DN);
+    Partition systemPartition = (memorySystemPartition)
+        ? addMemoryPartition("system", ServerDNConstants.SYSTEM_DN)
+        : addPartition("system", ServerDNConstants.SYSTEM_DN);
     service.setSystemPartition(systemPartition);
 
     // Disable the ChangeLog system
@@ -282,15 +1000,47 @@ public class CrowdLDAPServer {
 
     log.debug("" + service.getInterceptor("org.apache.directory.server.core.authn.AuthenticationInterceptor"));
     AuthenticationInterceptor ai = (AuthenticationInterceptor) service.getInterceptor("org.apache.directory.server.core.authn.AuthenticationInterceptor");
+    for (Tenant tenant : m_Tenants) {
+      tenant.setBindResolver(createBindResolver(tenant));
+    }
     Set<Authenticator> auths = new HashSet<Authenticator>();
-    auths.add(new CrowdAuthenticator(m_CrowdClient));
+    CrowdAuthenticator authenticator = new CrowdAuthenticator(m_Tenants);
+    authenticator.setThrottle(createBindThrottle());
+    auths.add(authenticator);
     ai.setAuthenticators(auths);
 
-    // Add Crowd Partition
-    addCrowdPartition("crowd", "dc=crowd");
+    // Add Crowd Partitions, one per tenant
+    List<CrowdPartition> crowdPartitions = new ArrayList<CrowdPartition>();
+    for (Tenant tenant : m_Tenants) {
+      CrowdPartition crowdPartition = addCrowdPartition(tenant);
+      crowdPartition.setBindResolver(tenant.getBindResolver());
+      tenant.setPartition(crowdPartition);
+      crowdPartitions.add(crowdPartition);
+    }
+
+    //Answer membership compares without building the entries
+    List<Interceptor> interceptors = new ArrayList<Interceptor>(service.getInterceptors());
+    interceptors.add(new MembershipInterceptor(crowdPartitions));
+    AccessLog accessLog = createAccessLog();
+    m_TraceRecorder = createTraceRecorder();
+    if (accessLog != null || m_TraceRecorder != null) {
+      interceptors.add(0, new AccessLogInterceptor(accessLog, m_TraceRecorder));
+    }
+    service.setInterceptors(interceptors);
 
     // And start the service
+    start = System.currentTimeMillis();
     service.startup();
+    if (memorySystemPartition) {
+      seedSystemPartition();
+    }
+    logStartupPhase("directory service startup", start);
+
+    for (Tenant tenant : m_Tenants) {
+      startCacheWarmUp(tenant);
+      startPrefetcher(tenant);
+      startEventPoller(tenant);
+    }
   }//initDirectoryService
 
   /**
@@ -304,6 +1054,16 @@ public class CrowdLDAPServer {
 
     Transport t = new TcpTransport(serverPort);
 
+    //LDAP transport threads, sized independently of the Crowd backend executor
+    String listenerThreads = m_ServerConfig.getProperty(CONFIG_KEY_LISTENER_THREADS);
+    if (listenerThreads != null) {
+      t.setNbThreads(Integer.parseInt(listenerThreads.trim()));
+    }
+    String listenerBacklog = m_ServerConfig.getProperty(CONFIG_KEY_LISTENER_BACKLOG);
+    if (listenerBacklog != null) {
+      t.setBackLog(Integer.parseInt(listenerBacklog.trim()));
+    }
+
     //SSL Support
     boolean sslEnabled = Boolean.parseBoolean(m_ServerConfig.getProperty(CONFIG_KEY_SSLENABLE,"false"));
 
@@ -318,6 +1078,15 @@ public class CrowdLDAPServer {
 
     }    
     
+    //Sorted and windowed user listings, see ListControls
+    server.getSupportedControls().add(ListControls.SORT_REQUEST_OID);
+    server.getSupportedControls().add(ListControls.VLV_REQUEST_OID);
+    //Content synchronization (RFC 4533) driven by Crowd events, see SyncSearchHandler
+    SearchHandler searchHandler = new SearchHandler();
+    searchHandler.setLdapServer(server);
+    server.setSearchHandler(new SyncSearchHandler(searchHandler, m_Tenants));
+    server.getSupportedControls().add(SyncSearchHandler.SYNC_REQUEST_OID);
+
     server.setTransports(t);
     server.setDirectoryService(service);
     server.start();
@@ -349,22 +1118,32 @@ public class CrowdLDAPServer {
 
       log.info(c_ResourceBundle.getString("starting.up.crowdldap.server"));
       File workDir = new File("work");
-      workDir.mkdirs();
-      log.info(MessageFormat.format(c_ResourceBundle.getString("working.directory"), workDir.getAbsolutePath()));
+      if (!isMemoryPartition(serverConfig)) {
+        workDir.mkdirs();
+        log.info(MessageFormat.format(c_ResourceBundle.getString("working.directory"), workDir.getAbsolutePath()));
+      }
 
       // Create the server
       CrowdLDAPServer clds = new CrowdLDAPServer(workDir, confDir, serverConfig);
 
       // Start the server
+      long start = System.currentTimeMillis();
       clds.startServer();
+      logStartupPhase("listener", start);
       log.info(c_ResourceBundle.getString("starting.directory.listener"));
     } catch (Exception e) {
       log.error("main()", e);
     }
   }//main
 
+  private static boolean isMemoryPartition(Properties serverConfig) {
+    return "memory".equalsIgnoreCase(serverConfig.getProperty(CONFIG_KEY_SYSTEM_PARTITION_TYPE, "jdbm").trim());
+  }//isMemoryPartition
+
 
   private static final String CONFIG_KEY_PORT = "listener.port";
+  private static final String CONFIG_KEY_LISTENER_THREADS = "listener.threads";
+  private static final String CONFIG_KEY_LISTENER_BACKLOG = "listener.backlog";
   private static final String CONFIG_KEY_SSLENABLE = "ssl.enabled";
 
   private static final String CONFIG_KEY_KEYSTORE = "ssl.keystore";
@@ -373,4 +1152,83 @@ public class CrowdLDAPServer {
   private static final String CONFIG_KEY_EMULATE_MEMBEROF = "emulate.ad.memberof";  
   private static final String CONFIG_KEY_INCLUDE_NESTED = "emulate.ad.include.nested";  
 
+  private static final String CONFIG_KEY_BACKEND_THREADS = "backend.threads";
+  private static final String CONFIG_KEY_BACKEND_QUEUE = "backend.queue.size";
+  private static final String CONFIG_KEY_BACKEND_VIRTUAL = "backend.virtualthreads";
+  private static final String CONFIG_KEY_BACKEND_TIMEOUT_BIND = "backend.timeout.bind";
+  private static final String CONFIG_KEY_BACKEND_TIMEOUT_SEARCH = "backend.timeout.search";
+  private static final String CONFIG_KEY_BATCH_WINDOW = "backend.batch.window";
+  private static final String CONFIG_KEY_BATCH_MAX = "backend.batch.max";
+  private static final String CONFIG_KEY_ADMISSION_MAX = "backend.admission.max";
+  private static final String CONFIG_KEY_ADMISSION_BIND = "backend.admission.bind";
+  private static final String CONFIG_KEY_ADMISSION_SEARCH = "backend.admission.search";
+  private static final String CONFIG_KEY_ADMISSION_QUEUE = "backend.admission.queue";
+  private static final String CONFIG_KEY_ADMISSION_WAIT = "backend.admission.wait";
+
+  private static final String CONFIG_KEY_TENANTS = "tenants";
+  private static final String CONFIG_KEY_TENANT_PREFIX = "tenant.";
+  private static final String CONFIG_KEY_TENANT_SUFFIX = "suffix";
+  private static final String CONFIG_KEY_TENANT_CROWD_CONFIG = "crowd.properties";
+  private static final String DEFAULT_TENANT = "crowd";
+  private static final String DEFAULT_SUFFIX = "dc=crowd";
+
+  private static final String CONFIG_KEY_CACHE_SIZE = "cache.size";
+  private static final String CONFIG_KEY_CACHE_WEIGHT_MAX = "cache.weight.max";
+  private static final String CONFIG_KEY_CACHE_WEIGHT_ENTRY_MAX = "cache.weight.entry.max";
+  private static final String CONFIG_KEY_ACCESSLOG_ENABLED = "accesslog.enabled";
+  private static final String CONFIG_KEY_ACCESSLOG_FILE = "accesslog.file";
+  private static final String CONFIG_KEY_ACCESSLOG_BUFFER = "accesslog.buffer.size";
+  private static final String CONFIG_KEY_ACCESSLOG_MAX_SIZE = "accesslog.max.size";
+  private static final String CONFIG_KEY_ACCESSLOG_MAX_BACKUPS = "accesslog.max.backups";
+  private static final String CONFIG_KEY_TRACE_FILE = "trace.file";
+  private static final String CONFIG_KEY_TRACE_ENABLED = "trace.enabled";
+  private static final String CONFIG_KEY_TRACE_BUFFER = "trace.buffer.size";
+  private static final String CONFIG_KEY_TRACE_MAX_OPS = "trace.max.ops";
+  private static final String CONFIG_KEY_BIND_MAIL = "bind.mail.enabled";
+  private static final String CONFIG_KEY_BIND_CACHE_SIZE = "bind.cache.size";
+  private static final String CONFIG_KEY_BIND_ALIAS_PREFIX = "bind.alias.";
+  private static final String CONFIG_KEY_BIND_THROTTLE_ENABLED = "bind.throttle.enabled";
+  private static final String CONFIG_KEY_BIND_THROTTLE_SIZE = "bind.throttle.size";
+  private static final String CONFIG_KEY_BIND_THROTTLE_BACKOFF = "bind.throttle.backoff";
+  private static final String CONFIG_KEY_BIND_THROTTLE_BACKOFF_MAX = "bind.throttle.backoff.max";
+  private static final String CONFIG_KEY_EVENTS_ENABLED = "cache.events.enabled";
+  private static final String CONFIG_KEY_EVENTS_INTERVAL = "cache.events.interval";
+  private static final String CONFIG_KEY_SYNC_ENABLED = "sync.enabled";
+  private static final String CONFIG_KEY_COLD_CACHE_SIZE = "cache.cold.size";
+  private static final String CONFIG_KEY_COLD_CACHE_SEGMENT = "cache.cold.segment";
+  private static final String CONFIG_KEY_COLD_CACHE_FILE = "cache.cold.file";
+  private static final String CONFIG_KEY_QUERY_CACHE_SIZE = "cache.query.size";
+  private static final String CONFIG_KEY_QUERY_CACHE_TTL = "cache.query.ttl";
+  private static final String CONFIG_KEY_SORT_INDEX_TTL = "sort.index.ttl";
+  private static final String CONFIG_KEY_FILTER_CACHE_SIZE = "cache.filter.size";
+  private static final String CONFIG_KEY_MEMBER_RANGE_MAX = "member.range.max";
+  private static final String CONFIG_KEY_MEMBER_PAGE_SIZE = "member.page.size";
+  private static final String CONFIG_KEY_WARMUP_ENABLED = "cache.warmup.enabled";
+  private static final String CONFIG_KEY_WARMUP_GROUPS = "cache.warmup.groups";
+  private static final String CONFIG_KEY_WARMUP_PARALLELISM = "cache.warmup.parallelism";
+  private static final String CONFIG_KEY_WARMUP_RATE = "cache.warmup.rate";
+  private static final String CONFIG_KEY_PREFETCH_ENABLED = "prefetch.enabled";
+  private static final String CONFIG_KEY_PREFETCH_USERS = "prefetch.users";
+  private static final String CONFIG_KEY_PREFETCH_GROUPS = "prefetch.groups";
+  private static final String CONFIG_KEY_PREFETCH_THREADS = "prefetch.threads";
+  private static final String CONFIG_KEY_PREFETCH_QUEUE_SIZE = "prefetch.queue.size";
+  private static final String CONFIG_KEY_PREFETCH_RATE = "prefetch.rate";
+
+  //Keys of crowd.properties, in addition to those read by the Crowd client
+  private static final String CROWD_KEY_HTTP_MAX_CONNECTIONS = "http.max.connections";
+  private static final String CROWD_KEY_HTTP_MAX_ROUTE = "http.max.connections.route";
+  private static final String CROWD_KEY_HTTP_TIMEOUT = "http.timeout";
+  private static final String CROWD_KEY_SOCKET_TIMEOUT = "socket.timeout";
+  private static final String CROWD_KEY_HTTP_KEEPALIVE = "http.keepalive";
+  private static final String CROWD_KEY_HTTP_IDLE_TIMEOUT = "http.idle.timeout";
+  private static final String CROWD_KEY_HTTP_COMPRESSION = "http.compression";
+
+  private static final String CONFIG_KEY_SYSTEM_PARTITION_TYPE = "system.partition.type";
+  //Schema holding the memberOf attribute type
+  private static final String MEMBEROF_SCHEMA = "other";
+  private static final String CONFIG_KEY_SYSTEM_PARTITION_LDIF = "system.partition.ldif";
+
+  private static final String JMX_DOMAIN = "net.wimpi.crowd.ldap";
+  private static final String SCHEMA_CHECKSUM_FILE = "schema.checksum";
+
 }//class CrowdLDAPServer
\ No newline at end of file
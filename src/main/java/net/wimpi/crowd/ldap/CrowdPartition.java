@@ -4,6 +4,7 @@ import com.atlassian.crowd.embedded.api.SearchRestriction;
 import com.atlassian.crowd.exception.ApplicationPermissionException;
 import com.atlassian.crowd.exception.InvalidAuthenticationException;
 import com.atlassian.crowd.exception.OperationFailedException;
+import com.atlassian.crowd.exception.GroupNotFoundException;
 import com.atlassian.crowd.exception.UserNotFoundException;
 import com.atlassian.crowd.model.group.Group;
 import com.atlassian.crowd.model.user.User;
@@ -12,8 +13,10 @@ import com.atlassian.crowd.search.query.entity.restriction.NullRestrictionImpl;
 import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
 import com.atlassian.crowd.search.query.entity.restriction.constants.GroupTermKeys;
 import com.atlassian.crowd.search.query.entity.restriction.constants.UserTermKeys;
-import com.atlassian.crowd.service.client.CrowdClient;
+import net.wimpi.crowd.ldap.util.CacheMapExpelHandler;
 import net.wimpi.crowd.ldap.util.LRUCacheMap;
+import net.wimpi.crowd.ldap.util.OffHeapStore;
+import net.wimpi.crowd.ldap.util.WeightBudget;
 import org.apache.directory.server.core.entry.ClonedServerEntry;
 import org.apache.directory.server.core.filtering.BaseEntryFilteringCursor;
 import org.apache.directory.server.core.filtering.EntryFilteringCursor;
@@ -23,8 +26,15 @@ import org.apache.directory.shared.ldap.constants.SchemaConstants;
 import org.apache.directory.shared.ldap.cursor.EmptyCursor;
 import org.apache.directory.shared.ldap.cursor.ListCursor;
 import org.apache.directory.shared.ldap.cursor.SingletonCursor;
+import org.apache.directory.shared.ldap.entry.DefaultServerAttribute;
 import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
 import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.exception.LdapServiceUnavailableException;
+import org.apache.directory.shared.ldap.filter.AndNode;
+import org.apache.directory.shared.ldap.filter.EqualityNode;
+import org.apache.directory.shared.ldap.filter.ExprNode;
 import org.apache.directory.shared.ldap.name.DN;
 import org.apache.directory.shared.ldap.name.RDN;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
@@ -33,9 +43,23 @@ import org.slf4j.LoggerFactory;
 
 import javax.naming.OperationNotSupportedException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,38 +70,88 @@ import java.util.regex.Pattern;
  *
  * @author Dieter Wimberger
  */
-public class CrowdPartition implements Partition {
+public class CrowdPartition implements Partition, CrowdPartitionMBean {
 
   private static final Logger log = LoggerFactory.getLogger(CrowdPartition.class);
 
   private String m_ID;
   private AtomicBoolean m_Initialized;
   private LRUCacheMap<String, ServerEntry> m_EntryCache;
+  //Expensive attributes, cached separately from the entries
+  private LRUCacheMap<String, List<String>> m_MemberOfCache;
+  private LRUCacheMap<String, List<String>> m_MembersCache;
+  //Invalidation generations of the caches above, see cacheEntry(String, ServerEntry, long)
+  private final AtomicLong m_EntryGeneration = new AtomicLong(0);
+  private final AtomicLong m_MemberOfGeneration = new AtomicLong(0);
+  private final AtomicLong m_MembersGeneration = new AtomicLong(0);
+  //memberOf lookups towards Crowd in progress, shared by concurrent readers
+  private final ConcurrentMap<String, FutureTask<List<String>>> m_MemberOfLoads =
+      new ConcurrentHashMap<String, FutureTask<List<String>>>();
+  //Byte budget shared by the caches above, if bounded by weight
+  private WeightBudget m_WeightBudget;
+  //Cold tier of the entry cache, off the heap
+  private OffHeapStore m_ColdCache;
+  private EntryCodec m_Codec;
+  //DNs of the cached user and group entries in either tier by name, see getEntryName(ServerEntry),
+  //and back; guarded by the entry cache, so that invalidating a name is a lookup
+  private final Map<String, Set<String>> m_EntryDns = new HashMap<String, Set<String>>();
+  private final Map<String, String> m_EntryNames = new HashMap<String, String>();
+  //Names matching repeated searches
+  private QueryCache m_QueryCache = new QueryCache(100, 60000L);
+  //Compiled search filters
+  private FilterCompiler m_FilterCompiler;
+  private int m_FilterCacheSize = 100;
+  //Users sorted for the sort and virtual list view controls
+  private final UserSortIndex m_SortIndex = new UserSortIndex();
+  private final Object m_SortIndexLock = new Object();
+  private long m_SortIndexTTL = 3600000L;
+  private int m_SortIndexPageSize = 1000;
 
   private SchemaManager m_SchemaManager;
   private String m_Suffix = CROWD_DN;
+  private String m_GroupsDn = GROUPS_RDN + "," + CROWD_DN;
+  private String m_UsersDn = USERS_RDN + "," + CROWD_DN;
 
   private ServerEntry m_CrowdEntry;
   private ServerEntry m_CrowdGroupsEntry;
   private ServerEntry m_CrowdUsersEntry;
 
-  private CrowdClient m_CrowdClient;
+  private CrowdBackend m_Backend;
+  private BindResolver m_BindResolver;
+  private Prefetcher m_Prefetcher;
 
   private List<ServerEntry> m_CrowdOneLevelList;
   private Pattern m_UIDFilter = Pattern.compile("\\(0.9.2342.19200300.100.1.1=([^\\)]*)\\)");
   //AD memberOf Emulation
   private boolean m_emulateADmemberOf = false;
+  //Member range retrieval
+  private int m_MaxMemberValues = 1500;
+  private int m_MemberPageSize = 1000;
   private boolean m_includeNested = false;
 
-  public CrowdPartition(CrowdClient client) {
-    m_CrowdClient = client;
+  public CrowdPartition(CrowdBackend backend) {
+    m_Backend = backend;
     m_EntryCache = new LRUCacheMap<String, ServerEntry>(300);
+    m_MemberOfCache = new LRUCacheMap<String, List<String>>(300);
+    m_MembersCache = new LRUCacheMap<String, List<String>>(300);
+    m_EntryCache.setExpelHandler(new CacheMapExpelHandler<String, ServerEntry>() {
+      public void expelled(Map.Entry<String, ServerEntry> entry) {
+        evicted(entry.getKey(), entry.getValue());
+      }
+    });
     m_Initialized = new AtomicBoolean(false);
   }//constructor
 
-  public CrowdPartition(CrowdClient client, boolean emulateADMemberOf, boolean includeNested) {
-    m_CrowdClient = client;
+  public CrowdPartition(CrowdBackend backend, boolean emulateADMemberOf, boolean includeNested) {
+    m_Backend = backend;
     m_EntryCache = new LRUCacheMap<String, ServerEntry>(300);
+    m_MemberOfCache = new LRUCacheMap<String, List<String>>(300);
+    m_MembersCache = new LRUCacheMap<String, List<String>>(300);
+    m_EntryCache.setExpelHandler(new CacheMapExpelHandler<String, ServerEntry>() {
+      public void expelled(Map.Entry<String, ServerEntry> entry) {
+        evicted(entry.getKey(), entry.getValue());
+      }
+    });
     m_Initialized = new AtomicBoolean(false);
     m_emulateADmemberOf = emulateADMemberOf;
     m_includeNested = includeNested;
@@ -91,6 +165,9 @@ public class CrowdPartition implements Partition {
           .getClass().getSimpleName(), m_Suffix);
       log.info(infoMsg);
 
+      //member values may be returned as range, memberOf only if emulated
+      m_FilterCompiler = new FilterCompiler(m_SchemaManager, m_FilterCacheSize, MEMBER_OID, MEMBEROF_OID);
+
       // Create LDAP DN
       DN crowdDN = new DN(m_Suffix);
       crowdDN.normalize(
@@ -124,7 +201,7 @@ public class CrowdPartition implements Partition {
       objectClass: organizationalUnit
       ou: groups
       */
-      DN groupDn = new DN(CROWD_GROUPS_DN);
+      DN groupDn = new DN(m_GroupsDn);
       ServerEntry groupEntry = new DefaultServerEntry(
           m_SchemaManager,
           groupDn
@@ -141,7 +218,7 @@ public class CrowdPartition implements Partition {
       objectClass: organizationalUnit
       ou: users
       */
-      DN usersDn = new DN(CROWD_USERS_DN);
+      DN usersDn = new DN(m_UsersDn);
       ServerEntry usersEntry = new DefaultServerEntry(
           m_SchemaManager,
           usersDn
@@ -158,9 +235,9 @@ public class CrowdPartition implements Partition {
       m_CrowdOneLevelList = Collections.unmodifiableList(m_CrowdOneLevelList);
 
       //Add to cache
-      m_EntryCache.put(crowdDN.getName(), m_CrowdEntry);
-      m_EntryCache.put(groupDn.getName(), groupEntry);
-      m_EntryCache.put(usersDn.getName(), usersEntry);
+      cacheEntry(crowdDN.getName(), m_CrowdEntry);
+      cacheEntry(groupDn.getName(), groupEntry);
+      cacheEntry(usersDn.getName(), usersEntry);
     }
     log.debug("<== CrowdPartition::init");
   }//initialize
@@ -171,7 +248,7 @@ public class CrowdPartition implements Partition {
 
   public void destroy() throws Exception {
     log.info("destroying partition");
-    m_CrowdClient.shutdown();
+    m_Backend.shutdown();
   }//destroy
 
   public DN getSuffixDn() {
@@ -190,6 +267,8 @@ public class CrowdPartition implements Partition {
       throw new IllegalArgumentException("m_Suffix has to start with dc");
     }
     m_Suffix = suffix;
+    m_GroupsDn = GROUPS_RDN + "," + suffix;
+    m_UsersDn = USERS_RDN + "," + suffix;
   }//setSuffix
 
   public SchemaManager getSchemaManager() {
@@ -213,9 +292,472 @@ public class CrowdPartition implements Partition {
   }//getCacheSize
 
   public void setCacheSize(int cacheSize) {
-    m_EntryCache.setCeiling(cacheSize);
+    synchronized (m_EntryCache) {
+      m_EntryCache.setCeiling(cacheSize);
+    }
+    synchronized (m_MemberOfCache) {
+      m_MemberOfCache.setCeiling(cacheSize);
+    }
+    synchronized (m_MembersCache) {
+      m_MembersCache.setCeiling(cacheSize);
+    }
   }//setCacheSize
 
+  /**
+   * Bounds the entry and member caches by their estimated retained heap,
+   * in addition to the number of entries. Entries heavier than the given
+   * maximum entry weight bypass the caches.
+   * <p/>
+   * Must be set before the caches are used.
+   *
+   * @param maxWeight      the budget in bytes, shared by all caches.
+   * @param maxEntryWeight the maximum weight of a single cached entry in bytes.
+   */
+  public void setCacheWeight(long maxWeight, long maxEntryWeight) {
+    setCacheWeight(new WeightBudget(maxWeight, maxEntryWeight));
+  }//setCacheWeight
+
+  /**
+   * Bounds the entry and member caches by the given budget,
+   * which may be nested into a budget shared with other partitions.
+   * <p/>
+   * Each cache is given its own share of the budget, half of it for the
+   * entries and a quarter for each of the member caches, so that a cache
+   * over its share evicts its own entries and not those of the others.
+   * <p/>
+   * Must be set before the caches are used.
+   *
+   * @param budget the {@link WeightBudget} of this partition.
+   */
+  public void setCacheWeight(WeightBudget budget) {
+    m_WeightBudget = budget;
+    long max = budget.getMaxWeight();
+    long entryMax = budget.getMaxEntryWeight();
+    m_EntryCache.setWeigher(CacheWeighers.ENTRIES, new WeightBudget(budget, max / 2, entryMax));
+    m_MemberOfCache.setWeigher(CacheWeighers.NAMES, new WeightBudget(budget, max / 4, entryMax));
+    m_MembersCache.setWeigher(CacheWeighers.NAMES, new WeightBudget(budget, max / 4, entryMax));
+  }//setCacheWeight
+
+  public long getCacheWeight() {
+    return (m_WeightBudget == null) ? 0 : m_WeightBudget.getWeight();
+  }//getCacheWeight
+
+  public long getCacheMaxWeight() {
+    return (m_WeightBudget == null) ? 0 : m_WeightBudget.getMaxWeight();
+  }//getCacheMaxWeight
+
+  public long getEntryCacheWeight() {
+    synchronized (m_EntryCache) {
+      return m_EntryCache.getWeight();
+    }
+  }//getEntryCacheWeight
+
+  public long getMemberCacheWeight() {
+    long weight;
+    synchronized (m_MembersCache) {
+      weight = m_MembersCache.getWeight();
+    }
+    synchronized (m_MemberOfCache) {
+      return weight + m_MemberOfCache.getWeight();
+    }
+  }//getMemberCacheWeight
+
+  public long getCacheBypassed() {
+    return (m_WeightBudget == null) ? 0 : m_WeightBudget.getBypassed();
+  }//getCacheBypassed
+
+  public int getCachedMemberLists() {
+    int size;
+    synchronized (m_MembersCache) {
+      size = m_MembersCache.size();
+    }
+    synchronized (m_MemberOfCache) {
+      return size + m_MemberOfCache.size();
+    }
+  }//getCachedMemberLists
+
+  public long getColdCacheEntries() {
+    return (m_ColdCache == null) ? 0 : m_ColdCache.size();
+  }//getColdCacheEntries
+
+  /**
+   * Sets the resolver that learns the mail to username mapping
+   * from the user entries loaded by this partition.
+   *
+   * @param resolver the {@link BindResolver}.
+   */
+  public void setBindResolver(BindResolver resolver) {
+    m_BindResolver = resolver;
+  }//setBindResolver
+
+  /**
+   * Adds a cold tier to the entry cache. Entries expelled from the entry cache
+   * are demoted to the given store, and promoted back when accessed.
+   * <p/>
+   * Must be set after the schema manager.
+   *
+   * @param store the {@link OffHeapStore} holding the cold entries.
+   */
+  public void setColdCache(OffHeapStore store) {
+    m_Codec = new EntryCodec(m_SchemaManager);
+    //Note: Entries are only demoted under the lock of the entry cache, which guards the index
+    store.setExpelHandler(new CacheMapExpelHandler<String, byte[]>() {
+      public void expelled(Map.Entry<String, byte[]> entry) {
+        unindexEntry(entry.getKey());
+      }
+    });
+    m_ColdCache = store;
+  }//setColdCache
+
+  public boolean hasColdCache() {
+    return m_ColdCache != null;
+  }//hasColdCache
+
+  /**
+   * Sets the {@link Prefetcher} loading the entries clients are about to read.
+   *
+   * @param prefetcher the prefetcher, or null to disable prefetching.
+   */
+  public void setPrefetcher(Prefetcher prefetcher) {
+    m_Prefetcher = prefetcher;
+  }//setPrefetcher
+
+  /**
+   * Configures the cache of search results.
+   *
+   * @param size the maximum number of cached results.
+   * @param ttl  the time to live of a result in milliseconds, 0 to disable.
+   */
+  public void setQueryCache(int size, long ttl) {
+    m_QueryCache = new QueryCache(size, ttl);
+  }//setQueryCache
+
+  /**
+   * Sets the maximum number of compiled search filters kept for reuse.
+   * Must be called before {@link #initialize()}.
+   *
+   * @param size the maximum number of compiled filters.
+   */
+  public void setFilterCacheSize(int size) {
+    m_FilterCacheSize = size;
+  }//setFilterCacheSize
+
+  public int getCompiledFilters() {
+    return m_FilterCompiler.size();
+  }//getCompiledFilters
+
+  public long getFilterCacheHits() {
+    return m_FilterCompiler.getHits();
+  }//getFilterCacheHits
+
+  public long getFilterCacheMisses() {
+    return m_FilterCompiler.getMisses();
+  }//getFilterCacheMisses
+
+  /**
+   * Sets after how long the sort index is rebuilt from Crowd.
+   * In between, it is kept current with the user events.
+   *
+   * @param ttl the time to live in milliseconds.
+   */
+  public void setSortIndexTTL(long ttl) {
+    m_SortIndexTTL = ttl;
+  }//setSortIndexTTL
+
+  public int getSortIndexSize() {
+    return m_SortIndex.size();
+  }//getSortIndexSize
+
+  public int getMaxMemberValues() {
+    return m_MaxMemberValues;
+  }//getMaxMemberValues
+
+  /**
+   * Sets the maximum number of <tt>member</tt> values returned with a group entry.
+   * Larger groups are returned as AD style range (<tt>member;range=0-n</tt>),
+   * and clients can retrieve further values with ranged requests.
+   *
+   * @param max the maximum number of values.
+   */
+  public void setMaxMemberValues(int max) {
+    m_MaxMemberValues = Math.max(1, max);
+  }//setMaxMemberValues
+
+  public int getMemberPageSize() {
+    return m_MemberPageSize;
+  }//getMemberPageSize
+
+  /**
+   * Sets the number of members requested from Crowd per call.
+   *
+   * @param size the page size.
+   */
+  public void setMemberPageSize(int size) {
+    m_MemberPageSize = Math.max(1, size);
+  }//setMemberPageSize
+
+  /**
+   * Returns the number of entries currently cached.
+   *
+   * @return the number of cached entries.
+   */
+  public int getCachedEntries() {
+    synchronized (m_EntryCache) {
+      return m_EntryCache.size();
+    }
+  }//getCachedEntries
+
+  private ServerEntry getCachedEntry(String dn) {
+    ServerEntry entry;
+    synchronized (m_EntryCache) {
+      entry = m_EntryCache.get(dn);
+    }
+    boolean cold = false;
+    if (entry == null && m_ColdCache != null) {
+      entry = promote(dn);
+      cold = (entry != null);
+    }
+    if (entry != null) {
+      AccessLog.stats().cacheHit();
+      if (m_Prefetcher != null) {
+        m_Prefetcher.used(dn);
+      }
+      if (LdapEvents.CACHE_HIT.isEnabled()) {
+        LdapEvents.CACHE_HIT.instant(m_ID, dn, (cold) ? "cold" : "hot");
+      }
+    } else {
+      AccessLog.stats().cacheMiss();
+      if (LdapEvents.CACHE_MISS.isEnabled()) {
+        LdapEvents.CACHE_MISS.instant(m_ID, dn);
+      }
+    }
+    return entry;
+  }//getCachedEntry
+
+  /**
+   * Called when an entry is expelled from the entry cache;
+   * demotes the entry to the cold cache, if any.
+   */
+  private void evicted(String dn, ServerEntry entry) {
+    if (m_ColdCache != null) {
+      if (!demote(dn, entry)) {
+        unindexEntry(dn);
+      }
+    } else {
+      unindexEntry(dn);
+      if (m_Prefetcher != null) {
+        m_Prefetcher.evicted(dn);
+      }
+    }
+    if (LdapEvents.CACHE_EVICT.isEnabled()) {
+      LdapEvents.CACHE_EVICT.instant(m_ID, dn, m_ColdCache != null);
+    }
+  }//evicted
+
+  private boolean demote(String dn, ServerEntry entry) {
+    try {
+      return m_ColdCache.put(dn, m_Codec.encode(entry));
+    } catch (Exception ex) {
+      log.debug("demote()", ex);
+      return false;
+    }
+  }//demote
+
+  //Note: Moved between the tiers under the lock of the entry cache, as the tiers are
+  //invalidated, so that an invalidation cannot miss an entry and be undone by the promotion
+  private ServerEntry promote(String dn) {
+    synchronized (m_EntryCache) {
+      byte[] data = m_ColdCache.remove(dn);
+      if (data == null) {
+        return null;
+      }
+      try {
+        ServerEntry entry = m_Codec.decode(data);
+        cacheEntry(dn, entry);
+        return entry;
+      } catch (Exception ex) {
+        log.debug("promote()", ex);
+        unindexEntry(dn);
+        return null;
+      }
+    }
+  }//promote
+
+  /**
+   * Tests if an entry is cached, without counting a cache hit or promoting the entry.
+   *
+   * @param dn the DN of the entry.
+   * @return true if cached, false otherwise.
+   */
+  boolean isCached(String dn) {
+    synchronized (m_EntryCache) {
+      if (m_EntryCache.containsKey(dn)) {
+        return true;
+      }
+    }
+    return m_ColdCache != null && m_ColdCache.get(dn) != null;
+  }//isCached
+
+  private void cacheEntry(String dn, ServerEntry entry) {
+    m_FilterCompiler.normalize(entry);
+    synchronized (m_EntryCache) {
+      m_EntryCache.put(dn, entry);
+      indexEntry(dn, entry);
+    }
+  }//cacheEntry
+
+  /**
+   * Caches an entry obtained from Crowd, unless entries were invalidated
+   * since the given generation; otherwise an entry read before a change
+   * could be cached after its invalidation, and stay until the next change.
+   *
+   * @param dn         the DN of the entry.
+   * @param entry      the entry.
+   * @param generation the generation obtained before asking Crowd, see {@link #getEntryGeneration()}.
+   * @return true if cached, false otherwise.
+   */
+  private boolean cacheEntry(String dn, ServerEntry entry, long generation) {
+    m_FilterCompiler.normalize(entry);
+    synchronized (m_EntryCache) {
+      if (m_EntryGeneration.get() != generation) {
+        return false;
+      }
+      m_EntryCache.put(dn, entry);
+      indexEntry(dn, entry);
+      return true;
+    }
+  }//cacheEntry
+
+  //Note: Called under the lock of the entry cache
+  private void indexEntry(String dn, ServerEntry entry) {
+    //e.g. too heavy to be cached
+    if (!m_EntryCache.containsKey(dn)) {
+      unindexEntry(dn);
+      return;
+    }
+    String name = getEntryName(entry);
+    if (name == null || name.equals(m_EntryNames.get(dn))) {
+      return;
+    }
+    unindexEntry(dn);
+    Set<String> dns = m_EntryDns.get(name);
+    if (dns == null) {
+      dns = new HashSet<String>();
+      m_EntryDns.put(name, dns);
+    }
+    dns.add(dn);
+    m_EntryNames.put(dn, name);
+  }//indexEntry
+
+  //Note: Called under the lock of the entry cache
+  private void unindexEntry(String dn) {
+    String name = m_EntryNames.remove(dn);
+    if (name != null) {
+      Set<String> dns = m_EntryDns.get(name);
+      dns.remove(dn);
+      if (dns.isEmpty()) {
+        m_EntryDns.remove(name);
+      }
+    }
+  }//unindexEntry
+
+  /**
+   * Returns the name a user or group entry is indexed by,
+   * i.e. its lower case user or group name, prefixed by its kind.
+   *
+   * @param entry the entry.
+   * @return the name, or null if neither a user nor a group entry.
+   */
+  private static String getEntryName(ServerEntry entry) {
+    try {
+      if (entry.contains(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.INET_ORG_PERSON_OC)
+          && entry.get(SchemaConstants.UID_AT) != null) {
+        return getEntryName(SchemaConstants.INET_ORG_PERSON_OC, entry.get(SchemaConstants.UID_AT).getString());
+      } else if (entry.contains(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC)
+          && entry.get(SchemaConstants.CN_AT) != null) {
+        return getEntryName(SchemaConstants.GROUP_OF_NAMES_OC, entry.get(SchemaConstants.CN_AT).getString());
+      }
+    } catch (Exception ex) {
+      log.debug("getEntryName()", ex);
+    }
+    return null;
+  }//getEntryName
+
+  private static String getEntryName(String objectClass, String name) {
+    return objectClass + ':' + name.toLowerCase(Locale.ENGLISH);
+  }//getEntryName
+
+  /**
+   * Returns the invalidation generation of the entry cache,
+   * to be obtained before asking Crowd for an entry to be cached.
+   *
+   * @return the generation.
+   */
+  long getEntryGeneration() {
+    return m_EntryGeneration.get();
+  }//getEntryGeneration
+
+  private static List<String> getCachedNames(LRUCacheMap<String, List<String>> cache, String key) {
+    synchronized (cache) {
+      return cache.get(key);
+    }
+  }//getCachedNames
+
+  //Note: Skipped if the names were invalidated since the given generation, as for entries
+  private static void cacheNames(LRUCacheMap<String, List<String>> cache, AtomicLong generation,
+                                 long expected, String key, List<String> names) {
+    synchronized (cache) {
+      if (generation.get() == expected) {
+        cache.put(key, names);
+      }
+    }
+  }//cacheNames
+
+  /**
+   * Returns the DN of the user entry with the given name,
+   * as used in search results.
+   *
+   * @param user the user name.
+   * @return the DN of the user entry.
+   * @throws Exception if the DN cannot be created.
+   */
+  public DN getUserDn(String user) throws Exception {
+    return new DN(String.format("dn=%s,%s", user, m_UsersDn));
+  }//getUserDn
+
+  /**
+   * Returns the DN of the group entry with the given name,
+   * as used in search results.
+   *
+   * @param group the group name.
+   * @return the DN of the group entry.
+   * @throws Exception if the DN cannot be created.
+   */
+  public DN getGroupDn(String group) throws Exception {
+    return new DN(String.format("dn=%s,%s", group, m_GroupsDn));
+  }//getGroupDn
+
+  /**
+   * Returns the names of all groups.
+   *
+   * @return the list of group names.
+   * @throws Exception if the names cannot be obtained from Crowd.
+   */
+  public List<String> getGroupNames() throws Exception {
+    TermRestriction<String> groupName = new TermRestriction<String>(GroupTermKeys.NAME, MatchMode.CONTAINS, "");
+    return m_Backend.searchGroupNames(groupName, 0, Integer.MAX_VALUE);
+  }//getGroupNames
+
+  /**
+   * Returns the names of all users.
+   *
+   * @return the list of user names.
+   * @throws Exception if the names cannot be obtained from Crowd.
+   */
+  public List<String> getUserNames() throws Exception {
+    return m_Backend.searchUserNames(NullRestrictionImpl.INSTANCE, 0, Integer.MAX_VALUE);
+  }//getUserNames
+
 
   private boolean isCrowd(DN dn) {
     return m_CrowdEntry.getDn().equals(dn);
@@ -230,7 +772,20 @@ public class CrowdPartition implements Partition {
   }//isCrowdUsers
 
 
-  public boolean hasEntry(EntryOperationContext ctx) throws UserNotFoundException, InvalidAuthenticationException, ApplicationPermissionException, OperationFailedException {
+  public boolean hasEntry(EntryOperationContext ctx) throws UserNotFoundException, InvalidAuthenticationException, ApplicationPermissionException, OperationFailedException, LdapServiceUnavailableException {
+    Object event = LdapEvents.HAS_ENTRY.begin();
+    boolean found = false;
+    try {
+      found = containsEntry(ctx);
+      return found;
+    } finally {
+      if (event != null) {
+        LdapEvents.HAS_ENTRY.commit(event, m_ID, ctx.getDn().getName(), found);
+      }
+    }
+  }//hasEntry
+
+  private boolean containsEntry(EntryOperationContext ctx) throws LdapServiceUnavailableException {
     DN dn = ctx.getDn();
     /*
     if (log.isDebugEnabled()) {
@@ -247,24 +802,24 @@ public class CrowdPartition implements Partition {
       }
     }
     */
-    if (m_EntryCache.containsKey(ctx.getDn())) {
+    if (getCachedEntry(dn.getName()) != null) {
       return true;
     } else {
       int dnSize = dn.size();
 
       if (dnSize == 1) {
         if (isCrowd(dn)) {
-          m_EntryCache.put(dn.getName(), m_CrowdEntry);
+          cacheEntry(dn.getName(), m_CrowdEntry);
           return true;
         } else {
           return false;
         }
       } else if (dnSize == 2) {
         if (isCrowdGroups(dn)) {
-          m_EntryCache.put(dn.getName(), m_CrowdGroupsEntry);
+          cacheEntry(dn.getName(), m_CrowdGroupsEntry);
           return true;
         } else if (isCrowdUsers(dn)) {
-          m_EntryCache.put(dn.getName(), m_CrowdUsersEntry);
+          cacheEntry(dn.getName(), m_CrowdUsersEntry);
           return true;
         } else {
           return false;
@@ -276,120 +831,1035 @@ public class CrowdPartition implements Partition {
         } catch (Exception ex) {
           log.error("hasEntry()", ex);
         }
-        log.debug("Prefix=" + prefix);
+        if (log.isDebugEnabled()) {
+          log.debug("Prefix=" + prefix);
+        }
         if (isCrowdUsers(prefix)) {
           RDN rdn = dn.getRdn(2);
           String user = rdn.getNormValue();
-          log.debug("user=" + user);
-          ServerEntry userEntry = createUserEntry(dn);
+          if (log.isDebugEnabled()) {
+            log.debug("user=" + user);
+          }
+          ServerEntry userEntry = createUserEntry(dn, AttributeProjection.NONE);
           return (userEntry != null);
         } else if(isCrowdGroups(prefix)) {
           RDN rdn = dn.getRdn(2);
           String group = rdn.getNormValue();
-          log.debug("group=" + group);
-          ServerEntry groupEntry = createGroupEntry(dn);
+          if (log.isDebugEnabled()) {
+            log.debug("group=" + group);
+          }
+          ServerEntry groupEntry = createGroupEntry(dn, AttributeProjection.NONE);
           return (groupEntry != null);        
         } else {
-          log.debug("Prefix is neither users nor groups");
-          log.debug("Crowd Users = " + m_CrowdUsersEntry.getDn());
-          log.debug("Crowd Groups = " + m_CrowdGroupsEntry.getDn().toString());
+          if (log.isDebugEnabled()) {
+            log.debug("Prefix is neither users nor groups");
+            log.debug("Crowd Users = " + m_CrowdUsersEntry.getDn());
+            log.debug("Crowd Groups = " + m_CrowdGroupsEntry.getDn());
+          }
           return false;
         }
       }
 
     }
     return false;
-  }//hasEntry
+  }//containsEntry
+
+  public ServerEntry createUserEntry(DN dn) throws LdapServiceUnavailableException {
+    return createUserEntry(dn, AttributeProjection.ALL);
+  }//createUserEntry
 
-  public ServerEntry createUserEntry(DN dn) {
-    ServerEntry userEntry = m_EntryCache.get(dn.getName());
+  /**
+   * Returns the user entry with the given DN, including the
+   * <tt>memberOf</tt> attribute only if the projection needs it.
+   *
+   * @param dn         the DN of the user entry.
+   * @param projection the attributes needed.
+   * @return the user entry, or null if the user does not exist.
+   * @throws LdapServiceUnavailableException if Crowd is busy.
+   */
+  ServerEntry createUserEntry(DN dn, AttributeProjection projection) throws LdapServiceUnavailableException {
+    ServerEntry userEntry = getCachedEntry(dn.getName());
     if (userEntry == null) {
+      Object event = LdapEvents.ENTRY_BUILD.begin();
       try {
         //1. Obtain from Crowd
         RDN rdn = dn.getRdn(2);
         String user = rdn.getNormValue();
 
-        User u = m_CrowdClient.getUser(user);
+        long generation = m_EntryGeneration.get();
+        User u = m_Backend.getUser(user);
         if (u == null) {
           return null;
         }
         
         //2. Create entry
-        userEntry = new DefaultServerEntry(
-            m_SchemaManager,
-            dn
-        );
-        userEntry.put(SchemaConstants.OBJECT_CLASS, SchemaConstants.INET_ORG_PERSON_OC);
-        userEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC);
-        userEntry.put(SchemaConstants.CN_AT, u.getDisplayName());
-        userEntry.put(SchemaConstants.UID_AT,user);
-        userEntry.put("mail", u.getEmailAddress());
-        userEntry.put("givenname", u.getFirstName());
-        userEntry.put(SchemaConstants.SN_AT, u.getLastName());
-        userEntry.put(SchemaConstants.OU_AT, "users");
-
-		//Note: Emulate AD memberof attribute 
-        if(m_emulateADmemberOf) {
-	        //groups
-    	    List<String> groups = m_CrowdClient.getNamesOfGroupsForUser(user, 0, Integer.MAX_VALUE); 
-        	for (String g : groups) {
-          		DN mdn = new DN(String.format("cn=%s,%s", g, CROWD_GROUPS_DN));
-          		userEntry.add("memberof", mdn.getName());
-        	}
-        	if(m_includeNested) {
-        		//groups
-    	    	groups = m_CrowdClient.getNamesOfGroupsForNestedUser(user, 0, Integer.MAX_VALUE); 
-        		for (String g : groups) {
-          			DN mdn = new DN(String.format("cn=%s,%s", g, CROWD_GROUPS_DN));
-          			userEntry.add("memberof", mdn.getName());
-        		}
-        	}
-        }    
-            
-
-        log.debug(userEntry.toString());
-
-        m_EntryCache.put(dn.getName(), userEntry);
+        userEntry = buildUserEntry(dn, user, u, generation);
+        if (m_Prefetcher != null) {
+          m_Prefetcher.userLoaded(user);
+        }
+      } catch (LdapServiceUnavailableException ex) {
+        throw ex;
       } catch (Exception ex) {
         log.debug("createUserEntry()", ex);
+        userEntry = null;
+        return null;
+      } finally {
+        if (event != null) {
+          LdapEvents.ENTRY_BUILD.commit(event, m_ID, dn.getName(), "user", userEntry != null);
+        }
       }
     }
-    return userEntry;
+    return addMemberOf(userEntry, projection);
   }//createUserEntry
 
-  public ServerEntry createGroupEntry(DN dn) {
-    ServerEntry groupEntry = m_EntryCache.get(dn.getName());
+  /**
+   * Creates and caches the entry of a user obtained from Crowd.
+   *
+   * @param dn         the DN of the user entry.
+   * @param user       the user name, as in the DN.
+   * @param u          the user.
+   * @param generation the entry generation obtained before asking Crowd.
+   * @return the user entry, also if not cached because invalidated meanwhile.
+   * @throws Exception if the entry cannot be created.
+   */
+  private ServerEntry buildUserEntry(DN dn, String user, User u, long generation) throws Exception {
+    ServerEntry userEntry = new DefaultServerEntry(
+        m_SchemaManager,
+        dn
+    );
+    userEntry.put(SchemaConstants.OBJECT_CLASS, SchemaConstants.INET_ORG_PERSON_OC);
+    userEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC);
+    userEntry.put(SchemaConstants.CN_AT, u.getDisplayName());
+    userEntry.put(SchemaConstants.UID_AT,user);
+    userEntry.put("mail", u.getEmailAddress());
+    userEntry.put("givenname", u.getFirstName());
+    userEntry.put(SchemaConstants.SN_AT, u.getLastName());
+    userEntry.put(SchemaConstants.OU_AT, "users");
+
+    if (m_BindResolver != null) {
+      m_BindResolver.addMailMapping(u.getEmailAddress(), u.getName());
+    }
+    m_SortIndex.put(u);
+
+    if (log.isDebugEnabled()) {
+      log.debug(userEntry.toString());
+    }
+
+    cacheEntry(dn.getName(), userEntry, generation);
+    return userEntry;
+  }//buildUserEntry
+
+  /**
+   * Caches the entry of a user authenticated by Crowd, built from the
+   * user returned by the authentication instead of asking Crowd again.
+   *
+   * @param dn         the DN of the user entry.
+   * @param u          the authenticated user.
+   * @param generation the entry generation obtained before the authentication.
+   * @return the user entry, or null if the DN is not the DN of the user's entry,
+   *         or if entries were invalidated since the authentication.
+   * @throws Exception if the entry cannot be created.
+   */
+  ServerEntry cacheUserEntry(DN dn, User u, long generation) throws Exception {
+    String user = getUserName(dn);
+    //e.g. bound by mail address
+    if (user == null || !user.equalsIgnoreCase(u.getName())) {
+      return null;
+    }
+    ServerEntry userEntry = buildUserEntry(dn, user, u, generation);
+    if (m_Prefetcher != null) {
+      m_Prefetcher.userLoaded(user);
+    }
+    return (m_EntryGeneration.get() == generation) ? userEntry : null;
+  }//cacheUserEntry
+
+  /**
+   * Caches the entries of a page of all users, obtained with one search.
+   * The <tt>memberOf</tt> attribute is loaded when read.
+   *
+   * @param start the index of the first user.
+   * @param max   the maximum number of users.
+   * @return the number of users in the page.
+   * @throws Exception if the users cannot be obtained from Crowd.
+   */
+  int cacheUserEntries(int start, int max) throws Exception {
+    long generation = m_EntryGeneration.get();
+    List<User> users = m_Backend.searchUsers(NullRestrictionImpl.INSTANCE, start, max);
+    cacheUserEntries(users, generation);
+    return users.size();
+  }//cacheUserEntries
+
+  /**
+   * Caches the entries of the given users, obtained with one search.
+   * The <tt>memberOf</tt> attribute is loaded when read.
+   *
+   * @param names the user names.
+   * @return the number of users found.
+   * @throws Exception if the users cannot be obtained from Crowd.
+   */
+  int cacheUserEntries(List<String> names) throws Exception {
+    long generation = m_EntryGeneration.get();
+    List<User> users = m_Backend.getUsers(names);
+    cacheUserEntries(users, generation);
+    return users.size();
+  }//cacheUserEntries
+
+  private void cacheUserEntries(List<User> users, long generation) throws Exception {
+    for (User u : users) {
+      buildUserEntry(getUserDn(u.getName()), u.getName(), u, generation);
+    }
+  }//cacheUserEntries
+
+  /**
+   * Returns the user name of a user entry DN.
+   *
+   * @param dn the DN.
+   * @return the user name, or null if the DN is not the DN of a user entry.
+   */
+  String getUserName(DN dn) {
+    return getMemberName(dn.getName(), m_CrowdUsersEntry);
+  }//getUserName
+
+  /**
+   * Returns the group name of a group DN, e.g. a value of <tt>memberOf</tt>.
+   *
+   * @param dn the DN.
+   * @return the group name, or null if the DN is not the DN of a group entry.
+   */
+  String getGroupName(String dn) {
+    return getMemberName(dn, m_CrowdGroupsEntry);
+  }//getGroupName
+
+  /**
+   * Creates a user entry holding only the attributes known from the user name.
+   * Used for searches that need no other attributes; such entries are not cached.
+   *
+   * @param dn   the DN of the user entry.
+   * @param user the user name.
+   * @return the user entry.
+   */
+  private ServerEntry createUserStub(DN dn, String user) throws Exception {
+    ServerEntry userEntry = new DefaultServerEntry(m_SchemaManager, dn);
+    userEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.TOP_OC, SchemaConstants.ORGANIZATIONAL_PERSON_OC, SchemaConstants.PERSON_OC, SchemaConstants.INET_ORG_PERSON_OC);
+    userEntry.put(SchemaConstants.UID_AT, user);
+    userEntry.put(SchemaConstants.OU_AT, "users");
+    return userEntry;
+  }//createUserStub
+
+  /**
+   * Returns a user or group entry holding only the attributes known from the name,
+   * e.g. to report the removal of the entry.
+   *
+   * @param dn   the DN of the entry.
+   * @param name the user or group name.
+   * @param user true for a user, false for a group.
+   * @return the entry.
+   * @throws Exception if the entry cannot be created.
+   */
+  ServerEntry createStub(DN dn, String name, boolean user) throws Exception {
+    return user ? createUserStub(dn, name) : createGroupStub(dn, name);
+  }//createStub
+
+  //Note: Emulate AD memberof attribute
+  private ServerEntry addMemberOf(ServerEntry userEntry, AttributeProjection projection)
+      throws LdapServiceUnavailableException {
+    if (!m_emulateADmemberOf || !projection.includes(MEMBEROF_OID)) {
+      return userEntry;
+    }
+    try {
+      List<String> groups = getMemberOf(userEntry.get(SchemaConstants.UID_AT).getString());
+      ServerEntry entry = (ServerEntry) userEntry.clone();
+      for (String g : groups) {
+        entry.add("memberof", g);
+      }
+      return entry;
+    } catch (LdapServiceUnavailableException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      log.debug("addMemberOf()", ex);
+      return userEntry;
+    }
+  }//addMemberOf
+
+  /**
+   * Returns the DNs of the groups the given user is member of.
+   *
+   * @param user the user name.
+   * @return the list of group DNs.
+   * @throws Exception if the groups cannot be obtained from Crowd.
+   */
+  List<String> getMemberOf(final String user) throws Exception {
+    List<String> memberOf = getCachedNames(m_MemberOfCache, user);
+    if (memberOf != null) {
+      return memberOf;
+    }
+    //Note: Concurrent readers of the same user, e.g. a client and the prefetcher, share one load
+    FutureTask<List<String>> load = new FutureTask<List<String>>(new Callable<List<String>>() {
+      public List<String> call() throws Exception {
+        return loadMemberOf(user);
+      }
+    });
+    FutureTask<List<String>> running = m_MemberOfLoads.putIfAbsent(user, load);
+    if (running == null) {
+      try {
+        load.run();
+      } finally {
+        m_MemberOfLoads.remove(user, load);
+      }
+      running = load;
+    }
+    try {
+      return running.get();
+    } catch (ExecutionException ex) {
+      Throwable t = ex.getCause();
+      if (t instanceof Exception) {
+        throw (Exception) t;
+      }
+      throw ex;
+    }
+  }//getMemberOf
+
+  private List<String> loadMemberOf(String user) throws Exception {
+    long generation = m_MemberOfGeneration.get();
+    List<String> memberOf = new ArrayList<String>();
+    //groups
+    List<String> groups = m_Backend.getNamesOfGroupsForUser(user, 0, Integer.MAX_VALUE);
+    for (String g : groups) {
+      DN mdn = new DN(String.format("cn=%s,%s", g, m_GroupsDn));
+      memberOf.add(mdn.getName());
+    }
+    if (m_includeNested) {
+      //groups
+      groups = m_Backend.getNamesOfGroupsForNestedUser(user, 0, Integer.MAX_VALUE);
+      for (String g : groups) {
+        DN mdn = new DN(String.format("cn=%s,%s", g, m_GroupsDn));
+        if (!memberOf.contains(mdn.getName())) {
+          memberOf.add(mdn.getName());
+        }
+      }
+    }
+    memberOf = Collections.unmodifiableList(memberOf);
+    cacheNames(m_MemberOfCache, m_MemberOfGeneration, generation, user, memberOf);
+    return memberOf;
+  }//loadMemberOf
+
+  public ServerEntry createGroupEntry(DN dn) throws LdapServiceUnavailableException {
+    return createGroupEntry(dn, AttributeProjection.ALL);
+  }//createGroupEntry
+
+  /**
+   * Returns the group entry with the given DN, including the
+   * <tt>member</tt> attribute only if the projection needs it.
+   *
+   * @param dn         the DN of the group entry.
+   * @param projection the attributes needed.
+   * @return the group entry, or null if the group does not exist.
+   * @throws LdapServiceUnavailableException if Crowd is busy.
+   */
+  ServerEntry createGroupEntry(DN dn, AttributeProjection projection) throws LdapServiceUnavailableException {
+    ServerEntry groupEntry = getCachedEntry(dn.getName());
     if (groupEntry == null) {
+      Object event = LdapEvents.ENTRY_BUILD.begin();
       try {
         //1. Obtain from crowd
         RDN rdn = dn.getRdn(2);
         String group = rdn.getNormValue();
 
-        Group g = m_CrowdClient.getGroup(group);
-        List<String> users = m_CrowdClient.getNamesOfUsersOfGroup(group, 0, Integer.MAX_VALUE);
+        long generation = m_EntryGeneration.get();
+        Group g = m_Backend.getGroup(group);
 
-        groupEntry = new DefaultServerEntry(
-            m_SchemaManager,
-            dn
-        );
-        groupEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC);
-        groupEntry.put(SchemaConstants.CN_AT, g.getName());
-        groupEntry.put("description", g.getDescription());
-
-        for (String u : users) {
-          DN mdn = new DN(String.format("dn=%s,%s", u, CROWD_USERS_DN));
-          groupEntry.add(SchemaConstants.MEMBER_AT, mdn.getName());
-        }
-        m_EntryCache.put(dn.getName(), groupEntry);
+        groupEntry = buildGroupEntry(dn, g, generation);
+      } catch (LdapServiceUnavailableException ex) {
+        throw ex;
       } catch (Exception ex) {
         log.debug("createGroupEntry()", ex);
+        groupEntry = null;
+        return null;
+      } finally {
+        if (event != null) {
+          LdapEvents.ENTRY_BUILD.commit(event, m_ID, dn.getName(), "group", groupEntry != null);
+        }
       }
     }
+    return addMembers(groupEntry, projection);
+  }//createGroupEntry
+
+  /**
+   * Creates and caches the entry of a group obtained from Crowd.
+   *
+   * @param dn         the DN of the group entry.
+   * @param g          the group.
+   * @param generation the entry generation obtained before asking Crowd.
+   * @return the group entry, also if not cached because invalidated meanwhile.
+   * @throws Exception if the entry cannot be created.
+   */
+  private ServerEntry buildGroupEntry(DN dn, Group g, long generation) throws Exception {
+    ServerEntry groupEntry = new DefaultServerEntry(
+        m_SchemaManager,
+        dn
+    );
+    groupEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC);
+    groupEntry.put(SchemaConstants.CN_AT, g.getName());
+    groupEntry.put("description", g.getDescription());
+
+    cacheEntry(dn.getName(), groupEntry, generation);
     return groupEntry;
-  }//createUserEntry
+  }//buildGroupEntry
+
+  /**
+   * Creates a group entry holding only the attributes known from the group name.
+   * Used for searches that need no other attributes; such entries are not cached.
+   *
+   * @param dn    the DN of the group entry.
+   * @param group the group name.
+   * @return the group entry.
+   */
+  private ServerEntry createGroupStub(DN dn, String group) throws Exception {
+    ServerEntry groupEntry = new DefaultServerEntry(m_SchemaManager, dn);
+    groupEntry.put(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC);
+    groupEntry.put(SchemaConstants.CN_AT, group);
+    return groupEntry;
+  }//createGroupStub
+
+  private ServerEntry addMembers(ServerEntry groupEntry, AttributeProjection projection)
+      throws LdapServiceUnavailableException {
+    if (!projection.includes(MEMBER_OID)) {
+      return groupEntry;
+    }
+    try {
+      int[] range = projection.getRange(MEMBER_OID);
+      int low = (range == null) ? 0 : range[0];
+      int high = (range == null) ? Integer.MAX_VALUE : range[1];
+      int max = (int) Math.min((long) high - low + 1, m_MaxMemberValues);
+
+      //fetch one more to know if the range is complete
+      List<String> users = getGroupMemberNames(groupEntry.get(SchemaConstants.CN_AT).getString(), low, max + 1);
+      boolean more = users.size() > max;
+      if (more) {
+        users = users.subList(0, max);
+      }
+      ServerEntry entry = (ServerEntry) groupEntry.clone();
+      if (range == null && !more) {
+        for (String u : users) {
+          entry.add(SchemaConstants.MEMBER_AT, getUserDn(u).getName());
+        }
+      } else {
+        String end = more ? Integer.toString(low + users.size() - 1) : "*";
+        //AD style range option, e.g. member;range=0-1499
+        EntryAttribute attr = new DefaultServerAttribute(
+            MEMBER_RANGE_ID + low + "-" + end,
+            m_SchemaManager.lookupAttributeTypeRegistry(SchemaConstants.MEMBER_AT)
+        );
+        for (String u : users) {
+          attr.add(getUserDn(u).getName());
+        }
+        entry.put(attr);
+      }
+      return entry;
+    } catch (LdapServiceUnavailableException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      log.debug("addMembers()", ex);
+      return groupEntry;
+    }
+  }//addMembers
+
+  /**
+   * Returns the names of the users that are members of the given group.
+   *
+   * @param group the group name.
+   * @return the list of user names.
+   * @throws Exception if the members cannot be obtained from Crowd.
+   */
+  List<String> getGroupMemberNames(String group) throws Exception {
+    List<String> users = getCachedNames(m_MembersCache, group);
+    if (users == null) {
+      long generation = m_MembersGeneration.get();
+      users = new ArrayList<String>();
+      List<String> page;
+      do {
+        page = m_Backend.getNamesOfUsersOfGroup(group, users.size(), m_MemberPageSize);
+        users.addAll(page);
+      } while (page.size() == m_MemberPageSize);
+      users = Collections.unmodifiableList(users);
+      cacheNames(m_MembersCache, m_MembersGeneration, generation, group, users);
+    }
+    return users;
+  }//getGroupMemberNames
+
+  /**
+   * Returns a range of the names of the users that are members of the given group.
+   * <p/>
+   * Served from the cache if all members are cached, otherwise only the requested
+   * range is fetched from Crowd, in pages. A first range holding all members is cached.
+   *
+   * @param group the group name.
+   * @param start the index of the first member.
+   * @param max   the maximum number of members.
+   * @return the list of user names.
+   * @throws Exception if the members cannot be obtained from Crowd.
+   */
+  List<String> getGroupMemberNames(String group, int start, int max) throws Exception {
+    List<String> users = getCachedNames(m_MembersCache, group);
+    if (users != null) {
+      int from = Math.min(start, users.size());
+      return users.subList(from, (int) Math.min((long) from + max, users.size()));
+    }
+    long generation = m_MembersGeneration.get();
+    users = new ArrayList<String>();
+    List<String> page;
+    do {
+      int size = Math.min(m_MemberPageSize, max - users.size());
+      page = m_Backend.getNamesOfUsersOfGroup(group, start + users.size(), size);
+      users.addAll(page);
+      if (page.size() < size) {
+        //end of the membership reached
+        if (start == 0) {
+          cacheNames(m_MembersCache, m_MembersGeneration, generation, group, Collections.unmodifiableList(users));
+        }
+        break;
+      }
+    } while (users.size() < max);
+    return users;
+  }//getGroupMemberNames
+
+  /**
+   * Answers a compare on the membership attributes without building the
+   * group entry, using the cached memberships or Crowd's membership checks.
+   *
+   * @param dn    the normalized DN of the entry.
+   * @param oid   the attribute of the compare.
+   * @param value the value of the compare.
+   * @return the result of the compare, or null if it is not a membership compare.
+   * @throws Exception if the membership cannot be checked.
+   */
+  Boolean compareMembership(DN dn, String oid, String value) throws Exception {
+    if (dn.size() != 3) {
+      return null;
+    }
+    String id = m_SchemaManager.lookupAttributeTypeRegistry(oid).getOid();
+    DN prefix = getContainer(dn);
+    String name = dn.getRdn(2).getNormValue();
+    if (MEMBER_OID.equals(id) && isCrowdGroups(prefix)) {
+      String user = getMemberName(value, m_CrowdUsersEntry);
+      return user != null && isDirectMember(user, name);
+    } else if (MEMBEROF_OID.equals(id) && m_emulateADmemberOf && isCrowdUsers(prefix)) {
+      String group = getMemberName(value, m_CrowdGroupsEntry);
+      return group != null && isMemberOf(name, group);
+    }
+    return null;
+  }//compareMembership
+
+  /**
+   * Tests if the user is a direct member of the group, i.e. if the
+   * group's <tt>member</tt> attribute holds the user.
+   *
+   * @param user  the user name.
+   * @param group the group name.
+   * @return true if member, false otherwise.
+   * @throws Exception if the membership cannot be checked.
+   */
+  boolean isDirectMember(String user, String group) throws Exception {
+    List<String> users = getCachedNames(m_MembersCache, group);
+    if (users != null) {
+      return containsIgnoreCase(users, user);
+    }
+    if (!m_includeNested) {
+      List<String> memberOf = getCachedNames(m_MemberOfCache, user);
+      if (memberOf != null) {
+        return containsIgnoreCase(memberOf, String.format("cn=%s,%s", group, m_GroupsDn));
+      }
+    }
+    return m_Backend.isUserDirectGroupMember(user, group);
+  }//isDirectMember
+
+  /**
+   * Tests if the user's <tt>memberOf</tt> attribute holds the group.
+   *
+   * @param user  the user name.
+   * @param group the group name.
+   * @return true if member, false otherwise.
+   * @throws Exception if the membership cannot be checked.
+   */
+  boolean isMemberOf(String user, String group) throws Exception {
+    List<String> memberOf = getCachedNames(m_MemberOfCache, user);
+    if (memberOf != null) {
+      return containsIgnoreCase(memberOf, String.format("cn=%s,%s", group, m_GroupsDn));
+    }
+    if (isDirectMember(user, group)) {
+      return true;
+    }
+    return m_includeNested && m_Backend.isUserNestedGroupMember(user, group);
+  }//isMemberOf
+
+  private static boolean containsIgnoreCase(Collection<String> list, String str) {
+    for (String s : list) {
+      if (s.equalsIgnoreCase(str)) {
+        return true;
+      }
+    }
+    return false;
+  }//containsIgnoreCase
+
+  private DN getContainer(DN dn) {
+    DN prefix = dn.getPrefix(2);
+    try {
+      prefix.normalize(m_SchemaManager.getNormalizerMapping());
+    } catch (Exception ex) {
+      log.error("getContainer()", ex);
+    }
+    return prefix;
+  }//getContainer
+
+  /**
+   * Returns the name of the user or group referenced by a DN valued attribute.
+   *
+   * @param value     the DN.
+   * @param container the entry containing the referenced entries.
+   * @return the name, or null if the DN does not reference an entry of the container.
+   */
+  private String getMemberName(String value, ServerEntry container) {
+    try {
+      DN dn = new DN(value);
+      //values of filters are normalized, values of compares may not be
+      if (dn.size() == 3 && getContainer(dn).getNormName().equals(
+          getContainer(container.getDn()).getNormName())) {
+        return dn.getRdn(2).getNormValue();
+      }
+    } catch (Exception ex) {
+      log.debug("getMemberName()", ex);
+    }
+    return null;
+  }//getMemberName
+
+  /**
+   * Answers searches for the groups of a user, i.e. filters with an equality on
+   * <tt>member</tt>, optionally together with an equality on <tt>cn</tt>.
+   * Other terms of the filter are evaluated on the group entries.
+   *
+   * @param ctx the search operation context.
+   * @return the matching group entries, or null if the filter is not a membership filter.
+   * @throws Exception if the memberships cannot be obtained.
+   */
+  private List<ServerEntry> findGroupsOfMember(SearchOperationContext ctx) throws Exception {
+    Map<String, String> terms = new HashMap<String, String>();
+    collectEqualityTerms(ctx.getFilter(), terms);
+    String member = terms.get(MEMBER_OID);
+    if (member == null) {
+      return null;
+    }
+    List<ServerEntry> l = new ArrayList<ServerEntry>();
+    String user = getMemberName(member, m_CrowdUsersEntry);
+    if (user == null) {
+      return l;
+    }
+    List<String> groups;
+    String cn = terms.get(CN_OID);
+    if (cn != null) {
+      //the value of the filter is normalized, the DN of the result has the name as in Crowd
+      String group = isDirectMember(user, cn) ? getGroupName(cn, user) : null;
+      groups = (group != null) ? Collections.singletonList(group) : Collections.<String>emptyList();
+    } else {
+      String key = QueryCache.key(ctx);
+      long generation = m_QueryCache.generation(QueryCache.Kind.MEMBERSHIPS);
+      groups = m_QueryCache.get(key);
+      if (groups == null) {
+        groups = m_Backend.getNamesOfGroupsForUser(user, 0, Integer.MAX_VALUE);
+        m_QueryCache.put(QueryCache.Kind.MEMBERSHIPS, key, groups, generation);
+      }
+    }
+    //the member term holds for all groups found, and is left out by the compiled filter
+    AttributeProjection projection = AttributeProjection.forSearch(ctx).withoutFilter(MEMBER_OID);
+    boolean stubs = projection.isCoveredBy(GROUP_NAME_ATTRIBUTES);
+    FilterCompiler.Predicate predicate = m_FilterCompiler.compile(ctx.getFilter());
+    for (String gn : groups) {
+      DN gdn = getGroupDn(gn);
+      ServerEntry ge = (stubs && getCachedEntry(gdn.getName()) == null)
+          ? createGroupStub(gdn, gn)
+          : createGroupEntry(gdn, projection);
+      if (ge != null && predicate.matches(ge)) {
+        l.add(ge);
+      }
+    }
+    return l;
+  }//findGroupsOfMember
+
+  /**
+   * Answers searches testing if a user is member of a group, i.e. filters with
+   * an equality on <tt>uid</tt> and on <tt>memberOf</tt>.
+   * Other terms of the filter are evaluated on the user entry.
+   *
+   * @param ctx the search operation context.
+   * @return the matching user entry, or null if the filter is not a membership filter.
+   * @throws Exception if the membership cannot be checked.
+   */
+  private List<ServerEntry> findMemberOfGroup(SearchOperationContext ctx) throws Exception {
+    if (!m_emulateADmemberOf) {
+      return null;
+    }
+    Map<String, String> terms = new HashMap<String, String>();
+    collectEqualityTerms(ctx.getFilter(), terms);
+    String memberOf = terms.get(MEMBEROF_OID);
+    String uid = terms.get(UID_OID);
+    if (memberOf == null || uid == null) {
+      return null;
+    }
+    List<ServerEntry> l = new ArrayList<ServerEntry>();
+    String group = getMemberName(memberOf, m_CrowdGroupsEntry);
+    if (group != null && isMemberOf(uid, group)) {
+      //the value of the filter is normalized, the DN of the result has the name as in Crowd
+      String user = getUserName(uid, group);
+      ServerEntry ue = (user == null)
+          ? null
+          : createUserEntry(getUserDn(user), AttributeProjection.forSearch(ctx).withoutFilter(MEMBEROF_OID));
+      if (ue != null && m_FilterCompiler.compile(ctx.getFilter()).matches(ue)) {
+        l.add(ue);
+      }
+    }
+    return l;
+  }//findMemberOfGroup
+
+  /**
+   * Returns the name of a group as in Crowd, for a group name of any case,
+   * from the cached memberships of a member, the cached group entry, or Crowd.
+   * A group obtained from Crowd is cached.
+   *
+   * @param group  the group name, e.g. the normalized value of a filter.
+   * @param member the name of a member of the group.
+   * @return the group name, or null if the group does not exist.
+   * @throws Exception if the group cannot be obtained from Crowd.
+   */
+  private String getGroupName(String group, String member) throws Exception {
+    List<String> memberOf = getCachedNames(m_MemberOfCache, member);
+    if (memberOf != null) {
+      String gdn = String.format("cn=%s,%s", group, m_GroupsDn);
+      for (String m : memberOf) {
+        if (m.equalsIgnoreCase(gdn)) {
+          //Note: the DNs are formatted the same way, with the name following "cn="
+          return m.substring(3, 3 + group.length());
+        }
+      }
+    }
+    String name = getCachedGroupName(group);
+    if (name != null) {
+      return name;
+    }
+    long generation = m_EntryGeneration.get();
+    Group g;
+    try {
+      g = m_Backend.getGroup(group);
+    } catch (GroupNotFoundException ex) {
+      return null;
+    }
+    buildGroupEntry(getGroupDn(g.getName()), g, generation);
+    return g.getName();
+  }//getGroupName
+
+  /**
+   * Returns the name of a user as in Crowd, for a user name of any case,
+   * from the cached members of a group the user is member of, or Crowd.
+   * A user obtained from Crowd is cached.
+   *
+   * @param user  the user name, e.g. the normalized value of a filter.
+   * @param group the name of a group of the user.
+   * @return the user name, or null if the user does not exist.
+   * @throws Exception if the user cannot be obtained from Crowd.
+   */
+  private String getUserName(String user, String group) throws Exception {
+    List<String> members = getCachedNames(m_MembersCache, group);
+    if (members != null) {
+      for (String m : members) {
+        if (m.equalsIgnoreCase(user)) {
+          return m;
+        }
+      }
+    }
+    long generation = m_EntryGeneration.get();
+    User u;
+    try {
+      u = m_Backend.getUser(user);
+    } catch (UserNotFoundException ex) {
+      return null;
+    }
+    if (u == null) {
+      return null;
+    }
+    DN dn = getUserDn(u.getName());
+    if (!isCached(dn.getName())) {
+      buildUserEntry(dn, u.getName(), u, generation);
+    }
+    return u.getName();
+  }//getUserName
+
+  /**
+   * Returns the name of a group as in Crowd, i.e. the <tt>cn</tt> of its entry,
+   * if the entry is cached.
+   *
+   * @param group the group name, of any case.
+   * @return the group name, or null if the entry is not cached.
+   */
+  private String getCachedGroupName(String group) {
+    Set<String> dns;
+    synchronized (m_EntryCache) {
+      dns = m_EntryDns.get(getEntryName(SchemaConstants.GROUP_OF_NAMES_OC, group));
+      dns = (dns == null) ? null : new HashSet<String>(dns);
+    }
+    if (dns != null) {
+      for (String dn : dns) {
+        ServerEntry entry = getCachedEntry(dn);
+        try {
+          if (entry != null && entry.get(SchemaConstants.CN_AT) != null) {
+            return entry.get(SchemaConstants.CN_AT).getString();
+          }
+        } catch (Exception ex) {
+          log.debug("getCachedGroupName()", ex);
+        }
+      }
+    }
+    return null;
+  }//getCachedGroupName
+
+  /**
+   * Collects the equality terms of a filter that must all match,
+   * i.e. equality nodes at the top level or within AND nodes.
+   */
+  private static void collectEqualityTerms(ExprNode node, Map<String, String> terms) {
+    if (node instanceof EqualityNode) {
+      EqualityNode<?> eq = (EqualityNode<?>) node;
+      terms.put(eq.getAttribute().toLowerCase(), eq.getValue().getString());
+    } else if (node instanceof AndNode) {
+      for (ExprNode child : ((AndNode) node).getChildren()) {
+        collectEqualityTerms(child, terms);
+      }
+    }
+  }//collectEqualityTerms
+
+  /**
+   * Removes the given users from the cache, including their memberships.
+   *
+   * @param users the user names.
+   */
+  void invalidateUsers(Collection<String> users) {
+    removeEntries(SchemaConstants.INET_ORG_PERSON_OC, users);
+    invalidateMemberOf(users);
+    m_QueryCache.invalidate(QueryCache.Kind.USERS);
+  }//invalidateUsers
+
+  /**
+   * Updates the sort index with a created, changed or removed user.
+   *
+   * @param user    the user.
+   * @param deleted true if the user was removed.
+   */
+  void reindexUser(User user, boolean deleted) {
+    if (deleted) {
+      m_SortIndex.remove(user.getName());
+    } else {
+      m_SortIndex.put(user);
+    }
+  }//reindexUser
+
+  /**
+   * Returns the sort index, (re)building it from all users if
+   * not built yet or expired.
+   *
+   * @return the sort index.
+   * @throws Exception if the users cannot be obtained from Crowd.
+   */
+  private UserSortIndex getSortIndex() throws Exception {
+    synchronized (m_SortIndexLock) {
+      if (!m_SortIndex.isBuilt() || m_SortIndex.getAge() > m_SortIndexTTL) {
+        List<User> users = new ArrayList<User>();
+        List<User> page;
+        do {
+          page = m_Backend.searchUsers(NullRestrictionImpl.INSTANCE, users.size(), m_SortIndexPageSize);
+          users.addAll(page);
+        } while (page.size() == m_SortIndexPageSize);
+        m_SortIndex.build(users);
+        if (log.isDebugEnabled()) {
+          log.debug("getSortIndex()::users=" + users.size());
+        }
+      }
+    }
+    return m_SortIndex;
+  }//getSortIndex
+
+  /**
+   * Removes the given groups from the cache, including their members.
+   *
+   * @param groups the group names.
+   */
+  void invalidateGroups(Collection<String> groups) {
+    removeEntries(SchemaConstants.GROUP_OF_NAMES_OC, groups);
+    invalidateMembers(groups);
+    m_QueryCache.invalidate(QueryCache.Kind.GROUPS);
+  }//invalidateGroups
+
+  /**
+   * Removes the cached memberships (<tt>memberOf</tt>) of the given users.
+   *
+   * @param users the user names.
+   */
+  void invalidateMemberOf(Collection<String> users) {
+    removeNames(m_MemberOfCache, m_MemberOfGeneration, users);
+    m_QueryCache.invalidate(QueryCache.Kind.MEMBERSHIPS);
+  }//invalidateMemberOf
+
+  /**
+   * Removes the cached members of the given groups.
+   *
+   * @param groups the group names.
+   */
+  void invalidateMembers(Collection<String> groups) {
+    removeNames(m_MembersCache, m_MembersGeneration, groups);
+    m_QueryCache.invalidate(QueryCache.Kind.MEMBERSHIPS);
+  }//invalidateMembers
+
+  /**
+   * Removes the cached member lists holding the given user.
+   *
+   * @param user the user name.
+   */
+  void invalidateMembersHolding(String user) {
+    synchronized (m_MembersCache) {
+      m_MembersGeneration.incrementAndGet();
+      List<String> groups = new ArrayList<String>();
+      for (Map.Entry<String, List<String>> entry : m_MembersCache.entrySet()) {
+        if (containsIgnoreCase(entry.getValue(), user)) {
+          groups.add(entry.getKey());
+        }
+      }
+      removeKeys(m_MembersCache, groups);
+    }
+    m_QueryCache.invalidate(QueryCache.Kind.MEMBERSHIPS);
+  }//invalidateMembersHolding
+
+  /**
+   * Removes all cached memberships (<tt>memberOf</tt>).
+   */
+  void invalidateAllMemberOf() {
+    synchronized (m_MemberOfCache) {
+      m_MemberOfGeneration.incrementAndGet();
+      m_MemberOfCache.clear();
+    }
+  }//invalidateAllMemberOf
 
+  /**
+   * Invalidates after a change of group nesting, which affects the
+   * <tt>memberOf</tt> values only if nested groups are included.
+   */
+  void invalidateNesting() {
+    if (m_includeNested) {
+      invalidateAllMemberOf();
+    }
+  }//invalidateNesting
+
+  /**
+   * Removes all users and groups from the cache.
+   */
+  void invalidateAll() {
+    synchronized (m_EntryCache) {
+      m_EntryGeneration.incrementAndGet();
+      List<String> dns = new ArrayList<String>();
+      for (Map.Entry<String, ServerEntry> cached : m_EntryCache.entrySet()) {
+        ServerEntry entry = cached.getValue();
+        if (entry.contains(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.INET_ORG_PERSON_OC)
+            || entry.contains(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC)) {
+          dns.add(cached.getKey());
+        }
+      }
+      removeKeys(m_EntryCache, dns);
+      if (m_ColdCache != null) {
+        m_ColdCache.clear();
+      }
+      //only user and group entries are indexed
+      m_EntryDns.clear();
+      m_EntryNames.clear();
+    }
+    invalidateAllMemberOf();
+    synchronized (m_MembersCache) {
+      m_MembersGeneration.incrementAndGet();
+      m_MembersCache.clear();
+    }
+    m_QueryCache.clear();
+    m_SortIndex.clear();
+  }//invalidateAll
+
+  /**
+   * Returns the cached members of the given group.
+   *
+   * @param group the group name.
+   * @return the user names, or null if not cached.
+   */
+  List<String> getCachedMembers(String group) {
+    return getCachedNames(m_MembersCache, group);
+  }//getCachedMembers
+
+  //Note: Entries are cached by the DN used in the request, so they are looked up by their name
+  private void removeEntries(String objectClass, Collection<String> names) {
+    if (names.isEmpty()) {
+      return;
+    }
+    synchronized (m_EntryCache) {
+      m_EntryGeneration.incrementAndGet();
+      for (String name : names) {
+        Set<String> dns = m_EntryDns.remove(getEntryName(objectClass, name));
+        if (dns == null) {
+          continue;
+        }
+        for (String dn : dns) {
+          m_EntryNames.remove(dn);
+          m_EntryCache.remove(dn);
+          if (m_ColdCache != null) {
+            m_ColdCache.remove(dn);
+          }
+        }
+      }
+    }
+  }//removeEntries
+
+  private static void removeNames(LRUCacheMap<String, List<String>> cache, AtomicLong generation,
+                                  Collection<String> names) {
+    if (names.isEmpty()) {
+      return;
+    }
+    synchronized (cache) {
+      generation.incrementAndGet();
+      List<String> keys = new ArrayList<String>();
+      for (String key : cache.keySet()) {
+        if (containsIgnoreCase(names, key)) {
+          keys.add(key);
+        }
+      }
+      removeKeys(cache, keys);
+    }
+  }//removeNames
+
+  //Note: Removes through the map, so that weighted caches account for the removal
+  private static void removeKeys(LRUCacheMap<String, ?> cache, List<String> keys) {
+    for (String key : keys) {
+      cache.remove(key);
+    }
+  }//removeKeys
 
-  public ClonedServerEntry lookup(LookupOperationContext ctx) {
+  /**
+   * Adds the expensive attributes needed by the projection to a cached entry.
+   *
+   * @param entry      a cached entry.
+   * @param projection the attributes needed.
+   * @return the entry including the needed attributes.
+   * @throws Exception if the attributes cannot be obtained from Crowd.
+   */
+  private ServerEntry project(ServerEntry entry, AttributeProjection projection) throws Exception {
+    if (entry.contains(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.INET_ORG_PERSON_OC)) {
+      return addMemberOf(entry, projection);
+    } else if (entry.contains(SchemaConstants.OBJECT_CLASS_AT, SchemaConstants.GROUP_OF_NAMES_OC)) {
+      return addMembers(entry, projection);
+    }
+    return entry;
+  }//project
+
+  public ClonedServerEntry lookup(LookupOperationContext ctx) throws Exception {
     DN dn = ctx.getDn();
     /*
         if (log.isDebugEnabled()) {
@@ -403,70 +1873,118 @@ public class CrowdPartition implements Partition {
           }
         }
     */
-    ServerEntry se = m_EntryCache.get(ctx.getDn().getName());
-    if (se == null) {
-      //todo
-      log.debug("lookup()::No cached entry found for " + dn.getName());
-      return null;
-    } else {
-      log.debug("lookup()::Cached entry found for " + dn.getName());
-      return new ClonedServerEntry(se);
+    Object event = LdapEvents.LOOKUP.begin();
+    ServerEntry se = getCachedEntry(ctx.getDn().getName());
+    try {
+      if (se == null) {
+        //todo
+        if (log.isDebugEnabled()) {
+          log.debug("lookup()::No cached entry found for " + dn.getName());
+        }
+        return null;
+      } else {
+        if (log.isDebugEnabled()) {
+          log.debug("lookup()::Cached entry found for " + dn.getName());
+        }
+        return new ClonedServerEntry(project(se, AttributeProjection.forLookup(ctx, m_SchemaManager)));
+      }
+    } finally {
+      if (event != null) {
+        LdapEvents.LOOKUP.commit(event, m_ID, dn.getName(), se != null);
+      }
     }
   }//lookup
 
-  private BaseEntryFilteringCursor findObject(SearchingOperationContext ctx) {
+  private BaseEntryFilteringCursor findObject(SearchOperationContext ctx) throws Exception {
     DN dn = ctx.getDn();
     String dnName = dn.getName();
     ServerEntry se = ctx.getEntry();
 
-    log.debug("findObject()::dn=" + dnName + "::entry=" + se.toString());
+    if (log.isDebugEnabled()) {
+      log.debug("findObject()::dn=" + dnName + "::entry=" + se);
+    }
 
     //1. Try cache
-    se = m_EntryCache.get(dn.getName());
-    if (se != null) {
+    se = getCachedEntry(dn.getName());
+    if (se != null && m_FilterCompiler.compile(ctx.getFilter()).matches(se)) {
+      AccessLog.stats().entries(1);
       return new BaseEntryFilteringCursor(
-          new SingletonCursor<ServerEntry>(se), ctx);
+          new SingletonCursor<ServerEntry>(project(se, AttributeProjection.forSearch(ctx))), ctx);
     }
     // return an empty result
     return new BaseEntryFilteringCursor(new EmptyCursor<ServerEntry>(), ctx);
   }//findObject
 
-  private BaseEntryFilteringCursor findOneLevel(SearchOperationContext ctx) {
+  private BaseEntryFilteringCursor findOneLevel(SearchOperationContext ctx) throws LdapException {
     DN dn = ctx.getDn();
     ServerEntry se = ctx.getEntry();
 
     if(se == null) {
         String name = dn.getRdn(0).getNormValue();
-        log.debug("Name=" + name);
+        if (log.isDebugEnabled()) {
+          log.debug("Name=" + name);
+        }
         if("crowd".equals(name)) {
           return new BaseEntryFilteringCursor(new EmptyCursor<ServerEntry>(), ctx);
         }
     }
-    log.debug("findOneLevel()::dn=" + dn.getName() + "::entry=" + se.toString() + "::filter=" + ctx.getFilter().toString());
+    if (log.isDebugEnabled()) {
+      log.debug("findOneLevel()::dn=" + dn.getName() + "::entry=" + se + "::filter=" + ctx.getFilter());
+    }
 
     //1. Organizational Units
     if (dn.getName().equals(m_CrowdEntry.getDn().getName())) {
+      List<ServerEntry> l = m_FilterCompiler.filter(ctx.getFilter(), m_CrowdOneLevelList);
+      AccessLog.stats().entries(l.size());
       return new BaseEntryFilteringCursor(
-          new ListCursor<ServerEntry>(m_CrowdOneLevelList),
+          new ListCursor<ServerEntry>(l),
           ctx
       );
     }
     //2. Groups
     if (dn.getName().equals(m_CrowdGroupsEntry.getDn().getName())) {
+      //Membership filter
+      try {
+        List<ServerEntry> l = findGroupsOfMember(ctx);
+        if (l != null) {
+          AccessLog.stats().entries(l.size());
+          return new BaseEntryFilteringCursor(new ListCursor<ServerEntry>(l), ctx);
+        }
+      } catch (LdapServiceUnavailableException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        log.error("findOneLevel()", ex);
+      }
       //Retrieve Filter
       if (ctx.getFilter().toString().contains("(2.5.4.0=*)")) {
 
         List<ServerEntry> l = new ArrayList<ServerEntry>();
+        AttributeProjection projection = AttributeProjection.forSearch(ctx);
+        boolean stubs = projection.isCoveredBy(GROUP_NAME_ATTRIBUTES);
+        FilterCompiler.Predicate predicate = m_FilterCompiler.compile(ctx.getFilter());
         try {
-          TermRestriction<String> groupName = new TermRestriction<String>(GroupTermKeys.NAME, MatchMode.CONTAINS, "");
-          List<String> list = m_CrowdClient.searchGroupNames(groupName, 0, Integer.MAX_VALUE);
+          String key = QueryCache.key(ctx);
+          long generation = m_QueryCache.generation(QueryCache.Kind.GROUPS);
+          List<String> list = m_QueryCache.get(key);
+          if (list == null) {
+            list = getGroupNames();
+            m_QueryCache.put(QueryCache.Kind.GROUPS, key, list, generation);
+          }
           for (String gn : list) {
-            DN gdn = new DN(String.format("dn=%s,%s", gn, CROWD_GROUPS_DN));
-            l.add(createGroupEntry(gdn));
+            DN gdn = getGroupDn(gn);
+            ServerEntry ge = (stubs && getCachedEntry(gdn.getName()) == null)
+                ? createGroupStub(gdn, gn)
+                : createGroupEntry(gdn, projection);
+            if (ge != null && predicate.matches(ge)) {
+              l.add(ge);
+            }
           }
+        } catch (LdapServiceUnavailableException ex) {
+          throw ex;
         } catch (Exception ex) {
           log.error("findOneLevel()", ex);
         }
+        AccessLog.stats().entries(l.size());
         return new BaseEntryFilteringCursor(
             new ListCursor<ServerEntry>(l),
             ctx
@@ -476,6 +1994,18 @@ public class CrowdPartition implements Partition {
 
     //3. Users
     if (dn.getName().equals(m_CrowdUsersEntry.getDn().getName())) {
+      //Membership filter
+      try {
+        List<ServerEntry> l = findMemberOfGroup(ctx);
+        if (l != null) {
+          AccessLog.stats().entries(l.size());
+          return new BaseEntryFilteringCursor(new ListCursor<ServerEntry>(l), ctx);
+        }
+      } catch (LdapServiceUnavailableException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        log.error("findOneLevel()", ex);
+      }
       //Retrieve Filter
       String filter = ctx.getFilter().toString();
       if (filter.contains("(2.5.4.0=*)") ||  filter.contains("(2.5.4.0=referral)")) {
@@ -488,23 +2018,67 @@ public class CrowdPartition implements Partition {
         }
 
         List<ServerEntry> l = new ArrayList<ServerEntry>();
+        AttributeProjection projection = AttributeProjection.forSearch(ctx);
+        boolean stubs = projection.isCoveredBy(USER_NAME_ATTRIBUTES);
+        FilterCompiler.Predicate predicate = m_FilterCompiler.compile(ctx.getFilter());
+        ListControls lc = ListControls.forSearch(ctx, m_SchemaManager);
+        UserSortIndex index = null;
+        if (lc != null && lc.isSorted()) {
+          try {
+            index = getSortIndex();
+          } catch (LdapServiceUnavailableException ex) {
+            throw ex;
+          } catch (Exception ex) {
+            log.error("findOneLevel()", ex);
+            lc.failed();
+          }
+        }
         try {
-          SearchRestriction userName = null;
-          if ("*".equals(uid)) {
-              // Contains * term restriction does not return any users, so use null one
-              userName = NullRestrictionImpl.INSTANCE;
-              
-          } else {
-              userName = new TermRestriction<String>(UserTermKeys.USERNAME, MatchMode.CONTAINS, uid);
+          //a window of the index only if the filter holds for all users,
+          //otherwise the matching users are sorted and windowed
+          boolean all = "*".equals(uid) && index != null
+              && m_FilterCompiler.selectsAll(ctx.getFilter(), USER_NAME_ATTRIBUTES);
+          String key = QueryCache.key(ctx);
+          long generation = m_QueryCache.generation(QueryCache.Kind.USERS);
+          List<String> list = all ? lc.select(index) : m_QueryCache.get(key);
+          if (list == null) {
+            SearchRestriction userName = null;
+            if ("*".equals(uid)) {
+                // Contains * term restriction does not return any users, so use null one
+                userName = NullRestrictionImpl.INSTANCE;
+
+            } else {
+                userName = new TermRestriction<String>(UserTermKeys.USERNAME, MatchMode.CONTAINS, uid);
+            }
+            list = m_Backend.searchUserNames(userName, 0, Integer.MAX_VALUE);
+            m_QueryCache.put(QueryCache.Kind.USERS, key, list, generation);
           }
-          List<String> list = m_CrowdClient.searchUserNames(userName, 0, Integer.MAX_VALUE);
+          Map<String, ServerEntry> matching = new LinkedHashMap<String, ServerEntry>();
           for (String gn : list) {
-            DN udn = new DN(String.format("dn=%s,%s", gn, CROWD_USERS_DN));
-            l.add(createUserEntry(udn));
+            DN udn = getUserDn(gn);
+            ServerEntry ue = (stubs && getCachedEntry(udn.getName()) == null)
+                ? createUserStub(udn, gn)
+                : createUserEntry(udn, projection);
+            if (ue != null && (all || predicate.matches(ue))) {
+              matching.put(gn.toLowerCase(), ue);
+            }
           }
+          if (index != null && !all) {
+            for (String gn : lc.select(index, new ArrayList<String>(matching.keySet()))) {
+              l.add(matching.get(gn.toLowerCase()));
+            }
+          } else {
+            l.addAll(matching.values());
+          }
+        } catch (LdapServiceUnavailableException ex) {
+          throw ex;
         } catch (Exception ex) {
           log.error("findOneLevel()", ex);
         }
+        if (lc != null) {
+          lc.respond();
+        }
+        AccessLog.stats().entries(l.size());
         return new BaseEntryFilteringCursor(
             new ListCursor<ServerEntry>(l),
             ctx
@@ -516,10 +2090,12 @@ public class CrowdPartition implements Partition {
     return new BaseEntryFilteringCursor(new EmptyCursor<ServerEntry>(), ctx);
   }//findOneLevel
 
-  private BaseEntryFilteringCursor findSubTree(SearchOperationContext ctx) {
+  private BaseEntryFilteringCursor findSubTree(SearchOperationContext ctx) throws LdapException {
     DN dn = ctx.getDn();
 
-    log.debug("findSubTree()::dn=" + dn.getName());
+    if (log.isDebugEnabled()) {
+      log.debug("findSubTree()::dn=" + dn.getName());
+    }
     //Will only search at one level
     return findOneLevel(ctx);
   }//findSubTree
@@ -538,37 +2114,54 @@ public class CrowdPartition implements Partition {
           + ctx.getFilter() + ", scope=" + ctx.getScope() + ")");
     }
 
-    switch (ctx.getScope()) {
-      case OBJECT:
-        return findObject(ctx);
-      case ONELEVEL:
-        return findOneLevel(ctx);
-      case SUBTREE:
-        return findSubTree(ctx);
-      default:
-        // return an empty result
-        return new BaseEntryFilteringCursor(new EmptyCursor<ServerEntry>(), ctx);
+    AccessLog.stats().entries(0);
+    Object event = LdapEvents.SEARCH.begin();
+    try {
+      switch (ctx.getScope()) {
+        case OBJECT:
+          return findObject(ctx);
+        case ONELEVEL:
+          return findOneLevel(ctx);
+        case SUBTREE:
+          return findSubTree(ctx);
+        default:
+          // return an empty result
+          return new BaseEntryFilteringCursor(new EmptyCursor<ServerEntry>(), ctx);
+      }
+    } finally {
+      if (event != null) {
+        LdapEvents.SEARCH.commit(event, m_ID, ctx.getDn().getName(), ctx.getScope().getLdapUrlValue(),
+            String.valueOf(ctx.getFilter()), AccessLog.stats().getEntries());
+      }
     }
   }//search
 
   public EntryFilteringCursor list(ListOperationContext opContext) {
-    log.debug("list()::opContext=" + opContext.toString());
+    if (log.isDebugEnabled()) {
+      log.debug("list()::opContext=" + opContext);
+    }
     return null;
   }//list
 
   public ClonedServerEntry lookup(Long id) {
-    log.debug("lookup::id=" + id.toString());
+    if (log.isDebugEnabled()) {
+      log.debug("lookup::id=" + id);
+    }
     return null;
   }//lookup
 
 
   public void bind(BindOperationContext opContext) throws Exception {
-    log.debug("bind()::opContext=" + opContext.toString());
+    if (log.isDebugEnabled()) {
+      log.debug("bind()::opContext=" + opContext);
+    }
 
   }//bind
 
   public void unbind(UnbindOperationContext opContext) throws Exception {
-    log.debug("unbind()::opContext=" + opContext.toString());
+    if (log.isDebugEnabled()) {
+      log.debug("unbind()::opContext=" + opContext);
+    }
   }//unbind
 
 
@@ -615,8 +2208,28 @@ public class CrowdPartition implements Partition {
   }//snyc
 
   private static final String CROWD_DN = "dc=crowd";
-  private static final String CROWD_GROUPS_DN = "ou=groups,dc=crowd";
-  private static final String CROWD_USERS_DN = "ou=users,dc=crowd";
+  private static final String GROUPS_RDN = "ou=groups";
+  static final String USERS_RDN = "ou=users";
+
+  private static final String MEMBER_OID = "2.5.4.31";
+  private static final String MEMBER_RANGE_ID = SchemaConstants.MEMBER_AT + ";" + AttributeProjection.RANGE_OPTION;
+  private static final String MEMBEROF_OID = "1.2.840.113556.1.2.102";
+  private static final String CN_OID = "2.5.4.3";
+  private static final String UID_OID = "0.9.2342.19200300.100.1.1";
+
+  /**
+   * Attributes of user entries that can be derived from the user name alone.
+   */
+  private static final Set<String> USER_NAME_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+      "2.5.4.0", "0.9.2342.19200300.100.1.1", "2.5.4.11"
+  ));
+
+  /**
+   * Attributes of group entries that can be derived from the group name alone.
+   */
+  private static final Set<String> GROUP_NAME_ATTRIBUTES = new HashSet<String>(Arrays.asList(
+      "2.5.4.0", "2.5.4.3"
+  ));
 
   /**
    * Error message, if someone tries to modify the partition
@@ -0,0 +1,70 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link CrowdPartition} caches.
+ */
+public interface CrowdPartitionMBean {
+
+  /**
+   * Returns the maximum number of entries per cache.
+   *
+   * @return the ceiling of the caches.
+   */
+  public int getCacheSize();
+
+  public int getCachedEntries();
+
+  /**
+   * Returns the number of cached member and <tt>memberOf</tt> lists.
+   *
+   * @return the number of cached lists.
+   */
+  public int getCachedMemberLists();
+
+  /**
+   * Returns the estimated heap retained by the caches.
+   *
+   * @return the weight in bytes, or 0 if the caches are not bounded by weight.
+   */
+  public long getCacheWeight();
+
+  /**
+   * Returns the byte budget of the caches.
+   *
+   * @return the budget in bytes, or 0 if the caches are not bounded by weight.
+   */
+  public long getCacheMaxWeight();
+
+  public long getEntryCacheWeight();
+
+  public long getMemberCacheWeight();
+
+  /**
+   * Returns the number of entries that were not cached, because heavier
+   * than the maximum entry weight.
+   *
+   * @return the number of bypassed entries.
+   */
+  public long getCacheBypassed();
+
+  public long getColdCacheEntries();
+
+  /**
+   * Returns the number of users in the index used for sorted and windowed searches.
+   *
+   * @return the number of indexed users, 0 if not built.
+   */
+  public int getSortIndexSize();
+
+  /**
+   * Returns the number of cached compiled search filters.
+   *
+   * @return the number of compiled filters.
+   */
+  public int getCompiledFilters();
+
+  public long getFilterCacheHits();
+
+  public long getFilterCacheMisses();
+
+}//interface CrowdPartitionMBean
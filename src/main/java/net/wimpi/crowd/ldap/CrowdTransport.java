@@ -0,0 +1,289 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tunes the HTTP transport of the Crowd REST client.
+ * <p/>
+ * The REST client does not expose its HTTP client, so it is located
+ * through reflection. Once found, the connection pool is sized, idle and
+ * expired pooled connections are evicted in the background, persistent
+ * connections are kept alive for the configured time unless Crowd
+ * announces a shorter one, and responses are requested gzip compressed.
+ * <p/>
+ * If the HTTP client cannot be found, the client is left with its
+ * default transport settings.
+ */
+public class CrowdTransport implements Runnable, CrowdTransportMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(CrowdTransport.class);
+
+  private final AbstractHttpClient m_HttpClient;
+  private int m_MaxConnections = 20;
+  private int m_MaxPerRoute = 20;
+  private int m_ConnectTimeout = 5000;
+  private int m_ReadTimeout = 30000;
+  private long m_KeepAlive = 60000L;
+  private long m_IdleTimeout = 30000L;
+  private boolean m_Compression = true;
+
+  private volatile boolean m_Running;
+  private volatile Thread m_Thread;
+  private final AtomicLong m_Responses = new AtomicLong(0);
+  private final AtomicLong m_CompressedResponses = new AtomicLong(0);
+  private final AtomicLong m_BytesReceived = new AtomicLong(0);
+  private final AtomicLong m_Evictions = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>CrowdTransport</tt>.
+   *
+   * @param client the Crowd REST client.
+   */
+  public CrowdTransport(CrowdClient client) {
+    m_HttpClient = findHttpClient(client, 2);
+    if (m_HttpClient == null) {
+      log.warn("HTTP client of " + client.getClass().getName() + " not found, using default transport");
+    }
+  }//constructor
+
+  /**
+   * Tests if the HTTP client of the Crowd client was found.
+   *
+   * @return true if the transport can be tuned, false otherwise.
+   */
+  public boolean isAvailable() {
+    return m_HttpClient != null;
+  }//isAvailable
+
+  public void setMaxConnections(int max) {
+    m_MaxConnections = Math.max(1, max);
+  }//setMaxConnections
+
+  public void setMaxPerRoute(int max) {
+    m_MaxPerRoute = Math.max(1, max);
+  }//setMaxPerRoute
+
+  public void setConnectTimeout(int millis) {
+    m_ConnectTimeout = millis;
+  }//setConnectTimeout
+
+  public void setReadTimeout(int millis) {
+    m_ReadTimeout = millis;
+  }//setReadTimeout
+
+  /**
+   * Sets how long idle persistent connections are kept alive,
+   * when Crowd does not announce a shorter time.
+   *
+   * @param millis the keep-alive time in milliseconds.
+   */
+  public void setKeepAlive(long millis) {
+    m_KeepAlive = millis;
+  }//setKeepAlive
+
+  /**
+   * Sets after how long pooled connections are closed when idle.
+   *
+   * @param millis the idle timeout in milliseconds, 0 to disable the eviction.
+   */
+  public void setIdleTimeout(long millis) {
+    m_IdleTimeout = millis;
+  }//setIdleTimeout
+
+  public void setCompression(boolean b) {
+    m_Compression = b;
+  }//setCompression
+
+  /**
+   * Applies the settings to the HTTP client, and starts evicting
+   * idle connections in a background thread.
+   */
+  public void start() {
+    if (m_HttpClient == null) {
+      return;
+    }
+    ClientConnectionManager manager = m_HttpClient.getConnectionManager();
+    if (manager instanceof ThreadSafeClientConnManager) {
+      ((ThreadSafeClientConnManager) manager).setMaxTotal(m_MaxConnections);
+      ((ThreadSafeClientConnManager) manager).setDefaultMaxPerRoute(Math.min(m_MaxPerRoute, m_MaxConnections));
+    } else {
+      log.warn("Connection pool " + manager.getClass().getName() + " cannot be sized");
+    }
+    HttpConnectionParams.setConnectionTimeout(m_HttpClient.getParams(), m_ConnectTimeout);
+    HttpConnectionParams.setSoTimeout(m_HttpClient.getParams(), m_ReadTimeout);
+    m_HttpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+    //Note: Added before the decoding, so that the transferred bytes are counted
+    m_HttpClient.addResponseInterceptor(new ResponseCounter());
+    if (m_Compression) {
+      m_HttpClient.addRequestInterceptor(new RequestAcceptEncoding());
+      m_HttpClient.addResponseInterceptor(new ResponseContentEncoding());
+    }
+    if (m_IdleTimeout > 0) {
+      m_Running = true;
+      m_Thread = new Thread(this, "crowd-connection-evictor");
+      m_Thread.setDaemon(true);
+      m_Thread.start();
+    }
+  }//start
+
+  /**
+   * Stops evicting idle connections.
+   */
+  public void stop() {
+    m_Running = false;
+    Thread t = m_Thread;
+    if (t != null) {
+      t.interrupt();
+    }
+  }//stop
+
+  public void run() {
+    long interval = Math.max(1000L, m_IdleTimeout / 2);
+    while (m_Running) {
+      try {
+        Thread.sleep(interval);
+        ClientConnectionManager manager = m_HttpClient.getConnectionManager();
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(m_IdleTimeout, TimeUnit.MILLISECONDS);
+        m_Evictions.incrementAndGet();
+      } catch (InterruptedException ex) {
+        break;
+      } catch (Exception ex) {
+        log.debug("run()", ex);
+      }
+    }
+  }//run
+
+  public boolean isRunning() {
+    return m_Running;
+  }//isRunning
+
+  public int getMaxConnections() {
+    return m_MaxConnections;
+  }//getMaxConnections
+
+  public int getMaxPerRoute() {
+    return m_MaxPerRoute;
+  }//getMaxPerRoute
+
+  public int getPooledConnections() {
+    if (m_HttpClient != null && m_HttpClient.getConnectionManager() instanceof ThreadSafeClientConnManager) {
+      return ((ThreadSafeClientConnManager) m_HttpClient.getConnectionManager()).getConnectionsInPool();
+    }
+    return -1;
+  }//getPooledConnections
+
+  public boolean isCompression() {
+    return m_Compression;
+  }//isCompression
+
+  public long getResponses() {
+    return m_Responses.get();
+  }//getResponses
+
+  public long getCompressedResponses() {
+    return m_CompressedResponses.get();
+  }//getCompressedResponses
+
+  public long getBytesReceived() {
+    return m_BytesReceived.get();
+  }//getBytesReceived
+
+  public long getEvictionRuns() {
+    return m_Evictions.get();
+  }//getEvictionRuns
+
+  /**
+   * Searches the fields of the given object, and of the objects it references,
+   * for an {@link AbstractHttpClient}.
+   *
+   * @param obj   the object to search.
+   * @param depth the number of levels to search.
+   * @return the HTTP client, or null if not found.
+   */
+  private static AbstractHttpClient findHttpClient(Object obj, int depth) {
+    if (obj instanceof AbstractHttpClient) {
+      return (AbstractHttpClient) obj;
+    }
+    if (obj == null || depth == 0) {
+      return null;
+    }
+    for (Class<?> c = obj.getClass(); c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()
+            || field.getType().getName().startsWith("java.")) {
+          continue;
+        }
+        try {
+          field.setAccessible(true);
+          AbstractHttpClient client = findHttpClient(field.get(obj), depth - 1);
+          if (client != null) {
+            return client;
+          }
+        } catch (Exception ex) {
+          log.debug("findHttpClient()", ex);
+        }
+      }
+    }
+    return null;
+  }//findHttpClient
+
+  /**
+   * Keeps connections alive as long as announced by Crowd,
+   * but at most for the configured keep-alive time.
+   */
+  private class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+    private final ConnectionKeepAliveStrategy m_Announced = new DefaultConnectionKeepAliveStrategy();
+
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+      long announced = m_Announced.getKeepAliveDuration(response, context);
+      return (announced > 0) ? Math.min(announced, m_KeepAlive) : m_KeepAlive;
+    }//getKeepAliveDuration
+
+  }//inner class KeepAliveStrategy
+
+  /**
+   * Counts the responses, and the bytes transferred where known.
+   */
+  private class ResponseCounter implements HttpResponseInterceptor {
+
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+      m_Responses.incrementAndGet();
+      if (response.getEntity() == null) {
+        return;
+      }
+      long length = response.getEntity().getContentLength();
+      if (length > 0) {
+        m_BytesReceived.addAndGet(length);
+      }
+      Header encoding = response.getEntity().getContentEncoding();
+      if (encoding != null && encoding.getValue().toLowerCase().contains("gzip")) {
+        m_CompressedResponses.incrementAndGet();
+      }
+    }//process
+
+  }//inner class ResponseCounter
+
+}//class CrowdTransport
@@ -0,0 +1,42 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link CrowdTransport}.
+ */
+public interface CrowdTransportMBean {
+
+  /**
+   * Tests if idle connections are evicted in the background.
+   *
+   * @return true if running, false otherwise.
+   */
+  public boolean isRunning();
+
+  public int getMaxConnections();
+
+  public int getMaxPerRoute();
+
+  /**
+   * Returns the number of connections held by the pool, leased or idle.
+   *
+   * @return the number of pooled connections, or -1 if unknown.
+   */
+  public int getPooledConnections();
+
+  public boolean isCompression();
+
+  public long getResponses();
+
+  public long getCompressedResponses();
+
+  /**
+   * Returns the number of bytes received from Crowd, as transferred
+   * (i.e. compressed), counting only responses with a known length.
+   *
+   * @return the number of bytes.
+   */
+  public long getBytesReceived();
+
+  public long getEvictionRuns();
+
+}//interface CrowdTransportMBean
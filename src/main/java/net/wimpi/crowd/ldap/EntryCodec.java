@@ -0,0 +1,84 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary codec for the string valued entries of the {@link CrowdPartition}.
+ * <p/>
+ * Layout: version byte, DN, number of attributes, and per attribute
+ * the id, the number of values and the values; all strings as modified UTF-8.
+ */
+class EntryCodec {
+
+  private final SchemaManager m_SchemaManager;
+
+  EntryCodec(SchemaManager schemaManager) {
+    m_SchemaManager = schemaManager;
+  }//constructor
+
+  /**
+   * Encodes an entry.
+   *
+   * @param entry the entry.
+   * @return the encoded entry.
+   * @throws IOException if the entry cannot be encoded, e.g. binary values.
+   */
+  byte[] encode(ServerEntry entry) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(bout);
+    out.writeByte(VERSION);
+    out.writeUTF(entry.getDn().getName());
+    out.writeShort(entry.size());
+    for (EntryAttribute attr : entry) {
+      out.writeUTF(attr.getUpId());
+      out.writeShort(attr.size());
+      for (Value<?> v : attr) {
+        if (!attr.isHR()) {
+          throw new IOException("Binary attribute " + attr.getUpId());
+        }
+        out.writeUTF(v.getString());
+      }
+    }
+    out.flush();
+    return bout.toByteArray();
+  }//encode
+
+  /**
+   * Decodes an entry.
+   *
+   * @param data the encoded entry.
+   * @return the entry.
+   * @throws Exception if the entry cannot be decoded.
+   */
+  ServerEntry decode(byte[] data) throws Exception {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    if (in.readByte() != VERSION) {
+      throw new IOException("Unknown entry encoding");
+    }
+    ServerEntry entry = new DefaultServerEntry(m_SchemaManager, new DN(in.readUTF()));
+    int attrs = in.readUnsignedShort();
+    for (int i = 0; i < attrs; i++) {
+      String id = in.readUTF();
+      String[] values = new String[in.readUnsignedShort()];
+      for (int j = 0; j < values.length; j++) {
+        values[j] = in.readUTF();
+      }
+      entry.put(id, values);
+    }
+    return entry;
+  }//decode
+
+  private static final byte VERSION = 1;
+
+}//class EntryCodec
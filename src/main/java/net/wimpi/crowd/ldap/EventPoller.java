@@ -0,0 +1,211 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.exception.EventTokenExpiredException;
+import com.atlassian.crowd.exception.IncrementalSynchronisationNotAvailableException;
+import com.atlassian.crowd.model.event.GroupEvent;
+import com.atlassian.crowd.model.event.GroupMembershipEvent;
+import com.atlassian.crowd.model.event.Operation;
+import com.atlassian.crowd.model.event.OperationEvent;
+import com.atlassian.crowd.model.event.UserEvent;
+import com.atlassian.crowd.model.event.UserMembershipEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the caches of a {@link CrowdPartition} fresh by polling
+ * Crowd's event stream in the background.
+ * <p/>
+ * Each event invalidates exactly the affected user and group entries,
+ * and the affected memberships (<tt>member</tt> and <tt>memberOf</tt> values).
+ * When the event token has expired, all cached users and groups are
+ * invalidated and polling restarts with a new token. If Crowd cannot
+ * provide incremental events at all, polling stops.
+ * <p/>
+ * The changes are passed on to a {@link ChangeNotifier}, if set.
+ */
+public class EventPoller implements Runnable, EventPollerMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(EventPoller.class);
+
+  private final CrowdPartition m_Partition;
+  private final CrowdBackend m_Backend;
+  private final long m_Interval;
+  private volatile ChangeNotifier m_Notifier;
+
+  private volatile boolean m_Running;
+  private volatile Thread m_Thread;
+  private volatile String m_Token;
+  private volatile long m_LastPoll;
+  private final AtomicLong m_Events = new AtomicLong(0);
+  private final AtomicLong m_Resyncs = new AtomicLong(0);
+  private final AtomicLong m_Failures = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>EventPoller</tt>.
+   *
+   * @param partition the partition whose caches should be kept fresh.
+   * @param backend   the backend to poll.
+   * @param interval  the poll interval in milliseconds.
+   */
+  public EventPoller(CrowdPartition partition, CrowdBackend backend, long interval) {
+    m_Partition = partition;
+    m_Backend = backend;
+    m_Interval = Math.max(100L, interval);
+  }//constructor
+
+  /**
+   * Sets the notifier passed the changes after the caches were invalidated.
+   *
+   * @param notifier the change notifier.
+   */
+  public void setNotifier(ChangeNotifier notifier) {
+    m_Notifier = notifier;
+  }//setNotifier
+
+  /**
+   * Starts polling in a background thread.
+   */
+  public void start() {
+    m_Running = true;
+    m_Thread = new Thread(this, "crowd-event-poller");
+    m_Thread.setDaemon(true);
+    m_Thread.start();
+  }//start
+
+  /**
+   * Stops polling.
+   */
+  public void stop() {
+    m_Running = false;
+    Thread t = m_Thread;
+    if (t != null) {
+      t.interrupt();
+    }
+  }//stop
+
+  public void run() {
+    while (m_Running) {
+      try {
+        poll();
+      } catch (InterruptedException ex) {
+        break;
+      } catch (Exception ex) {
+        m_Failures.incrementAndGet();
+        log.warn("Polling Crowd events failed: " + ex.getMessage());
+        log.debug("run()", ex);
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(m_Interval);
+      } catch (InterruptedException ex) {
+        break;
+      }
+    }
+    log.debug("Event poller stopped.");
+  }//run
+
+  private void poll() throws Exception {
+    if (m_Token == null) {
+      resync();
+      return;
+    }
+    Events events;
+    try {
+      events = m_Backend.getNewEvents(m_Token);
+    } catch (EventTokenExpiredException ex) {
+      log.info("Crowd event token expired, invalidating cache.");
+      resync();
+      return;
+    }
+    m_LastPoll = System.currentTimeMillis();
+    for (OperationEvent event : events.getEvents()) {
+      apply(event);
+      m_Events.incrementAndGet();
+    }
+    m_Token = events.getNewEventToken();
+    if (m_Notifier != null) {
+      m_Notifier.changed(events.getEvents(), m_Token);
+    }
+  }//poll
+
+  /**
+   * Obtains a new token and invalidates everything that might have changed before.
+   */
+  private void resync() throws Exception {
+    try {
+      m_Token = m_Backend.getCurrentEventToken();
+    } catch (IncrementalSynchronisationNotAvailableException ex) {
+      log.warn("Crowd does not provide incremental events, event polling disabled: " + ex.getMessage());
+      m_Running = false;
+      return;
+    }
+    m_Partition.invalidateAll();
+    if (m_Notifier != null) {
+      m_Notifier.resynced(m_Token);
+    }
+    m_Resyncs.incrementAndGet();
+    m_LastPoll = System.currentTimeMillis();
+  }//resync
+
+  private void apply(OperationEvent event) {
+    if (log.isDebugEnabled()) {
+      log.debug("apply()::" + event.getOperation() + "::" + event.getClass().getSimpleName());
+    }
+    if (event instanceof UserEvent) {
+      String user = ((UserEvent) event).getUser().getName();
+      m_Partition.invalidateUsers(Collections.singleton(user));
+      m_Partition.reindexUser(((UserEvent) event).getUser(), event.getOperation() == Operation.DELETED);
+      if (event.getOperation() == Operation.DELETED) {
+        m_Partition.invalidateMembersHolding(user);
+      }
+    } else if (event instanceof GroupEvent) {
+      String group = ((GroupEvent) event).getGroup().getName();
+      if (event.getOperation() == Operation.DELETED) {
+        List<String> members = m_Partition.getCachedMembers(group);
+        if (members != null) {
+          m_Partition.invalidateMemberOf(members);
+        } else {
+          m_Partition.invalidateAllMemberOf();
+        }
+        m_Partition.invalidateNesting();
+      }
+      m_Partition.invalidateGroups(Collections.singleton(group));
+    } else if (event instanceof UserMembershipEvent) {
+      UserMembershipEvent ume = (UserMembershipEvent) event;
+      m_Partition.invalidateMemberOf(Collections.singleton(ume.getChildUsername()));
+      m_Partition.invalidateMembers(ume.getParentGroupNames());
+    } else if (event instanceof GroupMembershipEvent) {
+      m_Partition.invalidateNesting();
+    }
+  }//apply
+
+  public boolean isRunning() {
+    return m_Running;
+  }//isRunning
+
+  public long getInterval() {
+    return m_Interval;
+  }//getInterval
+
+  public long getEventsProcessed() {
+    return m_Events.get();
+  }//getEventsProcessed
+
+  public long getResyncs() {
+    return m_Resyncs.get();
+  }//getResyncs
+
+  public long getFailures() {
+    return m_Failures.get();
+  }//getFailures
+
+  public long getLastPoll() {
+    return m_LastPoll;
+  }//getLastPoll
+
+}//class EventPoller
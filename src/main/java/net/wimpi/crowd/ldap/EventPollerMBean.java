@@ -0,0 +1,36 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link EventPoller}.
+ */
+public interface EventPollerMBean {
+
+  public boolean isRunning();
+
+  /**
+   * Returns the poll interval.
+   *
+   * @return the interval in milliseconds.
+   */
+  public long getInterval();
+
+  public long getEventsProcessed();
+
+  /**
+   * Returns the number of times the whole cache was invalidated,
+   * because no incremental events were available.
+   *
+   * @return the number of resynchronisations.
+   */
+  public long getResyncs();
+
+  public long getFailures();
+
+  /**
+   * Returns the time of the last successful poll.
+   *
+   * @return the time in milliseconds since the epoch.
+   */
+  public long getLastPoll();
+
+}//interface EventPollerMBean
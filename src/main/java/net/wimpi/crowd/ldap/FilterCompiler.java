@@ -0,0 +1,544 @@
+package net.wimpi.crowd.ldap;
+
+import net.wimpi.crowd.ldap.util.LRUCacheMap;
+import org.apache.directory.shared.ldap.entry.EntryAttribute;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.entry.Value;
+import org.apache.directory.shared.ldap.exception.LdapException;
+import org.apache.directory.shared.ldap.filter.BranchNode;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.LeafNode;
+import org.apache.directory.shared.ldap.filter.SimpleNode;
+import org.apache.directory.shared.ldap.filter.SubstringNode;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.LdapComparator;
+import org.apache.directory.shared.ldap.schema.MatchingRule;
+import org.apache.directory.shared.ldap.schema.Normalizer;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles search filters into predicates, evaluated in memory over the
+ * entries a search is answered with.
+ * <p/>
+ * A filter is compiled once: attribute types, matching rules, normalized assertion
+ * values and substring patterns are resolved up front, and the compiled form is
+ * cached by the normalized filter. The values of cached entries are normalized
+ * once, when the entry is cached (see {@link #normalize(ServerEntry)}), so that
+ * evaluating a filter compares strings only. Branches short-circuit.
+ * <p/>
+ * Assertions that cannot be decided from the entry alone, e.g. on member attributes
+ * returned as a range, on binary attributes or with extensible matching, are left out
+ * of AND nodes; the compiled form then matches a superset of the filter, and is not
+ * exact (see {@link Predicate#isExact()}). OR nodes with an undecided child, and NOT
+ * nodes over a child that is not exact, cannot be decided, and a filter of which
+ * nothing can be decided matches all entries.
+ */
+class FilterCompiler {
+
+  private static final Logger log = LoggerFactory.getLogger(FilterCompiler.class);
+
+  private final SchemaManager m_SchemaManager;
+  private final Set<String> m_Undecided;
+  private final LRUCacheMap<String, Predicate> m_Cache;
+  private final AtomicLong m_Hits = new AtomicLong(0);
+  private final AtomicLong m_Misses = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>FilterCompiler</tt>.
+   *
+   * @param schemaManager the schema manager.
+   * @param size          the maximum number of cached compiled filters.
+   * @param undecided     the OIDs of the attributes not to evaluate.
+   */
+  FilterCompiler(SchemaManager schemaManager, int size, String... undecided) {
+    m_SchemaManager = schemaManager;
+    m_Cache = new LRUCacheMap<String, Predicate>(size);
+    m_Undecided = new HashSet<String>(Arrays.asList(undecided));
+  }//constructor
+
+  /**
+   * Returns the compiled form of the given filter, compiling it if not cached.
+   *
+   * @param filter the normalized filter.
+   * @return the predicate; {@link #ANY} if nothing can be decided.
+   */
+  Predicate compile(ExprNode filter) {
+    if (filter == null) {
+      return ANY;
+    }
+    String key = filter.toString();
+    Predicate p;
+    synchronized (m_Cache) {
+      p = m_Cache.get(key);
+    }
+    if (p != null) {
+      m_Hits.incrementAndGet();
+      return p;
+    }
+    m_Misses.incrementAndGet();
+    p = compileNode(filter);
+    if (p == null) {
+      p = ANY;
+    }
+    synchronized (m_Cache) {
+      m_Cache.put(key, p);
+    }
+    return p;
+  }//compile
+
+  /**
+   * Returns the entries matching the given filter.
+   *
+   * @param filter  the normalized filter.
+   * @param entries the entries.
+   * @return the matching entries; the given list if the filter matches all.
+   */
+  List<ServerEntry> filter(ExprNode filter, List<ServerEntry> entries) {
+    Predicate p = compile(filter);
+    if (p == ANY) {
+      return entries;
+    }
+    List<ServerEntry> l = new ArrayList<ServerEntry>(entries.size());
+    for (ServerEntry entry : entries) {
+      if (p.matches(entry)) {
+        l.add(entry);
+      }
+    }
+    return l;
+  }//filter
+
+  /**
+   * Tells if the given filter matches every entry holding the given attributes,
+   * i.e. if it holds for such entries whatever their values are.
+   *
+   * @param filter  the normalized filter.
+   * @param present the OIDs of the attributes all entries hold.
+   * @return true if all entries match, false if not or if unknown.
+   */
+  boolean selectsAll(ExprNode filter, Set<String> present) {
+    switch (filter.getAssertionType()) {
+      case AND:
+        for (ExprNode child : ((BranchNode) filter).getChildren()) {
+          if (!selectsAll(child, present)) {
+            return false;
+          }
+        }
+        return true;
+      case OR:
+        for (ExprNode child : ((BranchNode) filter).getChildren()) {
+          if (selectsAll(child, present)) {
+            return true;
+          }
+        }
+        return false;
+      case PRESENCE:
+        try {
+          return present.contains(
+              m_SchemaManager.lookupAttributeTypeRegistry(((LeafNode) filter).getAttribute()).getOid());
+        } catch (LdapException ex) {
+          return false;
+        }
+      default:
+        return false;
+    }
+  }//selectsAll
+
+  /**
+   * Normalizes the values of the given entry in place, with the equality
+   * matching rule of their attribute type. Called before the entry is cached,
+   * so that the normalized values are shared by all later evaluations.
+   *
+   * @param entry the entry.
+   */
+  void normalize(ServerEntry entry) {
+    for (AttributeType at : entry.getAttributeTypes()) {
+      if (!isDecidable(at) || at.getEquality() == null) {
+        continue;
+      }
+      Normalizer normalizer = at.getEquality().getNormalizer();
+      for (Value<?> value : entry.get(at)) {
+        if (!value.isNormalized()) {
+          try {
+            value.normalize(normalizer);
+          } catch (LdapException ex) {
+            //evaluated with the unnormalized value
+            log.debug("normalize()", ex);
+          }
+        }
+      }
+    }
+  }//normalize
+
+  int size() {
+    synchronized (m_Cache) {
+      return m_Cache.size();
+    }
+  }//size
+
+  long getHits() {
+    return m_Hits.get();
+  }//getHits
+
+  long getMisses() {
+    return m_Misses.get();
+  }//getMisses
+
+  /**
+   * Compiles a node.
+   *
+   * @return the predicate, or null if it cannot be decided.
+   */
+  private Predicate compileNode(ExprNode node) {
+    try {
+      switch (node.getAssertionType()) {
+        case AND:
+          //undecided children are left out, matching a superset
+          List<Predicate> all = new ArrayList<Predicate>();
+          boolean exact = true;
+          for (ExprNode child : ((BranchNode) node).getChildren()) {
+            Predicate p = compileNode(child);
+            if (p == null) {
+              exact = false;
+            } else {
+              all.add(p);
+              exact &= p.isExact();
+            }
+          }
+          if (all.isEmpty()) {
+            return null;
+          }
+          return (all.size() == 1 && exact) ? all.get(0) : new And(all.toArray(new Predicate[all.size()]), exact);
+        case OR:
+          List<Predicate> any = new ArrayList<Predicate>();
+          exact = true;
+          for (ExprNode child : ((BranchNode) node).getChildren()) {
+            Predicate p = compileNode(child);
+            if (p == null) {
+              return null;
+            }
+            any.add(p);
+            exact &= p.isExact();
+          }
+          return (any.size() == 1) ? any.get(0) : new Or(any.toArray(new Predicate[any.size()]), exact);
+        case NOT:
+          //the negation of a superset would match a subset
+          Predicate p = compileNode(((BranchNode) node).getFirstChild());
+          return (p == null || !p.isExact()) ? null : new Not(p);
+        case PRESENCE:
+          AttributeType at = resolve(((LeafNode) node).getAttribute());
+          return (at == null) ? null : new Presence(at);
+        case EQUALITY:
+          return compileEquality((SimpleNode<?>) node);
+        case GREATEREQ:
+          return compileOrdering((SimpleNode<?>) node, true);
+        case LESSEQ:
+          return compileOrdering((SimpleNode<?>) node, false);
+        case SUBSTRING:
+          return compileSubstring((SubstringNode) node);
+        default:
+          //approximate, extensible, scope and assertion nodes
+          return null;
+      }
+    } catch (LdapException ex) {
+      log.debug("compileNode()", ex);
+      return null;
+    }
+  }//compileNode
+
+  private Predicate compileEquality(SimpleNode<?> node) throws LdapException {
+    AttributeType at = resolve(node.getAttribute());
+    if (at == null || at.getEquality() == null || node.getValue() == null) {
+      return null;
+    }
+    Normalizer normalizer = at.getEquality().getNormalizer();
+    return new Equality(at, normalizer, normalizer.normalize(node.getValue().getString()));
+  }//compileEquality
+
+  private Predicate compileOrdering(SimpleNode<?> node, boolean greater) throws LdapException {
+    AttributeType at = resolve(node.getAttribute());
+    if (at == null || at.getOrdering() == null || node.getValue() == null) {
+      return null;
+    }
+    MatchingRule mr = at.getOrdering();
+    LdapComparator<? super Object> comparator = mr.getLdapComparator();
+    if (comparator == null) {
+      return null;
+    }
+    return new Ordering(at, mr.getNormalizer(), isShared(at, mr),
+        mr.getNormalizer().normalize(node.getValue().getString()), comparator, greater);
+  }//compileOrdering
+
+  private Predicate compileSubstring(SubstringNode node) throws LdapException {
+    AttributeType at = resolve(node.getAttribute());
+    if (at == null) {
+      return null;
+    }
+    MatchingRule mr = (at.getSubstring() != null) ? at.getSubstring() : at.getEquality();
+    if (mr == null) {
+      return null;
+    }
+    return new Substring(at, mr.getNormalizer(), isShared(at, mr), node.getRegex(mr.getNormalizer()));
+  }//compileSubstring
+
+  /**
+   * Returns the attribute type of an assertion, or null if the assertion
+   * cannot be decided from the values of that type alone.
+   */
+  private AttributeType resolve(String attribute) throws LdapException {
+    AttributeType at = m_SchemaManager.lookupAttributeTypeRegistry(attribute);
+    if (!isDecidable(at)
+        || m_SchemaManager.getAttributeTypeRegistry().hasDescendants(at.getOid())) {
+      return null;
+    }
+    return at;
+  }//resolve
+
+  private boolean isDecidable(AttributeType at) {
+    return !m_Undecided.contains(at.getOid())
+        && at.getSyntax() != null && at.getSyntax().isHumanReadable();
+  }//isDecidable
+
+  /**
+   * Tells if the given matching rule normalizes like the equality matching rule,
+   * i.e. if the values normalized in place can be used.
+   */
+  private static boolean isShared(AttributeType at, MatchingRule mr) {
+    MatchingRule equality = at.getEquality();
+    return equality != null && equality.getNormalizer() != null && mr.getNormalizer() != null
+        && equality.getNormalizer().getClass() == mr.getNormalizer().getClass();
+  }//isShared
+
+  /**
+   * Returns the normalized form of a value.
+   *
+   * @param value      the value.
+   * @param normalizer the normalizer of the matching rule.
+   * @param shared     true if a value normalized in place can be used.
+   * @return the normalized value, or null if it cannot be normalized.
+   */
+  private static String normalized(Value<?> value, Normalizer normalizer, boolean shared) {
+    if (shared && value.isNormalized()) {
+      Object norm = value.getNormalizedValueReference();
+      if (norm instanceof String) {
+        return (String) norm;
+      }
+    }
+    try {
+      return normalizer.normalize(value.getString());
+    } catch (LdapException ex) {
+      return null;
+    }
+  }//normalized
+
+  /**
+   * A compiled filter.
+   */
+  abstract static class Predicate {
+
+    /**
+     * Evaluates this predicate.
+     *
+     * @param entry the entry.
+     * @return true if the entry matches.
+     */
+    abstract boolean matches(ServerEntry entry);
+
+    /**
+     * Tells if this predicate matches exactly the entries matching its filter,
+     * and not a superset.
+     *
+     * @return true if exact, false otherwise.
+     */
+    boolean isExact() {
+      return true;
+    }//isExact
+
+  }//inner class Predicate
+
+  /**
+   * Matches all entries; the compiled form of filters that cannot be decided.
+   */
+  static final Predicate ANY = new Predicate() {
+    boolean matches(ServerEntry entry) {
+      return true;
+    }
+
+    boolean isExact() {
+      return false;
+    }
+  };
+
+  private static class And extends Predicate {
+
+    private final Predicate[] m_Predicates;
+    private final boolean m_Exact;
+
+    And(Predicate[] predicates, boolean exact) {
+      m_Predicates = predicates;
+      m_Exact = exact;
+    }//constructor
+
+    boolean isExact() {
+      return m_Exact;
+    }//isExact
+
+    boolean matches(ServerEntry entry) {
+      for (Predicate p : m_Predicates) {
+        if (!p.matches(entry)) {
+          return false;
+        }
+      }
+      return true;
+    }//matches
+
+  }//inner class And
+
+  private static class Or extends Predicate {
+
+    private final Predicate[] m_Predicates;
+    private final boolean m_Exact;
+
+    Or(Predicate[] predicates, boolean exact) {
+      m_Predicates = predicates;
+      m_Exact = exact;
+    }//constructor
+
+    boolean isExact() {
+      return m_Exact;
+    }//isExact
+
+    boolean matches(ServerEntry entry) {
+      for (Predicate p : m_Predicates) {
+        if (p.matches(entry)) {
+          return true;
+        }
+      }
+      return false;
+    }//matches
+
+  }//inner class Or
+
+  private static class Not extends Predicate {
+
+    private final Predicate m_Predicate;
+
+    Not(Predicate predicate) {
+      m_Predicate = predicate;
+    }//constructor
+
+    boolean matches(ServerEntry entry) {
+      return !m_Predicate.matches(entry);
+    }//matches
+
+  }//inner class Not
+
+  private static class Presence extends Predicate {
+
+    private final AttributeType m_AttributeType;
+
+    Presence(AttributeType at) {
+      m_AttributeType = at;
+    }//constructor
+
+    boolean matches(ServerEntry entry) {
+      EntryAttribute attr = entry.get(m_AttributeType);
+      return attr != null && attr.size() > 0;
+    }//matches
+
+  }//inner class Presence
+
+  /**
+   * Base of the assertions on the values of an attribute.
+   */
+  private abstract static class ValueAssertion extends Predicate {
+
+    private final AttributeType m_AttributeType;
+    private final Normalizer m_Normalizer;
+    private final boolean m_Shared;
+
+    ValueAssertion(AttributeType at, Normalizer normalizer, boolean shared) {
+      m_AttributeType = at;
+      m_Normalizer = normalizer;
+      m_Shared = shared;
+    }//constructor
+
+    boolean matches(ServerEntry entry) {
+      EntryAttribute attr = entry.get(m_AttributeType);
+      if (attr == null) {
+        return false;
+      }
+      for (Value<?> value : attr) {
+        String norm = normalized(value, m_Normalizer, m_Shared);
+        if (norm != null && matches(norm)) {
+          return true;
+        }
+      }
+      return false;
+    }//matches
+
+    abstract boolean matches(String value);
+
+  }//inner class ValueAssertion
+
+  private static class Equality extends ValueAssertion {
+
+    private final String m_Value;
+
+    Equality(AttributeType at, Normalizer normalizer, String value) {
+      super(at, normalizer, true);
+      m_Value = value;
+    }//constructor
+
+    boolean matches(String value) {
+      return m_Value.equals(value);
+    }//matches
+
+  }//inner class Equality
+
+  private static class Ordering extends ValueAssertion {
+
+    private final String m_Value;
+    private final LdapComparator<? super Object> m_Comparator;
+    private final boolean m_Greater;
+
+    Ordering(AttributeType at, Normalizer normalizer, boolean shared, String value,
+             LdapComparator<? super Object> comparator, boolean greater) {
+      super(at, normalizer, shared);
+      m_Value = value;
+      m_Comparator = comparator;
+      m_Greater = greater;
+    }//constructor
+
+    boolean matches(String value) {
+      int c = m_Comparator.compare(value, m_Value);
+      return m_Greater ? c >= 0 : c <= 0;
+    }//matches
+
+  }//inner class Ordering
+
+  private static class Substring extends ValueAssertion {
+
+    private final Pattern m_Pattern;
+
+    Substring(AttributeType at, Normalizer normalizer, boolean shared, Pattern pattern) {
+      super(at, normalizer, shared);
+      m_Pattern = pattern;
+    }//constructor
+
+    boolean matches(String value) {
+      return m_Pattern.matcher(value).matches();
+    }//matches
+
+  }//inner class Substring
+
+}//class FilterCompiler
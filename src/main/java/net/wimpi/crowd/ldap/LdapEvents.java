@@ -0,0 +1,62 @@
+package net.wimpi.crowd.ldap;
+
+import net.wimpi.crowd.ldap.util.FlightEvents;
+
+/**
+ * Defines the Java Flight Recorder events of the server, so that a recording
+ * shows a slow LDAP operation together with the cache misses, entry builds
+ * and Crowd calls it caused, on the same thread and timeline as GC and I/O.
+ * <p/>
+ * The defaults keep a continuous recording cheap: operations are recorded
+ * from 1 ms, Crowd calls and cache misses always, and cache hits not at all.
+ * <tt>etc/crowd-ldap-server.jfc</tt> enables all events for profiling.
+ */
+final class LdapEvents {
+
+  private static final String PREFIX = "net.wimpi.crowd.ldap.";
+  private static final String[] PARTITION = {"Crowd LDAP", "Partition"};
+  private static final String[] CACHE = {"Crowd LDAP", "Cache"};
+  private static final String[] AUTHENTICATION = {"Crowd LDAP", "Authentication"};
+  private static final String[] CROWD = {"Crowd LDAP", "Crowd"};
+
+  private LdapEvents() {
+  }//constructor
+
+  static final FlightEvents.Type SEARCH = FlightEvents.define(
+      PREFIX + "Search", "LDAP Search", "Search in a Crowd partition", PARTITION, true, "1 ms",
+      "String partition", "String dn", "String scope", "String filter", "int entries");
+
+  static final FlightEvents.Type LOOKUP = FlightEvents.define(
+      PREFIX + "Lookup", "LDAP Lookup", "Lookup of an entry in a Crowd partition", PARTITION, true, "1 ms",
+      "String partition", "String dn", "boolean found");
+
+  static final FlightEvents.Type HAS_ENTRY = FlightEvents.define(
+      PREFIX + "HasEntry", "LDAP Has Entry", "Existence check of an entry in a Crowd partition", PARTITION, true, "1 ms",
+      "String partition", "String dn", "boolean found");
+
+  static final FlightEvents.Type ENTRY_BUILD = FlightEvents.define(
+      PREFIX + "EntryBuild", "Entry Build", "Creation of a user or group entry from Crowd", PARTITION, true, "1 ms",
+      "String partition", "String dn", "String type", "boolean built");
+
+  static final FlightEvents.Type CACHE_HIT = FlightEvents.define(
+      PREFIX + "CacheHit", "Entry Cache Hit", "Entry found in the entry cache", CACHE, false, "0 ms",
+      "String partition", "String dn", "String tier");
+
+  static final FlightEvents.Type CACHE_MISS = FlightEvents.define(
+      PREFIX + "CacheMiss", "Entry Cache Miss", "Entry not found in the entry cache", CACHE, true, "0 ms",
+      "String partition", "String dn");
+
+  static final FlightEvents.Type CACHE_EVICT = FlightEvents.define(
+      PREFIX + "CacheEvict", "Entry Cache Eviction", "Entry expelled from the entry cache", CACHE, true, "0 ms",
+      "String partition", "String dn", "boolean demoted");
+
+  static final FlightEvents.Type BIND = FlightEvents.define(
+      PREFIX + "Bind", "LDAP Bind", "Simple bind authenticated by Crowd", AUTHENTICATION, true, "0 ms",
+      "String tenant", "String dn", "String user", "String outcome");
+
+  static final FlightEvents.Type CROWD_CALL = FlightEvents.define(
+      PREFIX + "CrowdCall", "Crowd Call", "Call of the Crowd REST API, including the wait for admission",
+      CROWD, true, "0 ms",
+      "String call", "String operation", "int resultSize", "boolean success");
+
+}//class LdapEvents
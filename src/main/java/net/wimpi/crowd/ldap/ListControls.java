@@ -0,0 +1,289 @@
+package net.wimpi.crowd.ldap;
+
+import net.wimpi.crowd.ldap.util.Ber;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.codec.controls.ControlImpl;
+import org.apache.directory.shared.ldap.exception.LdapOperationException;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.control.Control;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Handles the server side sort (RFC 2891) and virtual list view
+ * (draft-ietf-ldapext-ldapv3-vlv) controls of a search.
+ * <p/>
+ * The LDAP codec of ApacheDS passes these controls on undecoded,
+ * so their values are read and written with {@link Ber}.
+ * Only the first sort key is used, and only if it is one of the attributes
+ * held in a {@link UserSortIndex}; ordering rules are ignored.
+ * <p/>
+ * A view is selected either by offset, scaled to the current content count
+ * if the client's estimate differs, or by the first entry greater than
+ * or equal to an assertion value.
+ */
+class ListControls {
+
+  private static final Logger log = LoggerFactory.getLogger(ListControls.class);
+
+  private final SearchOperationContext m_Context;
+  private Control m_SortControl;
+  private Control m_ViewControl;
+  private String m_SortType;
+  private int m_Attribute = -1;
+  private boolean m_Reverse;
+  private int m_SortResult = SUCCESS;
+
+  private int m_Before;
+  private int m_After;
+  private int m_Offset;
+  private int m_ContentCount;
+  private String m_Assertion;
+  private byte[] m_ContextID;
+  private int m_ViewResult = SUCCESS;
+  private int m_TargetPosition;
+  private int m_Count;
+
+  private ListControls(SearchOperationContext ctx) {
+    m_Context = ctx;
+  }//constructor
+
+  /**
+   * Reads the sort and view controls of the given search.
+   *
+   * @param ctx           the search.
+   * @param schemaManager the schema manager, resolving the sort attribute.
+   * @return the controls, or null if the search has neither.
+   * @throws LdapOperationException if a critical control cannot be honored.
+   */
+  static ListControls forSearch(SearchOperationContext ctx, SchemaManager schemaManager)
+      throws LdapOperationException {
+    if (!ctx.hasRequestControl(SORT_REQUEST_OID) && !ctx.hasRequestControl(VLV_REQUEST_OID)) {
+      return null;
+    }
+    ListControls lc = new ListControls(ctx);
+    lc.m_SortControl = ctx.getRequestControl(SORT_REQUEST_OID);
+    lc.m_ViewControl = ctx.getRequestControl(VLV_REQUEST_OID);
+    if (lc.m_SortControl != null) {
+      try {
+        lc.readSort(schemaManager);
+      } catch (IOException ex) {
+        log.debug("forSearch()", ex);
+        lc.m_SortResult = PROTOCOL_ERROR;
+      }
+      if (lc.m_SortResult != SUCCESS) {
+        lc.reject(lc.m_SortControl, "Sort on " + lc.m_SortType + " not supported");
+      }
+    }
+    if (lc.m_ViewControl != null) {
+      try {
+        lc.readView();
+      } catch (IOException ex) {
+        log.debug("forSearch()", ex);
+        lc.m_ViewResult = PROTOCOL_ERROR;
+      }
+      if (lc.m_ViewResult == SUCCESS && lc.m_SortControl == null) {
+        lc.m_ViewResult = SORT_CONTROL_MISSING;
+      }
+      if (lc.m_ViewResult != SUCCESS) {
+        lc.reject(lc.m_ViewControl, "Virtual list view not supported for this search");
+      }
+    }
+    return lc;
+  }//forSearch
+
+  /**
+   * Tests if the result should be sorted.
+   *
+   * @return true if sorting on a supported attribute was requested.
+   */
+  boolean isSorted() {
+    return m_SortControl != null && m_SortResult == SUCCESS;
+  }//isSorted
+
+  /**
+   * Tests if only a window of the sorted result should be returned.
+   *
+   * @return true if a valid view was requested.
+   */
+  boolean isView() {
+    return isSorted() && m_ViewControl != null && m_ViewResult == SUCCESS;
+  }//isView
+
+  /**
+   * Returns the sort attribute.
+   *
+   * @return the index of the attribute in {@link UserSortIndex#ATTRIBUTES}.
+   */
+  int getAttribute() {
+    return m_Attribute;
+  }//getAttribute
+
+  boolean isReverse() {
+    return m_Reverse;
+  }//isReverse
+
+  /**
+   * Marks the sort as failed, e.g. because the index is not available.
+   *
+   * @throws LdapOperationException if the sort is critical.
+   */
+  void failed() throws LdapOperationException {
+    m_SortResult = OTHER;
+    reject(m_SortControl, "Sort not available");
+  }//failed
+
+  /**
+   * Selects the requested part of all users in the index.
+   *
+   * @param index the sort index.
+   * @return the usernames in order.
+   */
+  List<String> select(UserSortIndex index) {
+    int count = index.size();
+    if (!isView()) {
+      return index.window(m_Attribute, m_Reverse, 0, count);
+    }
+    int target = (m_Assertion != null)
+        ? index.position(m_Attribute, m_Reverse, m_Assertion)
+        : target(count);
+    return index.window(m_Attribute, m_Reverse, from(target), to(target, count));
+  }//select
+
+  /**
+   * Sorts the given usernames and selects the requested part.
+   *
+   * @param index the sort index.
+   * @param names the usernames matching the search.
+   * @return the usernames in order.
+   */
+  List<String> select(UserSortIndex index, List<String> names) {
+    List<String> sorted = index.sort(names, m_Attribute, m_Reverse);
+    if (!isView()) {
+      return sorted;
+    }
+    int count = sorted.size();
+    int target = (m_Assertion != null)
+        ? index.position(sorted, m_Attribute, m_Reverse, m_Assertion)
+        : target(count);
+    return sorted.subList(from(target), to(target, count));
+  }//select
+
+  /**
+   * Adds the response controls to the search result.
+   */
+  void respond() {
+    if (m_SortControl != null) {
+      Ber.Writer contents = new Ber.Writer().writeInteger(Ber.ENUMERATED, m_SortResult);
+      if (m_SortResult == NO_SUCH_ATTRIBUTE && m_SortType != null) {
+        contents.writeString(Ber.context(0), m_SortType);
+      }
+      addResponseControl(SORT_RESPONSE_OID, contents);
+    }
+    if (m_ViewControl != null) {
+      Ber.Writer contents = new Ber.Writer()
+          .writeInteger(Ber.INTEGER, m_TargetPosition)
+          .writeInteger(Ber.INTEGER, m_Count)
+          .writeInteger(Ber.ENUMERATED, (m_ViewResult == SUCCESS && !isView()) ? UNWILLING_TO_PERFORM : m_ViewResult);
+      if (m_ContextID != null) {
+        contents.writeOctets(Ber.OCTET_STRING, m_ContextID);
+      }
+      addResponseControl(VLV_RESPONSE_OID, contents);
+    }
+  }//respond
+
+  private void addResponseControl(String oid, Ber.Writer contents) {
+    ControlImpl control = new ControlImpl(oid);
+    control.setValue(new Ber.Writer().writeConstructed(Ber.SEQUENCE, contents).toByteArray());
+    m_Context.addResponseControl(control);
+  }//addResponseControl
+
+  //Note: 0 based target, from the 1 based offset of the client
+  private int target(int count) {
+    if (count == 0) {
+      return 0;
+    }
+    long offset = m_Offset;
+    if (m_ContentCount > 0 && m_ContentCount != count) {
+      offset = Math.round((double) m_Offset * count / m_ContentCount);
+    }
+    return (int) Math.max(1L, Math.min(offset, count)) - 1;
+  }//target
+
+  private int from(int target) {
+    return Math.max(0, target - m_Before);
+  }//from
+
+  private int to(int target, int count) {
+    m_TargetPosition = target + 1;
+    m_Count = count;
+    return (int) Math.min((long) count, (long) target + m_After + 1);
+  }//to
+
+  private void readSort(SchemaManager schemaManager) throws IOException {
+    Ber.Reader keys = new Ber.Reader(m_SortControl.getValue()).readConstructed(Ber.SEQUENCE);
+    Ber.Reader key = keys.readConstructed(Ber.SEQUENCE);
+    m_SortType = key.readString(Ber.OCTET_STRING);
+    if (key.peekTag() == Ber.context(0)) {
+      key.skip();
+    }
+    if (key.peekTag() == Ber.context(1)) {
+      m_Reverse = key.readBoolean(Ber.context(1));
+    }
+    try {
+      m_Attribute = UserSortIndex.indexOf(schemaManager.lookupAttributeTypeRegistry(m_SortType).getOid());
+    } catch (Exception ex) {
+      m_Attribute = -1;
+    }
+    if (m_Attribute < 0) {
+      m_SortResult = NO_SUCH_ATTRIBUTE;
+    }
+  }//readSort
+
+  private void readView() throws IOException {
+    Ber.Reader request = new Ber.Reader(m_ViewControl.getValue()).readConstructed(Ber.SEQUENCE);
+    m_Before = (int) Math.max(0L, Math.min(request.readInteger(Ber.INTEGER), MAX_WINDOW));
+    m_After = (int) Math.max(0L, Math.min(request.readInteger(Ber.INTEGER), MAX_WINDOW));
+    if (request.peekTag() == Ber.contextConstructed(0)) {
+      Ber.Reader byOffset = request.readConstructed(Ber.contextConstructed(0));
+      m_Offset = (int) Math.max(0L, Math.min(byOffset.readInteger(Ber.INTEGER), Integer.MAX_VALUE));
+      m_ContentCount = (int) Math.max(0L, Math.min(byOffset.readInteger(Ber.INTEGER), Integer.MAX_VALUE));
+      if (m_Offset == 0) {
+        m_ViewResult = OFFSET_RANGE_ERROR;
+      }
+    } else {
+      m_Assertion = request.readString(Ber.context(1));
+    }
+    if (request.peekTag() == Ber.OCTET_STRING) {
+      m_ContextID = request.readOctets(Ber.OCTET_STRING);
+    }
+  }//readView
+
+  private void reject(Control control, String message) throws LdapOperationException {
+    if (control.isCritical()) {
+      throw new LdapOperationException(ResultCodeEnum.UNAVAILABLE_CRITICAL_EXTENSION, message);
+    }
+  }//reject
+
+  static final String SORT_REQUEST_OID = "1.2.840.113556.1.4.473";
+  static final String SORT_RESPONSE_OID = "1.2.840.113556.1.4.474";
+  static final String VLV_REQUEST_OID = "2.16.840.1.113730.3.4.9";
+  static final String VLV_RESPONSE_OID = "2.16.840.1.113730.3.4.10";
+
+  //Result codes of the response controls
+  private static final int SUCCESS = 0;
+  private static final int PROTOCOL_ERROR = 2;
+  private static final int NO_SUCH_ATTRIBUTE = 16;
+  private static final int UNWILLING_TO_PERFORM = 53;
+  private static final int SORT_CONTROL_MISSING = 60;
+  private static final int OFFSET_RANGE_ERROR = 61;
+  private static final int OTHER = 80;
+
+  //Upper bound of entries before and after the target
+  private static final long MAX_WINDOW = 10000L;
+
+}//class ListControls
@@ -0,0 +1,209 @@
+package net.wimpi.crowd.ldap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects concurrent lookups of single users or groups by name, and resolves
+ * them with one multi-term search towards Crowd, e.g. during a login storm.
+ * <p/>
+ * The first lookup opens a batch and waits for the batch window, or until the
+ * batch is full; lookups arriving meanwhile join the batch and wait for its result.
+ * The first lookup then resolves the batch on its own thread and dispatches the
+ * entities, respectively the failure of the search, to all lookups of the batch;
+ * if the first lookup is interrupted while waiting, all lookups of the batch fail.
+ * A batch holding a single name is resolved with the single lookup, so that
+ * a lookup arriving alone costs the window, but no other change.
+ * <p/>
+ * Names are matched case insensitively, as in Crowd.
+ */
+class LookupBatcher<T> {
+
+  private final long m_Window;
+  private final int m_MaxBatch;
+  private final Resolver<T> m_Resolver;
+  private Batch m_Open;
+
+  private final AtomicLong m_Lookups = new AtomicLong(0);
+  private final AtomicLong m_Searches = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>LookupBatcher</tt>.
+   *
+   * @param window   the time the first lookup of a batch waits for others, in milliseconds.
+   * @param maxBatch the maximum number of names per batch.
+   * @param resolver the resolver of the lookups.
+   */
+  LookupBatcher(long window, int maxBatch, Resolver<T> resolver) {
+    m_Window = TimeUnit.MILLISECONDS.toNanos(window);
+    m_MaxBatch = Math.max(2, maxBatch);
+    m_Resolver = resolver;
+  }//constructor
+
+  /**
+   * Looks up an entity, together with the concurrent lookups.
+   *
+   * @param name the name of the entity.
+   * @return the entity.
+   * @throws Exception if not found, or if the lookup respectively search fails.
+   */
+  T get(String name) throws Exception {
+    m_Lookups.incrementAndGet();
+    Batch batch;
+    boolean first;
+    synchronized (this) {
+      first = (m_Open == null);
+      if (first) {
+        m_Open = new Batch();
+      }
+      batch = m_Open;
+      if (batch.add(name) >= m_MaxBatch) {
+        m_Open = null;
+      }
+    }
+    if (first) {
+      try {
+        try {
+          batch.awaitFull(m_Window, m_MaxBatch);
+        } finally {
+          synchronized (this) {
+            if (m_Open == batch) {
+              m_Open = null;
+            }
+          }
+        }
+        resolve(batch);
+      } catch (InterruptedException ex) {
+        //the batch is not resolved; its lookups fail instead of finding no entity
+        batch.m_Failure = ex;
+        Thread.currentThread().interrupt();
+      } finally {
+        batch.m_Done.countDown();
+      }
+    } else {
+      batch.m_Done.await();
+    }
+    return batch.get(name);
+  }//get
+
+  private void resolve(Batch batch) {
+    try {
+      if (batch.m_Names.size() == 1) {
+        String name = batch.m_Names.values().iterator().next();
+        batch.m_Results.put(key(name), m_Resolver.get(name));
+      } else {
+        m_Searches.incrementAndGet();
+        for (T entity : m_Resolver.search(new ArrayList<String>(batch.m_Names.values()))) {
+          batch.m_Results.put(key(m_Resolver.getName(entity)), entity);
+        }
+      }
+    } catch (Exception ex) {
+      batch.m_Failure = ex;
+    }
+  }//resolve
+
+  /**
+   * Returns the number of lookups.
+   *
+   * @return the number of lookups, batched or not.
+   */
+  long getLookups() {
+    return m_Lookups.get();
+  }//getLookups
+
+  /**
+   * Returns the number of multi-term searches resolving batches.
+   *
+   * @return the number of searches.
+   */
+  long getSearches() {
+    return m_Searches.get();
+  }//getSearches
+
+  private static String key(String name) {
+    return name.toLowerCase(Locale.ENGLISH);
+  }//key
+
+  /**
+   * Resolves the lookups of a batch.
+   */
+  static interface Resolver<T> {
+
+    /**
+     * Looks up a single entity.
+     *
+     * @param name the name.
+     * @return the entity.
+     * @throws Exception if not found or if the lookup fails.
+     */
+    T get(String name) throws Exception;
+
+    /**
+     * Searches the entities with the given names.
+     *
+     * @param names the names.
+     * @return the entities found.
+     * @throws Exception if the search fails.
+     */
+    List<T> search(List<String> names) throws Exception;
+
+    String getName(T entity);
+
+    /**
+     * Returns the exception for a name the search did not find.
+     *
+     * @param name the name.
+     * @return the exception to be thrown to the lookup.
+     */
+    Exception notFound(String name);
+
+  }//interface Resolver
+
+  private class Batch {
+
+    //distinct names by key
+    private final Map<String, String> m_Names = new LinkedHashMap<String, String>();
+    private final Map<String, T> m_Results = new HashMap<String, T>();
+    private final CountDownLatch m_Done = new CountDownLatch(1);
+    private volatile Exception m_Failure;
+
+    synchronized int add(String name) {
+      String key = key(name);
+      if (!m_Names.containsKey(key)) {
+        m_Names.put(key, name);
+      }
+      if (m_Names.size() >= m_MaxBatch) {
+        notifyAll();
+      }
+      return m_Names.size();
+    }//add
+
+    synchronized void awaitFull(long window, int max) throws InterruptedException {
+      long deadline = System.nanoTime() + window;
+      long wait;
+      while (m_Names.size() < max && (wait = deadline - System.nanoTime()) > 0) {
+        TimeUnit.NANOSECONDS.timedWait(this, wait);
+      }
+    }//awaitFull
+
+    T get(String name) throws Exception {
+      if (m_Failure != null) {
+        throw m_Failure;
+      }
+      T entity = m_Results.get(key(name));
+      if (entity == null) {
+        throw m_Resolver.notFound(name);
+      }
+      return entity;
+    }//get
+
+  }//inner class Batch
+
+}//class LookupBatcher
@@ -0,0 +1,40 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.server.core.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.interceptor.NextInterceptor;
+import org.apache.directory.server.core.interceptor.context.CompareOperationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers LDAP compare operations on <tt>member</tt> and <tt>memberOf</tt>
+ * of entries in the {@link CrowdPartition}s with a membership check,
+ * instead of building the whole group, respectively user entry.
+ * <p/>
+ * All other compare operations are passed on along the chain.
+ */
+public class MembershipInterceptor extends BaseInterceptor {
+
+  private final List<CrowdPartition> m_Partitions;
+
+  public MembershipInterceptor(List<CrowdPartition> partitions) {
+    m_Partitions = new ArrayList<CrowdPartition>(partitions);
+  }//constructor
+
+  public boolean compare(NextInterceptor next, CompareOperationContext ctx) throws Exception {
+    if (ctx.getValue() != null) {
+      for (CrowdPartition partition : m_Partitions) {
+        if (ctx.getDn().isChildOf(partition.getSuffixDn())) {
+          Boolean result = partition.compareMembership(ctx.getDn(), ctx.getOid(), ctx.getValue().getString());
+          if (result != null) {
+            return result;
+          }
+          break;
+        }
+      }
+    }
+    return next.compare(ctx);
+  }//compare
+
+}//class MembershipInterceptor
@@ -0,0 +1,86 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.server.core.partition.avl.AvlPartition;
+import org.apache.directory.shared.ldap.constants.SchemaConstants;
+import org.apache.directory.shared.ldap.csn.CsnFactory;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.Entry;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.ldif.LdifEntry;
+import org.apache.directory.shared.ldap.ldif.LdifReader;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.ResourceMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory partition to be wrapped by the schema partition,
+ * holding the schema entries read from the ApacheDS archive,
+ * instead of the <tt>LdifPartition</tt> over the schema extracted
+ * into the working directory.
+ * <p/>
+ * Changes to the schema are lost when the server is stopped.
+ */
+class MemorySchemaPartition extends AvlPartition {
+
+  private static final Logger log = LoggerFactory.getLogger(MemorySchemaPartition.class);
+
+  private final List<Entry> m_Additional;
+
+  /**
+   * Creates a new <tt>MemorySchemaPartition</tt>.
+   *
+   * @param additional entries added after those of the archive, e.g. the memberOf attribute type.
+   */
+  MemorySchemaPartition(List<Entry> additional) {
+    m_Additional = new ArrayList<Entry>(additional);
+  }//constructor
+
+  protected void doInit() throws Exception {
+    super.doInit();
+    //Note: a parent file sorts before the directory of its children, as '.' < '/'
+    Set<String> resources = new TreeSet<String>(ResourceMap.getResources(SCHEMA_RESOURCES).keySet());
+    CsnFactory csnFactory = new CsnFactory(0);
+    int count = 0;
+    for (String resource : resources) {
+      InputStream in = DefaultSchemaLdifExtractor.getUniqueResourceAsStream(resource, "schema LDIF file");
+      try {
+        LdifReader reader = new LdifReader(in);
+        for (LdifEntry ldif : reader) {
+          add(ldif.getEntry(), csnFactory);
+          count++;
+        }
+        reader.close();
+      } finally {
+        in.close();
+      }
+    }
+    for (Entry entry : m_Additional) {
+      add(entry, csnFactory);
+      count++;
+    }
+    log.debug("doInit()::Loaded " + count + " schema entries");
+  }//doInit
+
+  private void add(Entry entry, CsnFactory csnFactory) throws Exception {
+    ServerEntry serverEntry = new DefaultServerEntry(getSchemaManager(), entry);
+    if (!serverEntry.containsAttribute(SchemaConstants.ENTRY_CSN_AT)) {
+      serverEntry.put(SchemaConstants.ENTRY_CSN_AT, csnFactory.newInstance().toString());
+    }
+    if (!serverEntry.containsAttribute(SchemaConstants.ENTRY_UUID_AT)) {
+      serverEntry.put(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+    }
+    getStore().add(serverEntry);
+  }//add
+
+  private static final Pattern SCHEMA_RESOURCES = Pattern.compile("schema/ou=schema.*\\.ldif");
+
+}//class MemorySchemaPartition
@@ -0,0 +1,281 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.model.user.User;
+import net.wimpi.crowd.ldap.util.CacheMapExpelHandler;
+import net.wimpi.crowd.ldap.util.LRUCacheMap;
+import net.wimpi.crowd.ldap.util.RateLimiter;
+import org.apache.directory.shared.ldap.exception.LdapServiceUnavailableException;
+import org.apache.directory.shared.ldap.name.DN;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the entries a client is about to read into the entry cache of a
+ * {@link CrowdPartition}, following the access pattern of applications
+ * that bind as a user, read the user entry, and then each group
+ * in the user's <tt>memberOf</tt>:
+ * <ul>
+ * <li>on a successful bind with the DN of a user entry, the user entry is cached,
+ * built from the user returned by Crowd's authentication;</li>
+ * <li>when a user entry is loaded from Crowd, the groups of the user are
+ * looked up and their entries loaded.</li>
+ * </ul>
+ * Prefetching runs on a few background threads, behind a bounded queue, and its
+ * calls towards Crowd are limited by a rate budget; work exceeding the queue or the
+ * budget is skipped, not delayed. Prefetched entries are tracked until read or expelled,
+ * and the share of prefetched entries read by clients is reported as hit rate.
+ */
+public class Prefetcher implements PrefetcherMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+  private final CrowdPartition m_Partition;
+  private final RateLimiter m_Budget;
+  private final boolean m_Users;
+  private final boolean m_Groups;
+  private final ThreadPoolExecutor m_Executor;
+  private final ConcurrentMap<String, Boolean> m_Pending = new ConcurrentHashMap<String, Boolean>();
+  //prefetched entries not read yet
+  private final LRUCacheMap<String, Boolean> m_Prefetched;
+
+  private final AtomicLong m_Entries = new AtomicLong(0);
+  private final AtomicLong m_Hits = new AtomicLong(0);
+  private final AtomicLong m_Wasted = new AtomicLong(0);
+  private final AtomicLong m_OverBudget = new AtomicLong(0);
+  private final AtomicLong m_Dropped = new AtomicLong(0);
+  private final AtomicLong m_Failures = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>Prefetcher</tt>.
+   *
+   * @param partition the partition whose entry cache is filled.
+   * @param threads   the number of prefetching threads.
+   * @param queueSize the number of pending prefetches.
+   * @param rate      the maximum number of calls towards Crowd per second.
+   * @param users     true to cache the user entry on bind.
+   * @param groups    true to load the groups of a loaded user entry.
+   */
+  public Prefetcher(CrowdPartition partition, int threads, int queueSize, double rate,
+                    boolean users, boolean groups) {
+    m_Partition = partition;
+    m_Budget = new RateLimiter(rate);
+    m_Users = users;
+    m_Groups = groups;
+    m_Prefetched = new LRUCacheMap<String, Boolean>(Math.max(1, partition.getCacheSize()));
+    m_Prefetched.setExpelHandler(new CacheMapExpelHandler<String, Boolean>() {
+      public void expelled(Map.Entry<String, Boolean> entry) {
+        m_Wasted.incrementAndGet();
+      }
+    });
+    threads = Math.max(1, threads);
+    m_Executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+          private final AtomicInteger m_Count = new AtomicInteger(0);
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "crowd-prefetch-" + m_Count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    m_Executor.allowCoreThreadTimeOut(true);
+  }//constructor
+
+  /**
+   * Returns the generation of the entry cache, to be obtained before
+   * authenticating, see {@link #authenticated(DN, User, long)}.
+   *
+   * @return the generation.
+   */
+  long getGeneration() {
+    return m_Partition.getEntryGeneration();
+  }//getGeneration
+
+  /**
+   * Called when a user was authenticated by Crowd.
+   *
+   * @param dn         the bind DN.
+   * @param user       the user returned by Crowd.
+   * @param generation the generation obtained before authenticating; the user
+   *                   entry is not cached if entries were invalidated since.
+   */
+  void authenticated(final DN dn, final User user, final long generation) {
+    if (!m_Users) {
+      return;
+    }
+    submit("u:" + dn.getName(), new Runnable() {
+      public void run() {
+        try {
+          //built from the authenticated user, no call towards Crowd
+          if (m_Partition.getUserName(dn) != null && !m_Partition.isCached(dn.getName())
+              && m_Partition.cacheUserEntry(dn, user, generation) != null) {
+            prefetched(dn.getName());
+          }
+        } catch (Exception ex) {
+          m_Failures.incrementAndGet();
+          log.debug("authenticated()::" + dn, ex);
+        }
+      }
+    });
+  }//authenticated
+
+  /**
+   * Called when a user entry was loaded from Crowd.
+   *
+   * @param user the user name, as in the DN of the entry.
+   */
+  void userLoaded(final String user) {
+    if (!m_Groups) {
+      return;
+    }
+    submit("g:" + user, new Runnable() {
+      public void run() {
+        if (!m_Budget.tryAcquire()) {
+          m_OverBudget.incrementAndGet();
+          return;
+        }
+        try {
+          //shares the load of a client reading the memberOf of the same user
+          List<String> groups = m_Partition.getMemberOf(user);
+          for (String group : groups) {
+            //cached under the DN used in search results
+            String name = m_Partition.getGroupName(group);
+            if (name == null) {
+              continue;
+            }
+            DN dn = m_Partition.getGroupDn(name);
+            //groups shared by users loaded at the same time are loaded once
+            if (m_Partition.isCached(dn.getName())
+                || m_Pending.putIfAbsent("e:" + dn.getName(), Boolean.TRUE) != null) {
+              continue;
+            }
+            try {
+              if (!m_Budget.tryAcquire()) {
+                m_OverBudget.incrementAndGet();
+                return;
+              }
+              if (m_Partition.createGroupEntry(dn, AttributeProjection.NONE) != null) {
+                prefetched(dn.getName());
+              }
+            } finally {
+              m_Pending.remove("e:" + dn.getName());
+            }
+          }
+        } catch (LdapServiceUnavailableException ex) {
+          //Crowd is busy, leave the capacity to the clients
+          m_OverBudget.incrementAndGet();
+        } catch (Exception ex) {
+          m_Failures.incrementAndGet();
+          log.debug("userLoaded()::" + user, ex);
+        }
+      }
+    });
+  }//userLoaded
+
+  /**
+   * Called when an entry is read from the entry cache.
+   *
+   * @param dn the DN of the entry.
+   */
+  void used(String dn) {
+    Boolean prefetched;
+    synchronized (m_Prefetched) {
+      prefetched = m_Prefetched.remove(dn);
+    }
+    if (prefetched != null) {
+      m_Hits.incrementAndGet();
+    }
+  }//used
+
+  /**
+   * Called when an entry is expelled from the entry cache.
+   *
+   * @param dn the DN of the entry.
+   */
+  void evicted(String dn) {
+    Boolean prefetched;
+    synchronized (m_Prefetched) {
+      prefetched = m_Prefetched.remove(dn);
+    }
+    if (prefetched != null) {
+      m_Wasted.incrementAndGet();
+    }
+  }//evicted
+
+  private void prefetched(String dn) {
+    m_Entries.incrementAndGet();
+    synchronized (m_Prefetched) {
+      m_Prefetched.put(dn, Boolean.TRUE);
+    }
+  }//prefetched
+
+  private void submit(final String key, final Runnable task) {
+    if (m_Pending.putIfAbsent(key, Boolean.TRUE) != null) {
+      return;
+    }
+    try {
+      m_Executor.execute(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            m_Pending.remove(key);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      m_Pending.remove(key);
+      m_Dropped.incrementAndGet();
+    }
+  }//submit
+
+  public double getRate() {
+    return m_Budget.getRate();
+  }//getRate
+
+  public int getPending() {
+    return m_Executor.getQueue().size();
+  }//getPending
+
+  public long getPrefetched() {
+    return m_Entries.get();
+  }//getPrefetched
+
+  public long getHits() {
+    return m_Hits.get();
+  }//getHits
+
+  public long getWasted() {
+    return m_Wasted.get();
+  }//getWasted
+
+  public double getHitRate() {
+    long entries = m_Entries.get();
+    return (entries == 0) ? 0.0 : (double) m_Hits.get() / entries;
+  }//getHitRate
+
+  public long getOverBudget() {
+    return m_OverBudget.get();
+  }//getOverBudget
+
+  public long getDropped() {
+    return m_Dropped.get();
+  }//getDropped
+
+  public long getFailures() {
+    return m_Failures.get();
+  }//getFailures
+
+}//class Prefetcher
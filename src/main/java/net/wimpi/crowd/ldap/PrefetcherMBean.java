@@ -0,0 +1,63 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link Prefetcher}.
+ */
+public interface PrefetcherMBean {
+
+  /**
+   * Returns the budget of calls towards Crowd.
+   *
+   * @return the maximum number of calls per second.
+   */
+  public double getRate();
+
+  public int getPending();
+
+  /**
+   * Returns the number of entries loaded into the cache ahead of a client.
+   *
+   * @return the number of prefetched entries.
+   */
+  public long getPrefetched();
+
+  /**
+   * Returns the number of prefetched entries read by a client.
+   *
+   * @return the number of hits.
+   */
+  public long getHits();
+
+  /**
+   * Returns the number of prefetched entries expelled from the cache,
+   * or no longer tracked, before a client read them.
+   *
+   * @return the number of wasted prefetches.
+   */
+  public long getWasted();
+
+  /**
+   * Returns the share of prefetched entries read by a client.
+   *
+   * @return the hit rate between 0 and 1.
+   */
+  public double getHitRate();
+
+  /**
+   * Returns the number of prefetches skipped because the budget was exhausted
+   * or Crowd was busy.
+   *
+   * @return the number of skipped prefetches.
+   */
+  public long getOverBudget();
+
+  /**
+   * Returns the number of prefetches dropped because the queue was full.
+   *
+   * @return the number of dropped prefetches.
+   */
+  public long getDropped();
+
+  public long getFailures();
+
+}//interface PrefetcherMBean
@@ -0,0 +1,157 @@
+package net.wimpi.crowd.ldap;
+
+import net.wimpi.crowd.ldap.util.LRUCacheMap;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Caches the names of the users or groups matching a search, keyed by
+ * the normalized base DN, scope and filter of the search.
+ * <p/>
+ * Only names are cached; the entries are materialized from the entry cache,
+ * with the attributes requested by each search. Results expire after a
+ * time to live, and are invalidated by {@link Kind} when entries change.
+ * <p/>
+ * A result is only cached if no invalidation of its kind happened since
+ * its search started, see {@link #generation(Kind)}; otherwise a result
+ * fetched before a change could be cached after it.
+ */
+class QueryCache {
+
+  private final LRUCacheMap<String, Result> m_Cache;
+  private final long m_TTL;
+  private final long[] m_Generations = new long[Kind.values().length];
+
+  /**
+   * Creates a new <tt>QueryCache</tt>.
+   *
+   * @param size the maximum number of cached results.
+   * @param ttl  the time to live of a result in milliseconds, 0 to disable caching.
+   */
+  QueryCache(int size, long ttl) {
+    m_Cache = new LRUCacheMap<String, Result>(size);
+    m_TTL = ttl;
+  }//constructor
+
+  /**
+   * Returns the cached result of a search.
+   *
+   * @param key the key of the search, see {@link #key(SearchOperationContext)}.
+   * @return the names, or null if not cached or expired.
+   */
+  List<String> get(String key) {
+    if (m_TTL <= 0) {
+      return null;
+    }
+    synchronized (m_Cache) {
+      Result r = m_Cache.get(key);
+      if (r == null) {
+        return null;
+      }
+      if (r.m_Expires < System.currentTimeMillis()) {
+        m_Cache.remove(key);
+        return null;
+      }
+      return r.m_Names;
+    }
+  }//get
+
+  /**
+   * Returns the invalidation generation of the given kind of results,
+   * to be obtained before searching.
+   *
+   * @param kind the kind of results.
+   * @return the generation.
+   */
+  long generation(Kind kind) {
+    synchronized (m_Cache) {
+      return m_Generations[kind.ordinal()];
+    }
+  }//generation
+
+  /**
+   * Caches the result of a search, unless results of its kind
+   * were invalidated since the given generation.
+   *
+   * @param kind       the kind of the result.
+   * @param key        the key of the search.
+   * @param names      the names matching the search.
+   * @param generation the generation obtained before searching, see {@link #generation(Kind)}.
+   */
+  void put(Kind kind, String key, List<String> names, long generation) {
+    if (m_TTL <= 0) {
+      return;
+    }
+    Result r = new Result(kind, Collections.unmodifiableList(names), System.currentTimeMillis() + m_TTL);
+    synchronized (m_Cache) {
+      if (m_Generations[kind.ordinal()] == generation) {
+        m_Cache.put(key, r);
+      }
+    }
+  }//put
+
+  /**
+   * Removes all results of the given kind.
+   *
+   * @param kind the kind of results.
+   */
+  void invalidate(Kind kind) {
+    synchronized (m_Cache) {
+      m_Generations[kind.ordinal()]++;
+      for (Iterator<Result> iter = m_Cache.values().iterator(); iter.hasNext();) {
+        if (iter.next().m_Kind == kind) {
+          iter.remove();
+        }
+      }
+    }
+  }//invalidate
+
+  /**
+   * Removes all results.
+   */
+  void clear() {
+    synchronized (m_Cache) {
+      for (int i = 0; i < m_Generations.length; i++) {
+        m_Generations[i]++;
+      }
+      m_Cache.clear();
+    }
+  }//clear
+
+  /**
+   * Returns the key of a search.
+   *
+   * @param ctx the search operation context.
+   * @return the key.
+   */
+  static String key(SearchOperationContext ctx) {
+    return ctx.getDn().getNormName() + '|' + ctx.getScope() + '|' + ctx.getFilter();
+  }//key
+
+  /**
+   * Defines the kinds of results, i.e. the changes invalidating them.
+   */
+  static enum Kind {
+    USERS,
+    GROUPS,
+    MEMBERSHIPS
+  }//enum Kind
+
+  private static class Result {
+
+    private final Kind m_Kind;
+    private final List<String> m_Names;
+    private final long m_Expires;
+
+    Result(Kind kind, List<String> names, long expires) {
+      m_Kind = kind;
+      m_Names = names;
+      m_Expires = expires;
+    }//constructor
+
+  }//inner class Result
+
+}//class QueryCache
@@ -0,0 +1,323 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.embedded.api.SearchRestriction;
+import com.atlassian.crowd.exception.GroupNotFoundException;
+import com.atlassian.crowd.exception.IncrementalSynchronisationNotAvailableException;
+import com.atlassian.crowd.exception.InvalidAuthenticationException;
+import com.atlassian.crowd.exception.UserNotFoundException;
+import com.atlassian.crowd.model.group.Group;
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.search.query.entity.restriction.BooleanRestriction;
+import com.atlassian.crowd.search.query.entity.restriction.TermRestriction;
+import com.atlassian.crowd.service.client.CrowdClient;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for Crowd, serving synthetic users and groups from memory,
+ * so that {@link TraceReplay} measures the server instead of a Crowd instance.
+ * <p/>
+ * The {@link CrowdClient} and its entities are dynamic proxies, answering the calls
+ * used by the {@link CrowdBackend}; each call is delayed by a configurable latency,
+ * standing in for the HTTP round trip, and counted by method.
+ * Users authenticate with a single password. Group memberships are direct,
+ * so nested and direct membership are the same.
+ * <p/>
+ * Users and groups are added before the replay starts and not changed afterwards.
+ */
+class StandInCrowd implements InvocationHandler {
+
+  private final String m_Password;
+  private final long m_Latency;
+  private final Map<String, Object> m_Users = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+  private final Map<String, Object> m_Groups = new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+  private final Map<String, Set<String>> m_GroupsOfUser = new TreeMap<String, Set<String>>(String.CASE_INSENSITIVE_ORDER);
+  private final Map<String, Set<String>> m_UsersOfGroup = new TreeMap<String, Set<String>>(String.CASE_INSENSITIVE_ORDER);
+  private final ConcurrentMap<String, AtomicLong> m_Calls = new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * Creates a new <tt>StandInCrowd</tt>.
+   *
+   * @param password the password of all users.
+   * @param latency  the delay of each call in milliseconds.
+   */
+  StandInCrowd(String password, long latency) {
+    m_Password = password;
+    m_Latency = latency;
+  }//constructor
+
+  /**
+   * Creates a client of this stand-in.
+   *
+   * @return the {@link CrowdClient}.
+   */
+  CrowdClient createClient() {
+    return (CrowdClient) Proxy.newProxyInstance(
+        CrowdClient.class.getClassLoader(), new Class[]{CrowdClient.class}, this);
+  }//createClient
+
+  void addUser(String name) {
+    if (!m_Users.containsKey(name)) {
+      m_Users.put(name, Proxy.newProxyInstance(
+          User.class.getClassLoader(), new Class[]{User.class}, new Entity(name, true)));
+      m_GroupsOfUser.put(name, new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+    }
+  }//addUser
+
+  void addGroup(String name) {
+    if (!m_Groups.containsKey(name)) {
+      m_Groups.put(name, Proxy.newProxyInstance(
+          Group.class.getClassLoader(), new Class[]{Group.class}, new Entity(name, false)));
+      m_UsersOfGroup.put(name, new TreeSet<String>(String.CASE_INSENSITIVE_ORDER));
+    }
+  }//addGroup
+
+  void addMembership(String user, String group) {
+    addUser(user);
+    addGroup(group);
+    m_GroupsOfUser.get(user).add(group);
+    m_UsersOfGroup.get(group).add(user);
+  }//addMembership
+
+  /**
+   * Makes each user a member of the given number of groups,
+   * spreading the users evenly over the groups.
+   *
+   * @param perUser the number of groups per user.
+   */
+  void addMemberships(int perUser) {
+    List<String> groups = new ArrayList<String>(m_Groups.keySet());
+    if (groups.isEmpty()) {
+      return;
+    }
+    int i = 0;
+    for (String user : new ArrayList<String>(m_Users.keySet())) {
+      for (int j = 0; j < Math.min(perUser, groups.size()); j++) {
+        addMembership(user, groups.get((i + j) % groups.size()));
+      }
+      i++;
+    }
+  }//addMemberships
+
+  int getUserCount() {
+    return m_Users.size();
+  }//getUserCount
+
+  int getGroupCount() {
+    return m_Groups.size();
+  }//getGroupCount
+
+  /**
+   * Returns the number of calls by method.
+   *
+   * @return the sorted counts.
+   */
+  Map<String, Long> getCalls() {
+    Map<String, Long> calls = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> e : m_Calls.entrySet()) {
+      calls.put(e.getKey(), e.getValue().get());
+    }
+    return calls;
+  }//getCalls
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    if (method.getDeclaringClass() == Object.class) {
+      return invokeObject(proxy, name, args, "StandInCrowd");
+    }
+    AtomicLong calls = m_Calls.get(name);
+    if (calls == null) {
+      m_Calls.putIfAbsent(name, new AtomicLong());
+      calls = m_Calls.get(name);
+    }
+    calls.incrementAndGet();
+    if (m_Latency > 0 && !"shutdown".equals(name)) {
+      Thread.sleep(m_Latency);
+    }
+    if ("authenticateUser".equals(name)) {
+      Object user = getUser((String) args[0]);
+      if (!m_Password.equals(args[1])) {
+        throw new InvalidAuthenticationException("Invalid password");
+      }
+      return user;
+    } else if ("getUser".equals(name)) {
+      return getUser((String) args[0]);
+    } else if ("getGroup".equals(name)) {
+      return getGroup((String) args[0]);
+    } else if ("searchUsers".equals(name)) {
+      return page(search(m_Users, (SearchRestriction) args[0], false), args);
+    } else if ("searchUserNames".equals(name)) {
+      return page(search(m_Users, (SearchRestriction) args[0], true), args);
+    } else if ("searchGroups".equals(name)) {
+      return page(search(m_Groups, (SearchRestriction) args[0], false), args);
+    } else if ("searchGroupNames".equals(name)) {
+      return page(search(m_Groups, (SearchRestriction) args[0], true), args);
+    } else if ("getNamesOfUsersOfGroup".equals(name)) {
+      getGroup((String) args[0]);
+      return page(new ArrayList<Object>(m_UsersOfGroup.get(args[0])), args);
+    } else if ("getNamesOfGroupsForUser".equals(name) || "getNamesOfGroupsForNestedUser".equals(name)) {
+      getUser((String) args[0]);
+      return page(new ArrayList<Object>(m_GroupsOfUser.get(args[0])), args);
+    } else if ("isUserDirectGroupMember".equals(name) || "isUserNestedGroupMember".equals(name)) {
+      Set<String> groups = m_GroupsOfUser.get(args[0]);
+      return groups != null && groups.contains(args[1]);
+    } else if ("getCurrentEventToken".equals(name)) {
+      throw new IncrementalSynchronisationNotAvailableException();
+    } else if ("testConnection".equals(name) || "shutdown".equals(name)) {
+      return null;
+    }
+    throw new UnsupportedOperationException(name);
+  }//invoke
+
+  private Object getUser(String name) throws UserNotFoundException {
+    Object user = m_Users.get(name);
+    if (user == null) {
+      throw new UserNotFoundException(name);
+    }
+    return user;
+  }//getUser
+
+  private Object getGroup(String name) throws GroupNotFoundException {
+    Object group = m_Groups.get(name);
+    if (group == null) {
+      throw new GroupNotFoundException(name);
+    }
+    return group;
+  }//getGroup
+
+  private static List<Object> search(Map<String, Object> entities, SearchRestriction restriction, boolean names) {
+    List<Object> result = new ArrayList<Object>();
+    for (Object entity : entities.values()) {
+      Entity e = (Entity) Proxy.getInvocationHandler(entity);
+      if (e.matches(restriction)) {
+        result.add(names ? e.m_Name : entity);
+      }
+    }
+    return result;
+  }//search
+
+  //Note: start and max are the last two arguments of all paged calls
+  private static List<Object> page(List<Object> all, Object[] args) {
+    int start = Math.min(all.size(), Math.max(0, (Integer) args[args.length - 2]));
+    int max = (Integer) args[args.length - 1];
+    int end = (max < 0 || max >= all.size() - start) ? all.size() : start + max;
+    return new ArrayList<Object>(all.subList(start, end));
+  }//page
+
+  private static Object invokeObject(Object proxy, String name, Object[] args, String str) {
+    if ("equals".equals(name)) {
+      return proxy == args[0];
+    } else if ("hashCode".equals(name)) {
+      return System.identityHashCode(proxy);
+    }
+    return str;
+  }//invokeObject
+
+  /**
+   * A synthetic user or group.
+   */
+  private static class Entity implements InvocationHandler {
+
+    private final String m_Name;
+    private final boolean m_User;
+
+    Entity(String name, boolean user) {
+      m_Name = name;
+      m_User = user;
+    }//constructor
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (method.getDeclaringClass() == Object.class) {
+        return invokeObject(proxy, name, args, m_Name);
+      } else if ("compareTo".equals(name)) {
+        return String.CASE_INSENSITIVE_ORDER.compare(m_Name, ((Entity) Proxy.getInvocationHandler(args[0])).m_Name);
+      } else if ("isActive".equals(name)) {
+        return true;
+      } else if ("getDirectoryId".equals(name)) {
+        return 1L;
+      } else if (name.startsWith("get") && method.getReturnType() == String.class) {
+        return getProperty(Character.toLowerCase(name.charAt(3)) + name.substring(4));
+      }
+      return defaultValue(method.getReturnType());
+    }//invoke
+
+    /**
+     * Returns the value of a property, named as in the Crowd search restrictions.
+     */
+    String getProperty(String property) {
+      if ("name".equals(property)) {
+        return m_Name;
+      } else if (!m_User) {
+        return "description".equals(property) ? "Group " + m_Name : null;
+      } else if ("email".equals(property) || "emailAddress".equals(property)) {
+        return m_Name + "@example.com";
+      } else if ("firstName".equals(property)) {
+        return "First";
+      } else if ("lastName".equals(property)) {
+        return m_Name;
+      } else if ("displayName".equals(property)) {
+        return "First " + m_Name;
+      }
+      return null;
+    }//getProperty
+
+    boolean matches(SearchRestriction restriction) {
+      if (restriction instanceof TermRestriction) {
+        TermRestriction<?> term = (TermRestriction<?>) restriction;
+        String value = getProperty(term.getProperty().getPropertyName());
+        if (value == null || term.getValue() == null) {
+          return false;
+        }
+        String v = value.toLowerCase();
+        String t = term.getValue().toString().toLowerCase();
+        switch (term.getMatchMode()) {
+          case EXACTLY_MATCHES:
+            return v.equals(t);
+          case STARTS_WITH:
+            return v.startsWith(t);
+          default:
+            return v.contains(t);
+        }
+      } else if (restriction instanceof BooleanRestriction) {
+        BooleanRestriction bool = (BooleanRestriction) restriction;
+        boolean and = bool.getBooleanLogic() == BooleanRestriction.BooleanLogic.AND;
+        for (SearchRestriction r : bool.getRestrictions()) {
+          if (matches(r) != and) {
+            return !and;
+          }
+        }
+        return and;
+      }
+      //null restriction
+      return true;
+    }//matches
+
+    private static Object defaultValue(Class<?> type) {
+      if (type == boolean.class) {
+        return false;
+      } else if (type == long.class) {
+        return 0L;
+      } else if (type == int.class) {
+        return 0;
+      } else if (Set.class.isAssignableFrom(type)) {
+        return Collections.emptySet();
+      }
+      return null;
+    }//defaultValue
+
+  }//inner class Entity
+
+}//class StandInCrowd
@@ -0,0 +1,420 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.event.Events;
+import com.atlassian.crowd.exception.EventTokenExpiredException;
+import net.wimpi.crowd.ldap.util.Ber;
+import org.apache.directory.server.core.entry.ClonedServerEntry;
+import org.apache.directory.server.core.event.ExpressionEvaluator;
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.normalization.FilterNormalizingVisitor;
+import org.apache.directory.server.ldap.LdapSession;
+import org.apache.directory.server.ldap.handlers.LdapRequestHandler;
+import org.apache.directory.shared.ldap.codec.controls.replication.syncDoneValue.SyncDoneValueControl;
+import org.apache.directory.shared.ldap.codec.controls.replication.syncInfoValue.SyncInfoValueControl;
+import org.apache.directory.shared.ldap.codec.controls.replication.syncStateValue.SyncStateValueControl;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.message.AbandonListener;
+import org.apache.directory.shared.ldap.message.IntermediateResponseImpl;
+import org.apache.directory.shared.ldap.message.ResultCodeEnum;
+import org.apache.directory.shared.ldap.message.SearchResponseEntryImpl;
+import org.apache.directory.shared.ldap.message.control.Control;
+import org.apache.directory.shared.ldap.message.control.replication.SyncStateTypeEnum;
+import org.apache.directory.shared.ldap.message.control.replication.SynchronizationInfoEnum;
+import org.apache.directory.shared.ldap.message.internal.InternalAbandonableRequest;
+import org.apache.directory.shared.ldap.message.internal.InternalResultResponse;
+import org.apache.directory.shared.ldap.message.internal.InternalSearchRequest;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.normalizers.ConcreteNameComponentNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Handles searches with the content synchronization control (RFC 4533),
+ * and passes all other searches on to the default search handler.
+ * <p/>
+ * The cookie carries the Crowd event token of the tenant, so that a client
+ * reconnecting with its cookie receives only the entries changed, added or
+ * removed since, as obtained from Crowd's event stream. Without a cookie,
+ * all entries are sent. In <tt>refreshAndPersist</tt> mode, the search
+ * stays open and further changes are sent as seen by the
+ * {@link ChangeNotifier} of the tenant.
+ * <p/>
+ * If the token of a cookie has expired in Crowd, the search ends with
+ * <tt>e-syncRefreshRequired</tt>, and the client starts over without cookie.
+ * Entry UUIDs are derived from the normalized DN.
+ */
+class SyncSearchHandler extends LdapRequestHandler<InternalSearchRequest> {
+
+  private static final Logger log = LoggerFactory.getLogger(SyncSearchHandler.class);
+
+  private final LdapRequestHandler<InternalSearchRequest> m_Delegate;
+  private final List<Tenant> m_Tenants;
+
+  /**
+   * Creates a new <tt>SyncSearchHandler</tt>.
+   *
+   * @param delegate the handler for searches without content synchronization.
+   * @param tenants  the tenants.
+   */
+  SyncSearchHandler(LdapRequestHandler<InternalSearchRequest> delegate, List<Tenant> tenants) {
+    m_Delegate = delegate;
+    m_Tenants = tenants;
+  }//constructor
+
+  public void handle(LdapSession session, InternalSearchRequest req) throws Exception {
+    Control control = req.getControls().get(SYNC_REQUEST_OID);
+    if (control == null) {
+      m_Delegate.handle(session, req);
+      return;
+    }
+    SchemaManager schemaManager = session.getCoreSession().getDirectoryService().getSchemaManager();
+    DN base = new DN(req.getBase().getName());
+    base.normalize(schemaManager.getNormalizerMapping());
+    Tenant tenant = null;
+    for (Tenant t : m_Tenants) {
+      if (base.isChildOf(t.getSuffixDn())) {
+        tenant = t;
+      }
+    }
+    if (tenant == null || tenant.getNotifier() == null) {
+      done(session, req, ResultCodeEnum.UNWILLING_TO_PERFORM,
+          "Content synchronization not available for " + req.getBase(), null);
+      return;
+    }
+    new SyncSession(session, req, tenant, base, schemaManager).start(control.getValue());
+  }//handle
+
+  private static void done(LdapSession session, InternalSearchRequest req, ResultCodeEnum code,
+                           String message, Control control) throws Exception {
+    InternalResultResponse done = req.getResultResponse();
+    done.getLdapResult().setResultCode(code);
+    if (message != null) {
+      done.getLdapResult().setErrorMessage(message);
+    }
+    if (control != null) {
+      done.add(control);
+    }
+    session.getIoSession().write(done);
+  }//done
+
+  /**
+   * A content synchronization search.
+   */
+  private static class SyncSession implements ChangeNotifier.Listener, AbandonListener {
+
+    private final LdapSession m_Session;
+    private final InternalSearchRequest m_Request;
+    private final Tenant m_Tenant;
+    private final ChangeNotifier m_Notifier;
+    private final DN m_Base;
+    private final SchemaManager m_SchemaManager;
+    private final String[] m_Attributes;
+    private ExprNode m_Filter;
+    private ExpressionEvaluator m_Evaluator;
+    //changes notified during the refresh phase, null afterwards
+    private List<ChangeNotifier.Change> m_Held;
+    private boolean m_Lost;
+
+    SyncSession(LdapSession session, InternalSearchRequest req, Tenant tenant, DN base,
+                SchemaManager schemaManager) {
+      m_Session = session;
+      m_Request = req;
+      m_Tenant = tenant;
+      m_Notifier = tenant.getNotifier();
+      m_Base = base;
+      m_SchemaManager = schemaManager;
+      m_Attributes = req.getAttributes().toArray(new String[req.getAttributes().size()]);
+    }//constructor
+
+    /**
+     * Sends the refresh phase, and registers for the persist phase if requested.
+     *
+     * @param value the value of the sync request control.
+     */
+    void start(byte[] value) throws Exception {
+      int mode;
+      byte[] cookie = null;
+      boolean reloadHint = false;
+      try {
+        Ber.Reader request = new Ber.Reader(value).readConstructed(Ber.SEQUENCE);
+        mode = (int) request.readInteger(Ber.ENUMERATED);
+        if (request.peekTag() == Ber.OCTET_STRING) {
+          cookie = request.readOctets(Ber.OCTET_STRING);
+        }
+        if (request.peekTag() == Ber.BOOLEAN) {
+          reloadHint = request.readBoolean(Ber.BOOLEAN);
+        }
+      } catch (IOException ex) {
+        log.debug("start()", ex);
+        mode = -1;
+      }
+      if (mode != MODE_REFRESH_ONLY && mode != MODE_REFRESH_AND_PERSIST) {
+        done(m_Session, m_Request, ResultCodeEnum.PROTOCOL_ERROR, "Invalid sync request control", null);
+        return;
+      }
+      boolean persist = (mode == MODE_REFRESH_AND_PERSIST);
+
+      String token = reloadHint ? null : parseCookie(cookie);
+      //Incremental refreshes report removed entries explicitly
+      boolean deletes = (token != null);
+      if (token == null) {
+        //Note: Obtained before listing, so that changes during the listing are sent afterwards
+        token = m_Tenant.getBackend().getCurrentEventToken();
+        sendContent();
+      }
+      if (persist) {
+        //Note: Registered before catching up, so that no change is missed; changes notified
+        //meanwhile are held back and sent after the refresh, without holding the notifier
+        synchronized (this) {
+          m_Held = new ArrayList<ChangeNotifier.Change>();
+        }
+        m_Notifier.addListener(this);
+      }
+      try {
+        Events events = m_Tenant.getBackend().getNewEvents(token);
+        token = events.getNewEventToken();
+        send(m_Notifier.collect(events.getEvents()), null);
+      } catch (EventTokenExpiredException ex) {
+        m_Notifier.removeListener(this);
+        done(m_Session, m_Request, ResultCodeEnum.E_SYNC_REFRESH_REQUIRED, "Cookie expired", null);
+        return;
+      } catch (Exception ex) {
+        m_Notifier.removeListener(this);
+        throw ex;
+      }
+      if (persist) {
+        SyncInfoValueControl info = new SyncInfoValueControl(
+            deletes ? SynchronizationInfoEnum.REFRESH_DELETE : SynchronizationInfoEnum.REFRESH_PRESENT);
+        info.setRefreshDone(true);
+        info.setCookie(createCookie(token));
+        IntermediateResponseImpl response = new IntermediateResponseImpl(m_Request.getMessageId());
+        response.setResponseName(SyncInfoValueControl.CONTROL_OID);
+        response.setResponseValue(info.getValue());
+        m_Session.getIoSession().write(response);
+
+        m_Session.registerOutstandingRequest(m_Request);
+        m_Request.addAbandonListener(this);
+        sendHeld();
+        return;
+      }
+      SyncDoneValueControl syncDone = new SyncDoneValueControl();
+      syncDone.setCookie(createCookie(token));
+      syncDone.setRefreshDeletes(deletes);
+      done(m_Session, m_Request, ResultCodeEnum.SUCCESS, null, syncDone);
+    }//start
+
+    public void changed(List<ChangeNotifier.Change> changes, String token) {
+      if (m_Request.isAbandoned() || !m_Session.getIoSession().isConnected()) {
+        m_Notifier.removeListener(this);
+        return;
+      }
+      synchronized (this) {
+        if (m_Held != null) {
+          m_Held.addAll(changes);
+          return;
+        }
+      }
+      try {
+        send(changes, token);
+      } catch (Exception ex) {
+        log.debug("changed()", ex);
+      }
+    }//changed
+
+    public void refreshRequired() {
+      synchronized (this) {
+        if (m_Held != null) {
+          m_Lost = true;
+          return;
+        }
+      }
+      try {
+        done(m_Session, m_Request, ResultCodeEnum.E_SYNC_REFRESH_REQUIRED, "Changes were lost", null);
+      } catch (Exception ex) {
+        log.debug("refreshRequired()", ex);
+      }
+      m_Session.unregisterOutstandingRequest(m_Request);
+    }//refreshRequired
+
+    public void requestAbandoned(InternalAbandonableRequest req) {
+      m_Notifier.removeListener(this);
+    }//requestAbandoned
+
+    /**
+     * Sends the changes held back during the refresh phase, until there are none left,
+     * and then lets the notified changes pass.
+     */
+    private void sendHeld() throws Exception {
+      for (; ; ) {
+        List<ChangeNotifier.Change> held;
+        synchronized (this) {
+          if (m_Lost) {
+            m_Held = null;
+            break;
+          }
+          if (m_Held.isEmpty()) {
+            m_Held = null;
+            return;
+          }
+          held = m_Held;
+          m_Held = new ArrayList<ChangeNotifier.Change>();
+        }
+        try {
+          send(held, null);
+        } catch (Exception ex) {
+          m_Notifier.removeListener(this);
+          throw ex;
+        }
+      }
+      refreshRequired();
+    }//sendHeld
+
+    /**
+     * Sends all entries selected by the search.
+     */
+    private void sendContent() throws Exception {
+      EntryFilteringCursor cursor = m_Session.getCoreSession().search(m_Request);
+      try {
+        while (cursor.next() && !m_Request.isAbandoned()) {
+          ClonedServerEntry entry = cursor.get();
+          send(entry.getDn(), entry, SyncStateTypeEnum.ADD, null);
+        }
+      } finally {
+        cursor.close();
+      }
+    }//sendContent
+
+    /**
+     * Sends the changed entries within the scope of the search. Entries that
+     * no longer match the filter are sent as removed.
+     *
+     * @param changes the changes.
+     * @param token   the event token following the changes, sent with the last entry;
+     *                may be null.
+     */
+    private void send(List<ChangeNotifier.Change> changes, String token) throws Exception {
+      ChangeNotifier.Change last = null;
+      for (ChangeNotifier.Change change : changes) {
+        if (isInScope(change.getDn())) {
+          last = change;
+        }
+      }
+      for (ChangeNotifier.Change change : changes) {
+        if (!isInScope(change.getDn())) {
+          continue;
+        }
+        byte[] cookie = (change == last && token != null) ? createCookie(token) : null;
+        ServerEntry entry = null;
+        if (change.getType() != ChangeNotifier.Change.Type.DELETE) {
+          entry = lookup(change.getDn());
+        }
+        if (entry == null) {
+          send(change.getDn(), null, SyncStateTypeEnum.DELETE, cookie);
+        } else {
+          send(change.getDn(), entry,
+              (change.getType() == ChangeNotifier.Change.Type.ADD) ? SyncStateTypeEnum.ADD : SyncStateTypeEnum.MODIFY,
+              cookie);
+        }
+      }
+    }//send
+
+    private void send(DN dn, ServerEntry entry, SyncStateTypeEnum state, byte[] cookie) throws Exception {
+      SearchResponseEntryImpl response = new SearchResponseEntryImpl(m_Request.getMessageId());
+      response.setObjectName(dn);
+      response.setEntry((entry != null) ? entry : new DefaultServerEntry(m_SchemaManager, dn));
+      SyncStateValueControl control = new SyncStateValueControl();
+      control.setSyncStateType(state);
+      control.setEntryUUID(uuid(dn));
+      if (cookie != null) {
+        control.setCookie(cookie);
+      }
+      response.add(control);
+      m_Session.getIoSession().write(response);
+    }//send
+
+    /**
+     * Returns the entry with the requested attributes, if it
+     * exists and matches the filter of the search.
+     */
+    private ServerEntry lookup(DN dn) {
+      try {
+        ClonedServerEntry entry = m_Session.getCoreSession().lookup(dn);
+        if (entry == null) {
+          return null;
+        }
+        if (m_Filter == null) {
+          m_Filter = (ExprNode) m_Request.getFilter().clone().accept(
+              new FilterNormalizingVisitor(new ConcreteNameComponentNormalizer(m_SchemaManager), m_SchemaManager));
+          m_Evaluator = new ExpressionEvaluator(m_SchemaManager.getGlobalOidRegistry(), m_SchemaManager);
+        }
+        if (!m_Evaluator.evaluate(m_Filter, dn.getNormName(), entry)) {
+          return null;
+        }
+        return (m_Attributes.length == 0) ? entry : m_Session.getCoreSession().lookup(dn, m_Attributes);
+      } catch (Exception ex) {
+        log.debug("lookup()", ex);
+        return null;
+      }
+    }//lookup
+
+    private boolean isInScope(DN dn) {
+      switch (m_Request.getScope()) {
+        case OBJECT:
+          return dn.getNormName().equals(m_Base.getNormName());
+        case ONELEVEL:
+          return dn.size() == m_Base.size() + 1 && dn.isChildOf(m_Base);
+        default:
+          return dn.isChildOf(m_Base);
+      }
+    }//isInScope
+
+    private byte[] createCookie(String token) throws IOException {
+      return (COOKIE_PREFIX + m_Tenant.getId() + ":" + token).getBytes("utf-8");
+    }//createCookie
+
+    /**
+     * Returns the event token of a cookie of this tenant.
+     *
+     * @return the token, or null if none.
+     */
+    private String parseCookie(byte[] cookie) throws IOException {
+      if (cookie == null) {
+        return null;
+      }
+      String prefix = COOKIE_PREFIX + m_Tenant.getId() + ":";
+      String str = new String(cookie, "utf-8");
+      if (!str.startsWith(prefix) || str.length() == prefix.length()) {
+        return null;
+      }
+      return str.substring(prefix.length());
+    }//parseCookie
+
+    private static byte[] uuid(DN dn) throws IOException {
+      UUID uuid = UUID.nameUUIDFromBytes(dn.getNormName().getBytes("utf-8"));
+      byte[] b = new byte[16];
+      long msb = uuid.getMostSignificantBits();
+      long lsb = uuid.getLeastSignificantBits();
+      for (int i = 0; i < 8; i++) {
+        b[i] = (byte) (msb >>> (56 - i * 8));
+        b[8 + i] = (byte) (lsb >>> (56 - i * 8));
+      }
+      return b;
+    }//uuid
+
+  }//inner class SyncSession
+
+  static final String SYNC_REQUEST_OID = "1.3.6.1.4.1.4203.1.9.1.1";
+
+  private static final String COOKIE_PREFIX = "crowd:";
+  private static final int MODE_REFRESH_ONLY = 1;
+  private static final int MODE_REFRESH_AND_PERSIST = 3;
+
+}//class SyncSearchHandler
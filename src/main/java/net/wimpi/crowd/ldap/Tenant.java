@@ -0,0 +1,91 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.shared.ldap.name.DN;
+
+/**
+ * A Crowd application served at its own suffix, with its own
+ * Crowd client, partition and bind DN resolution.
+ * <p/>
+ * Tenants share the backend executor, the admission control and the
+ * cache memory budget of the server, within their own limits.
+ */
+class Tenant {
+
+  private final String m_ID;
+  private final String m_Suffix;
+  private final CrowdBackend m_Backend;
+  private CrowdPartition m_Partition;
+  private BindResolver m_BindResolver;
+  private ChangeNotifier m_Notifier;
+  private Prefetcher m_Prefetcher;
+
+  Tenant(String id, String suffix, CrowdBackend backend) {
+    m_ID = id;
+    m_Suffix = suffix;
+    m_Backend = backend;
+  }//constructor
+
+  public String getId() {
+    return m_ID;
+  }//getId
+
+  public String getSuffix() {
+    return m_Suffix;
+  }//getSuffix
+
+  /**
+   * Returns the normalized suffix, once the partition is initialized.
+   *
+   * @return the suffix DN.
+   */
+  public DN getSuffixDn() {
+    return m_Partition.getSuffixDn();
+  }//getSuffixDn
+
+  public CrowdBackend getBackend() {
+    return m_Backend;
+  }//getBackend
+
+  public CrowdPartition getPartition() {
+    return m_Partition;
+  }//getPartition
+
+  public void setPartition(CrowdPartition partition) {
+    m_Partition = partition;
+  }//setPartition
+
+  public BindResolver getBindResolver() {
+    return m_BindResolver;
+  }//getBindResolver
+
+  public void setBindResolver(BindResolver resolver) {
+    m_BindResolver = resolver;
+  }//setBindResolver
+
+  /**
+   * Returns the notifier of changes seen in Crowd's event stream.
+   *
+   * @return the notifier, or null if events are not polled.
+   */
+  public ChangeNotifier getNotifier() {
+    return m_Notifier;
+  }//getNotifier
+
+  public void setNotifier(ChangeNotifier notifier) {
+    m_Notifier = notifier;
+  }//setNotifier
+
+  /**
+   * Returns the prefetcher of entries clients are about to read.
+   *
+   * @return the prefetcher, or null if prefetching is disabled.
+   */
+  public Prefetcher getPrefetcher() {
+    return m_Prefetcher;
+  }//getPrefetcher
+
+  public void setPrefetcher(Prefetcher prefetcher) {
+    m_Prefetcher = prefetcher;
+  }//setPrefetcher
+
+}//class Tenant
@@ -0,0 +1,310 @@
+package net.wimpi.crowd.ldap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The binary format of operation traces, as captured by the {@link TraceRecorder}
+ * and replayed by {@link TraceReplay}.
+ * <p/>
+ * A trace starts with a header (magic, version, capture start in milliseconds),
+ * followed by one record per operation. Numbers are written as variable length
+ * integers; a string is written once and referenced by its index afterwards,
+ * as the same DNs and filters recur throughout a trace.
+ * <p/>
+ * Traces never hold credentials: bind passwords are not recorded, and
+ * values asserted on password attributes are replaced.
+ */
+class Trace {
+
+  /**
+   * A recorded operation.
+   */
+  static class Op {
+
+    byte m_Type;
+    //Microseconds since the capture started
+    long m_Offset;
+    int m_Connection;
+    String m_Dn;
+    int m_Scope;
+    String m_Filter;
+    String[] m_Attributes = NO_ATTRIBUTES;
+    long m_SizeLimit;
+    //Compared attribute and value
+    String m_Attribute;
+    String m_Value;
+    //Outcome on the capturing server
+    int m_Result;
+    int m_Entries = -1;
+    int m_CacheHits;
+    int m_CacheMisses;
+    int m_CrowdCalls;
+    long m_Duration;
+    //Client address while captured, replaced by the connection number
+    Object m_Client;
+
+    String getTypeName() {
+      return Trace.getTypeName(m_Type);
+    }//getTypeName
+
+  }//inner class Op
+
+  /**
+   * Writes a trace.
+   */
+  static class Writer {
+
+    private final DataOutputStream m_Out;
+    private final Map<String, Integer> m_Strings = new HashMap<String, Integer>();
+
+    Writer(File file, long start) throws IOException {
+      m_Out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+      m_Out.writeInt(MAGIC);
+      m_Out.writeByte(VERSION);
+      m_Out.writeLong(start);
+    }//constructor
+
+    void write(Op op) throws IOException {
+      m_Out.writeByte(op.m_Type);
+      writeNumber(op.m_Offset);
+      writeNumber(op.m_Connection);
+      writeString(op.m_Dn);
+      if (op.m_Type == SEARCH) {
+        m_Out.writeByte(op.m_Scope);
+        writeString(op.m_Filter);
+        writeNumber(op.m_Attributes.length);
+        for (String attribute : op.m_Attributes) {
+          writeString(attribute);
+        }
+        writeNumber(op.m_SizeLimit);
+      } else if (op.m_Type == COMPARE) {
+        writeString(op.m_Attribute);
+        writeString(op.m_Value);
+      }
+      writeNumber(op.m_Result);
+      writeNumber(op.m_Entries + 1);
+      writeNumber(op.m_CacheHits);
+      writeNumber(op.m_CacheMisses);
+      writeNumber(op.m_CrowdCalls);
+      writeNumber(op.m_Duration);
+    }//write
+
+    void flush() throws IOException {
+      m_Out.flush();
+    }//flush
+
+    void close() throws IOException {
+      m_Out.close();
+    }//close
+
+    private void writeString(String str) throws IOException {
+      if (str == null) {
+        writeNumber(0);
+        return;
+      }
+      Integer index = m_Strings.get(str);
+      if (index != null) {
+        writeNumber(index + 2);
+        return;
+      }
+      writeNumber(1);
+      m_Out.writeUTF(str);
+      if (m_Strings.size() < MAX_STRINGS) {
+        m_Strings.put(str, m_Strings.size());
+      }
+    }//writeString
+
+    private void writeNumber(long n) throws IOException {
+      while ((n & ~0x7FL) != 0) {
+        m_Out.writeByte((int) ((n & 0x7F) | 0x80));
+        n >>>= 7;
+      }
+      m_Out.writeByte((int) n);
+    }//writeNumber
+
+  }//inner class Writer
+
+  /**
+   * Reads a trace.
+   */
+  static class Reader {
+
+    private final DataInputStream m_In;
+    private final List<String> m_Strings = new ArrayList<String>();
+    private final long m_Start;
+
+    Reader(File file) throws IOException {
+      m_In = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+      if (m_In.readInt() != MAGIC) {
+        m_In.close();
+        throw new IOException("Not a trace: " + file);
+      }
+      int version = m_In.readByte();
+      if (version != VERSION) {
+        m_In.close();
+        throw new IOException("Unsupported trace version " + version + ": " + file);
+      }
+      m_Start = m_In.readLong();
+    }//constructor
+
+    /**
+     * Returns the start of the capture.
+     *
+     * @return the time in milliseconds.
+     */
+    long getStart() {
+      return m_Start;
+    }//getStart
+
+    /**
+     * Reads the next operation.
+     *
+     * @return the operation, or null at the end of the trace.
+     * @throws IOException if the trace cannot be read.
+     */
+    Op read() throws IOException {
+      int type = m_In.read();
+      if (type < 0) {
+        return null;
+      }
+      try {
+        Op op = new Op();
+        op.m_Type = (byte) type;
+        op.m_Offset = readNumber();
+        op.m_Connection = (int) readNumber();
+        op.m_Dn = readString();
+        if (type == SEARCH) {
+          op.m_Scope = m_In.readByte();
+          op.m_Filter = readString();
+          op.m_Attributes = new String[(int) readNumber()];
+          for (int i = 0; i < op.m_Attributes.length; i++) {
+            op.m_Attributes[i] = readString();
+          }
+          op.m_SizeLimit = readNumber();
+        } else if (type == COMPARE) {
+          op.m_Attribute = readString();
+          op.m_Value = readString();
+        }
+        op.m_Result = (int) readNumber();
+        op.m_Entries = (int) readNumber() - 1;
+        op.m_CacheHits = (int) readNumber();
+        op.m_CacheMisses = (int) readNumber();
+        op.m_CrowdCalls = (int) readNumber();
+        op.m_Duration = readNumber();
+        return op;
+      } catch (EOFException ex) {
+        //truncated by a crash or while still being written
+        return null;
+      }
+    }//read
+
+    /**
+     * Reads all remaining operations.
+     *
+     * @return the operations.
+     * @throws IOException if the trace cannot be read.
+     */
+    List<Op> readAll() throws IOException {
+      List<Op> ops = new ArrayList<Op>();
+      for (Op op = read(); op != null; op = read()) {
+        ops.add(op);
+      }
+      return ops;
+    }//readAll
+
+    void close() throws IOException {
+      m_In.close();
+    }//close
+
+    private String readString() throws IOException {
+      int index = (int) readNumber();
+      if (index == 0) {
+        return null;
+      } else if (index > 1) {
+        return m_Strings.get(index - 2);
+      }
+      String str = m_In.readUTF();
+      if (m_Strings.size() < MAX_STRINGS) {
+        m_Strings.add(str);
+      }
+      return str;
+    }//readString
+
+    private long readNumber() throws IOException {
+      long n = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int b = m_In.readUnsignedByte();
+        n |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return n;
+        }
+      }
+      throw new IOException("Malformed number");
+    }//readNumber
+
+  }//inner class Reader
+
+  /**
+   * Tests if the given attribute holds credentials.
+   *
+   * @param attribute the attribute name or OID.
+   * @return true if values of the attribute must not be recorded.
+   */
+  static boolean isPassword(String attribute) {
+    return attribute != null && PASSWORD.matcher(attribute).matches();
+  }//isPassword
+
+  /**
+   * Replaces the values asserted on password attributes in a filter.
+   *
+   * @param filter the filter in string representation.
+   * @return the filter without credentials.
+   */
+  static String sanitize(String filter) {
+    return PASSWORD_ASSERTION.matcher(filter).replaceAll("($1$2" + REDACTED + ")");
+  }//sanitize
+
+  static String getTypeName(byte type) {
+    switch (type) {
+      case BIND:
+        return "bind";
+      case SEARCH:
+        return "search";
+      case COMPARE:
+        return "compare";
+      default:
+        return "unknown";
+    }
+  }//getTypeName
+
+  static final byte BIND = 1;
+  static final byte SEARCH = 2;
+  static final byte COMPARE = 3;
+
+  static final String REDACTED = "redacted";
+
+  private static final int MAGIC = 0x434C4454;
+  private static final int VERSION = 1;
+  //Bound on the strings referenced by index, limiting the memory of writer and reader
+  private static final int MAX_STRINGS = 1 << 16;
+  private static final String[] NO_ATTRIBUTES = new String[0];
+
+  private static final String PASSWORD_ATTRIBUTE = "(?:userPassword|2\\.5\\.4\\.35)(?:;[\\w-]+)*";
+  private static final Pattern PASSWORD = Pattern.compile(PASSWORD_ATTRIBUTE, Pattern.CASE_INSENSITIVE);
+  private static final Pattern PASSWORD_ASSERTION = Pattern.compile(
+      "\\((" + PASSWORD_ATTRIBUTE + ")([~<>]?=)(?:[^()\\\\]|\\\\.)*\\)", Pattern.CASE_INSENSITIVE);
+
+}//class Trace
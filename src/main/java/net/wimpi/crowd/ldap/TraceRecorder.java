@@ -0,0 +1,206 @@
+package net.wimpi.crowd.ldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures the LDAP operations of a running server into a {@link Trace},
+ * for replay with {@link TraceReplay}.
+ * <p/>
+ * Operations are recorded by the {@link AccessLogInterceptor} and handed to a
+ * background writer through a bounded queue; if the writer falls behind, operations
+ * are dropped and counted. Client addresses are not written, only a number
+ * per connection, so the trace preserves the concurrency of the clients.
+ * <p/>
+ * Capturing can be switched on and off through JMX; each capture starts
+ * a new trace file and ends after the configured number of operations.
+ */
+public class TraceRecorder implements Runnable, TraceRecorderMBean {
+
+  private static final Logger log = LoggerFactory.getLogger(TraceRecorder.class);
+
+  private final File m_File;
+  private final int m_Capacity;
+  private final long m_MaxOps;
+  private BlockingQueue<Trace.Op> m_Queue;
+  private Thread m_Thread;
+  private volatile boolean m_Enabled;
+  private volatile long m_StartNanos;
+
+  private final AtomicLong m_Recorded = new AtomicLong(0);
+  private final AtomicLong m_Dropped = new AtomicLong(0);
+  private volatile long m_Written;
+
+  /**
+   * Creates a new <tt>TraceRecorder</tt>.
+   *
+   * @param file     the trace file.
+   * @param capacity the number of operations buffered for the writer.
+   * @param maxOps   the number of operations after which a capture ends, 0 for no limit.
+   */
+  public TraceRecorder(File file, int capacity, long maxOps) {
+    m_File = file;
+    m_Capacity = capacity;
+    m_MaxOps = maxOps;
+  }//constructor
+
+  public boolean isEnabled() {
+    return m_Enabled;
+  }//isEnabled
+
+  public synchronized void setEnabled(boolean enabled) {
+    if (enabled == m_Enabled) {
+      return;
+    }
+    if (enabled) {
+      start();
+    } else {
+      stop();
+    }
+  }//setEnabled
+
+  /**
+   * Starts a new capture, overwriting the trace file.
+   */
+  public synchronized void start() {
+    if (m_Enabled) {
+      return;
+    }
+    awaitWriter();
+    m_Queue = new ArrayBlockingQueue<Trace.Op>(m_Capacity);
+    m_Recorded.set(0);
+    m_Dropped.set(0);
+    m_Written = 0;
+    m_StartNanos = System.nanoTime();
+    m_Enabled = true;
+    m_Thread = new Thread(this, "crowd-trace");
+    m_Thread.setDaemon(true);
+    m_Thread.start();
+    log.info("Capturing operations to " + m_File.getAbsolutePath());
+  }//start
+
+  /**
+   * Ends the capture and waits until the buffered operations are written.
+   */
+  public synchronized void stop() {
+    m_Enabled = false;
+    awaitWriter();
+  }//stop
+
+  /**
+   * Records an operation, if capturing.
+   *
+   * @param op         the operation, without offset and connection.
+   * @param client     the address of the client.
+   * @param startNanos the start of the operation, as obtained from {@link System#nanoTime()}.
+   * @return true if recorded, false if not capturing or dropped.
+   */
+  boolean record(Trace.Op op, Object client, long startNanos) {
+    if (!m_Enabled) {
+      return false;
+    }
+    op.m_Offset = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(startNanos - m_StartNanos));
+    op.m_Client = client;
+    BlockingQueue<Trace.Op> queue = m_Queue;
+    if (queue == null || !queue.offer(op)) {
+      m_Dropped.incrementAndGet();
+      return false;
+    }
+    if (m_Recorded.incrementAndGet() == m_MaxOps) {
+      m_Enabled = false;
+    }
+    return true;
+  }//record
+
+  public void run() {
+    BlockingQueue<Trace.Op> queue = m_Queue;
+    //connection numbers of the recently seen clients
+    Map<Object, Integer> connections = new LinkedHashMap<Object, Integer>(256, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<Object, Integer> eldest) {
+        return size() > MAX_CONNECTIONS;
+      }
+    };
+    int nextConnection = 1;
+    Trace.Writer writer = null;
+    try {
+      File dir = m_File.getAbsoluteFile().getParentFile();
+      if (dir != null && !dir.exists()) {
+        dir.mkdirs();
+      }
+      writer = new Trace.Writer(m_File, System.currentTimeMillis());
+      while (m_Enabled || !queue.isEmpty()) {
+        Trace.Op op = queue.poll(10, TimeUnit.MILLISECONDS);
+        if (op == null) {
+          writer.flush();
+          continue;
+        }
+        Integer connection = connections.get(op.m_Client);
+        if (connection == null) {
+          connection = nextConnection++;
+          connections.put(op.m_Client, connection);
+        }
+        op.m_Connection = connection;
+        op.m_Client = null;
+        try {
+          writer.write(op);
+          m_Written++;
+        } catch (IOException ex) {
+          //e.g. a string exceeding the limit of the format
+          log.debug("run()", ex);
+        }
+      }
+    } catch (Exception ex) {
+      log.error("run()", ex);
+      m_Enabled = false;
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException ex) {
+          log.error("run()", ex);
+        }
+      }
+    }
+    log.info("Captured " + m_Written + " operations to " + m_File.getAbsolutePath());
+  }//run
+
+  private void awaitWriter() {
+    if (m_Thread == null) {
+      return;
+    }
+    try {
+      m_Thread.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    m_Thread = null;
+  }//awaitWriter
+
+  public String getFile() {
+    return m_File.getAbsolutePath();
+  }//getFile
+
+  public long getRecorded() {
+    return m_Recorded.get();
+  }//getRecorded
+
+  public long getDropped() {
+    return m_Dropped.get();
+  }//getDropped
+
+  public long getWritten() {
+    return m_Written;
+  }//getWritten
+
+  private static final int MAX_CONNECTIONS = 65536;
+
+}//class TraceRecorder
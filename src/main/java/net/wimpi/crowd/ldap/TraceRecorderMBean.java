@@ -0,0 +1,30 @@
+package net.wimpi.crowd.ldap;
+
+/**
+ * Management interface of the {@link TraceRecorder}.
+ */
+public interface TraceRecorderMBean {
+
+  public boolean isEnabled();
+
+  /**
+   * Starts a new capture, overwriting the trace file, respectively ends the capture.
+   *
+   * @param enabled true to capture.
+   */
+  public void setEnabled(boolean enabled);
+
+  public String getFile();
+
+  public long getRecorded();
+
+  /**
+   * Returns the number of operations dropped because the writer fell behind.
+   *
+   * @return the number of dropped operations.
+   */
+  public long getDropped();
+
+  public long getWritten();
+
+}//interface TraceRecorderMBean
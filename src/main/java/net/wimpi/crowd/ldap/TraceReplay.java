@@ -0,0 +1,590 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.service.client.ClientPropertiesImpl;
+import com.atlassian.crowd.service.client.CrowdClient;
+import org.apache.log4j.PropertyConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a {@link Trace} captured by the {@link TraceRecorder} against a server
+ * backed by a {@link StandInCrowd}, for before/after comparisons of changes
+ * with the operation mix of a real deployment.
+ * <p/>
+ * The server runs in this process, with the configuration in <tt>etc</tt>;
+ * users and groups referenced by the trace are added to the synthetic ones
+ * of the stand-in. Each captured connection is replayed on its own LDAP connection,
+ * with the captured inter-arrival times divided by the speedup; its operations are
+ * scheduled one after the other on a bounded pool of threads shared by all connections.
+ * As binds carry no credentials in the trace, they use the stand-in password if
+ * they succeeded when captured, and a wrong one otherwise.
+ * <p/>
+ * The report lists the latency percentiles per operation type, measured from the
+ * scheduled start, so that delays piling up behind slow operations are included.
+ * Cache hit rates and Crowd calls per operation are taken from the trace
+ * the replaying server captures itself, next to those of the original trace.
+ * <p/>
+ * Usage: <tt>TraceReplay replay &lt;trace&gt; [speedup]</tt>, respectively
+ * <tt>TraceReplay report &lt;trace&gt;</tt> to only report a captured trace.
+ */
+public class TraceReplay {
+
+  private static final Logger log = LoggerFactory.getLogger(TraceReplay.class);
+
+  private final Properties m_ServerConfig;
+  private final File m_WorkDir;
+  private final double m_Speedup;
+  private final String m_Password;
+  private final int m_Port;
+  private final Map<String, Latencies> m_Latencies = new TreeMap<String, Latencies>();
+
+  /**
+   * Creates a new <tt>TraceReplay</tt>.
+   *
+   * @param serverConfig the server configuration.
+   * @param workDir      the working directory of the replaying server.
+   * @param speedup      the factor dividing the inter-arrival times.
+   */
+  public TraceReplay(Properties serverConfig, File workDir, double speedup) {
+    m_ServerConfig = serverConfig;
+    m_WorkDir = workDir;
+    m_Speedup = speedup;
+    m_Password = serverConfig.getProperty(CONFIG_KEY_PASSWORD, "replay");
+    m_Port = Integer.parseInt(serverConfig.getProperty(CONFIG_KEY_PORT, "10390"));
+  }//constructor
+
+  /**
+   * Replays a trace and prints the report.
+   *
+   * @param confDir the configuration directory.
+   * @param trace   the trace file.
+   * @param out     the stream the report is printed to.
+   * @throws Exception if the replay fails.
+   */
+  public void replay(File confDir, File trace, PrintStream out) throws Exception {
+    List<Trace.Op> ops = read(trace);
+    final StandInCrowd crowd = createCrowd(ops);
+    log.info("Stand-in Crowd with " + crowd.getUserCount() + " users and " + crowd.getGroupCount() + " groups");
+
+    CrowdLDAPServer server = new CrowdLDAPServer(m_WorkDir, confDir, createServerConfig()) {
+      protected CrowdClient createCrowdClient(String id, ClientPropertiesImpl properties) {
+        return crowd.createClient();
+      }
+    };
+    server.startServer();
+
+    //one worker per captured connection, on a bounded pool
+    Map<Integer, List<Trace.Op>> connections = new TreeMap<Integer, List<Trace.Op>>();
+    for (Trace.Op op : ops) {
+      List<Trace.Op> c = connections.get(op.m_Connection);
+      if (c == null) {
+        c = new ArrayList<Trace.Op>();
+        connections.put(op.m_Connection, c);
+      }
+      c.add(op);
+    }
+    for (byte type = Trace.BIND; type <= Trace.COMPARE; type++) {
+      m_Latencies.put(Trace.getTypeName(type), new Latencies());
+    }
+    log.info("Replaying " + ops.size() + " operations on " + connections.size() + " connections");
+    CountDownLatch done = new CountDownLatch(connections.size());
+    long base = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long started = System.currentTimeMillis();
+    ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(
+        Math.max(1, Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_THREADS, "32"))),
+        new ThreadFactory() {
+          private final AtomicInteger m_Count = new AtomicInteger(0);
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "replay-" + m_Count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    try {
+      for (List<Trace.Op> c : connections.values()) {
+        new Worker(c, base, done, executor).schedule();
+      }
+      done.await();
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsed = System.currentTimeMillis() - started;
+
+    TraceRecorder recorder = server.getTraceRecorder();
+    recorder.stop();
+    List<Trace.Op> replayed = read(new File(recorder.getFile()));
+
+    out.println("Replayed " + ops.size() + " operations of " + trace + " in " + elapsed + " ms (speedup " + m_Speedup + ")");
+    out.println();
+    out.println("Client latencies (ms)");
+    out.println(String.format("%-8s %9s %7s %8s %9s %9s %9s %9s %9s",
+        "op", "count", "errors", "changed", "p50", "p90", "p99", "p99.9", "max"));
+    for (Map.Entry<String, Latencies> e : m_Latencies.entrySet()) {
+      Latencies l = e.getValue();
+      if (l.m_Count > 0) {
+        long[] sorted = l.sorted();
+        out.println(String.format("%-8s %9d %7d %8d %9.2f %9.2f %9.2f %9.2f %9.2f",
+            e.getKey(), l.m_Count, l.m_Errors, l.m_Changed,
+            millis(percentile(sorted, 0.5)), millis(percentile(sorted, 0.9)), millis(percentile(sorted, 0.99)),
+            millis(percentile(sorted, 0.999)), millis(sorted[sorted.length - 1])));
+      }
+    }
+    out.println();
+    report("Captured", ops, out);
+    report("Replayed", replayed, out);
+    out.println("Stand-in Crowd calls");
+    for (Map.Entry<String, Long> e : crowd.getCalls().entrySet()) {
+      out.println(String.format("  %-32s %9d", e.getKey(), e.getValue()));
+    }
+  }//replay
+
+  /**
+   * Prints the server side statistics of a trace per operation type.
+   *
+   * @param title the title.
+   * @param ops   the operations of the trace.
+   * @param out   the stream the report is printed to.
+   */
+  static void report(String title, List<Trace.Op> ops, PrintStream out) {
+    out.println(title + " on the server (duration in ms)");
+    out.println(String.format("%-8s %9s %7s %9s %11s %9s %9s %9s",
+        "op", "count", "errors", "hit rate", "crowd/op", "p50", "p99", "max"));
+    for (byte type = Trace.BIND; type <= Trace.COMPARE; type++) {
+      List<Long> durations = new ArrayList<Long>();
+      long errors = 0;
+      long hits = 0;
+      long misses = 0;
+      long crowdCalls = 0;
+      for (Trace.Op op : ops) {
+        if (op.m_Type != type) {
+          continue;
+        }
+        durations.add(op.m_Duration);
+        if (isError(op.m_Result)) {
+          errors++;
+        }
+        hits += op.m_CacheHits;
+        misses += op.m_CacheMisses;
+        crowdCalls += op.m_CrowdCalls;
+      }
+      if (durations.isEmpty()) {
+        continue;
+      }
+      long[] sorted = new long[durations.size()];
+      for (int i = 0; i < sorted.length; i++) {
+        //microseconds in the trace
+        sorted[i] = durations.get(i) * 1000L;
+      }
+      Arrays.sort(sorted);
+      out.println(String.format("%-8s %9d %7d %8.1f%% %11.2f %9.2f %9.2f %9.2f",
+          Trace.getTypeName(type), sorted.length, errors,
+          (hits + misses == 0) ? 0.0 : 100.0 * hits / (hits + misses),
+          (double) crowdCalls / sorted.length,
+          millis(percentile(sorted, 0.5)), millis(percentile(sorted, 0.99)), millis(sorted[sorted.length - 1])));
+    }
+    out.println();
+  }//report
+
+  /**
+   * Returns the server configuration for replaying: served on the replay port
+   * without SSL, without Crowd events, and capturing its own trace to the
+   * working directory instead of the access log.
+   */
+  private Properties createServerConfig() {
+    Properties config = new Properties();
+    config.putAll(m_ServerConfig);
+    config.setProperty("listener.port", Integer.toString(m_Port));
+    config.setProperty("ssl.enabled", "false");
+    config.setProperty("cache.events.enabled", "false");
+    config.setProperty("accesslog.enabled", "false");
+    config.setProperty("trace.file", new File(m_WorkDir, "replay.trace").getPath());
+    config.setProperty("trace.enabled", "true");
+    config.setProperty("trace.max.ops", "0");
+    if (config.getProperty("cache.cold.file") != null) {
+      config.setProperty("cache.cold.file", new File(m_WorkDir, "cold.cache").getPath());
+    }
+    return config;
+  }//createServerConfig
+
+  /**
+   * Creates the stand-in Crowd, with the configured number of synthetic users and groups
+   * and those referenced by the trace. Memberships confirmed by a captured compare are kept.
+   */
+  private StandInCrowd createCrowd(List<Trace.Op> ops) {
+    StandInCrowd crowd = new StandInCrowd(m_Password,
+        Long.parseLong(m_ServerConfig.getProperty(CONFIG_KEY_LATENCY, "10")));
+    int users = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_USERS, "1000"));
+    int groups = Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_GROUPS, "100"));
+    for (int i = 0; i < users; i++) {
+      crowd.addUser(String.format("user%05d", i));
+    }
+    for (int i = 0; i < groups; i++) {
+      crowd.addGroup(String.format("group%04d", i));
+    }
+    for (Trace.Op op : ops) {
+      seed(crowd, op.m_Dn, op.m_Type == Trace.BIND);
+      if (op.m_Filter != null) {
+        boolean group = GROUP_FILTER.matcher(op.m_Filter).find();
+        Matcher m = NAME_ASSERTION.matcher(op.m_Filter);
+        while (m.find()) {
+          String value = m.group(2);
+          if (!m.group(1).equalsIgnoreCase("cn")) {
+            crowd.addUser(value);
+          } else if (group) {
+            crowd.addGroup(value);
+          }
+        }
+      }
+      if (op.m_Type == Trace.COMPARE && op.m_Value != null && MEMBER.matcher(op.m_Attribute).matches()) {
+        String group = getName(op.m_Dn, "groups");
+        String user = getName(op.m_Value, "users");
+        if (group != null && user != null && op.m_Result == COMPARE_TRUE) {
+          crowd.addMembership(user, group);
+        }
+      }
+    }
+    crowd.addMemberships(Integer.parseInt(m_ServerConfig.getProperty(CONFIG_KEY_MEMBERSHIPS, "3")));
+    return crowd;
+  }//createCrowd
+
+  private static void seed(StandInCrowd crowd, String dn, boolean bind) {
+    String name = getName(dn, "users");
+    if (name != null) {
+      crowd.addUser(name);
+      return;
+    }
+    name = getName(dn, "groups");
+    if (name != null) {
+      crowd.addGroup(name);
+      return;
+    }
+    if (bind) {
+      //bound with an alias or mail address
+      name = getName(dn, null);
+      if (name != null) {
+        crowd.addUser(name.contains("@") ? name.substring(0, name.indexOf('@')) : name);
+      }
+    }
+  }//seed
+
+  /**
+   * Returns the value of the first RDN of an entry below <tt>ou=&lt;branch&gt;</tt>.
+   *
+   * @param dn     the DN.
+   * @param branch the branch, or null for any entry.
+   * @return the value, or null if the entry is not in the branch.
+   */
+  private static String getName(String dn, String branch) {
+    try {
+      LdapName name = new LdapName(dn);
+      int size = name.size();
+      if (size == 0) {
+        return null;
+      }
+      if (branch != null && (size < 2 || !name.getRdn(size - 2).toString().equalsIgnoreCase("ou=" + branch))) {
+        return null;
+      }
+      return name.getRdn(size - 1).getValue().toString();
+    } catch (Exception ex) {
+      return null;
+    }
+  }//getName
+
+  private static List<Trace.Op> read(File file) throws Exception {
+    Trace.Reader reader = new Trace.Reader(file);
+    try {
+      return reader.readAll();
+    } finally {
+      reader.close();
+    }
+  }//read
+
+  private static boolean isError(int result) {
+    return result != SUCCESS && result != COMPARE_FALSE && result != COMPARE_TRUE;
+  }//isError
+
+  private static long percentile(long[] sorted, double p) {
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }//percentile
+
+  private static double millis(long nanos) {
+    return nanos / 1000000.0;
+  }//millis
+
+  /**
+   * Replays the operations of a captured connection, each scheduled
+   * once the previous one has completed.
+   */
+  private class Worker implements Runnable {
+
+    private final List<Trace.Op> m_Ops;
+    private final long m_Base;
+    private final CountDownLatch m_Done;
+    private final ScheduledExecutorService m_Executor;
+    private LdapContext m_Context;
+    private int m_Next;
+
+    Worker(List<Trace.Op> ops, long base, CountDownLatch done, ScheduledExecutorService executor) {
+      m_Ops = ops;
+      m_Base = base;
+      m_Done = done;
+      m_Executor = executor;
+    }//constructor
+
+    /**
+     * Schedules the next operation, respectively ends the connection after the last one.
+     */
+    void schedule() {
+      if (m_Next >= m_Ops.size()) {
+        close();
+        m_Done.countDown();
+        return;
+      }
+      long wait = getScheduled(m_Ops.get(m_Next)) - System.nanoTime();
+      m_Executor.schedule(this, Math.max(0, wait), TimeUnit.NANOSECONDS);
+    }//schedule
+
+    public void run() {
+      Trace.Op op = m_Ops.get(m_Next++);
+      try {
+        long scheduled = getScheduled(op);
+        int result = execute(op);
+        Latencies l = m_Latencies.get(op.getTypeName());
+        l.add(System.nanoTime() - scheduled, isError(result), result != op.m_Result);
+      } finally {
+        schedule();
+      }
+    }//run
+
+    private long getScheduled(Trace.Op op) {
+      return m_Base + (long) (TimeUnit.MICROSECONDS.toNanos(op.m_Offset) / m_Speedup);
+    }//getScheduled
+
+    private int execute(Trace.Op op) {
+      try {
+        if (m_Context == null) {
+          Hashtable<String, Object> env = new Hashtable<String, Object>();
+          env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+          env.put(Context.PROVIDER_URL, "ldap://localhost:" + m_Port);
+          env.put(Context.SECURITY_AUTHENTICATION, "none");
+          env.put("java.naming.ldap.derefAliases", "never");
+          m_Context = new InitialLdapContext(env, null);
+        }
+        switch (op.m_Type) {
+          case Trace.BIND:
+            return bind(op);
+          case Trace.SEARCH:
+            return search(op);
+          case Trace.COMPARE:
+            return compare(op);
+          default:
+            return SUCCESS;
+        }
+      } catch (NamingException ex) {
+        log.debug("execute()", ex);
+        return getResultCode(ex);
+      }
+    }//execute
+
+    private int bind(Trace.Op op) throws NamingException {
+      m_Context.addToEnvironment(Context.SECURITY_AUTHENTICATION, "simple");
+      m_Context.addToEnvironment(Context.SECURITY_PRINCIPAL, op.m_Dn);
+      m_Context.addToEnvironment(Context.SECURITY_CREDENTIALS,
+          (op.m_Result == SUCCESS) ? m_Password : "invalid-" + m_Password);
+      try {
+        m_Context.reconnect(null);
+        return SUCCESS;
+      } catch (NamingException ex) {
+        //reconnect anonymously for the next operation
+        close();
+        throw ex;
+      }
+    }//bind
+
+    private int search(Trace.Op op) throws NamingException {
+      SearchControls controls = new SearchControls();
+      controls.setSearchScope(op.m_Scope);
+      controls.setCountLimit(op.m_SizeLimit);
+      List<String> attributes = new ArrayList<String>(Arrays.asList(op.m_Attributes));
+      if (attributes.remove("1.1") && attributes.isEmpty()) {
+        controls.setReturningAttributes(new String[0]);
+      } else if (!attributes.isEmpty()) {
+        controls.setReturningAttributes(attributes.toArray(new String[attributes.size()]));
+      }
+      NamingEnumeration<SearchResult> results = m_Context.search(new LdapName(op.m_Dn), op.m_Filter, controls);
+      try {
+        while (results.hasMore()) {
+          results.next();
+        }
+      } catch (SizeLimitExceededException ex) {
+        return SIZE_LIMIT_EXCEEDED;
+      } finally {
+        results.close();
+      }
+      return SUCCESS;
+    }//search
+
+    //Note: a base search for an attribute value assertion without attributes is sent as compare
+    private int compare(Trace.Op op) throws NamingException {
+      SearchControls controls = new SearchControls();
+      controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+      controls.setReturningAttributes(new String[0]);
+      NamingEnumeration<SearchResult> results = m_Context.search(
+          new LdapName(op.m_Dn), "(" + op.m_Attribute + "={0})", new Object[]{op.m_Value}, controls);
+      try {
+        return results.hasMore() ? COMPARE_TRUE : COMPARE_FALSE;
+      } finally {
+        results.close();
+      }
+    }//compare
+
+    private void close() {
+      if (m_Context != null) {
+        try {
+          m_Context.close();
+        } catch (NamingException ex) {
+          log.debug("close()", ex);
+        }
+        m_Context = null;
+      }
+    }//close
+
+  }//inner class Worker
+
+  private static int getResultCode(NamingException ex) {
+    if (ex instanceof AuthenticationException) {
+      return INVALID_CREDENTIALS;
+    }
+    Matcher m = ERROR_CODE.matcher(String.valueOf(ex.getMessage()));
+    return m.find() ? Integer.parseInt(m.group(1)) : OTHER;
+  }//getResultCode
+
+  /**
+   * The latencies of an operation type.
+   */
+  private static class Latencies {
+
+    private long[] m_Values = new long[1024];
+    private int m_Count;
+    private long m_Errors;
+    //result differs from the captured one
+    private long m_Changed;
+
+    synchronized void add(long nanos, boolean error, boolean changed) {
+      if (m_Count == m_Values.length) {
+        m_Values = Arrays.copyOf(m_Values, m_Count * 2);
+      }
+      m_Values[m_Count++] = nanos;
+      if (error) {
+        m_Errors++;
+      }
+      if (changed) {
+        m_Changed++;
+      }
+    }//add
+
+    synchronized long[] sorted() {
+      long[] sorted = Arrays.copyOf(m_Values, m_Count);
+      Arrays.sort(sorted);
+      return sorted;
+    }//sorted
+
+  }//inner class Latencies
+
+  /**
+   * Main application method.
+   *
+   * @param args <tt>replay &lt;trace&gt; [speedup]</tt> or <tt>report &lt;trace&gt;</tt>.
+   */
+  public static void main(String[] args) {
+    if (args.length < 2 || !("replay".equals(args[0]) || "report".equals(args[0]))) {
+      System.err.println("Usage: TraceReplay replay <trace> [speedup] | report <trace>");
+      System.exit(1);
+    }
+    int status = 0;
+    try {
+      File trace = new File(args[1]);
+      if ("report".equals(args[0])) {
+        report("Captured", read(trace), System.out);
+        return;
+      }
+      File confDir = new File("etc");
+
+      // Configure Logging
+      Properties logConfig = new Properties();
+      logConfig.load(new FileReader(new File(confDir, "log4j.properties")));
+      PropertyConfigurator.configure(logConfig);
+
+      // Server Configuration
+      Properties serverConfig = new Properties();
+      serverConfig.load(new FileReader(new File(confDir, "crowd-ldap-server.properties")));
+
+      File workDir = new File(serverConfig.getProperty(CONFIG_KEY_WORK, "work/replay"));
+      workDir.mkdirs();
+      double speedup = (args.length > 2) ? Double.parseDouble(args[2]) : 1.0;
+      new TraceReplay(serverConfig, workDir, speedup).replay(confDir, trace, System.out);
+    } catch (Exception ex) {
+      log.error("main()", ex);
+      ex.printStackTrace();
+      status = 1;
+    }
+    //the replaying server is not shut down
+    System.exit(status);
+  }//main
+
+  private static final String CONFIG_KEY_PORT = "replay.port";
+  private static final String CONFIG_KEY_WORK = "replay.work";
+  private static final String CONFIG_KEY_PASSWORD = "replay.password";
+  private static final String CONFIG_KEY_LATENCY = "replay.crowd.latency";
+  private static final String CONFIG_KEY_USERS = "replay.users";
+  private static final String CONFIG_KEY_GROUPS = "replay.groups";
+  private static final String CONFIG_KEY_MEMBERSHIPS = "replay.memberships";
+  private static final String CONFIG_KEY_THREADS = "replay.threads";
+
+  private static final int SUCCESS = 0;
+  private static final int SIZE_LIMIT_EXCEEDED = 4;
+  private static final int COMPARE_FALSE = 5;
+  private static final int COMPARE_TRUE = 6;
+  private static final int INVALID_CREDENTIALS = 49;
+  private static final int OTHER = 80;
+
+  private static final Pattern ERROR_CODE = Pattern.compile("error code (\\d+)");
+  private static final Pattern NAME_ASSERTION = Pattern.compile(
+      "\\((uid|dn|cn)=([^*()\\\\]+)\\)", Pattern.CASE_INSENSITIVE);
+  private static final Pattern GROUP_FILTER = Pattern.compile(
+      "objectClass=group", Pattern.CASE_INSENSITIVE);
+  private static final Pattern MEMBER = Pattern.compile(
+      "member|uniqueMember|2\\.5\\.4\\.31|2\\.5\\.4\\.50", Pattern.CASE_INSENSITIVE);
+
+}//class TraceReplay
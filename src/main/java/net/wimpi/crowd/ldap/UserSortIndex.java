@@ -0,0 +1,312 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.model.user.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maintains the users sorted by each of the sortable attributes
+ * (<tt>uid</tt>, <tt>cn</tt>, <tt>sn</tt> and <tt>mail</tt>), so that a window
+ * of a sorted listing can be obtained without sorting the whole directory.
+ * <p/>
+ * Values are compared case insensitive; users lacking an attribute sort
+ * after all others, and ties are ordered by username.
+ * The index is built from all users and kept current with the users
+ * created, changed or removed afterwards.
+ */
+class UserSortIndex {
+
+  private final Map<String, Item> m_Items = new HashMap<String, Item>();
+  private final List<List<Item>> m_Sorted = new ArrayList<List<Item>>();
+  private final List<Comparator<Item>> m_Comparators = new ArrayList<Comparator<Item>>();
+  private boolean m_Built;
+  private long m_BuiltAt;
+
+  UserSortIndex() {
+    for (int i = 0; i < ATTRIBUTES.length; i++) {
+      m_Sorted.add(new ArrayList<Item>());
+      m_Comparators.add(new ItemComparator(i));
+    }
+  }//constructor
+
+  /**
+   * Returns the index of the given attribute in the sort order.
+   *
+   * @param oid the OID of the attribute.
+   * @return the index, or -1 if the attribute is not sortable.
+   */
+  static int indexOf(String oid) {
+    for (int i = 0; i < ATTRIBUTES.length; i++) {
+      if (ATTRIBUTES[i].equals(oid)) {
+        return i;
+      }
+    }
+    return -1;
+  }//indexOf
+
+  synchronized boolean isBuilt() {
+    return m_Built;
+  }//isBuilt
+
+  /**
+   * Returns the age of the index.
+   *
+   * @return the milliseconds since the index was built.
+   */
+  synchronized long getAge() {
+    return System.currentTimeMillis() - m_BuiltAt;
+  }//getAge
+
+  /**
+   * Rebuilds the index from the given users.
+   *
+   * @param users all users.
+   */
+  synchronized void build(Collection<User> users) {
+    m_Items.clear();
+    for (User u : users) {
+      Item item = new Item(u);
+      m_Items.put(item.m_Key, item);
+    }
+    for (int i = 0; i < ATTRIBUTES.length; i++) {
+      List<Item> sorted = new ArrayList<Item>(m_Items.values());
+      Collections.sort(sorted, m_Comparators.get(i));
+      m_Sorted.set(i, sorted);
+    }
+    m_Built = true;
+    m_BuiltAt = System.currentTimeMillis();
+  }//build
+
+  /**
+   * Adds or repositions a user.
+   *
+   * @param user the user.
+   */
+  synchronized void put(User user) {
+    if (!m_Built) {
+      return;
+    }
+    Item item = new Item(user);
+    Item old = m_Items.put(item.m_Key, item);
+    for (int i = 0; i < ATTRIBUTES.length; i++) {
+      List<Item> sorted = m_Sorted.get(i);
+      if (old != null) {
+        sorted.remove(Collections.binarySearch(sorted, old, m_Comparators.get(i)));
+      }
+      int pos = Collections.binarySearch(sorted, item, m_Comparators.get(i));
+      sorted.add((pos < 0) ? -pos - 1 : pos, item);
+    }
+  }//put
+
+  /**
+   * Removes a user.
+   *
+   * @param name the username.
+   */
+  synchronized void remove(String name) {
+    Item old = m_Items.remove(name.toLowerCase());
+    if (old == null) {
+      return;
+    }
+    for (int i = 0; i < ATTRIBUTES.length; i++) {
+      List<Item> sorted = m_Sorted.get(i);
+      sorted.remove(Collections.binarySearch(sorted, old, m_Comparators.get(i)));
+    }
+  }//remove
+
+  /**
+   * Discards the index, so that it is rebuilt when used next.
+   */
+  synchronized void clear() {
+    m_Built = false;
+    m_Items.clear();
+    for (List<Item> sorted : m_Sorted) {
+      sorted.clear();
+    }
+  }//clear
+
+  synchronized int size() {
+    return m_Items.size();
+  }//size
+
+  /**
+   * Returns the usernames in the given range of the sort order.
+   *
+   * @param attribute the index of the sort attribute.
+   * @param reverse   true for descending order.
+   * @param from      the first position (0 based, inclusive).
+   * @param to        the last position (exclusive).
+   * @return the usernames.
+   */
+  synchronized List<String> window(int attribute, boolean reverse, int from, int to) {
+    List<Item> sorted = m_Sorted.get(attribute);
+    int size = sorted.size();
+    from = Math.max(0, from);
+    to = Math.min(size, to);
+    List<String> names = new ArrayList<String>(Math.max(0, to - from));
+    for (int i = from; i < to; i++) {
+      names.add(sorted.get(reverse ? size - 1 - i : i).m_Name);
+    }
+    return names;
+  }//window
+
+  /**
+   * Returns the position of the first user whose value is greater than
+   * or equal to the given one, respectively less than or equal in descending order.
+   *
+   * @param attribute the index of the sort attribute.
+   * @param reverse   true for descending order.
+   * @param value     the assertion value.
+   * @return the position (0 based), which is the size of the index if there is none.
+   */
+  synchronized int position(int attribute, boolean reverse, String value) {
+    List<Item> sorted = m_Sorted.get(attribute);
+    String v = value.toLowerCase();
+    int low = 0;
+    int high = sorted.size();
+    //first item with a key >= v (missing keys sort last)
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      String key = sorted.get(mid).m_Values[attribute];
+      if (key != null && key.compareTo(v) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    if (!reverse) {
+      return low;
+    }
+    //descending: first item with a key <= v
+    int after = low;
+    while (after < sorted.size() && v.equals(sorted.get(after).m_Values[attribute])) {
+      after++;
+    }
+    return sorted.size() - after;
+  }//position
+
+  /**
+   * Returns the position of the first user in the given sorted usernames whose value is
+   * greater than or equal to the given one, respectively less than or equal in descending order.
+   *
+   * @param names     the usernames, as sorted by {@link #sort(List, int, boolean)}.
+   * @param attribute the index of the sort attribute.
+   * @param reverse   true for descending order.
+   * @param value     the assertion value.
+   * @return the position (0 based), which is the number of usernames if there is none.
+   */
+  synchronized int position(List<String> names, int attribute, boolean reverse, String value) {
+    String v = value.toLowerCase();
+    for (int i = 0; i < names.size(); i++) {
+      Item item = m_Items.get(names.get(i).toLowerCase());
+      String key = (item == null) ? null : item.m_Values[attribute];
+      if (key == null) {
+        //missing values sort last
+        return reverse ? i : names.size();
+      }
+      int c = key.compareTo(v);
+      if (reverse ? c <= 0 : c >= 0) {
+        return i;
+      }
+    }
+    return names.size();
+  }//position
+
+  /**
+   * Sorts the given usernames. Users not in the index follow
+   * all indexed users, in the given order.
+   *
+   * @param names     the usernames.
+   * @param attribute the index of the sort attribute.
+   * @param reverse   true for descending order.
+   * @return the sorted usernames.
+   */
+  synchronized List<String> sort(List<String> names, int attribute, boolean reverse) {
+    List<Item> items = new ArrayList<Item>(names.size());
+    List<String> unknown = new ArrayList<String>();
+    for (String name : names) {
+      Item item = m_Items.get(name.toLowerCase());
+      if (item != null) {
+        items.add(item);
+      } else {
+        unknown.add(name);
+      }
+    }
+    Comparator<Item> c = m_Comparators.get(attribute);
+    Collections.sort(items, reverse ? Collections.reverseOrder(c) : c);
+    List<String> sorted = new ArrayList<String>(names.size());
+    for (Item item : items) {
+      sorted.add(item.m_Name);
+    }
+    sorted.addAll(unknown);
+    return sorted;
+  }//sort
+
+  /**
+   * The sort keys of a user.
+   */
+  private static class Item {
+
+    private final String m_Name;
+    private final String m_Key;
+    private final String[] m_Values;
+
+    Item(User u) {
+      m_Name = u.getName();
+      m_Key = u.getName().toLowerCase();
+      m_Values = new String[]{
+          m_Key,
+          normalize(u.getDisplayName()),
+          normalize(u.getLastName()),
+          normalize(u.getEmailAddress())
+      };
+    }//constructor
+
+    private static String normalize(String value) {
+      return (value == null || value.length() == 0) ? null : value.toLowerCase();
+    }//normalize
+
+  }//inner class Item
+
+  private static class ItemComparator implements Comparator<Item> {
+
+    private final int m_Attribute;
+
+    ItemComparator(int attribute) {
+      m_Attribute = attribute;
+    }//constructor
+
+    public int compare(Item i1, Item i2) {
+      String v1 = i1.m_Values[m_Attribute];
+      String v2 = i2.m_Values[m_Attribute];
+      if (v1 != v2) {
+        if (v1 == null) {
+          return 1;
+        } else if (v2 == null) {
+          return -1;
+        }
+        int c = v1.compareTo(v2);
+        if (c != 0) {
+          return c;
+        }
+      }
+      return i1.m_Key.compareTo(i2.m_Key);
+    }//compare
+
+  }//inner class ItemComparator
+
+  //uid, cn, sn, mail
+  static final String[] ATTRIBUTES = {
+      "0.9.2342.19200300.100.1.1",
+      "2.5.4.3",
+      "2.5.4.4",
+      "0.9.2342.19200300.100.1.3"
+  };
+
+}//class UserSortIndex
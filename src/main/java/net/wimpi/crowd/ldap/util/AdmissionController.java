@@ -0,0 +1,181 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides admission control for calls to a shared backend.
+ * <p/>
+ * The number of calls in flight is limited globally, and additionally
+ * per {@link Lane}. Giving a lane a quota below the global limit reserves
+ * the remaining capacity for the other lanes.
+ * <p/>
+ * Calls that cannot be admitted immediately wait in a bounded queue for
+ * at most the configured time; calls arriving at a full queue, or waiting
+ * too long, are rejected with a {@link RejectedExecutionException}.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class AdmissionController {
+
+  private final Semaphore m_Global;
+  private final int m_MaxInFlight;
+  private final int m_MaxQueued;
+  private final long m_MaxWait;
+  private final AtomicInteger m_Queued = new AtomicInteger(0);
+
+  /**
+   * Creates a new <tt>AdmissionController</tt>.
+   *
+   * @param maxInFlight the maximum number of calls in flight.
+   * @param maxQueued   the maximum number of calls waiting for admission.
+   * @param maxWait     the maximum time a call may wait for admission in milliseconds.
+   */
+  public AdmissionController(int maxInFlight, int maxQueued, long maxWait) {
+    m_MaxInFlight = maxInFlight;
+    m_MaxQueued = maxQueued;
+    m_MaxWait = maxWait;
+    m_Global = new Semaphore(maxInFlight, true);
+  }//constructor
+
+  /**
+   * Creates a new lane with the given quota.
+   *
+   * @param name  the name of the lane.
+   * @param quota the maximum number of calls in flight for the lane.
+   * @return the new {@link Lane}.
+   */
+  public Lane createLane(String name, int quota) {
+    return new Lane(name, Math.min(quota, m_MaxInFlight));
+  }//createLane
+
+  /**
+   * Admits a call in the given lane, waiting if necessary.
+   *
+   * @param lane the lane of the call.
+   * @throws RejectedExecutionException if the call was not admitted.
+   * @throws InterruptedException       if interrupted while waiting.
+   */
+  public void acquire(Lane lane) throws InterruptedException {
+    //1. Fast path
+    if (lane.m_Quota.tryAcquire()) {
+      if (m_Global.tryAcquire()) {
+        return;
+      }
+      lane.m_Quota.release();
+    }
+    //2. Queue
+    if (m_Queued.incrementAndGet() > m_MaxQueued) {
+      m_Queued.decrementAndGet();
+      lane.m_Rejected.incrementAndGet();
+      throw new RejectedExecutionException("Admission queue full (" + lane.getName() + ")");
+    }
+    try {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_MaxWait);
+      if (!lane.m_Quota.tryAcquire(m_MaxWait, TimeUnit.MILLISECONDS)) {
+        lane.m_Rejected.incrementAndGet();
+        throw new RejectedExecutionException("Admission timed out (" + lane.getName() + ")");
+      }
+      if (!m_Global.tryAcquire(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        lane.m_Quota.release();
+        lane.m_Rejected.incrementAndGet();
+        throw new RejectedExecutionException("Admission timed out (" + lane.getName() + ")");
+      }
+    } finally {
+      m_Queued.decrementAndGet();
+    }
+  }//acquire
+
+  /**
+   * Releases a call previously admitted with {@link #acquire(Lane)}.
+   *
+   * @param lane the lane of the call.
+   */
+  public void release(Lane lane) {
+    m_Global.release();
+    lane.m_Quota.release();
+  }//release
+
+  public int getMaxInFlight() {
+    return m_MaxInFlight;
+  }//getMaxInFlight
+
+  public int getMaxQueued() {
+    return m_MaxQueued;
+  }//getMaxQueued
+
+  /**
+   * Returns the number of calls currently in flight.
+   *
+   * @return the number of admitted calls.
+   */
+  public int getInFlight() {
+    return m_MaxInFlight - m_Global.availablePermits();
+  }//getInFlight
+
+  /**
+   * Returns the number of calls currently waiting for admission.
+   *
+   * @return the queue depth.
+   */
+  public int getQueueDepth() {
+    return Math.max(0, m_Queued.get());
+  }//getQueueDepth
+
+  /**
+   * A lane of calls with its own quota and statistics.
+   */
+  public static class Lane {
+
+    private final String m_Name;
+    private final int m_Limit;
+    private final Semaphore m_Quota;
+    private final AtomicLong m_Rejected = new AtomicLong(0);
+
+    private Lane(String name, int quota) {
+      m_Name = name;
+      m_Limit = quota;
+      m_Quota = new Semaphore(quota, true);
+    }//constructor
+
+    public String getName() {
+      return m_Name;
+    }//getName
+
+    public int getQuota() {
+      return m_Limit;
+    }//getQuota
+
+    public int getInFlight() {
+      return m_Limit - m_Quota.availablePermits();
+    }//getInFlight
+
+    public long getRejected() {
+      return m_Rejected.get();
+    }//getRejected
+
+  }//inner class Lane
+
+}//class AdmissionController
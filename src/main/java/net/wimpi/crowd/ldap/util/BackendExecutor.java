@@ -0,0 +1,270 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides an executor for blocking backend work.
+ * <p/>
+ * Tasks are executed on virtual threads if the runtime supports them,
+ * otherwise on a bounded pool of daemon threads. In both cases the number
+ * of running and queued tasks is limited to <tt>threads + queueSize</tt>;
+ * tasks beyond that limit are rejected with a
+ * {@link RejectedExecutionException}.
+ * <p/>
+ * The calling thread waits for the result at most for the given timeout,
+ * after which the task is cancelled and a {@link TimeoutException} is thrown.
+ * Since an interrupt does not abort blocking socket I/O, a cancelled task
+ * keeps its share of the capacity until it actually returns.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class BackendExecutor {
+
+  private static final Logger log = LoggerFactory.getLogger(BackendExecutor.class);
+
+  private final ExecutorService m_Executor;
+  private final Semaphore m_Capacity;
+  private final boolean m_Virtual;
+  private final int m_Threads;
+  private final int m_QueueSize;
+
+  /**
+   * Creates a new <tt>BackendExecutor</tt>.
+   *
+   * @param name           the name prefix for pooled threads.
+   * @param threads        the number of concurrently executing tasks.
+   * @param queueSize      the number of tasks that may wait for execution.
+   * @param preferVirtual  true if virtual threads should be used when available.
+   */
+  public BackendExecutor(String name, int threads, int queueSize, boolean preferVirtual) {
+    m_Threads = threads;
+    m_QueueSize = queueSize;
+    ExecutorService virtual = (preferVirtual) ? newVirtualThreadExecutor() : null;
+    if (virtual != null) {
+      m_Executor = virtual;
+      m_Virtual = true;
+    } else {
+      //Note: the capacity permits bound the tasks; idle threads may not have taken
+      //tasks from the queue yet, so the queue holds as many tasks as there are permits
+      ThreadPoolExecutor tpe = new ThreadPoolExecutor(
+          threads, threads, 60L, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<Runnable>(Math.max(1, threads + queueSize)),
+          new DaemonThreadFactory(name),
+          new ThreadPoolExecutor.AbortPolicy()
+      );
+      tpe.allowCoreThreadTimeOut(true);
+      m_Executor = tpe;
+      m_Virtual = false;
+    }
+    m_Capacity = new Semaphore(threads + queueSize);
+    log.info(String.format("Backend executor %s: %s, threads=%d, queue=%d",
+        name, (m_Virtual) ? "virtual threads" : "thread pool", threads, queueSize));
+  }//constructor
+
+  /**
+   * Executes the given task and waits for its result.
+   *
+   * @param task          the task to be executed.
+   * @param timeoutMillis the maximum time to wait for the result in milliseconds.
+   * @return the result of the task.
+   * @throws RejectedExecutionException if the executor is saturated.
+   * @throws TimeoutException           if the task did not complete in time.
+   * @throws Exception                  the exception thrown by the task.
+   */
+  public <T> T execute(Callable<T> task, long timeoutMillis) throws Exception {
+    return execute(task, timeoutMillis, null);
+  }//execute
+
+  /**
+   * Executes the given task and waits for its result, running the given
+   * completion once the task has returned, also if the wait timed out.
+   *
+   * @param task          the task to be executed.
+   * @param timeoutMillis the maximum time to wait for the result in milliseconds.
+   * @param completion    run exactly once when the task has returned or was rejected; may be null.
+   * @return the result of the task.
+   * @throws RejectedExecutionException if the executor is saturated.
+   * @throws TimeoutException           if the task did not complete in time.
+   * @throws Exception                  the exception thrown by the task.
+   */
+  public <T> T execute(Callable<T> task, long timeoutMillis, Runnable completion) throws Exception {
+    Future<T> f = submit(task, completion);
+    try {
+      return f.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      f.cancel(true);
+      throw new TimeoutException("Backend call did not complete within " + timeoutMillis + " ms");
+    } catch (InterruptedException ex) {
+      f.cancel(true);
+      Thread.currentThread().interrupt();
+      throw ex;
+    } catch (ExecutionException ex) {
+      Throwable t = ex.getCause();
+      if (t instanceof Exception) {
+        throw (Exception) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw ex;
+    }
+  }//execute
+
+  /**
+   * Submits the given task for asynchronous execution.
+   *
+   * @param task the task to be executed.
+   * @return the {@link Future} representing the pending result.
+   * @throws RejectedExecutionException if the executor is saturated.
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    return submit(task, null);
+  }//submit
+
+  /**
+   * Submits the given task for asynchronous execution.
+   *
+   * @param task       the task to be executed.
+   * @param completion run exactly once when the task has returned or was rejected; may be null.
+   * @return the {@link Future} representing the pending result.
+   * @throws RejectedExecutionException if the executor is saturated.
+   */
+  public <T> Future<T> submit(Callable<T> task, Runnable completion) {
+    if (!m_Capacity.tryAcquire()) {
+      if (completion != null) {
+        completion.run();
+      }
+      throw new RejectedExecutionException("Backend executor saturated");
+    }
+    FutureTask<T> f = new ReleasingFutureTask<T>(task, completion);
+    try {
+      m_Executor.execute(f);
+    } catch (RejectedExecutionException ex) {
+      m_Capacity.release();
+      if (completion != null) {
+        completion.run();
+      }
+      throw ex;
+    }
+    return f;
+  }//submit
+
+  /**
+   * Tests if this executor runs tasks on virtual threads.
+   *
+   * @return true if virtual threads are used, false otherwise.
+   */
+  public boolean isVirtual() {
+    return m_Virtual;
+  }//isVirtual
+
+  public int getThreads() {
+    return m_Threads;
+  }//getThreads
+
+  public int getQueueSize() {
+    return m_QueueSize;
+  }//getQueueSize
+
+  /**
+   * Returns the number of tasks currently running or waiting.
+   *
+   * @return the number of pending tasks.
+   */
+  public int getPending() {
+    return m_Threads + m_QueueSize - m_Capacity.availablePermits();
+  }//getPending
+
+  public void shutdown() {
+    m_Executor.shutdownNow();
+  }//shutdown
+
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke(null);
+    } catch (Exception ex) {
+      log.debug("Virtual threads not available: " + ex);
+      return null;
+    }
+  }//newVirtualThreadExecutor
+
+  /**
+   * Releases the capacity permit and runs the completion once the task has returned,
+   * not when it is cancelled; a task cancelled before it started returns immediately when run.
+   */
+  private class ReleasingFutureTask<T> extends FutureTask<T> {
+
+    private final Runnable m_Completion;
+
+    ReleasingFutureTask(Callable<T> task, Runnable completion) {
+      super(task);
+      m_Completion = completion;
+    }//constructor
+
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        m_Capacity.release();
+        if (m_Completion != null) {
+          m_Completion.run();
+        }
+      }
+    }//run
+
+  }//inner class ReleasingFutureTask
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+
+    private final String m_Name;
+    private final AtomicInteger m_Count = new AtomicInteger(0);
+
+    DaemonThreadFactory(String name) {
+      m_Name = name;
+    }//constructor
+
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, m_Name + "-" + m_Count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }//newThread
+
+  }//inner class DaemonThreadFactory
+
+}//class BackendExecutor
@@ -0,0 +1,253 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Provides a minimal BER (X.690) reader and writer for control values
+ * the LDAP codec does not know, e.g. the sort and virtual list view controls.
+ * <p/>
+ * Only definite lengths and the universal types needed by such controls
+ * (INTEGER, ENUMERATED, BOOLEAN, OCTET STRING, SEQUENCE) are supported.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public final class Ber {
+
+  public static final int BOOLEAN = 0x01;
+  public static final int INTEGER = 0x02;
+  public static final int OCTET_STRING = 0x04;
+  public static final int ENUMERATED = 0x0A;
+  public static final int SEQUENCE = 0x30;
+
+  private Ber() {
+  }//constructor
+
+  /**
+   * Returns the tag of a context specific primitive element.
+   *
+   * @param number the tag number.
+   * @return the tag.
+   */
+  public static int context(int number) {
+    return 0x80 | number;
+  }//context
+
+  /**
+   * Returns the tag of a context specific constructed element.
+   *
+   * @param number the tag number.
+   * @return the tag.
+   */
+  public static int contextConstructed(int number) {
+    return 0xA0 | number;
+  }//contextConstructed
+
+  /**
+   * Reads the elements of an encoded value in order.
+   */
+  public static class Reader {
+
+    private final byte[] m_Buffer;
+    private int m_Position;
+    private final int m_End;
+
+    public Reader(byte[] buffer) {
+      this(buffer, 0, buffer.length);
+    }//constructor
+
+    private Reader(byte[] buffer, int offset, int end) {
+      m_Buffer = buffer;
+      m_Position = offset;
+      m_End = end;
+    }//constructor
+
+    public boolean hasMore() {
+      return m_Position < m_End;
+    }//hasMore
+
+    /**
+     * Returns the tag of the next element, without consuming it.
+     *
+     * @return the tag, or -1 if there are no more elements.
+     */
+    public int peekTag() {
+      return hasMore() ? (m_Buffer[m_Position] & 0xFF) : -1;
+    }//peekTag
+
+    /**
+     * Reads a constructed element, e.g. a SEQUENCE.
+     *
+     * @param tag the expected tag.
+     * @return a reader over the contents.
+     * @throws IOException if the next element does not match or is malformed.
+     */
+    public Reader readConstructed(int tag) throws IOException {
+      int length = readHeader(tag);
+      Reader r = new Reader(m_Buffer, m_Position, m_Position + length);
+      m_Position += length;
+      return r;
+    }//readConstructed
+
+    public byte[] readOctets(int tag) throws IOException {
+      int length = readHeader(tag);
+      byte[] b = new byte[length];
+      System.arraycopy(m_Buffer, m_Position, b, 0, length);
+      m_Position += length;
+      return b;
+    }//readOctets
+
+    public String readString(int tag) throws IOException {
+      return new String(readOctets(tag), "utf-8");
+    }//readString
+
+    public long readInteger(int tag) throws IOException {
+      int length = readHeader(tag);
+      if (length < 1 || length > 8) {
+        throw new IOException("Invalid integer length " + length);
+      }
+      long value = m_Buffer[m_Position];  //sign extended
+      for (int i = 1; i < length; i++) {
+        value = (value << 8) | (m_Buffer[m_Position + i] & 0xFF);
+      }
+      m_Position += length;
+      return value;
+    }//readInteger
+
+    public boolean readBoolean(int tag) throws IOException {
+      int length = readHeader(tag);
+      if (length != 1) {
+        throw new IOException("Invalid boolean length " + length);
+      }
+      return m_Buffer[m_Position++] != 0;
+    }//readBoolean
+
+    /**
+     * Skips the next element.
+     *
+     * @throws IOException if the element is malformed.
+     */
+    public void skip() throws IOException {
+      int length = readHeader(peekTag());
+      m_Position += length;
+    }//skip
+
+    private int readHeader(int tag) throws IOException {
+      if (peekTag() != tag) {
+        throw new IOException("Expected tag " + tag + ", found " + peekTag());
+      }
+      m_Position++;
+      if (!hasMore()) {
+        throw new IOException("Truncated element");
+      }
+      int length = m_Buffer[m_Position++] & 0xFF;
+      if (length > 0x7F) {
+        int n = length & 0x7F;
+        if (n < 1 || n > 3) {
+          throw new IOException("Unsupported length encoding");
+        }
+        length = 0;
+        for (int i = 0; i < n; i++) {
+          if (!hasMore()) {
+            throw new IOException("Truncated element");
+          }
+          length = (length << 8) | (m_Buffer[m_Position++] & 0xFF);
+        }
+      }
+      if (length > m_End - m_Position) {
+        throw new IOException("Truncated element");
+      }
+      return length;
+    }//readHeader
+
+  }//inner class Reader
+
+  /**
+   * Writes elements in order.
+   */
+  public static class Writer {
+
+    private final ByteArrayOutputStream m_Out = new ByteArrayOutputStream();
+
+    public Writer writeInteger(int tag, long value) {
+      int length = 1;
+      while (length < 8 && (value >> (length * 8 - 1)) != 0 && (value >> (length * 8 - 1)) != -1) {
+        length++;
+      }
+      writeHeader(tag, length);
+      for (int i = length - 1; i >= 0; i--) {
+        m_Out.write((int) (value >> (i * 8)));
+      }
+      return this;
+    }//writeInteger
+
+    public Writer writeOctets(int tag, byte[] value) {
+      writeHeader(tag, value.length);
+      m_Out.write(value, 0, value.length);
+      return this;
+    }//writeOctets
+
+    public Writer writeString(int tag, String value) {
+      try {
+        return writeOctets(tag, value.getBytes("utf-8"));
+      } catch (IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }//writeString
+
+    /**
+     * Writes a constructed element, e.g. a SEQUENCE.
+     *
+     * @param tag      the tag.
+     * @param contents the writer holding the contents.
+     * @return this writer.
+     */
+    public Writer writeConstructed(int tag, Writer contents) {
+      return writeOctets(tag, contents.toByteArray());
+    }//writeConstructed
+
+    public byte[] toByteArray() {
+      return m_Out.toByteArray();
+    }//toByteArray
+
+    private void writeHeader(int tag, int length) {
+      m_Out.write(tag);
+      if (length < 0x80) {
+        m_Out.write(length);
+      } else if (length < 0x100) {
+        m_Out.write(0x81);
+        m_Out.write(length);
+      } else if (length < 0x10000) {
+        m_Out.write(0x82);
+        m_Out.write(length >> 8);
+        m_Out.write(length);
+      } else {
+        m_Out.write(0x83);
+        m_Out.write(length >> 16);
+        m_Out.write(length >> 8);
+        m_Out.write(length);
+      }
+    }//writeHeader
+
+  }//inner class Writer
+
+}//class Ber
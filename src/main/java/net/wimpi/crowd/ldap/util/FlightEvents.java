@@ -0,0 +1,233 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Provides custom Java Flight Recorder events, defined at runtime.
+ * <p/>
+ * The JFR API is accessed through reflection, so the code runs on
+ * runtimes without it, where all event types are disabled.
+ * An event is only created while a recording enables its type;
+ * otherwise {@link Type#begin()} returns null, and the caller skips
+ * collecting the event fields:
+ * <pre>
+ *   Object event = TYPE.begin();
+ *   ...
+ *   if (event != null) {
+ *     TYPE.commit(event, field1, field2);
+ *   }
+ * </pre>
+ * Events are committed only if they last at least the threshold
+ * of the recording settings, which defaults to the threshold of the type.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class FlightEvents {
+
+  private static final Logger log = LoggerFactory.getLogger(FlightEvents.class);
+
+  private static Method c_Create;
+  private static Method c_NewEvent;
+  private static Method c_GetEventType;
+  private static Method c_IsEnabled;
+  private static Method c_Begin;
+  private static Method c_Set;
+  private static Method c_Commit;
+  private static Constructor<?> c_AnnotationElement;
+  private static Constructor<?> c_ValueDescriptor;
+  private static boolean c_Available;
+
+  static {
+    try {
+      Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+      Class<?> event = Class.forName("jdk.jfr.Event");
+      c_Create = factory.getMethod("create", List.class, List.class);
+      c_NewEvent = factory.getMethod("newEvent");
+      c_GetEventType = factory.getMethod("getEventType");
+      c_IsEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+      c_Begin = event.getMethod("begin");
+      c_Set = event.getMethod("set", int.class, Object.class);
+      c_Commit = event.getMethod("commit");
+      c_AnnotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+      c_ValueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+      c_Available = true;
+    } catch (Throwable t) {
+      log.debug("Flight recorder not available: " + t);
+      c_Available = false;
+    }
+  }//static initializer
+
+  /**
+   * Tests if the runtime supports flight recorder events.
+   *
+   * @return true if available.
+   */
+  public static boolean isAvailable() {
+    return c_Available;
+  }//isAvailable
+
+  /**
+   * Defines an event type.
+   * <p/>
+   * Fields are given as type and name, separated by a blank
+   * (e.g. <tt>"String dn"</tt>); supported types are <tt>String</tt>,
+   * <tt>int</tt>, <tt>long</tt> and <tt>boolean</tt>.
+   *
+   * @param name        the name of the type.
+   * @param label       the human readable name.
+   * @param description the description.
+   * @param category    the category path.
+   * @param enabled     true if enabled unless the recording settings tell otherwise.
+   * @param threshold   the default threshold, e.g. <tt>"10 ms"</tt>.
+   * @param fields      the fields, in the order their values are committed.
+   * @return the {@link Type}, which is disabled if the type cannot be defined.
+   */
+  public static Type define(String name, String label, String description, String[] category,
+                            boolean enabled, String threshold, String... fields) {
+    if (!c_Available) {
+      return new Type(null, null);
+    }
+    try {
+      List<Object> annotations = new ArrayList<Object>();
+      annotations.add(annotation("jdk.jfr.Name", name));
+      annotations.add(annotation("jdk.jfr.Label", label));
+      annotations.add(annotation("jdk.jfr.Description", description));
+      annotations.add(annotation("jdk.jfr.Category", category));
+      annotations.add(annotation("jdk.jfr.Enabled", enabled));
+      annotations.add(annotation("jdk.jfr.Threshold", threshold));
+      annotations.add(annotation("jdk.jfr.StackTrace", Boolean.FALSE));
+      List<Object> descriptors = new ArrayList<Object>();
+      for (String field : fields) {
+        String[] typeAndName = field.split(" ");
+        descriptors.add(c_ValueDescriptor.newInstance(
+            getFieldType(typeAndName[0]), typeAndName[1], new ArrayList<Object>()));
+      }
+      Object factory = c_Create.invoke(null, annotations, descriptors);
+      return new Type(factory, c_GetEventType.invoke(factory));
+    } catch (Exception ex) {
+      log.warn("define()::" + name, ex);
+      return new Type(null, null);
+    }
+  }//define
+
+  private static Object annotation(String type, Object value) throws Exception {
+    return c_AnnotationElement.newInstance(Class.forName(type), value);
+  }//annotation
+
+  private static Class<?> getFieldType(String type) {
+    if ("int".equals(type)) {
+      return int.class;
+    } else if ("long".equals(type)) {
+      return long.class;
+    } else if ("boolean".equals(type)) {
+      return boolean.class;
+    }
+    return String.class;
+  }//getFieldType
+
+  /**
+   * An event type.
+   */
+  public static class Type {
+
+    private final Object m_Factory;
+    private final Object m_EventType;
+
+    private Type(Object factory, Object eventType) {
+      m_Factory = factory;
+      m_EventType = eventType;
+    }//constructor
+
+    /**
+     * Tests if a recording enables this type.
+     *
+     * @return true if enabled.
+     */
+    public boolean isEnabled() {
+      if (m_EventType == null) {
+        return false;
+      }
+      try {
+        return (Boolean) c_IsEnabled.invoke(m_EventType);
+      } catch (Exception ex) {
+        return false;
+      }
+    }//isEnabled
+
+    /**
+     * Begins the timing of an event.
+     *
+     * @return the event, or null if this type is not enabled.
+     */
+    public Object begin() {
+      if (!isEnabled()) {
+        return null;
+      }
+      try {
+        Object event = c_NewEvent.invoke(m_Factory);
+        c_Begin.invoke(event);
+        return event;
+      } catch (Exception ex) {
+        log.debug("begin()", ex);
+        return null;
+      }
+    }//begin
+
+    /**
+     * Ends the timing of an event and commits it with the given field values,
+     * if it lasted at least the threshold.
+     *
+     * @param event  the event obtained from {@link #begin()}.
+     * @param values the field values, in the order the fields were defined.
+     */
+    public void commit(Object event, Object... values) {
+      try {
+        for (int i = 0; i < values.length; i++) {
+          c_Set.invoke(event, i, values[i]);
+        }
+        c_Commit.invoke(event);
+      } catch (Exception ex) {
+        log.debug("commit()", ex);
+      }
+    }//commit
+
+    /**
+     * Commits an event without duration, if this type is enabled.
+     *
+     * @param values the field values, in the order the fields were defined.
+     */
+    public void instant(Object... values) {
+      Object event = begin();
+      if (event != null) {
+        commit(event, values);
+      }
+    }//instant
+
+  }//inner class Type
+
+}//class FlightEvents
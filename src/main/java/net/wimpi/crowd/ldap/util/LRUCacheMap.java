@@ -37,6 +37,11 @@ import java.util.Map;
  * <pre>
  *    Map m = Collections.synchronizedMap(new LRUCache(int size));
  * </pre>
+ * <p/>
+ * Optionally the cache can be bounded by weight, using a {@link Weigher}
+ * and a {@link WeightBudget}. Entries of a weighted cache must be removed
+ * through {@link #remove(Object)} or {@link #clear()}, because removals
+ * through the collection views are not accounted.
  *
  * @author Dieter Wimberger (wimpi)
  * @version 1.0.0 (12/02/2011)
@@ -45,6 +50,9 @@ public class LRUCacheMap<T1, T2> extends LinkedHashMap<T1, T2> {
 
   protected int m_Ceiling;
   protected CacheMapExpelHandler<T1, T2> m_ExpelHandler;
+  protected Weigher<T1, T2> m_Weigher;
+  protected WeightBudget m_Budget;
+  protected long m_Weight;
 
   public LRUCacheMap(int ceiling) {
     super((int) (ceiling * 1.25f), 0.75f, true);
@@ -55,6 +63,75 @@ public class LRUCacheMap<T1, T2> extends LinkedHashMap<T1, T2> {
     m_ExpelHandler = expelHandler;
   }//setExpelHandler
 
+  /**
+   * Bounds this <tt>LRUCacheMap</tt> by weight, in addition to the ceiling.
+   * Must be set while the cache is empty.
+   *
+   * @param weigher the {@link Weigher} estimating the weight of an entry.
+   * @param budget  the {@link WeightBudget}, possibly shared with other caches.
+   */
+  public void setWeigher(Weigher<T1, T2> weigher, WeightBudget budget) {
+    m_Weigher = weigher;
+    m_Budget = budget;
+  }//setWeigher
+
+  /**
+   * Returns the weight of the entries in this cache.
+   *
+   * @return the weight, or 0 if the cache is not weighted.
+   */
+  public long getWeight() {
+    return m_Weight;
+  }//getWeight
+
+  public T2 put(T1 key, T2 value) {
+    if (m_Weigher == null) {
+      return super.put(key, value);
+    }
+    long weight = m_Weigher.weigh(key, value);
+    if (m_Budget.isOversize(weight)) {
+      m_Budget.bypassed();
+      remove(key);
+      return null;
+    }
+    T2 old = super.put(key, value);
+    if (old != null) {
+      weigh(key, old, -1);
+    }
+    weigh(key, value, 1);
+    //remove eldest until the budget is met
+    for (Iterator<Map.Entry<T1, T2>> iterator = entrySet().iterator();
+         m_Budget.isExceeded() && iterator.hasNext();) {
+      Map.Entry<T1, T2> entry = iterator.next();
+      if (entry.getKey().equals(key)) {
+        break;
+      }
+      iterator.remove();
+      weigh(entry.getKey(), entry.getValue(), -1);
+      if (m_ExpelHandler != null) {
+        m_ExpelHandler.expelled(entry);
+      }
+    }
+    return old;
+  }//put
+
+  @SuppressWarnings("unchecked")
+  public T2 remove(Object key) {
+    T2 old = super.remove(key);
+    if (old != null && m_Weigher != null) {
+      weigh((T1) key, old, -1);
+    }
+    return old;
+  }//remove
+
+  public void clear() {
+    super.clear();
+    if (m_Weigher != null) {
+      m_Budget.add(-m_Weight);
+      m_Weight = 0;
+    }
+  }//clear
+
   /**
    * Clears this <tt>LRUCacheMap</tt>.
    *
@@ -67,6 +144,7 @@ public class LRUCacheMap<T1, T2> extends LinkedHashMap<T1, T2> {
         for (Iterator<Map.Entry<T1, T2>> iterator = entrySet().iterator(); iterator.hasNext();) {
           Map.Entry<T1, T2> entry = iterator.next();
           iterator.remove();
+          weigh(entry.getKey(), entry.getValue(), -1);
           m_ExpelHandler.expelled(entry);
         }
       }
@@ -77,6 +155,9 @@ public class LRUCacheMap<T1, T2> extends LinkedHashMap<T1, T2> {
 
   protected boolean removeEldestEntry(Map.Entry<T1, T2> eldest) {
     boolean b = size() > m_Ceiling;
+    if (b && m_Weigher != null) {
+      weigh(eldest.getKey(), eldest.getValue(), -1);
+    }
     try {
       return b;
     } finally {
@@ -115,6 +196,7 @@ public class LRUCacheMap<T1, T2> extends LinkedHashMap<T1, T2> {
           if (size() > size) {
             Map.Entry<T1, T2> entry = iterator.next();
             iterator.remove();
+            weigh(entry.getKey(), entry.getValue(), -1);
             if (m_ExpelHandler != null) {
               m_ExpelHandler.expelled(entry);
             }
@@ -127,6 +209,14 @@ public class LRUCacheMap<T1, T2> extends LinkedHashMap<T1, T2> {
     }
   }//setCeiling
 
+  private void weigh(T1 key, T2 value, int sign) {
+    if (m_Weigher != null) {
+      long weight = sign * m_Weigher.weigh(key, value);
+      m_Weight += weight;
+      m_Budget.add(weight);
+    }
+  }//weigh
+
   public String toString() {
     final StringBuilder sbuf = new StringBuilder();
     synchronized (this) {
@@ -0,0 +1,266 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides a byte-sized store for serialized values outside of the heap,
+ * either in direct buffers or in a memory-mapped file.
+ * <p/>
+ * The store is organized as a log of fixed size segments. Values are appended
+ * to the current segment; when all segments are used, the oldest segment is
+ * recycled and the values it holds are dropped. Removed or replaced values
+ * only release their space when their segment is recycled.
+ * <p/>
+ * Only the index (key to location) is kept on the heap. Values dropped by
+ * recycling can be reported to a {@link CacheMapExpelHandler}.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class OffHeapStore {
+
+  private final ByteBuffer[] m_Segments;
+  private final List<List<String>> m_SegmentKeys;
+  private final int m_SegmentSize;
+  private final Map<String, Long> m_Index = new HashMap<String, Long>();
+  private int m_Current;
+  private long m_Bytes;
+  private long m_Evicted;
+  private CacheMapExpelHandler<String, byte[]> m_ExpelHandler;
+
+  /**
+   * Creates a new <tt>OffHeapStore</tt> in direct buffers.
+   *
+   * @param capacity    the capacity in bytes.
+   * @param segmentSize the size of a segment in bytes, i.e. the maximum size of a value.
+   */
+  public OffHeapStore(long capacity, int segmentSize) {
+    this(capacity, segmentSize, null);
+  }//constructor
+
+  /**
+   * Creates a new <tt>OffHeapStore</tt>.
+   *
+   * @param capacity    the capacity in bytes.
+   * @param segmentSize the size of a segment in bytes, i.e. the maximum size of a value.
+   * @param file        the file to be memory-mapped, or null to use direct buffers.
+   */
+  public OffHeapStore(long capacity, int segmentSize, File file) {
+    if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("segmentSize must be between 1 and " + MAX_SEGMENT_SIZE);
+    }
+    int count = (int) Math.max(2, Math.min(MAX_SEGMENTS, capacity / segmentSize));
+    m_SegmentSize = segmentSize;
+    m_Segments = new ByteBuffer[count];
+    m_SegmentKeys = new ArrayList<List<String>>(count);
+    try {
+      FileChannel channel = null;
+      if (file != null) {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength((long) count * segmentSize);
+        channel = raf.getChannel();
+      }
+      for (int i = 0; i < count; i++) {
+        m_Segments[i] = (channel != null)
+            ? channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentSize, segmentSize)
+            : ByteBuffer.allocateDirect(segmentSize);
+        m_SegmentKeys.add(new ArrayList<String>());
+      }
+      if (channel != null) {
+        //mappings stay valid after closing
+        channel.close();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException("Cannot map " + file, ex);
+    }
+  }//constructor
+
+  /**
+   * Sets the handler informed of values dropped by recycling segments,
+   * not of removed or replaced values. The handler is called while
+   * this store is locked, and must not access it.
+   *
+   * @param expelHandler the {@link CacheMapExpelHandler}.
+   */
+  public synchronized void setExpelHandler(CacheMapExpelHandler<String, byte[]> expelHandler) {
+    m_ExpelHandler = expelHandler;
+  }//setExpelHandler
+
+  /**
+   * Stores a value.
+   *
+   * @param key   the key.
+   * @param value the serialized value.
+   * @return true if stored, false if the value is larger than a segment.
+   */
+  public synchronized boolean put(String key, byte[] value) {
+    if (value.length > m_SegmentSize) {
+      return false;
+    }
+    ByteBuffer segment = m_Segments[m_Current];
+    if (segment.remaining() < value.length) {
+      m_Current = (m_Current + 1) % m_Segments.length;
+      recycle(m_Current);
+      segment = m_Segments[m_Current];
+    }
+    int offset = segment.position();
+    segment.put(value);
+    Long old = m_Index.put(key, location(m_Current, offset, value.length));
+    if (old != null) {
+      m_Bytes -= length(old);
+    }
+    m_Bytes += value.length;
+    m_SegmentKeys.get(m_Current).add(key);
+    return true;
+  }//put
+
+  /**
+   * Returns a value.
+   *
+   * @param key the key.
+   * @return the serialized value, or null if not stored.
+   */
+  public synchronized byte[] get(String key) {
+    Long loc = m_Index.get(key);
+    if (loc == null) {
+      return null;
+    }
+    byte[] value = new byte[length(loc)];
+    ByteBuffer segment = m_Segments[segment(loc)].duplicate();
+    segment.position(offset(loc));
+    segment.get(value);
+    return value;
+  }//get
+
+  /**
+   * Removes and returns a value.
+   *
+   * @param key the key.
+   * @return the serialized value, or null if not stored.
+   */
+  public synchronized byte[] remove(String key) {
+    byte[] value = get(key);
+    if (value != null) {
+      m_Index.remove(key);
+      m_Bytes -= value.length;
+    }
+    return value;
+  }//remove
+
+  /**
+   * Returns a snapshot of the stored keys.
+   *
+   * @return the list of keys.
+   */
+  public synchronized List<String> keys() {
+    return new ArrayList<String>(m_Index.keySet());
+  }//keys
+
+  /**
+   * Removes all values.
+   */
+  public synchronized void clear() {
+    m_Index.clear();
+    for (int i = 0; i < m_Segments.length; i++) {
+      m_Segments[i].clear();
+      m_SegmentKeys.get(i).clear();
+    }
+    m_Current = 0;
+    m_Bytes = 0;
+  }//clear
+
+  public synchronized int size() {
+    return m_Index.size();
+  }//size
+
+  /**
+   * Returns the number of bytes held by stored values.
+   *
+   * @return the number of bytes.
+   */
+  public synchronized long getBytes() {
+    return m_Bytes;
+  }//getBytes
+
+  /**
+   * Returns the capacity of this store.
+   *
+   * @return the capacity in bytes.
+   */
+  public long getCapacity() {
+    return (long) m_Segments.length * m_SegmentSize;
+  }//getCapacity
+
+  /**
+   * Returns the number of values dropped by recycling segments.
+   *
+   * @return the number of evicted values.
+   */
+  public synchronized long getEvicted() {
+    return m_Evicted;
+  }//getEvicted
+
+  private void recycle(int seg) {
+    for (String key : m_SegmentKeys.get(seg)) {
+      Long loc = m_Index.get(key);
+      if (loc != null && segment(loc) == seg) {
+        if (m_ExpelHandler != null) {
+          m_ExpelHandler.expelled(new AbstractMap.SimpleEntry<String, byte[]>(key, get(key)));
+        }
+        m_Index.remove(key);
+        m_Bytes -= length(loc);
+        m_Evicted++;
+      }
+    }
+    m_SegmentKeys.get(seg).clear();
+    m_Segments[seg].clear();
+  }//recycle
+
+  //Note: segment (16 bits), offset (24 bits) and length (24 bits) packed into a long
+  private static long location(int segment, int offset, int length) {
+    return ((long) segment << 48) | ((long) offset << 24) | length;
+  }//location
+
+  private static int segment(long loc) {
+    return (int) (loc >>> 48);
+  }//segment
+
+  private static int offset(long loc) {
+    return (int) ((loc >>> 24) & 0xFFFFFF);
+  }//offset
+
+  private static int length(long loc) {
+    return (int) (loc & 0xFFFFFF);
+  }//length
+
+  private static final int MAX_SEGMENT_SIZE = 0xFFFFFF;
+  private static final int MAX_SEGMENTS = 0xFFFF;
+
+}//class OffHeapStore
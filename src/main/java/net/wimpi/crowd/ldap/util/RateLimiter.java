@@ -0,0 +1,106 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides a simple token bucket rate limiter.
+ * <p/>
+ * The bucket holds at most one second worth of permits,
+ * and is refilled continuously at the configured rate.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class RateLimiter {
+
+  private final double m_Rate;
+  private final double m_Capacity;
+  private double m_Available;
+  private long m_LastRefill;
+
+  /**
+   * Creates a new <tt>RateLimiter</tt>.
+   *
+   * @param permitsPerSecond the number of permits per second.
+   */
+  public RateLimiter(double permitsPerSecond) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive");
+    }
+    m_Rate = permitsPerSecond;
+    m_Capacity = Math.max(1.0, permitsPerSecond);
+    m_Available = m_Capacity;
+    m_LastRefill = System.nanoTime();
+  }//constructor
+
+  /**
+   * Acquires a single permit, blocking until it is available.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void acquire() throws InterruptedException {
+    acquire(1);
+  }//acquire
+
+  /**
+   * Acquires the given number of permits, blocking until they are available.
+   *
+   * @param permits the number of permits.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void acquire(int permits) throws InterruptedException {
+    long wait;
+    synchronized (this) {
+      refill();
+      m_Available -= permits;
+      wait = (m_Available >= 0) ? 0 : (long) (-m_Available / m_Rate * TimeUnit.SECONDS.toNanos(1));
+    }
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }//acquire
+
+  /**
+   * Tries to acquire a single permit without waiting.
+   *
+   * @return true if the permit was acquired, false otherwise.
+   */
+  public synchronized boolean tryAcquire() {
+    refill();
+    if (m_Available >= 1) {
+      m_Available -= 1;
+      return true;
+    }
+    return false;
+  }//tryAcquire
+
+  public double getRate() {
+    return m_Rate;
+  }//getRate
+
+  private void refill() {
+    long now = System.nanoTime();
+    m_Available = Math.min(m_Capacity,
+        m_Available + (now - m_LastRefill) * m_Rate / TimeUnit.SECONDS.toNanos(1));
+    m_LastRefill = now;
+  }//refill
+
+}//class RateLimiter
@@ -0,0 +1,39 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+/**
+ * Estimates the heap retained by cache entries.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public interface Weigher<T1, T2> {
+
+  /**
+   * Returns the estimated weight of an entry.
+   * Must return the same weight for the same entry for as long as it is cached.
+   *
+   * @param key   the key of the entry.
+   * @param value the value of the entry.
+   * @return the weight in bytes.
+   */
+  public long weigh(T1 key, T2 value);
+
+}//interface Weigher
@@ -0,0 +1,117 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides a byte budget for weighted {@link LRUCacheMap} instances.
+ * <p/>
+ * A cache exceeding the budget on insertion evicts its own eldest entries
+ * until the budget is met. Entries heavier than the maximum entry weight
+ * are not cached at all.
+ * <p/>
+ * Since a cache can only evict its own entries, caches should not share
+ * a budget directly; instead each cache is given a budget nested into the
+ * shared one, with the nested budgets adding up to at most the shared one.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class WeightBudget {
+
+  private final WeightBudget m_Parent;
+  private final long m_MaxWeight;
+  private final long m_MaxEntryWeight;
+  private final AtomicLong m_Weight = new AtomicLong(0);
+  private final AtomicLong m_Bypassed = new AtomicLong(0);
+
+  /**
+   * Creates a new <tt>WeightBudget</tt>.
+   *
+   * @param maxWeight      the budget in bytes.
+   * @param maxEntryWeight the maximum weight of a single entry in bytes.
+   */
+  public WeightBudget(long maxWeight, long maxEntryWeight) {
+    this(null, maxWeight, maxEntryWeight);
+  }//constructor
+
+  /**
+   * Creates a new <tt>WeightBudget</tt> nested into the given one.
+   *
+   * @param parent         the parent budget, may be null.
+   * @param maxWeight      the budget in bytes.
+   * @param maxEntryWeight the maximum weight of a single entry in bytes.
+   */
+  public WeightBudget(WeightBudget parent, long maxWeight, long maxEntryWeight) {
+    m_Parent = parent;
+    m_MaxWeight = (parent == null) ? maxWeight : Math.min(maxWeight, parent.getMaxWeight());
+    m_MaxEntryWeight = Math.min(m_MaxWeight,
+        (parent == null) ? maxEntryWeight : Math.min(maxEntryWeight, parent.getMaxEntryWeight()));
+  }//constructor
+
+  public long getMaxWeight() {
+    return m_MaxWeight;
+  }//getMaxWeight
+
+  public long getMaxEntryWeight() {
+    return m_MaxEntryWeight;
+  }//getMaxEntryWeight
+
+  /**
+   * Returns the current weight of all caches sharing this budget.
+   *
+   * @return the weight in bytes.
+   */
+  public long getWeight() {
+    return m_Weight.get();
+  }//getWeight
+
+  /**
+   * Returns the number of entries that were not cached, because too heavy.
+   *
+   * @return the number of bypassed entries.
+   */
+  public long getBypassed() {
+    return m_Bypassed.get();
+  }//getBypassed
+
+  boolean isExceeded() {
+    return m_Weight.get() > m_MaxWeight || (m_Parent != null && m_Parent.isExceeded());
+  }//isExceeded
+
+  boolean isOversize(long weight) {
+    return weight > m_MaxEntryWeight;
+  }//isOversize
+
+  void add(long weight) {
+    m_Weight.addAndGet(weight);
+    if (m_Parent != null) {
+      m_Parent.add(weight);
+    }
+  }//add
+
+  void bypassed() {
+    m_Bypassed.incrementAndGet();
+    if (m_Parent != null) {
+      m_Parent.bypassed();
+    }
+  }//bypassed
+
+}//class WeightBudget
@@ -0,0 +1,148 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.entry.ServerEntry;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the exactness of compiled filters, i.e. that a predicate leaving out
+ * undecided assertions never matches fewer entries than its filter.
+ */
+public class FilterCompilerTest {
+
+  //member is decided by Crowd, as in the partition
+  private static final String MEMBER = "member=cn=x,ou=groups,dc=crowd";
+
+  private SchemaManager m_SchemaManager;
+  private FilterCompiler m_Compiler;
+  private List<ServerEntry> m_Users;
+
+  @Before
+  public void setUp() throws Exception {
+    m_SchemaManager = TestSchema.get();
+    m_Compiler = new FilterCompiler(m_SchemaManager, 10, "2.5.4.31");
+    m_Users = new ArrayList<ServerEntry>();
+    for (String uid : new String[]{"jdoe", "jane", "bob"}) {
+      ServerEntry entry = new DefaultServerEntry(m_SchemaManager, new DN("uid=" + uid + ",ou=users,dc=crowd"));
+      entry.put("objectClass", "top", "person", "organizationalPerson", "inetOrgPerson");
+      entry.put("uid", uid);
+      entry.put("cn", "First " + uid.toUpperCase());
+      entry.put("sn", uid);
+      entry.put("mail", uid + "@Example.com");
+      m_Compiler.normalize(entry);
+      m_Users.add(entry);
+    }
+  }//setUp
+
+  @Test
+  public void testEqualityIsExact() throws Exception {
+    FilterCompiler.Predicate p = compile("(uid=JDOE)");
+    assertTrue(p.isExact());
+    assertEquals(Arrays.asList("jdoe"), matching(p));
+  }//testEqualityIsExact
+
+  @Test
+  public void testAndOfDecidedIsExact() throws Exception {
+    FilterCompiler.Predicate p = compile("(&(objectClass=inetOrgPerson)(uid=ja*))");
+    assertTrue(p.isExact());
+    assertEquals(Arrays.asList("jane"), matching(p));
+  }//testAndOfDecidedIsExact
+
+  @Test
+  public void testAndWithUndecidedIsSuperset() throws Exception {
+    FilterCompiler.Predicate p = compile("(&(uid=jdoe)(" + MEMBER + "))");
+    assertFalse(p.isExact());
+    assertEquals(Arrays.asList("jdoe"), matching(p));
+  }//testAndWithUndecidedIsSuperset
+
+  @Test
+  public void testOrOfDecidedIsExact() throws Exception {
+    FilterCompiler.Predicate p = compile("(|(mail=BOB@example.com)(cn=first j*))");
+    assertTrue(p.isExact());
+    assertEquals(Arrays.asList("jdoe", "jane", "bob"), matching(p));
+  }//testOrOfDecidedIsExact
+
+  @Test
+  public void testOrWithUndecidedMatchesAll() throws Exception {
+    assertSame(FilterCompiler.ANY, compile("(|(uid=jdoe)(" + MEMBER + "))"));
+  }//testOrWithUndecidedMatchesAll
+
+  @Test
+  public void testOrWithInexactChildIsInexact() throws Exception {
+    FilterCompiler.Predicate p = compile("(|(uid=bob)(&(uid=jdoe)(" + MEMBER + ")))");
+    assertFalse(p.isExact());
+    assertEquals(Arrays.asList("jdoe", "bob"), matching(p));
+  }//testOrWithInexactChildIsInexact
+
+  @Test
+  public void testNotOfExact() throws Exception {
+    FilterCompiler.Predicate p = compile("(!(uid=jdoe))");
+    assertTrue(p.isExact());
+    assertEquals(Arrays.asList("jane", "bob"), matching(p));
+  }//testNotOfExact
+
+  @Test
+  public void testNotOfInexactMatchesAll() throws Exception {
+    //the negated superset would drop jdoe, who may not be a member
+    assertSame(FilterCompiler.ANY, compile("(!(&(uid=jdoe)(" + MEMBER + ")))"));
+    assertSame(FilterCompiler.ANY, compile("(!(" + MEMBER + "))"));
+  }//testNotOfInexactMatchesAll
+
+  @Test
+  public void testAndWithUndecidedNotIsSuperset() throws Exception {
+    FilterCompiler.Predicate p = compile("(&(uid=jdoe)(!(&(uid=bob)(" + MEMBER + "))))");
+    assertFalse(p.isExact());
+    assertEquals(Arrays.asList("jdoe"), matching(p));
+  }//testAndWithUndecidedNotIsSuperset
+
+  @Test
+  public void testCompiledFiltersAreCached() throws Exception {
+    compile("(uid=jdoe)");
+    compile("(uid=jdoe)");
+    assertEquals(1, m_Compiler.getMisses());
+    assertEquals(1, m_Compiler.getHits());
+    assertEquals(1, m_Compiler.size());
+  }//testCompiledFiltersAreCached
+
+  @Test
+  public void testSelectsAll() throws Exception {
+    Set<String> present = new HashSet<String>(Arrays.asList(
+        m_SchemaManager.lookupAttributeTypeRegistry("objectClass").getOid(),
+        m_SchemaManager.lookupAttributeTypeRegistry("uid").getOid()));
+    assertTrue(m_Compiler.selectsAll(TestSchema.filter("(objectClass=*)"), present));
+    assertTrue(m_Compiler.selectsAll(TestSchema.filter("(&(objectClass=*)(uid=*))"), present));
+    assertTrue(m_Compiler.selectsAll(TestSchema.filter("(|(uid=jdoe)(objectClass=*))"), present));
+    assertFalse(m_Compiler.selectsAll(TestSchema.filter("(&(objectClass=*)(mail=*))"), present));
+    assertFalse(m_Compiler.selectsAll(TestSchema.filter("(uid=jdoe)"), present));
+    assertFalse(m_Compiler.selectsAll(TestSchema.filter("(!(uid=jdoe))"), present));
+  }//testSelectsAll
+
+  private FilterCompiler.Predicate compile(String filter) throws Exception {
+    return m_Compiler.compile(TestSchema.filter(filter));
+  }//compile
+
+  private List<String> matching(FilterCompiler.Predicate p) throws Exception {
+    List<String> uids = new ArrayList<String>();
+    for (ServerEntry entry : m_Users) {
+      if (p.matches(entry)) {
+        uids.add(entry.get("uid").getString());
+      }
+    }
+    return uids;
+  }//matching
+
+}//class FilterCompilerTest
@@ -0,0 +1,254 @@
+package net.wimpi.crowd.ldap;
+
+import com.atlassian.crowd.model.user.User;
+import com.atlassian.crowd.service.client.CrowdClient;
+import net.wimpi.crowd.ldap.util.Ber;
+import org.apache.directory.server.core.CoreSession;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.codec.controls.ControlImpl;
+import org.apache.directory.shared.ldap.exception.LdapOperationException;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the decoding of the sort and view controls and the window math
+ * of the virtual list view, over ten users <tt>user00</tt> to <tt>user09</tt>.
+ */
+public class ListControlsTest {
+
+  private SchemaManager m_SchemaManager;
+  private UserSortIndex m_Index;
+
+  @Before
+  public void setUp() throws Exception {
+    m_SchemaManager = TestSchema.get();
+    StandInCrowd crowd = new StandInCrowd("secret", 0);
+    List<String> names = names(0, 10);
+    for (String name : names) {
+      crowd.addUser(name);
+    }
+    CrowdClient client = crowd.createClient();
+    List<User> users = new ArrayList<User>();
+    for (String name : names) {
+      users.add(client.getUser(name));
+    }
+    m_Index = new UserSortIndex();
+    m_Index.build(users);
+  }//setUp
+
+  @Test
+  public void testNoControls() throws Exception {
+    assertNull(ListControls.forSearch(search(), m_SchemaManager));
+  }//testNoControls
+
+  @Test
+  public void testSort() throws Exception {
+    ListControls lc = forSearch(sort("uid", false), null);
+    assertTrue(lc.isSorted());
+    assertFalse(lc.isView());
+    assertEquals(names(0, 10), lc.select(m_Index));
+  }//testSort
+
+  @Test
+  public void testOrderingRuleIgnored() throws Exception {
+    Ber.Writer key = new Ber.Writer()
+        .writeString(Ber.OCTET_STRING, "cn")
+        .writeString(Ber.context(0), "2.5.13.3")
+        .writeOctets(Ber.context(1), new byte[]{(byte) 0xFF});
+    ListControls lc = forSearch(control(ListControls.SORT_REQUEST_OID,
+        new Ber.Writer().writeConstructed(Ber.SEQUENCE, key)), null);
+    assertTrue(lc.isSorted());
+    assertTrue(lc.isReverse());
+  }//testOrderingRuleIgnored
+
+  @Test
+  public void testReverseSortOfSubset() throws Exception {
+    ListControls lc = forSearch(sort("sn", true), null);
+    assertTrue(lc.isReverse());
+    assertEquals(Arrays.asList("user07", "user03", "user01"),
+        lc.select(m_Index, Arrays.asList("user03", "user07", "user01")));
+  }//testReverseSortOfSubset
+
+  @Test
+  public void testViewAtStart() throws Exception {
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, sort("uid", false), byOffset(0, 2, 1, 0));
+    assertTrue(lc.isView());
+    assertEquals(names(0, 3), lc.select(m_Index));
+    lc.respond();
+    assertView(ctx, 1, 10, 0);
+  }//testViewAtStart
+
+  @Test
+  public void testViewAroundTarget() throws Exception {
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, sort("uid", false), byOffset(2, 1, 5, 10));
+    assertEquals(names(2, 6), lc.select(m_Index));
+    lc.respond();
+    assertView(ctx, 5, 10, 0);
+  }//testViewAroundTarget
+
+  @Test
+  public void testViewBeyondEnd() throws Exception {
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, sort("uid", false), byOffset(1, 3, 20, 0));
+    assertEquals(names(8, 10), lc.select(m_Index));
+    lc.respond();
+    assertView(ctx, 10, 10, 0);
+  }//testViewBeyondEnd
+
+  @Test
+  public void testViewScaledToContentCount() throws Exception {
+    //the client estimated 20 entries; half way is the 5th of 10
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, sort("uid", false), byOffset(0, 0, 10, 20));
+    assertEquals(names(4, 5), lc.select(m_Index));
+    lc.respond();
+    assertView(ctx, 5, 10, 0);
+  }//testViewScaledToContentCount
+
+  @Test
+  public void testViewOfSubset() throws Exception {
+    ListControls lc = forSearch(sort("uid", false), byOffset(1, 1, 2, 0));
+    assertEquals(Arrays.asList("user01", "user04", "user08"),
+        lc.select(m_Index, Arrays.asList("user08", "user04", "user01", "user09")));
+  }//testViewOfSubset
+
+  @Test
+  public void testViewByAssertion() throws Exception {
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, sort("uid", false), byAssertion(1, 1, "USER05"));
+    assertEquals(names(4, 7), lc.select(m_Index));
+    lc.respond();
+    assertView(ctx, 6, 10, 0);
+  }//testViewByAssertion
+
+  @Test
+  public void testReverseViewByAssertion() throws Exception {
+    ListControls lc = forSearch(sort("uid", true), byAssertion(0, 1, "user05"));
+    assertEquals(Arrays.asList("user05", "user04"), lc.select(m_Index));
+  }//testReverseViewByAssertion
+
+  @Test
+  public void testViewWithoutSort() throws Exception {
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, null, byOffset(0, 1, 1, 0));
+    assertFalse(lc.isView());
+    lc.respond();
+    assertView(ctx, 0, 0, 60);
+  }//testViewWithoutSort
+
+  @Test
+  public void testOffsetZero() throws Exception {
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, sort("uid", false), byOffset(0, 1, 0, 0));
+    assertTrue(lc.isSorted());
+    assertFalse(lc.isView());
+    lc.respond();
+    assertView(ctx, 0, 0, 61);
+  }//testOffsetZero
+
+  @Test
+  public void testUnsupportedSort() throws Exception {
+    SearchOperationContext ctx = search();
+    ListControls lc = forSearch(ctx, sort("description", false), null);
+    assertFalse(lc.isSorted());
+    lc.respond();
+    Ber.Reader response = new Ber.Reader(
+        ctx.getResponseControl(ListControls.SORT_RESPONSE_OID).getValue()).readConstructed(Ber.SEQUENCE);
+    assertEquals(16, response.readInteger(Ber.ENUMERATED));
+    assertEquals("description", response.readString(Ber.context(0)));
+  }//testUnsupportedSort
+
+  @Test
+  public void testCriticalUnsupportedSort() throws Exception {
+    ControlImpl sort = sort("description", false);
+    sort.setCritical(true);
+    try {
+      forSearch(sort, null);
+      fail("Critical sort on an unsupported attribute accepted");
+    } catch (LdapOperationException ex) {
+      //expected
+    }
+  }//testCriticalUnsupportedSort
+
+  private ListControls forSearch(ControlImpl sort, ControlImpl view) throws Exception {
+    return forSearch(search(), sort, view);
+  }//forSearch
+
+  private ListControls forSearch(SearchOperationContext ctx, ControlImpl sort, ControlImpl view)
+      throws Exception {
+    if (sort != null) {
+      ctx.addRequestControl(sort);
+    }
+    if (view != null) {
+      ctx.addRequestControl(view);
+    }
+    return ListControls.forSearch(ctx, m_SchemaManager);
+  }//forSearch
+
+  private static SearchOperationContext search() {
+    return new SearchOperationContext((CoreSession) null);
+  }//search
+
+  private static ControlImpl sort(String attribute, boolean reverse) {
+    Ber.Writer key = new Ber.Writer().writeString(Ber.OCTET_STRING, attribute);
+    if (reverse) {
+      key.writeOctets(Ber.context(1), new byte[]{(byte) 0xFF});
+    }
+    return control(ListControls.SORT_REQUEST_OID,
+        new Ber.Writer().writeConstructed(Ber.SEQUENCE, key));
+  }//sort
+
+  private static ControlImpl byOffset(int before, int after, int offset, int contentCount) {
+    return control(ListControls.VLV_REQUEST_OID, new Ber.Writer()
+        .writeInteger(Ber.INTEGER, before)
+        .writeInteger(Ber.INTEGER, after)
+        .writeConstructed(Ber.contextConstructed(0), new Ber.Writer()
+            .writeInteger(Ber.INTEGER, offset)
+            .writeInteger(Ber.INTEGER, contentCount)));
+  }//byOffset
+
+  private static ControlImpl byAssertion(int before, int after, String value) {
+    return control(ListControls.VLV_REQUEST_OID, new Ber.Writer()
+        .writeInteger(Ber.INTEGER, before)
+        .writeInteger(Ber.INTEGER, after)
+        .writeString(Ber.context(1), value));
+  }//byAssertion
+
+  private static ControlImpl control(String oid, Ber.Writer contents) {
+    ControlImpl control = new ControlImpl(oid);
+    control.setValue(new Ber.Writer().writeConstructed(Ber.SEQUENCE, contents).toByteArray());
+    return control;
+  }//control
+
+  private static void assertView(SearchOperationContext ctx, int targetPosition, int count, int result)
+      throws Exception {
+    Ber.Reader response = new Ber.Reader(
+        ctx.getResponseControl(ListControls.VLV_RESPONSE_OID).getValue()).readConstructed(Ber.SEQUENCE);
+    assertEquals(targetPosition, response.readInteger(Ber.INTEGER));
+    assertEquals(count, response.readInteger(Ber.INTEGER));
+    assertEquals(result, response.readInteger(Ber.ENUMERATED));
+    assertFalse(response.hasMore());
+  }//assertView
+
+  private static List<String> names(int from, int to) {
+    List<String> names = new ArrayList<String>();
+    for (int i = from; i < to; i++) {
+      names.add(String.format("user%02d", i));
+    }
+    return names;
+  }//names
+
+}//class ListControlsTest
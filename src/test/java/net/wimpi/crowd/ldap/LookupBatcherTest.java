@@ -0,0 +1,215 @@
+package net.wimpi.crowd.ldap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the batching of concurrent lookups by {@link LookupBatcher}.
+ */
+public class LookupBatcherTest {
+
+  @Test(timeout = 10000)
+  public void testSingleLookup() throws Exception {
+    Resolver resolver = new Resolver();
+    LookupBatcher<String> batcher = new LookupBatcher<String>(10, 10, resolver);
+    assertEquals("jdoe", batcher.get("JDoe"));
+    assertEquals(1, resolver.m_Gets.size());
+    assertTrue(resolver.m_Searches.isEmpty());
+    assertEquals(1, batcher.getLookups());
+    assertEquals(0, batcher.getSearches());
+  }//testSingleLookup
+
+  @Test(timeout = 10000)
+  public void testFullBatch() throws Exception {
+    Resolver resolver = new Resolver();
+    //the window is never waited for, the batch fills up
+    LookupBatcher<String> batcher = new LookupBatcher<String>(60000, 3, resolver);
+    List<Future<String>> results = lookup(batcher, "alice", "BOB", "carol");
+    assertEquals("alice", results.get(0).get());
+    assertEquals("bob", results.get(1).get());
+    assertEquals("carol", results.get(2).get());
+    assertTrue(resolver.m_Gets.isEmpty());
+    assertEquals(1, resolver.m_Searches.size());
+    assertEquals(3, resolver.m_Searches.get(0).size());
+    assertEquals(3, batcher.getLookups());
+    assertEquals(1, batcher.getSearches());
+  }//testFullBatch
+
+  @Test(timeout = 10000)
+  public void testSameNameLookedUpOnce() throws Exception {
+    Resolver resolver = new Resolver();
+    LookupBatcher<String> batcher = new LookupBatcher<String>(500, 10, resolver);
+    List<Future<String>> results = lookup(batcher, "alice", "ALICE", "bob");
+    assertEquals("alice", results.get(0).get());
+    assertEquals("alice", results.get(1).get());
+    assertEquals("bob", results.get(2).get());
+    //the batch is resolved after the window, with two distinct names
+    assertTrue(resolver.m_Gets.isEmpty());
+    assertEquals(1, resolver.m_Searches.size());
+    assertEquals(2, resolver.m_Searches.get(0).size());
+  }//testSameNameLookedUpOnce
+
+  @Test(timeout = 10000)
+  public void testNotFound() throws Exception {
+    Resolver resolver = new Resolver();
+    LookupBatcher<String> batcher = new LookupBatcher<String>(60000, 2, resolver);
+    List<Future<String>> results = lookup(batcher, "alice", "missing");
+    assertEquals("alice", results.get(0).get());
+    assertFailure(results.get(1), NotFoundException.class);
+  }//testNotFound
+
+  @Test(timeout = 10000)
+  public void testSearchFailure() throws Exception {
+    Resolver resolver = new Resolver();
+    resolver.m_Failure = new IllegalStateException("down");
+    LookupBatcher<String> batcher = new LookupBatcher<String>(60000, 2, resolver);
+    for (Future<String> result : lookup(batcher, "alice", "bob")) {
+      assertFailure(result, IllegalStateException.class);
+    }
+  }//testSearchFailure
+
+  @Test(timeout = 10000)
+  public void testInterruptedFirstLookup() throws Exception {
+    final Resolver resolver = new Resolver();
+    final LookupBatcher<String> batcher = new LookupBatcher<String>(60000, 10, resolver);
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    Thread first = new Thread(new Runnable() {
+      public void run() {
+        try {
+          batcher.get("alice");
+        } catch (Exception ex) {
+          failures.add(ex);
+        }
+      }
+    });
+    first.start();
+    while (batcher.getLookups() < 1) {
+      Thread.sleep(1);
+    }
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<String> joined = executor.submit(new Callable<String>() {
+        public String call() throws Exception {
+          return batcher.get("bob");
+        }
+      });
+      while (batcher.getLookups() < 2) {
+        Thread.sleep(1);
+      }
+      first.interrupt();
+      first.join();
+      assertEquals(1, failures.size());
+      assertTrue(failures.get(0) instanceof InterruptedException);
+      assertFailure(joined, InterruptedException.class);
+      assertTrue(resolver.m_Gets.isEmpty());
+      assertTrue(resolver.m_Searches.isEmpty());
+    } finally {
+      executor.shutdownNow();
+    }
+  }//testInterruptedFirstLookup
+
+  private static List<Future<String>> lookup(final LookupBatcher<String> batcher, String... names)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(names.length);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (final String name : names) {
+        results.add(executor.submit(new Callable<String>() {
+          public String call() throws Exception {
+            start.await();
+            return batcher.get(name);
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<String> result : results) {
+        try {
+          result.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException ex) {
+          //checked by the caller
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }//lookup
+
+  private static void assertFailure(Future<String> result, Class<? extends Exception> type) throws Exception {
+    try {
+      result.get();
+      fail("Lookup did not fail");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause().toString(), type.isInstance(ex.getCause()));
+    }
+  }//assertFailure
+
+  /**
+   * Resolves lower case names to themselves, except <tt>missing</tt>.
+   */
+  private static class Resolver implements LookupBatcher.Resolver<String> {
+
+    private final List<String> m_Gets = Collections.synchronizedList(new ArrayList<String>());
+    private final List<List<String>> m_Searches = Collections.synchronizedList(new ArrayList<List<String>>());
+    private volatile RuntimeException m_Failure;
+
+    public String get(String name) throws Exception {
+      m_Gets.add(name);
+      if (m_Failure != null) {
+        throw m_Failure;
+      }
+      if ("missing".equalsIgnoreCase(name)) {
+        throw notFound(name);
+      }
+      return name.toLowerCase();
+    }//get
+
+    public List<String> search(List<String> names) throws Exception {
+      m_Searches.add(names);
+      if (m_Failure != null) {
+        throw m_Failure;
+      }
+      List<String> found = new ArrayList<String>();
+      for (String name : names) {
+        if (!"missing".equalsIgnoreCase(name)) {
+          //as stored in Crowd, in a different case than looked up
+          found.add(name.toLowerCase());
+        }
+      }
+      return found;
+    }//search
+
+    public String getName(String entity) {
+      return entity;
+    }//getName
+
+    public Exception notFound(String name) {
+      return new NotFoundException(name);
+    }//notFound
+
+  }//inner class Resolver
+
+  private static class NotFoundException extends Exception {
+
+    NotFoundException(String name) {
+      super(name);
+    }//constructor
+
+  }//inner class NotFoundException
+
+}//class LookupBatcherTest
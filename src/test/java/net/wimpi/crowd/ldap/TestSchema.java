@@ -0,0 +1,51 @@
+package net.wimpi.crowd.ldap;
+
+import org.apache.directory.server.core.normalization.FilterNormalizingVisitor;
+import org.apache.directory.shared.ldap.filter.ExprNode;
+import org.apache.directory.shared.ldap.filter.FilterParser;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
+import org.apache.directory.shared.ldap.schema.loader.ldif.LdifSchemaLoader;
+import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.schema.normalizers.ConcreteNameComponentNormalizer;
+
+import java.io.File;
+
+/**
+ * Provides the schema of the server to tests, extracted once into <tt>target</tt>
+ * as the server does into its working directory.
+ */
+class TestSchema {
+
+  private static SchemaManager c_SchemaManager;
+
+  private TestSchema() {
+  }//constructor
+
+  static synchronized SchemaManager get() throws Exception {
+    if (c_SchemaManager == null) {
+      File dir = new File("target/test-schema");
+      if (!new File(dir, "schema").exists()) {
+        new DefaultSchemaLdifExtractor(dir).extractOrCopy();
+      }
+      SchemaManager schemaManager = new DefaultSchemaManager(new LdifSchemaLoader(new File(dir, "schema")));
+      schemaManager.loadAllEnabled();
+      c_SchemaManager = schemaManager;
+    }
+    return c_SchemaManager;
+  }//get
+
+  /**
+   * Parses and normalizes a filter, as ApacheDS passes it to the partition.
+   *
+   * @param filter the filter string.
+   * @return the normalized filter.
+   * @throws Exception if the filter cannot be parsed.
+   */
+  static ExprNode filter(String filter) throws Exception {
+    SchemaManager schemaManager = get();
+    return (ExprNode) FilterParser.parse(filter).accept(
+        new FilterNormalizingVisitor(new ConcreteNameComponentNormalizer(schemaManager), schemaManager));
+  }//filter
+
+}//class TestSchema
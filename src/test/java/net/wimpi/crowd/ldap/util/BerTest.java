@@ -0,0 +1,135 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the encoding and decoding of {@link Ber}.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class BerTest {
+
+  @Test
+  public void testIntegers() throws Exception {
+    long[] values = {0, 1, 127, 128, 255, 256, -1, -128, -129, 32767, 32768,
+        Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+    Ber.Writer w = new Ber.Writer();
+    for (long value : values) {
+      w.writeInteger(Ber.INTEGER, value);
+    }
+    Ber.Reader r = new Ber.Reader(w.toByteArray());
+    for (long value : values) {
+      assertEquals(value, r.readInteger(Ber.INTEGER));
+    }
+    assertFalse(r.hasMore());
+  }//testIntegers
+
+  @Test
+  public void testMinimalIntegers() throws Exception {
+    assertArrayEquals(new byte[]{0x02, 0x01, 0x00}, new Ber.Writer().writeInteger(Ber.INTEGER, 0).toByteArray());
+    assertArrayEquals(new byte[]{0x02, 0x01, 0x7F}, new Ber.Writer().writeInteger(Ber.INTEGER, 127).toByteArray());
+    assertArrayEquals(new byte[]{0x02, 0x02, 0x00, (byte) 0x80},
+        new Ber.Writer().writeInteger(Ber.INTEGER, 128).toByteArray());
+    assertArrayEquals(new byte[]{0x02, 0x01, (byte) 0xFF}, new Ber.Writer().writeInteger(Ber.INTEGER, -1).toByteArray());
+    assertArrayEquals(new byte[]{0x02, 0x02, (byte) 0xFF, 0x7F},
+        new Ber.Writer().writeInteger(Ber.INTEGER, -129).toByteArray());
+  }//testMinimalIntegers
+
+  @Test
+  public void testLongFormLengths() throws Exception {
+    for (int length : new int[]{127, 128, 200, 255, 256, 70000}) {
+      byte[] value = new byte[length];
+      Arrays.fill(value, (byte) 'x');
+      byte[] encoded = new Ber.Writer().writeOctets(Ber.OCTET_STRING, value).toByteArray();
+      int header = (length < 0x80) ? 2 : (length < 0x100) ? 3 : (length < 0x10000) ? 4 : 5;
+      assertEquals(header + length, encoded.length);
+      assertArrayEquals(value, new Ber.Reader(encoded).readOctets(Ber.OCTET_STRING));
+    }
+  }//testLongFormLengths
+
+  @Test
+  public void testConstructed() throws Exception {
+    byte[] encoded = new Ber.Writer().writeConstructed(Ber.SEQUENCE, new Ber.Writer()
+        .writeString(Ber.OCTET_STRING, "uid")
+        .writeOctets(Ber.context(1), new byte[]{(byte) 0xFF}))
+        .writeInteger(Ber.ENUMERATED, 53)
+        .toByteArray();
+    Ber.Reader r = new Ber.Reader(encoded);
+    Ber.Reader seq = r.readConstructed(Ber.SEQUENCE);
+    assertEquals("uid", seq.readString(Ber.OCTET_STRING));
+    assertEquals(Ber.context(1), seq.peekTag());
+    assertTrue(seq.readBoolean(Ber.context(1)));
+    assertFalse(seq.hasMore());
+    assertEquals(53, r.readInteger(Ber.ENUMERATED));
+    assertFalse(r.hasMore());
+  }//testConstructed
+
+  @Test
+  public void testSkip() throws Exception {
+    byte[] encoded = new Ber.Writer()
+        .writeString(Ber.context(0), "2.5.13.3")
+        .writeInteger(Ber.INTEGER, 7)
+        .toByteArray();
+    Ber.Reader r = new Ber.Reader(encoded);
+    r.skip();
+    assertEquals(7, r.readInteger(Ber.INTEGER));
+  }//testSkip
+
+  @Test
+  public void testTagMismatch() throws Exception {
+    Ber.Reader r = new Ber.Reader(new Ber.Writer().writeInteger(Ber.INTEGER, 1).toByteArray());
+    try {
+      r.readString(Ber.OCTET_STRING);
+      fail("Integer read as octet string");
+    } catch (IOException ex) {
+      //expected
+    }
+  }//testTagMismatch
+
+  @Test
+  public void testTruncated() throws Exception {
+    byte[] encoded = new Ber.Writer().writeString(Ber.OCTET_STRING, "truncated").toByteArray();
+    assertTruncated(Arrays.copyOf(encoded, encoded.length - 1));
+    assertTruncated(Arrays.copyOf(encoded, 1));
+    //long form length without its length octets
+    assertTruncated(new byte[]{0x04, (byte) 0x82, 0x01});
+  }//testTruncated
+
+  private static void assertTruncated(byte[] encoded) {
+    try {
+      new Ber.Reader(encoded).readOctets(Ber.OCTET_STRING);
+      fail("Truncated element read");
+    } catch (IOException ex) {
+      //expected
+    }
+  }//assertTruncated
+
+}//class BerTest
@@ -0,0 +1,164 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the accounting and segment recycling of {@link OffHeapStore}.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class OffHeapStoreTest {
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    OffHeapStore store = new OffHeapStore(1000, 100);
+    assertTrue(store.put("a", bytes(10, 'a')));
+    assertTrue(store.put("b", bytes(20, 'b')));
+    assertEquals(2, store.size());
+    assertEquals(30, store.getBytes());
+    assertArrayEquals(bytes(10, 'a'), store.get("a"));
+    assertTrue(store.put("a", bytes(5, 'A')));
+    assertArrayEquals(bytes(5, 'A'), store.get("a"));
+    assertEquals(25, store.getBytes());
+    assertArrayEquals(bytes(20, 'b'), store.remove("b"));
+    assertNull(store.get("b"));
+    assertNull(store.remove("b"));
+    assertEquals(1, store.size());
+    assertEquals(5, store.getBytes());
+    assertEquals(0, store.getEvicted());
+  }//testPutGetRemove
+
+  @Test
+  public void testOversize() throws Exception {
+    OffHeapStore store = new OffHeapStore(1000, 100);
+    assertTrue(store.put("a", bytes(100, 'a')));
+    assertFalse(store.put("b", bytes(101, 'b')));
+    assertNull(store.get("b"));
+    assertEquals(100, store.getBytes());
+  }//testOversize
+
+  @Test
+  public void testCapacity() throws Exception {
+    assertEquals(1000, new OffHeapStore(1000, 100).getCapacity());
+    //at least two segments
+    assertEquals(200, new OffHeapStore(10, 100).getCapacity());
+  }//testCapacity
+
+  @Test
+  public void testRecycling() throws Exception {
+    //three segments holding two values each
+    OffHeapStore store = new OffHeapStore(300, 100);
+    store.put("a", bytes(40, 'a'));
+    store.put("b", bytes(40, 'b'));
+    store.put("c", bytes(40, 'c'));
+    store.put("d", bytes(40, 'd'));
+    //moves a out of the first segment
+    store.put("a", bytes(40, 'A'));
+    store.put("e", bytes(40, 'e'));
+    assertEquals(0, store.getEvicted());
+    assertEquals(5, store.size());
+    //recycles the first segment, dropping b but not the replaced a
+    store.put("f", bytes(40, 'f'));
+    assertEquals(1, store.getEvicted());
+    assertNull(store.get("b"));
+    assertArrayEquals(bytes(40, 'A'), store.get("a"));
+    assertArrayEquals(bytes(40, 'c'), store.get("c"));
+    assertArrayEquals(bytes(40, 'f'), store.get("f"));
+    assertEquals(new HashSet<String>(Arrays.asList("a", "c", "d", "e", "f")),
+        new HashSet<String>(store.keys()));
+    assertEquals(200, store.getBytes());
+    //recycles the second segment, dropping c and d
+    store.put("g", bytes(40, 'g'));
+    store.put("h", bytes(40, 'h'));
+    assertEquals(3, store.getEvicted());
+    assertNull(store.get("c"));
+    assertNull(store.get("d"));
+    assertEquals(new HashSet<String>(Arrays.asList("a", "e", "f", "g", "h")),
+        new HashSet<String>(store.keys()));
+    assertEquals(200, store.getBytes());
+  }//testRecycling
+
+  @Test
+  public void testRemovedNotEvicted() throws Exception {
+    OffHeapStore store = new OffHeapStore(200, 100);
+    store.put("a", bytes(60, 'a'));
+    store.remove("a");
+    store.put("b", bytes(60, 'b'));
+    //recycles the first segment, which holds no live value
+    store.put("c", bytes(60, 'c'));
+    assertEquals(0, store.getEvicted());
+    assertEquals(120, store.getBytes());
+  }//testRemovedNotEvicted
+
+  @Test
+  public void testExpelHandler() throws Exception {
+    OffHeapStore store = new OffHeapStore(200, 100);
+    final List<String> expelled = new ArrayList<String>();
+    store.setExpelHandler(new CacheMapExpelHandler<String, byte[]>() {
+      public void expelled(Map.Entry<String, byte[]> entry) {
+        expelled.add(entry.getKey() + "=" + entry.getValue().length);
+      }
+    });
+    store.put("a", bytes(40, 'a'));
+    store.put("b", bytes(40, 'b'));
+    store.remove("b");
+    store.put("c", bytes(40, 'c'));
+    store.put("d", bytes(40, 'd'));
+    //recycles the first segment, holding a and the removed b
+    store.put("e", bytes(40, 'e'));
+    assertEquals(Arrays.asList("a=40"), expelled);
+    assertEquals(1, store.getEvicted());
+  }//testExpelHandler
+
+  @Test
+  public void testClear() throws Exception {
+    OffHeapStore store = new OffHeapStore(300, 100);
+    for (int i = 0; i < 10; i++) {
+      store.put("k" + i, bytes(40, 'x'));
+    }
+    store.clear();
+    assertEquals(0, store.size());
+    assertEquals(0, store.getBytes());
+    assertTrue(store.keys().isEmpty());
+    assertTrue(store.put("a", bytes(100, 'a')));
+    assertArrayEquals(bytes(100, 'a'), store.get("a"));
+  }//testClear
+
+  private static byte[] bytes(int length, char c) {
+    byte[] b = new byte[length];
+    Arrays.fill(b, (byte) c);
+    return b;
+  }//bytes
+
+}//class OffHeapStoreTest
@@ -0,0 +1,172 @@
+/***
+ * Coalevo Project
+ * http://www.coalevo.net
+ *
+ * (c) Dieter Wimberger
+ * http://dieter.wimpi.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at:
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ***/
+package net.wimpi.crowd.ldap.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the weight accounting of {@link LRUCacheMap} against a shared or nested {@link WeightBudget}.
+ *
+ * @version 1.0.0 (19/10/2026)
+ */
+public class WeightBudgetTest {
+
+  //weighs the length of the value
+  private static final Weigher<String, String> WEIGHER = new Weigher<String, String>() {
+    public long weigh(String key, String value) {
+      return value.length();
+    }
+  };
+
+  @Test
+  public void testAccounting() throws Exception {
+    WeightBudget budget = new WeightBudget(100, 50);
+    LRUCacheMap<String, String> cache = cache(budget);
+    cache.put("a", value(10));
+    cache.put("b", value(20));
+    assertEquals(30, cache.getWeight());
+    assertEquals(30, budget.getWeight());
+    cache.put("a", value(5));
+    assertEquals(25, budget.getWeight());
+    cache.remove("b");
+    cache.remove("b");
+    assertEquals(5, cache.getWeight());
+    assertEquals(5, budget.getWeight());
+    cache.put("c", value(30));
+    cache.clear();
+    assertEquals(0, cache.getWeight());
+    assertEquals(0, budget.getWeight());
+  }//testAccounting
+
+  @Test
+  public void testEviction() throws Exception {
+    WeightBudget budget = new WeightBudget(100, 50);
+    LRUCacheMap<String, String> cache = cache(budget);
+    cache.put("a", value(40));
+    cache.put("b", value(40));
+    cache.put("c", value(40));
+    assertFalse(cache.containsKey("a"));
+    assertTrue(cache.containsKey("b"));
+    assertTrue(cache.containsKey("c"));
+    assertEquals(80, budget.getWeight());
+    assertFalse(budget.isExceeded());
+  }//testEviction
+
+  @Test
+  public void testOversizeBypassed() throws Exception {
+    WeightBudget budget = new WeightBudget(100, 50);
+    LRUCacheMap<String, String> cache = cache(budget);
+    cache.put("a", value(10));
+    assertNull(cache.put("a", value(51)));
+    assertFalse(cache.containsKey("a"));
+    assertEquals(1, budget.getBypassed());
+    assertEquals(0, budget.getWeight());
+  }//testOversizeBypassed
+
+  @Test
+  public void testSharedBudget() throws Exception {
+    WeightBudget budget = new WeightBudget(100, 50);
+    LRUCacheMap<String, String> first = cache(budget);
+    LRUCacheMap<String, String> second = cache(budget);
+    first.put("a", value(30));
+    second.put("b", value(30));
+    assertEquals(60, budget.getWeight());
+    //a cache evicts only its own entries; the other one is over budget alone
+    second.put("c", value(50));
+    assertTrue(first.containsKey("a"));
+    assertFalse(second.containsKey("b"));
+    assertEquals(80, budget.getWeight());
+  }//testSharedBudget
+
+  @Test
+  public void testNestedBudgets() throws Exception {
+    WeightBudget parent = new WeightBudget(100, 40);
+    WeightBudget entries = new WeightBudget(parent, 50, 100);
+    WeightBudget groups = new WeightBudget(parent, 200, 10);
+    assertEquals(50, entries.getMaxWeight());
+    assertEquals(40, entries.getMaxEntryWeight());
+    assertEquals(100, groups.getMaxWeight());
+    assertEquals(10, groups.getMaxEntryWeight());
+
+    LRUCacheMap<String, String> first = cache(entries);
+    LRUCacheMap<String, String> second = cache(groups);
+    first.put("a", value(20));
+    second.put("b", value(10));
+    second.put("c", value(10));
+    assertEquals(20, entries.getWeight());
+    assertEquals(20, groups.getWeight());
+    assertEquals(40, parent.getWeight());
+
+    //over its share, the child evicts its own entries, not those of its sibling
+    first.put("d", value(20));
+    first.put("e", value(20));
+    assertFalse(first.containsKey("a"));
+    assertTrue(second.containsKey("b"));
+    assertTrue(second.containsKey("c"));
+    assertEquals(40, entries.getWeight());
+    assertEquals(60, parent.getWeight());
+
+    //bypassed entries count in the parent as well
+    second.put("f", value(11));
+    assertEquals(1, groups.getBypassed());
+    assertEquals(1, parent.getBypassed());
+    assertEquals(0, entries.getBypassed());
+
+    first.clear();
+    assertEquals(0, entries.getWeight());
+    assertEquals(20, parent.getWeight());
+  }//testNestedBudgets
+
+  @Test
+  public void testParentExceeded() throws Exception {
+    WeightBudget parent = new WeightBudget(50, 50);
+    WeightBudget first = new WeightBudget(parent, 40, 40);
+    WeightBudget second = new WeightBudget(parent, 40, 40);
+    LRUCacheMap<String, String> a = cache(first);
+    LRUCacheMap<String, String> b = cache(second);
+    a.put("a1", value(30));
+    b.put("b1", value(15));
+    b.put("b2", value(15));
+    //within its own share, but the parent is exceeded
+    assertFalse(b.containsKey("b1"));
+    assertTrue(a.containsKey("a1"));
+    assertEquals(45, parent.getWeight());
+  }//testParentExceeded
+
+  private static LRUCacheMap<String, String> cache(WeightBudget budget) {
+    LRUCacheMap<String, String> cache = new LRUCacheMap<String, String>(1000);
+    cache.setWeigher(WEIGHER, budget);
+    return cache;
+  }//cache
+
+  private static String value(int length) {
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      sb.append('x');
+    }
+    return sb.toString();
+  }//value
+
+}//class WeightBudgetTest